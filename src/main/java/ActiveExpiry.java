@@ -0,0 +1,277 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background reclamation of expired keys.
+ *
+ * Keys written with an expiry are also recorded in an index ordered by expiry
+ * time (a set of min-heaps, striped by key hash so concurrent writers rarely
+ * share a lock). Ten times a second a background thread pops the entries that
+ * are due and removes those keys, stopping when its time budget for the tick
+ * is used up so no single cycle runs long. Lazy eviction on access still
+ * applies; this just makes sure keys that are never read again go away too.
+ *
+ * The index holds one entry per key, with only the key and its deadline: an
+ * overwrite moves the key's entry, and removing the key or its expiry drops
+ * it, so a key refreshed on every hit (SET k v PX ...) costs one entry, and
+ * no old value stays reachable from here. Whether the key is really due is
+ * decided from its live entry when the deadline comes.
+ */
+class ActiveExpiry {
+  private static final int STRIPES = 16;
+  private static final long TICK_MILLIS = 100;
+  private static final long TIME_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(25); // 25% of a tick, as in Redis
+  private static final int BATCH_SIZE = 64;
+
+  private final Keyspace keyspace;
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  // Counters reported by INFO
+  private final LongAdder expiredKeys = new LongAdder();
+  private volatile long expiredKeysPerSec;
+  private volatile long lagMillis;
+  private volatile long timeCapReachedCount;
+  private long rateWindowStart = System.currentTimeMillis();
+  private long rateWindowBase;
+
+  // Stripe the next cycle starts at, so a capped cycle does not starve the later stripes
+  private int nextStripe;
+
+  public ActiveExpiry(Keyspace keyspace) {
+    this.keyspace = keyspace;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * Starts the background expire cycle on a daemon thread.
+   */
+  public void start() {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "active-expiry");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::expireCycle, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Records a key's expiry time, replacing the one recorded before. Call
+   * after the entry is in the dataStore.
+   * @param expiryTime The new deadline, or -1 to drop the key's entry.
+   */
+  public void schedule(ByteKey key, long expiryTime) {
+    Stripe stripe = stripeOf(key);
+    synchronized (stripe) {
+      Entry entry = stripe.entries.get(key);
+      if (expiryTime == -1) {
+        if (entry != null) {
+          stripe.remove(entry);
+        }
+      } else if (entry == null) {
+        stripe.add(new Entry(key, expiryTime));
+      } else if (entry.when != expiryTime) {
+        stripe.move(entry, expiryTime);
+      }
+    }
+  }
+
+  /**
+   * Drops a removed key's entry, if it still has the given deadline (a
+   * later write may have scheduled the key again).
+   */
+  public void unschedule(ByteKey key, long expiryTime) {
+    Stripe stripe = stripeOf(key);
+    synchronized (stripe) {
+      Entry entry = stripe.entries.get(key);
+      if (entry != null && entry.when == expiryTime) {
+        stripe.remove(entry);
+      }
+    }
+  }
+
+  /**
+   * Counts a key that a command found expired and removed itself.
+   */
+  public void expiredLazily() {
+    expiredKeys.increment();
+  }
+
+  /**
+   * One tick: removes due keys from every stripe until done or out of budget.
+   */
+  void expireCycle() {
+    long deadline = System.nanoTime() + TIME_BUDGET_NANOS;
+    long maxLag = 0;
+    List<Entry> due = new ArrayList<>(BATCH_SIZE);
+    boolean capReached = false;
+
+    for (int visited = 0; visited < STRIPES; visited++) {
+      Stripe stripe = stripes[nextStripe];
+      nextStripe = (nextStripe + 1) & (STRIPES - 1);
+      while (true) {
+        long now = System.currentTimeMillis();
+        due.clear();
+        synchronized (stripe) {
+          while (due.size() < BATCH_SIZE && stripe.size > 0 && stripe.heap[0].when < now) {
+            due.add(stripe.heap[0]);
+            stripe.remove(stripe.heap[0]);
+          }
+        }
+        if (due.isEmpty()) {
+          break;
+        }
+
+        for (Entry entry : due) {
+          if (keyspace.removeExpired(entry.key)) {
+            expiredKeys.increment();
+            maxLag = Math.max(maxLag, now - entry.when);
+          }
+        }
+
+        if (System.nanoTime() > deadline) {
+          capReached = true;
+          break;
+        }
+      }
+      if (capReached) {
+        break;
+      }
+    }
+
+    if (capReached) {
+      timeCapReachedCount++;
+    }
+    lagMillis = maxLag;
+    updateRate();
+  }
+
+  private void updateRate() {
+    long now = System.currentTimeMillis();
+    long elapsed = now - rateWindowStart;
+    if (elapsed >= 1000) {
+      long total = expiredKeys.sum();
+      expiredKeysPerSec = (total - rateWindowBase) * 1000 / elapsed;
+      rateWindowBase = total;
+      rateWindowStart = now;
+    }
+  }
+
+  /**
+   * Appends the expiry counters in INFO format.
+   */
+  public void appendInfo(StringBuilder info) {
+    int pending = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        pending += stripe.size;
+      }
+    }
+    info.append("expired_keys:").append(expiredKeys.sum()).append("\r\n");
+    info.append("expired_keys_per_sec:").append(expiredKeysPerSec).append("\r\n");
+    info.append("expire_lag_ms:").append(lagMillis).append("\r\n");
+    info.append("expire_cycle_time_cap_reached_count:").append(timeCapReachedCount).append("\r\n");
+    info.append("expires_pending:").append(pending).append("\r\n");
+  }
+
+  private Stripe stripeOf(ByteKey key) {
+    return stripes[key.hashCode() & (STRIPES - 1)];
+  }
+
+  /**
+   * A min-heap of deadlines that knows where each key's entry sits, so the
+   * entry can be moved or removed when the key changes. Guarded by its monitor.
+   */
+  private static final class Stripe {
+    final Map<ByteKey, Entry> entries = new HashMap<>();
+    Entry[] heap = new Entry[16];
+    int size;
+
+    void add(Entry entry) {
+      if (size == heap.length) {
+        heap = Arrays.copyOf(heap, size * 2);
+      }
+      entries.put(entry.key, entry);
+      entry.index = size++;
+      heap[entry.index] = entry;
+      siftUp(entry.index);
+    }
+
+    void remove(Entry entry) {
+      entries.remove(entry.key);
+      int index = entry.index;
+      Entry last = heap[--size];
+      heap[size] = null;
+      if (index < size) {
+        place(last, index);
+        siftDown(index);
+        siftUp(last.index);
+      }
+      if (heap.length > 16 && size < heap.length / 4) {
+        heap = Arrays.copyOf(heap, heap.length / 2); // Give back the room of a burst of expiring keys
+      }
+    }
+
+    void move(Entry entry, long when) {
+      entry.when = when;
+      siftUp(entry.index);
+      siftDown(entry.index);
+    }
+
+    private void siftUp(int index) {
+      Entry entry = heap[index];
+      while (index > 0) {
+        int parent = (index - 1) >>> 1;
+        if (heap[parent].when <= entry.when) {
+          break;
+        }
+        place(heap[parent], index);
+        index = parent;
+      }
+      place(entry, index);
+    }
+
+    private void siftDown(int index) {
+      Entry entry = heap[index];
+      while (true) {
+        int child = 2 * index + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && heap[child + 1].when < heap[child].when) {
+          child++;
+        }
+        if (entry.when <= heap[child].when) {
+          break;
+        }
+        place(heap[child], index);
+        index = child;
+      }
+      place(entry, index);
+    }
+
+    private void place(Entry entry, int index) {
+      heap[index] = entry;
+      entry.index = index;
+    }
+  }
+
+  private static final class Entry {
+    final ByteKey key;
+    long when;
+    int index; // Position in the stripe's heap
+
+    Entry(ByteKey key, long when) {
+      this.key = key;
+      this.when = when;
+    }
+  }
+}
@@ -0,0 +1,279 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The append-only file: every write command, as RESP, in the order it was applied.
+ *
+ * Commands are appended to an in-memory buffer by the threads that run them
+ * and reach the file in batches:
+ * - always: before a client gets its replies, everything appended so far is
+ *   written and forced to disk. Whoever gets the I/O lock first does it for
+ *   all threads waiting at that moment, so concurrent writers share one
+ *   FileChannel.force (group commit) instead of paying one each.
+ * - everysec: a background thread writes the buffer every 100 ms and forces
+ *   the file once a second.
+ * - no: the background thread writes the buffer and leaves flushing to the OS.
+ *
+ * A rewrite compacts the file without stopping writers: the keyspace is saved
+ * as an RDB preamble from a snapshot while new commands keep going to the old
+ * file and to a rewrite buffer, then the buffered tail is appended to the new
+ * file and it is swapped in.
+ */
+class AppendOnlyFile {
+
+  /**
+   * When the file is forced to disk.
+   */
+  enum FsyncPolicy {
+    ALWAYS,   // Before replying to a write
+    EVERYSEC, // Once a second
+    NO;       // Whenever the OS decides
+
+    static FsyncPolicy parse(String name) {
+      return valueOf(name.toUpperCase());
+    }
+  }
+
+  private static final long WRITE_INTERVAL_MILLIS = 100;
+  private static final long FSYNC_INTERVAL_MILLIS = 1000;
+
+  private final Path path;
+  final FsyncPolicy policy;
+
+  // Guarded by this: commands not yet handed to the file
+  private final ByteArrayOutputStream record = new ByteArrayOutputStream(256); // Scratch for one command
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+  private long appendedOffset;                 // Bytes appended since startup, buffer included
+  private ByteArrayOutputStream rewriteBuffer; // Commands since the rewrite snapshot, or null
+
+  // Guarded by ioLock: the file itself
+  private final ReentrantLock ioLock = new ReentrantLock();
+  private FileChannel channel;
+  private volatile long durableOffset;
+  private long lastFsync = System.currentTimeMillis();
+
+  private volatile long fileSize;
+  private volatile long baseSize; // File size after the last rewrite or load
+  private volatile long fsyncs;
+
+  AppendOnlyFile(Path path, FsyncPolicy policy) {
+    this.path = path;
+    this.policy = policy;
+  }
+
+  /**
+   * Opens the file for appending, after it has been replayed.
+   */
+  void open() throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+    fileSize = channel.size();
+    baseSize = fileSize;
+
+    Thread thread = new Thread(this::backgroundLoop, "aof-writer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  Path path() {
+    return path;
+  }
+
+  /**
+   * Appends a command given as its arguments.
+   * @return The offset the log must reach for the command to be in it.
+   */
+  synchronized long append(CommandArgs args) {
+    record.reset();
+    CommandEncoder.encode(record, args);
+    return commitRecord();
+  }
+
+  /**
+   * Appends a command given as separate byte strings (e.g. a rewritten form).
+   * @return The offset the log must reach for the command to be in it.
+   */
+  synchronized long append(byte[]... argv) {
+    record.reset();
+    CommandEncoder.encode(record, argv);
+    return commitRecord();
+  }
+
+  /**
+   * @return false if, under the always policy, the log has not been forced up to the offset yet.
+   */
+  boolean isDurable(long offset) {
+    return policy != FsyncPolicy.ALWAYS || durableOffset >= offset;
+  }
+
+  /**
+   * With the always policy, returns once the log is on disk up to the given
+   * offset. Other policies return immediately.
+   */
+  void awaitDurable(long offset) throws IOException {
+    if (policy != FsyncPolicy.ALWAYS || durableOffset >= offset) {
+      return;
+    }
+    ioLock.lock();
+    try {
+      // Whoever held the lock before us may have covered our offset already
+      if (durableOffset < offset) {
+        writeBuffer(true);
+      }
+    } finally {
+      ioLock.unlock();
+    }
+  }
+
+  /**
+   * Starts collecting commands for a rewrite. Called at the moment the
+   * rewrite's snapshot is opened, so every later command lands in both.
+   */
+  synchronized void startRewrite() {
+    rewriteBuffer = new ByteArrayOutputStream(64 * 1024);
+  }
+
+  /**
+   * Drops the collected commands of a rewrite that failed.
+   */
+  synchronized void abortRewrite() {
+    rewriteBuffer = null;
+  }
+
+  /**
+   * Completes a rewrite: appends the commands collected since its snapshot to
+   * the new file and swaps it in for the current one.
+   * @param rewritten The new file, holding the snapshot.
+   */
+  void finishRewrite(Path rewritten) throws IOException {
+    try (FileChannel target = FileChannel.open(rewritten, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      // Copy most of the tail while writers carry on, so the final step is short
+      for (int round = 0; round < 3; round++) {
+        byte[] tail;
+        synchronized (this) {
+          tail = rewriteBuffer.toByteArray();
+          rewriteBuffer.reset();
+        }
+        writeFully(target, tail);
+      }
+
+      ioLock.lock();
+      try {
+        synchronized (this) {
+          writeFully(target, rewriteBuffer.toByteArray());
+          rewriteBuffer = null;
+          target.force(true);
+          Files.move(rewritten, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+          // Whatever is still buffered was logged after the snapshot, so it is
+          // in the tail already; from here on commands go to the new file only
+          FileChannel old = channel;
+          channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+          old.close();
+          buffer.reset();
+          durableOffset = appendedOffset;
+          fileSize = channel.size();
+          baseSize = fileSize;
+        }
+      } finally {
+        ioLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * @return true if the file has doubled since the last rewrite and passed
+   * 64 MB (the Redis auto-aof-rewrite defaults).
+   */
+  boolean needsRewrite() {
+    return fileSize >= 64L * 1024 * 1024 && fileSize >= baseSize * 2;
+  }
+
+  /**
+   * Appends the AOF fields of the persistence section in INFO format.
+   */
+  void appendInfo(StringBuilder info) {
+    info.append("aof_current_size:").append(fileSize).append("\r\n");
+    info.append("aof_base_size:").append(baseSize).append("\r\n");
+    synchronized (this) {
+      info.append("aof_buffer_length:").append(buffer.size()).append("\r\n");
+    }
+    info.append("aof_fsync_policy:").append(policy.name().toLowerCase()).append("\r\n");
+    info.append("aof_fsyncs:").append(fsyncs).append("\r\n");
+  }
+
+  private void backgroundLoop() {
+    while (true) {
+      try {
+        Thread.sleep(WRITE_INTERVAL_MILLIS);
+        if (policy == FsyncPolicy.ALWAYS) {
+          continue; // Writers flush the log themselves
+        }
+        ioLock.lock();
+        try {
+          boolean fsync = policy == FsyncPolicy.EVERYSEC
+              && System.currentTimeMillis() - lastFsync >= FSYNC_INTERVAL_MILLIS;
+          writeBuffer(fsync);
+        } finally {
+          ioLock.unlock();
+        }
+      } catch (IOException e) {
+        System.out.println("Error writing the append only file: " + e.getMessage());
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Moves the buffer to the file, optionally forcing it. Call holding ioLock.
+   */
+  private void writeBuffer(boolean fsync) throws IOException {
+    byte[] pending;
+    long end;
+    synchronized (this) {
+      end = appendedOffset;
+      pending = buffer.size() == 0 ? null : buffer.toByteArray();
+      buffer.reset();
+    }
+    if (pending != null) {
+      writeFully(channel, pending);
+      fileSize += pending.length;
+    }
+    if (fsync) {
+      if (durableOffset < end) {
+        channel.force(false);
+        durableOffset = end;
+        fsyncs++;
+      }
+      lastFsync = System.currentTimeMillis();
+    }
+  }
+
+  private long commitRecord() {
+    try {
+      record.writeTo(buffer);
+      if (rewriteBuffer != null) {
+        record.writeTo(rewriteBuffer);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // Not thrown by ByteArrayOutputStream
+    }
+    appendedOffset += record.size();
+    return appendedOffset;
+  }
+
+  private static void writeFully(FileChannel target, byte[] data) throws IOException {
+    ByteBuffer source = ByteBuffer.wrap(data);
+    while (source.hasRemaining()) {
+      target.write(source);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clients blocked in BLPOP/BRPOP, queued per key in arrival order.
+ *
+ * A blocked client costs one Waiter object: no thread sleeps or polls on its
+ * behalf. Pushes to a key hand elements to its waiters first come, first
+ * served, and a single shared timer thread ends the waits that time out.
+ *
+ * The registry's monitor also orders "check the lists, then block" against
+ * "push, then serve the waiters", so a push can never slip in between and
+ * leave a client waiting on a non-empty list.
+ */
+class BlockingRegistry {
+  /**
+   * A client waiting on one or more keys.
+   */
+  static final class Waiter {
+    final Client client;
+    final ByteKey[] keys;
+    final boolean fromLeft; // BLPOP pops the head, BRPOP the tail
+    ScheduledFuture<?> timeout;
+    boolean done; // Served, timed out or cancelled
+
+    Waiter(Client client, ByteKey[] keys, boolean fromLeft) {
+      this.client = client;
+      this.keys = keys;
+      this.fromLeft = fromLeft;
+    }
+  }
+
+  /**
+   * Tries to produce the reply for a waiter from a key that received data.
+   */
+  interface Server {
+    /**
+     * @return The reply for the waiter, or null if the key has nothing left for it.
+     */
+    byte[] serve(Waiter waiter, ByteKey key);
+  }
+
+  private final Map<ByteKey, LinkedHashSet<Waiter>> waitersByKey = new HashMap<>();
+  private final ScheduledThreadPoolExecutor timer;
+
+  BlockingRegistry() {
+    timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "blocking-timeouts");
+      thread.setDaemon(true);
+      return thread;
+    });
+    timer.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Blocks a client on the given keys. Call while holding this registry's
+   * monitor, right after finding all the keys empty.
+   * @param timeoutMillis How long to wait; 0 waits forever.
+   */
+  synchronized void block(Client client, ByteKey[] keys, boolean fromLeft, long timeoutMillis) {
+    Waiter waiter = new Waiter(client, keys, fromLeft);
+    for (ByteKey key : keys) {
+      waitersByKey.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(waiter);
+    }
+    client.waiter = waiter;
+    if (timeoutMillis > 0) {
+      waiter.timeout = timer.schedule(() -> timedOut(waiter), timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Serves the clients blocked on a key, oldest first, until the server runs out of data.
+   */
+  void serveBlocked(ByteKey key, Server server) {
+    synchronized (this) {
+      LinkedHashSet<Waiter> waiters = waitersByKey.get(key);
+      if (waiters == null) {
+        return;
+      }
+      Iterator<Waiter> iterator = waiters.iterator();
+      while (iterator.hasNext()) {
+        Waiter waiter = iterator.next();
+        byte[] reply = server.serve(waiter, key);
+        if (reply == null) {
+          break;
+        }
+        iterator.remove();
+        finish(waiter);
+        waiter.client.unblock(reply);
+      }
+      if (waiters.isEmpty()) {
+        waitersByKey.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Drops a client's wait, e.g. because it disconnected.
+   */
+  synchronized void cancel(Client client) {
+    Waiter waiter = client.waiter;
+    if (waiter != null && !waiter.done) {
+      finish(waiter);
+    }
+  }
+
+  private synchronized void timedOut(Waiter waiter) {
+    if (waiter.done) {
+      return; // Already served or cancelled
+    }
+    finish(waiter);
+    waiter.client.unblock(Replies.NULL_ARRAY);
+  }
+
+  /**
+   * Removes a waiter from every key it waits on and stops its timer.
+   * The client's own thread clears Client.waiter when it takes the reply,
+   * so it cannot run a later command before the blocking one has replied.
+   */
+  private void finish(Waiter waiter) {
+    waiter.done = true;
+    for (ByteKey key : waiter.keys) {
+      LinkedHashSet<Waiter> waiters = waitersByKey.get(key);
+      if (waiters != null) {
+        waiters.remove(waiter);
+        if (waiters.isEmpty()) {
+          waitersByKey.remove(key);
+        }
+      }
+    }
+    if (waiter.timeout != null) {
+      waiter.timeout.cancel(false);
+    }
+  }
+}
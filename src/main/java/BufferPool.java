@@ -0,0 +1,41 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Direct buffers of one size, recycled between connections. Replies are
+ * encoded straight into them (see {@link ReplyStream}), so the socket sends
+ * from them without another copy, and no direct memory is allocated or
+ * freed per reply. Buffers beyond what the pool keeps are left to the GC.
+ */
+final class BufferPool {
+  static final int CHUNK_SIZE = 16 * 1024;
+  private static final int MAX_POOLED = 1024; // 16 MB
+
+  private static final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+  private BufferPool() {
+  }
+
+  /**
+   * @return An empty buffer in write mode.
+   */
+  static ByteBuffer acquire() {
+    ByteBuffer buffer;
+    synchronized (free) {
+      buffer = free.pollLast();
+    }
+    return buffer != null ? buffer : ByteBuffer.allocateDirect(CHUNK_SIZE);
+  }
+
+  /**
+   * Gives a buffer back. It must not be used afterwards.
+   */
+  static void release(ByteBuffer buffer) {
+    buffer.clear();
+    synchronized (free) {
+      if (free.size() < MAX_POOLED) {
+        free.addLast(buffer);
+      }
+    }
+  }
+}
@@ -0,0 +1,38 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A dataStore key: the raw key bytes with their hash computed once.
+ * Keys are binary safe and compared byte for byte.
+ */
+final class ByteKey {
+  final byte[] bytes;
+  private final int hash;
+
+  ByteKey(byte[] bytes) {
+    this.bytes = bytes;
+    this.hash = Arrays.hashCode(bytes);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof ByteKey)) {
+      return false;
+    }
+    ByteKey that = (ByteKey) other;
+    return hash == that.hash && Arrays.equals(bytes, that.bytes);
+  }
+
+  @Override
+  public String toString() {
+    return new String(bytes, StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,104 @@
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Per-connection state that commands can see, shared by every server mode.
+ * Subclasses supply the transport: an event-loop connection or a
+ * thread-per-connection handler.
+ */
+abstract class Client {
+  private static final AtomicLong NEXT_ID = new AtomicLong();
+
+  final long id = NEXT_ID.incrementAndGet();
+
+  // Set while the client waits in BLPOP/BRPOP; no further commands are
+  // processed for it until it is unblocked
+  volatile BlockingRegistry.Waiter waiter;
+
+  // AOF offset of this client's latest write; its replies wait for the log to
+  // reach it under appendfsync always
+  long aofOffset;
+
+  // Replication offset just past this client's latest write, for WAIT
+  long replOffset;
+
+  // The port a replica listens on, from REPLCONF listening-port
+  int listeningPort;
+
+  // Set by ASKING: the next command may use a slot this node is importing
+  boolean asking;
+
+  // Open between MULTI and EXEC or DISCARD, null otherwise
+  Transaction transaction;
+
+  // Keys under WATCH, each with the version it had then (see Keyspace#watch), or null
+  Map<ByteKey, Long> watched;
+
+  // Pub/Sub channels and patterns the client is subscribed to, or null
+  // before its first SUBSCRIBE or PSUBSCRIBE (see PubSub)
+  Set<ByteKey> channels;
+  Set<ByteKey> patterns;
+
+  // RESP version chosen with HELLO: 3 makes Pub/Sub messages and
+  // invalidations arrive as push frames. Read by publishers' threads
+  volatile int protocol = 2;
+
+  // CLIENT TRACKING settings, null while tracking is off (see Tracking).
+  // Read by writers' threads
+  volatile Tracking.Tracker tracker;
+
+  boolean isBlocked() {
+    return waiter != null;
+  }
+
+  /**
+   * @return The number of channels and patterns the client is subscribed to.
+   */
+  int subscriptions() {
+    return (channels == null ? 0 : channels.size()) + (patterns == null ? 0 : patterns.size());
+  }
+
+  /**
+   * Ends a blocking command: sends its reply and resumes processing the
+   * client's commands. Called from whichever thread served or timed out
+   * the wait, so implementations must hand the work to the client's own
+   * thread, which clears {@link #waiter} before processing anything else.
+   * @param reply The encoded reply of the blocking command.
+   */
+  abstract void unblock(byte[] reply);
+
+  /**
+   * Sends a published message. Called from the publisher's thread, so
+   * implementations queue the frame on the client's own thread and return
+   * without waiting for the socket; a client that falls too far behind is
+   * disconnected by its output buffer limits. Clients without a connection
+   * (AOF replay, the master link) never subscribe and ignore it.
+   * @param frame The encoded message, read-only and shared by every
+   * subscriber (see {@link ReplyStream#writeShared}).
+   */
+  void push(ByteBuffer frame) {
+  }
+
+  /**
+   * @return Whether there is a connection for {@link #handOff} to give away;
+   * not for clients without one (AOF replay, the master link).
+   */
+  boolean hasSocket() {
+    return false;
+  }
+
+  /**
+   * Takes the connection away from the server's client handling and gives
+   * its socket to the receiver (PSYNC turns a client into a replica link).
+   * Commands already read after the current one are dropped. The receiver
+   * runs once the replies so far have been sent. Only for clients that
+   * {@link #hasSocket}.
+   */
+  void handOff(Consumer<Socket> receiver) {
+    throw new UnsupportedOperationException("Client " + id + " has no socket to hand off");
+  }
+}
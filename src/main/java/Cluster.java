@@ -0,0 +1,842 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Redis Cluster compatible sharding across server processes (--cluster-enabled).
+ *
+ * The keys are spread over 16384 hash slots: CRC16 of the key, or of its
+ * {hash tag} if it has one, modulo 16384. Every slot is owned by one node.
+ * Before a keyed command touches the dataStore the dispatcher asks
+ * {@link #redirect} whether this node serves the slot; if not the client gets
+ * -MOVED with the owner's address, or -ASK while the slot is migrating and
+ * the key has already left. In cluster mode the keyspace is sharded by slot,
+ * so the check runs under the slot's lock and cannot race a MIGRATE.
+ *
+ * Nodes are introduced with CLUSTER MEET. Instead of Redis's binary gossip
+ * bus, every node polls the nodes it knows with CLUSTER NODES a few times a
+ * second over the normal client port, and learns third nodes and slot
+ * owners from the replies. Conflicting claims on a slot are settled as in
+ * Redis: the node with the higher config epoch wins, and a node taking over a
+ * slot (CLUSTER SETSLOT NODE on the importing side) first moves its epoch past
+ * every epoch it has seen. The topology is saved to the cluster config file
+ * (nodes.conf) whenever it changes and reloaded at startup.
+ */
+class Cluster {
+  static final int SLOTS = 16384;
+  private static final long BUS_INTERVAL_MILLIS = 200;
+  private static final int BUS_TIMEOUT_MILLIS = 2000;
+
+  private static final byte[] CROSSSLOT_ERROR =
+      "-CROSSSLOT Keys in request don't hash to the same slot\r\n".getBytes();
+  private static final byte[] TRYAGAIN_ERROR =
+      "-TRYAGAIN Multiple keys request during rehashing of slot\r\n".getBytes();
+  private static final byte[] CLUSTERDOWN_ERROR =
+      "-CLUSTERDOWN Hash slot not served\r\n".getBytes();
+
+  /**
+   * A cluster node as this node knows it.
+   */
+  static final class Node {
+    volatile String id; // Null until the handshake has learned it
+    final String host;
+    final int port;
+    volatile long configEpoch;
+    volatile boolean linkUp;
+    volatile long lastPongMillis;
+
+    // The bus connection to the node, used by the bus thread only
+    Socket socket;
+    InputStream in;
+
+    Node(String id, String host, int port) {
+      this.id = id;
+      this.host = host;
+      this.port = port;
+    }
+
+    String address() {
+      return host + ":" + port;
+    }
+  }
+
+  private final Keyspace keyspace;
+  private final Path configFile;
+  private final Node myself;
+  private final Map<String, Node> nodes = new ConcurrentHashMap<>();        // By id, myself included
+  private final List<Node> handshakes = new CopyOnWriteArrayList<>();        // Met, id not known yet
+  private final AtomicReferenceArray<Node> owners = new AtomicReferenceArray<>(SLOTS);
+  private final AtomicReferenceArray<Node> migrating = new AtomicReferenceArray<>(SLOTS); // To node
+  private final AtomicReferenceArray<Node> importing = new AtomicReferenceArray<>(SLOTS); // From node
+  private volatile long currentEpoch;
+
+  Cluster(ServerConfig config, Keyspace keyspace) throws IOException {
+    this.keyspace = keyspace;
+    this.configFile = Paths.get(config.dir, config.clusterConfigFile);
+    Node self = Files.exists(configFile) ? loadConfig(config) : null;
+    if (self == null) {
+      self = new Node(randomId(), config.clusterAnnounceIp, config.port);
+      nodes.put(self.id, self);
+    }
+    myself = self;
+    saveConfig();
+    System.out.println("Cluster node " + myself.id + " at " + myself.address());
+  }
+
+  /**
+   * Starts polling the other nodes.
+   */
+  void start() {
+    Thread thread = new Thread(this::busLoop, "cluster-bus");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @return The hash slot of a key: CRC16 of the key, or of the part between
+   * the first '{' and the next '}' if that part is not empty.
+   */
+  static int keySlot(ByteBuffer key, int start, int length) {
+    int end = start + length;
+    for (int i = start; i < end; i++) {
+      if (key.get(i) == '{') {
+        for (int j = i + 1; j < end; j++) {
+          if (key.get(j) == '}') {
+            if (j > i + 1) {
+              return Crc16.crc16(key, i + 1, j - i - 1) & (SLOTS - 1);
+            }
+            break;
+          }
+        }
+        break;
+      }
+    }
+    return Crc16.crc16(key, start, length) & (SLOTS - 1);
+  }
+
+  static int keySlot(byte[] key) {
+    return keySlot(ByteBuffer.wrap(key), 0, key.length);
+  }
+
+  /**
+   * Decides whether this node runs a keyed command. Call holding the lock of
+   * the command's slot.
+   * @return The redirection or error to reply with, or null to run the command.
+   */
+  byte[] redirect(Client client, Command command, CommandArgs args) {
+    int lastKey = command.lastKeyIndex(args.count());
+    int slot = -1;
+    for (int i = command.firstKey; i <= lastKey; i += command.keyStep) {
+      int keySlot = args.slot(i);
+      if (slot == -1) {
+        slot = keySlot;
+      } else if (keySlot != slot) {
+        return CROSSSLOT_ERROR;
+      }
+    }
+    if (slot == -1) {
+      return null;
+    }
+
+    Node owner = owners.get(slot);
+    if (owner == myself) {
+      Node target = migrating.get(slot);
+      if (target == null) {
+        return null;
+      }
+      // Migrating: keys still here are served here, the others have moved
+      int keys = 0;
+      int missing = 0;
+      for (int i = command.firstKey; i <= lastKey; i += command.keyStep) {
+        keys++;
+        if (keyspace.get(args.key(i)) == null) {
+          missing++;
+        }
+      }
+      if (missing == 0) {
+        return null;
+      }
+      if (missing < keys) {
+        return TRYAGAIN_ERROR;
+      }
+      return ("-ASK " + slot + " " + target.address() + "\r\n").getBytes();
+    }
+    if (importing.get(slot) != null && (client.asking || command.has(Command.ASKING))) {
+      return null;
+    }
+    if (owner == null) {
+      return CLUSTERDOWN_ERROR;
+    }
+    return ("-MOVED " + slot + " " + owner.address() + "\r\n").getBytes();
+  }
+
+  /**
+   * CLUSTER subcommand [arguments]
+   */
+  void command(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (args.is(1, "MYID")) {
+      CommandProcessor.writeBulk(outputStream, myself.id.getBytes());
+    } else if (args.is(1, "NODES")) {
+      CommandProcessor.writeBulk(outputStream, nodesDescription().getBytes());
+    } else if (args.is(1, "SLOTS")) {
+      writeSlots(outputStream);
+    } else if (args.is(1, "SHARDS")) {
+      writeShards(outputStream);
+    } else if (args.is(1, "INFO")) {
+      CommandProcessor.writeBulk(outputStream, info().getBytes());
+    } else if (args.is(1, "KEYSLOT") && args.count() == 3) {
+      CommandProcessor.writeInteger(outputStream, keySlot(args.bytes(2)));
+    } else if (args.is(1, "COUNTKEYSINSLOT") && args.count() == 3) {
+      int slot = parseSlot(args, 2, outputStream);
+      if (slot >= 0) {
+        // Each slot is a shard of its own in cluster mode
+        CommandProcessor.writeInteger(outputStream, keyspace.shardMap(slot).size());
+      }
+    } else if (args.is(1, "GETKEYSINSLOT") && args.count() == 4) {
+      getKeysInSlot(args, outputStream);
+    } else if (args.is(1, "MEET") && args.count() >= 4) {
+      meet(args, outputStream);
+    } else if ((args.is(1, "ADDSLOTS") || args.is(1, "DELSLOTS")) && args.count() >= 3) {
+      changeSlots(args, outputStream, args.is(1, "ADDSLOTS"), false);
+    } else if ((args.is(1, "ADDSLOTSRANGE") || args.is(1, "DELSLOTSRANGE")) && args.count() >= 4
+        && args.count() % 2 == 0) {
+      changeSlots(args, outputStream, args.is(1, "ADDSLOTSRANGE"), true);
+    } else if (args.is(1, "SETSLOT") && args.count() >= 4) {
+      setSlot(args, outputStream);
+    } else if (args.is(1, "BUMPEPOCH")) {
+      boolean bumped = bumpEpoch(false);
+      outputStream.write(((bumped ? "+BUMPED " : "+STILL ") + myself.configEpoch + "\r\n").getBytes());
+    } else if (args.is(1, "SAVECONFIG")) {
+      saveConfig();
+      outputStream.write(Replies.OK);
+    } else {
+      outputStream.write(("-ERR unknown subcommand or wrong number of arguments for '"
+          + args.string(1) + "'\r\n").getBytes());
+    }
+  }
+
+  private void getKeysInSlot(CommandArgs args, OutputStream outputStream) throws IOException {
+    int slot = parseSlot(args, 2, outputStream);
+    if (slot < 0) {
+      return;
+    }
+    long count;
+    try {
+      count = args.parseLong(3);
+    } catch (NumberFormatException e) {
+      count = -1;
+    }
+    if (count < 0) {
+      outputStream.write("-ERR Invalid number of keys\r\n".getBytes());
+      return;
+    }
+    List<ByteKey> keys = new ArrayList<>();
+    for (ByteKey key : keyspace.shardMap(slot).keySet()) {
+      if (keys.size() >= count) {
+        break;
+      }
+      keys.add(key);
+    }
+    outputStream.write(("*" + keys.size() + "\r\n").getBytes());
+    for (ByteKey key : keys) {
+      CommandProcessor.writeBulk(outputStream, key.bytes);
+    }
+  }
+
+  private void meet(CommandArgs args, OutputStream outputStream) throws IOException {
+    String host = args.string(2);
+    int port;
+    try {
+      port = (int) args.parseLong(3);
+    } catch (NumberFormatException e) {
+      outputStream.write(("-ERR Invalid node address specified: " + host + ":" + args.string(3) + "\r\n").getBytes());
+      return;
+    }
+    String address = host + ":" + port;
+    boolean known = address.equals(myself.address());
+    for (Node node : nodes.values()) {
+      known |= node.address().equals(address);
+    }
+    for (Node node : handshakes) {
+      known |= node.address().equals(address);
+    }
+    if (!known) {
+      handshakes.add(new Node(null, host, port));
+    }
+    outputStream.write(Replies.OK);
+  }
+
+  /**
+   * ADDSLOTS/DELSLOTS slot [slot ...] and ADDSLOTSRANGE/DELSLOTSRANGE start end [start end ...]
+   */
+  private void changeSlots(CommandArgs args, OutputStream outputStream, boolean add, boolean ranges)
+      throws IOException {
+    List<int[]> requested = new ArrayList<>();
+    for (int i = 2; i < args.count(); i += ranges ? 2 : 1) {
+      int start = parseSlot(args, i, outputStream);
+      int end = ranges ? parseSlot(args, i + 1, outputStream) : start;
+      if (start < 0 || end < 0) {
+        return;
+      }
+      if (end < start) {
+        outputStream.write(("-ERR start slot number " + start + " is greater than end slot number "
+            + end + "\r\n").getBytes());
+        return;
+      }
+      requested.add(new int[] {start, end});
+    }
+    synchronized (this) {
+      for (int[] range : requested) {
+        for (int slot = range[0]; slot <= range[1]; slot++) {
+          if (add && owners.get(slot) != null) {
+            outputStream.write(("-ERR Slot " + slot + " is already busy\r\n").getBytes());
+            return;
+          }
+          if (!add && owners.get(slot) == null) {
+            outputStream.write(("-ERR Slot " + slot + " is already unassigned\r\n").getBytes());
+            return;
+          }
+        }
+      }
+      for (int[] range : requested) {
+        for (int slot = range[0]; slot <= range[1]; slot++) {
+          lockSlot(slot);
+          try {
+            owners.set(slot, add ? myself : null);
+            importing.set(slot, null);
+            migrating.set(slot, null);
+          } finally {
+            unlockSlot(slot);
+          }
+        }
+      }
+      saveConfig();
+    }
+    outputStream.write(Replies.OK);
+  }
+
+  /**
+   * SETSLOT slot IMPORTING node-id | MIGRATING node-id | STABLE | NODE node-id
+   */
+  private void setSlot(CommandArgs args, OutputStream outputStream) throws IOException {
+    int slot = parseSlot(args, 2, outputStream);
+    if (slot < 0) {
+      return;
+    }
+    Node node = null;
+    if (!args.is(3, "STABLE")) {
+      if (args.count() != 5) {
+        outputStream.write(Replies.SYNTAX_ERROR);
+        return;
+      }
+      node = nodes.get(args.string(4));
+      if (node == null) {
+        outputStream.write(("-ERR I don't know about node " + args.string(4) + "\r\n").getBytes());
+        return;
+      }
+    }
+
+    synchronized (this) {
+      lockSlot(slot);
+      try {
+        if (args.is(3, "MIGRATING")) {
+          if (owners.get(slot) != myself) {
+            outputStream.write(("-ERR I'm not the owner of hash slot " + slot + "\r\n").getBytes());
+            return;
+          }
+          migrating.set(slot, node);
+        } else if (args.is(3, "IMPORTING")) {
+          if (owners.get(slot) == myself) {
+            outputStream.write(("-ERR I'm already the owner of hash slot " + slot + "\r\n").getBytes());
+            return;
+          }
+          importing.set(slot, node);
+        } else if (args.is(3, "STABLE")) {
+          migrating.set(slot, null);
+          importing.set(slot, null);
+        } else if (args.is(3, "NODE")) {
+          if (node == myself) {
+            // Completing an import: claim the slot with an epoch no other node has
+            if (importing.get(slot) != null) {
+              bumpEpoch(true);
+              importing.set(slot, null);
+            }
+          } else if (owners.get(slot) == myself && !keyspace.shardMap(slot).isEmpty()) {
+            outputStream.write(("-ERR Can't assign hashslot " + slot
+                + " to a different node while I still hold keys for this hash slot.\r\n").getBytes());
+            return;
+          }
+          migrating.set(slot, null);
+          owners.set(slot, node);
+        } else {
+          outputStream.write("-ERR Invalid CLUSTER SETSLOT action or number of arguments\r\n".getBytes());
+          return;
+        }
+      } finally {
+        unlockSlot(slot);
+      }
+      saveConfig();
+    }
+    outputStream.write(Replies.OK);
+  }
+
+  /**
+   * Gives this node an epoch greater than any other, as Redis does when a
+   * node takes over slots.
+   * @param force Bump even if this node already has the greatest epoch.
+   * @return true if the epoch changed.
+   */
+  private synchronized boolean bumpEpoch(boolean force) {
+    long greatest = currentEpoch;
+    for (Node node : nodes.values()) {
+      greatest = Math.max(greatest, node.configEpoch);
+    }
+    if (!force && myself.configEpoch != 0 && myself.configEpoch == greatest) {
+      return false;
+    }
+    currentEpoch = greatest + 1;
+    myself.configEpoch = currentEpoch;
+    saveConfig();
+    return true;
+  }
+
+  private void busLoop() {
+    while (true) {
+      try {
+        Thread.sleep(BUS_INTERVAL_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      for (Node node : handshakes) {
+        poll(node);
+      }
+      for (Node node : nodes.values()) {
+        if (node != myself) {
+          poll(node);
+        }
+      }
+    }
+  }
+
+  /**
+   * Fetches a node's view of the cluster and merges it into ours.
+   */
+  private void poll(Node node) {
+    try {
+      if (node.socket == null) {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(node.host, node.port), BUS_TIMEOUT_MILLIS);
+        socket.setSoTimeout(BUS_TIMEOUT_MILLIS);
+        socket.setTcpNoDelay(true);
+        node.socket = socket;
+        node.in = new BufferedInputStream(socket.getInputStream());
+        // Introduce ourselves, so the other side polls us back
+        socket.getOutputStream().write(CommandEncoder.encode("CLUSTER", "MEET", myself.host,
+            Integer.toString(myself.port)));
+        MasterLink.readLine(node.in);
+      }
+      node.socket.getOutputStream().write(CommandEncoder.encode("CLUSTER", "NODES"));
+      String header = MasterLink.readLine(node.in);
+      if (!header.startsWith("$")) {
+        throw new IOException("Unexpected reply to CLUSTER NODES: " + header);
+      }
+      byte[] body = node.in.readNBytes(Integer.parseInt(header.substring(1)) + 2);
+      if (!node.linkUp) {
+        System.out.println("Cluster bus link to " + node.address() + " is up");
+      }
+      node.linkUp = true;
+      node.lastPongMillis = System.currentTimeMillis();
+      merge(node, new String(body, 0, body.length - 2));
+    } catch (IOException | RuntimeException e) {
+      if (node.linkUp) {
+        System.out.println("Cluster bus link to " + node.address() + " is down: " + e.getMessage());
+      }
+      node.linkUp = false;
+      if (node.socket != null) {
+        try {
+          node.socket.close();
+        } catch (IOException closeError) {
+          System.out.println("IOException closing cluster bus socket: " + closeError.getMessage());
+        }
+        node.socket = null;
+      }
+    }
+  }
+
+  /**
+   * Merges another node's CLUSTER NODES output: new nodes, epochs and slot claims.
+   */
+  private synchronized void merge(Node from, String description) {
+    boolean changed = false;
+    for (String line : description.split("\n")) {
+      NodeLine parsed = NodeLine.parse(line);
+      if (parsed == null) {
+        continue;
+      }
+      if (parsed.myself) {
+        if (from.id == null) {
+          // Handshake done: the met node told us its id
+          handshakes.remove(from);
+          if (!nodes.containsKey(parsed.id) && !parsed.id.equals(myself.id)) {
+            from.id = parsed.id;
+            nodes.put(from.id, from);
+            System.out.println("Cluster node " + from.id + " at " + from.address() + " joined");
+            changed = true;
+          }
+        } else if (!from.id.equals(parsed.id)) {
+          continue; // Another node answers at that address now
+        }
+      }
+      if (parsed.id.equals(myself.id)) {
+        continue; // Nobody knows this node better than itself
+      }
+      Node node = nodes.get(parsed.id);
+      if (node == null) {
+        node = new Node(parsed.id, parsed.host, parsed.port);
+        nodes.put(node.id, node);
+        System.out.println("Cluster node " + node.id + " at " + node.address() + " discovered");
+        changed = true;
+      }
+      if (parsed.configEpoch > node.configEpoch) {
+        node.configEpoch = parsed.configEpoch;
+        changed = true;
+      }
+      currentEpoch = Math.max(currentEpoch, parsed.configEpoch);
+      for (int[] range : parsed.slots) {
+        for (int slot = range[0]; slot <= range[1]; slot++) {
+          changed |= claim(slot, node, parsed.configEpoch);
+        }
+      }
+    }
+    if (changed) {
+      saveConfig();
+    }
+  }
+
+  /**
+   * Applies a node's claim on a slot if its epoch beats the current owner's.
+   * @return true if the owner changed.
+   */
+  private boolean claim(int slot, Node node, long epoch) {
+    Node current = owners.get(slot);
+    if (current == node || (current != null && current.configEpoch >= epoch)) {
+      return false;
+    }
+    if (current == myself) {
+      lockSlot(slot);
+      try {
+        owners.set(slot, node);
+        migrating.set(slot, null);
+      } finally {
+        unlockSlot(slot);
+      }
+      System.out.println("Slot " + slot + " now served by " + node.address() + " (epoch " + epoch + ")");
+    } else {
+      owners.set(slot, node);
+    }
+    return true;
+  }
+
+  private void lockSlot(int slot) {
+    keyspace.lock(new int[] {slot}, true); // Shard index and slot are the same in cluster mode
+  }
+
+  private void unlockSlot(int slot) {
+    keyspace.unlock(new int[] {slot}, true);
+  }
+
+  /**
+   * @return The topology in CLUSTER NODES format, one line per node.
+   */
+  private String nodesDescription() {
+    StringBuilder description = new StringBuilder();
+    long now = System.currentTimeMillis();
+    for (Node node : nodes.values()) {
+      boolean self = node == myself;
+      description.append(node.id).append(' ')
+          .append(node.address()).append('@').append(node.port + 10000).append(' ')
+          .append(self ? "myself,master" : "master").append(" - 0 ")
+          .append(self ? now : node.lastPongMillis).append(' ')
+          .append(node.configEpoch).append(' ')
+          .append(self || node.linkUp ? "connected" : "disconnected");
+      for (int[] range : slotRanges(node)) {
+        description.append(' ').append(range[0]);
+        if (range[1] != range[0]) {
+          description.append('-').append(range[1]);
+        }
+      }
+      if (self) {
+        for (int slot = 0; slot < SLOTS; slot++) {
+          Node target = migrating.get(slot);
+          if (target != null) {
+            description.append(" [").append(slot).append("->-").append(target.id).append(']');
+          }
+          Node source = importing.get(slot);
+          if (source != null) {
+            description.append(" [").append(slot).append("-<-").append(source.id).append(']');
+          }
+        }
+      }
+      description.append('\n');
+    }
+    return description.toString();
+  }
+
+  /**
+   * @return The slots a node owns, as [start, end] ranges.
+   */
+  private List<int[]> slotRanges(Node node) {
+    List<int[]> ranges = new ArrayList<>();
+    for (int slot = 0; slot < SLOTS; slot++) {
+      if (owners.get(slot) != node) {
+        continue;
+      }
+      int start = slot;
+      while (slot + 1 < SLOTS && owners.get(slot + 1) == node) {
+        slot++;
+      }
+      ranges.add(new int[] {start, slot});
+    }
+    return ranges;
+  }
+
+  /**
+   * CLUSTER SLOTS: [start, end, [host, port, id]] per range of slots with one owner.
+   */
+  private void writeSlots(OutputStream outputStream) throws IOException {
+    ByteArrayOutputStream entries = new ByteArrayOutputStream();
+    int count = 0;
+    for (int slot = 0; slot < SLOTS; slot++) {
+      Node owner = owners.get(slot);
+      if (owner == null) {
+        continue;
+      }
+      int start = slot;
+      while (slot + 1 < SLOTS && owners.get(slot + 1) == owner) {
+        slot++;
+      }
+      entries.write("*3\r\n".getBytes());
+      CommandProcessor.writeInteger(entries, start);
+      CommandProcessor.writeInteger(entries, slot);
+      writeNodeAddress(entries, owner);
+      count++;
+    }
+    outputStream.write(("*" + count + "\r\n").getBytes());
+    entries.writeTo(outputStream);
+  }
+
+  private static void writeNodeAddress(OutputStream outputStream, Node node) throws IOException {
+    outputStream.write("*3\r\n".getBytes());
+    CommandProcessor.writeBulk(outputStream, node.host.getBytes());
+    CommandProcessor.writeInteger(outputStream, node.port);
+    CommandProcessor.writeBulk(outputStream, node.id.getBytes());
+  }
+
+  /**
+   * CLUSTER SHARDS: per node, its slot ranges and a description of the node.
+   */
+  private void writeShards(OutputStream outputStream) throws IOException {
+    List<Node> known = new ArrayList<>(nodes.values());
+    outputStream.write(("*" + known.size() + "\r\n").getBytes());
+    for (Node node : known) {
+      List<int[]> ranges = slotRanges(node);
+      outputStream.write("*4\r\n".getBytes());
+      CommandProcessor.writeBulk(outputStream, "slots".getBytes());
+      outputStream.write(("*" + ranges.size() * 2 + "\r\n").getBytes());
+      for (int[] range : ranges) {
+        CommandProcessor.writeInteger(outputStream, range[0]);
+        CommandProcessor.writeInteger(outputStream, range[1]);
+      }
+      CommandProcessor.writeBulk(outputStream, "nodes".getBytes());
+      outputStream.write("*1\r\n*14\r\n".getBytes());
+      String health = node == myself || node.linkUp ? "online" : "failed";
+      String[] fields = {"id", node.id, "port", null, "ip", node.host, "endpoint", node.host,
+          "role", "master", "replication-offset", null, "health", health};
+      for (int i = 0; i < fields.length; i += 2) {
+        CommandProcessor.writeBulk(outputStream, fields[i].getBytes());
+        if (fields[i + 1] != null) {
+          CommandProcessor.writeBulk(outputStream, fields[i + 1].getBytes());
+        } else {
+          CommandProcessor.writeInteger(outputStream, fields[i].equals("port") ? node.port : 0);
+        }
+      }
+    }
+  }
+
+  private String info() {
+    int assigned = 0;
+    for (int slot = 0; slot < SLOTS; slot++) {
+      if (owners.get(slot) != null) {
+        assigned++;
+      }
+    }
+    int size = 0;
+    for (Node node : nodes.values()) {
+      if (!slotRanges(node).isEmpty()) {
+        size++;
+      }
+    }
+    return "cluster_state:" + (assigned == SLOTS ? "ok" : "fail") + "\r\n"
+        + "cluster_slots_assigned:" + assigned + "\r\n"
+        + "cluster_slots_ok:" + assigned + "\r\n"
+        + "cluster_slots_pfail:0\r\n"
+        + "cluster_slots_fail:0\r\n"
+        + "cluster_known_nodes:" + nodes.size() + "\r\n"
+        + "cluster_size:" + size + "\r\n"
+        + "cluster_current_epoch:" + Math.max(currentEpoch, myself.configEpoch) + "\r\n"
+        + "cluster_my_epoch:" + myself.configEpoch + "\r\n";
+  }
+
+  /**
+   * Writes the topology to the cluster config file, replacing it atomically.
+   */
+  private synchronized void saveConfig() {
+    String content = nodesDescription() + "vars currentEpoch " + Math.max(currentEpoch, myself.configEpoch)
+        + " lastVoteEpoch 0\n";
+    Path temp = configFile.resolveSibling("temp-" + configFile.getFileName());
+    try {
+      Files.write(temp, content.getBytes());
+      Files.move(temp, configFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.out.println("Failed to save the cluster config: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Restores the topology saved by {@link #saveConfig}.
+   * @return This node, or null if the file does not describe it.
+   */
+  private Node loadConfig(ServerConfig config) throws IOException {
+    List<NodeLine> lines = new ArrayList<>();
+    Node self = null;
+    for (String line : Files.readAllLines(configFile)) {
+      if (line.startsWith("vars ")) {
+        String[] vars = line.split(" ");
+        for (int i = 1; i + 1 < vars.length; i += 2) {
+          if (vars[i].equals("currentEpoch")) {
+            currentEpoch = Long.parseLong(vars[i + 1]);
+          }
+        }
+        continue;
+      }
+      NodeLine parsed = NodeLine.parse(line);
+      if (parsed == null) {
+        continue;
+      }
+      // Our own address comes from this run's options, not from the file
+      Node node = parsed.myself ? new Node(parsed.id, config.clusterAnnounceIp, config.port)
+          : new Node(parsed.id, parsed.host, parsed.port);
+      node.configEpoch = parsed.configEpoch;
+      nodes.put(node.id, node);
+      if (parsed.myself) {
+        self = node;
+      }
+      lines.add(parsed);
+    }
+    for (NodeLine parsed : lines) {
+      Node node = nodes.get(parsed.id);
+      for (int[] range : parsed.slots) {
+        for (int slot = range[0]; slot <= range[1]; slot++) {
+          owners.set(slot, node);
+        }
+      }
+      for (int i = 0; i < parsed.transfers.size(); i++) {
+        int[] transfer = parsed.transfers.get(i);
+        Node other = nodes.get(parsed.transferNodes.get(i));
+        if (other != null) {
+          (transfer[1] == 1 ? migrating : importing).set(transfer[0], other);
+        }
+      }
+    }
+    System.out.println("Loaded the cluster config: " + nodes.size() + " node(s)");
+    return self;
+  }
+
+  /**
+   * One line of CLUSTER NODES output.
+   */
+  private static final class NodeLine {
+    String id;
+    String host;
+    int port;
+    boolean myself;
+    long configEpoch;
+    final List<int[]> slots = new ArrayList<>();
+    final List<int[]> transfers = new ArrayList<>();      // [slot, 1 migrating / 0 importing]
+    final List<String> transferNodes = new ArrayList<>(); // The other node of each transfer
+
+    /**
+     * @return The parsed line, or null if it is not a node line.
+     */
+    static NodeLine parse(String line) {
+      String[] fields = line.trim().split(" ");
+      if (fields.length < 8) {
+        return null;
+      }
+      NodeLine parsed = new NodeLine();
+      parsed.id = fields[0];
+      String address = fields[1].split("[@,]")[0];
+      int colon = address.lastIndexOf(':');
+      parsed.host = address.substring(0, colon);
+      parsed.port = Integer.parseInt(address.substring(colon + 1));
+      parsed.myself = fields[2].contains("myself");
+      parsed.configEpoch = Long.parseLong(fields[6]);
+      for (int i = 8; i < fields.length; i++) {
+        String field = fields[i];
+        if (field.startsWith("[")) {
+          // [slot->-node] migrating or [slot-<-node] importing
+          boolean migrating = field.contains("->-");
+          String[] parts = field.substring(1, field.length() - 1).split(migrating ? "->-" : "-<-");
+          parsed.transfers.add(new int[] {Integer.parseInt(parts[0]), migrating ? 1 : 0});
+          parsed.transferNodes.add(parts[1]);
+        } else {
+          int dash = field.indexOf('-');
+          int start = Integer.parseInt(dash < 0 ? field : field.substring(0, dash));
+          int end = dash < 0 ? start : Integer.parseInt(field.substring(dash + 1));
+          parsed.slots.add(new int[] {start, end});
+        }
+      }
+      return parsed;
+    }
+  }
+
+  private static int parseSlot(CommandArgs args, int i, OutputStream outputStream) throws IOException {
+    long slot;
+    try {
+      slot = args.parseLong(i);
+    } catch (NumberFormatException e) {
+      slot = -1;
+    }
+    if (slot < 0 || slot >= SLOTS) {
+      outputStream.write("-ERR Invalid or out of range slot\r\n".getBytes());
+      return -1;
+    }
+    return (int) slot;
+  }
+
+  private static String randomId() {
+    byte[] bytes = new byte[20];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder hex = new StringBuilder(40);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+}
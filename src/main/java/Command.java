@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A command's handler plus the metadata Redis keeps about it: arity, flags
+ * and key positions. The dispatcher uses it to validate calls before running
+ * them, COMMAND reports it, and each entry carries its own call statistics.
+ */
+final class Command {
+  // Flags, as reported by COMMAND INFO
+  static final int WRITE = 1;         // May modify the keyspace
+  static final int READONLY = 1 << 1; // Only reads data
+  static final int DENYOOM = 1 << 2;  // May add data, so refused while over maxmemory
+  static final int FAST = 1 << 3;     // O(1) or O(log n)
+  static final int BLOCKING = 1 << 4; // May block the client
+  static final int LOADING = 1 << 5;  // Allowed while the dataset is still loading
+  static final int MOVABLEKEYS = 1 << 6; // Keys found by the handler, which locks them itself
+  static final int ASKING = 1 << 7;   // Served in an importing slot as if ASKING had been sent
+  // Not reported: a write that updates its one key atomically by itself
+  // (see Keyspace#update), so it only takes the shared lock of the key's shard.
+  // A shared lock then no longer freezes the shard: reads of several keys
+  // lock exclusively instead (see CommandProcessor#locksExclusively)
+  static final int ATOMIC = 1 << 8;
+  // Not reported: a read of the whole keyspace that walks the concurrent
+  // shard maps without locking them (KEYS, SCAN), instead of locking every shard
+  static final int LOCKFREE = 1 << 9;
+  // Not reported: runs at once inside MULTI instead of being queued
+  // (MULTI, EXEC, DISCARD, WATCH)
+  static final int TRANSACTION = 1 << 10;
+  // Not reported: allowed while the client is subscribed to Pub/Sub channels
+  // or patterns ((P)SUBSCRIBE, (P)UNSUBSCRIBE, PING)
+  static final int PUBSUB = 1 << 11;
+  // Not reported: refused inside MULTI, as it locks the whole keyspace for
+  // a snapshot, which EXEC holding some of its shards would deadlock
+  // (SAVE, BGSAVE, BGREWRITEAOF, PSYNC)
+  static final int NOMULTI = 1 << 12;
+
+  private static final String[] FLAG_NAMES =
+      {"write", "readonly", "denyoom", "fast", "blocking", "loading", "movablekeys", "asking"};
+
+  /**
+   * Runs one command. Arity has already been checked by the dispatcher.
+   */
+  interface Handler {
+    void handle(Client client, CommandArgs args, OutputStream outputStream) throws IOException;
+  }
+
+  final String name;       // Lower case, as reported to clients
+  final int arity;         // N: exactly N arguments, -N: at least N (name included)
+  final int flags;
+  final int firstKey;      // Position of the first key argument, 0 if none
+  final int lastKey;       // Position of the last key, negative counts from the end
+  final int keyStep;
+  final Handler handler;
+
+  final LongAdder calls = new LongAdder();
+  final LongAdder nanos = new LongAdder();
+
+  Command(String name, int arity, int flags, int firstKey, int lastKey, int keyStep, Handler handler) {
+    this.name = name;
+    this.arity = arity;
+    this.flags = flags;
+    this.firstKey = firstKey;
+    this.lastKey = lastKey;
+    this.keyStep = keyStep;
+    this.handler = handler;
+  }
+
+  boolean has(int flag) {
+    return (flags & flag) != 0;
+  }
+
+  /**
+   * @param count The number of arguments, including the command name.
+   */
+  boolean checkArity(int count) {
+    return arity >= 0 ? count == arity : count >= -arity;
+  }
+
+  /**
+   * @param count The number of arguments, including the command name.
+   * @return The position of the last key argument of a call.
+   */
+  int lastKeyIndex(int count) {
+    return Math.min(lastKey < 0 ? count + lastKey : lastKey, count - 1);
+  }
+
+  /**
+   * Counts one call towards the INFO commandstats section.
+   */
+  void record(long elapsedNanos) {
+    calls.increment();
+    nanos.add(elapsedNanos);
+  }
+
+  /**
+   * Writes the COMMAND INFO entry: name, arity, flags, first key, last key, step.
+   */
+  void writeInfo(OutputStream outputStream) throws IOException {
+    outputStream.write("*6\r\n".getBytes());
+    outputStream.write(("$" + name.length() + "\r\n" + name + "\r\n").getBytes());
+    outputStream.write((":" + arity + "\r\n").getBytes());
+    outputStream.write(("*" + Integer.bitCount(flags & ((1 << FLAG_NAMES.length) - 1)) + "\r\n").getBytes());
+    for (int i = 0; i < FLAG_NAMES.length; i++) {
+      if ((flags & (1 << i)) != 0) {
+        outputStream.write(("+" + FLAG_NAMES[i] + "\r\n").getBytes());
+      }
+    }
+    outputStream.write((":" + firstKey + "\r\n:" + lastKey + "\r\n:" + keyStep + "\r\n").getBytes());
+  }
+
+  /**
+   * Appends this command's line of the commandstats section in INFO format.
+   */
+  void appendStats(StringBuilder info) {
+    long count = calls.sum();
+    if (count == 0) {
+      return;
+    }
+    long usec = nanos.sum() / 1000;
+    info.append("cmdstat_").append(name)
+        .append(":calls=").append(count)
+        .append(",usec=").append(usec)
+        .append(",usec_per_call=").append(String.format("%.2f", (double) usec / count))
+        .append("\r\n");
+  }
+}
@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The arguments of one decoded command, as byte slices of the receive buffer.
+ * Reused for every command of a connection, so callers must copy anything
+ * they keep (see {@link #bytes(int)}) before the next command is decoded.
+ */
+class CommandArgs {
+  ByteBuffer buffer;
+  int base;  // Buffer index the offsets are relative to
+  int count;
+  private int[] offsets = new int[8];
+  private int[] lengths = new int[8];
+
+  void reset(int expected) {
+    count = 0;
+    if (expected > offsets.length) {
+      offsets = new int[expected];
+      lengths = new int[expected];
+    }
+  }
+
+  void add(int offset, int length) {
+    if (count == offsets.length) {
+      offsets = Arrays.copyOf(offsets, count * 2);
+      lengths = Arrays.copyOf(lengths, count * 2);
+    }
+    offsets[count] = offset;
+    lengths[count] = length;
+    count++;
+  }
+
+  /**
+   * @return The number of arguments, including the command name.
+   */
+  int count() {
+    return count;
+  }
+
+  int length(int i) {
+    return lengths[i];
+  }
+
+  byte byteAt(int i, int index) {
+    return buffer.get(base + offsets[i] + index);
+  }
+
+  /**
+   * Copies an argument out of the receive buffer.
+   */
+  byte[] bytes(int i) {
+    byte[] copy = new byte[lengths[i]];
+    buffer.get(base + offsets[i], copy);
+    return copy;
+  }
+
+  /**
+   * Copies every argument out of the receive buffer into one array of their
+   * own, for a command kept past the next one (MULTI queues them).
+   */
+  CommandArgs copy() {
+    int total = 0;
+    for (int i = 0; i < count; i++) {
+      total += lengths[i];
+    }
+    byte[] data = new byte[total];
+    CommandArgs copy = new CommandArgs();
+    copy.buffer = ByteBuffer.wrap(data);
+    copy.reset(count);
+    int offset = 0;
+    for (int i = 0; i < count; i++) {
+      buffer.get(base + offsets[i], data, offset, lengths[i]);
+      copy.add(offset, lengths[i]);
+      offset += lengths[i];
+    }
+    return copy;
+  }
+
+  /**
+   * Copies an argument out as a dataStore key.
+   */
+  ByteKey key(int i) {
+    return new ByteKey(bytes(i));
+  }
+
+  /**
+   * The hash {@link ByteKey} would have for the argument, without copying it.
+   */
+  int hash(int i) {
+    int start = base + offsets[i];
+    int hash = 1;
+    for (int j = 0; j < lengths[i]; j++) {
+      hash = 31 * hash + buffer.get(start + j);
+    }
+    return hash;
+  }
+
+  /**
+   * The cluster hash slot of the argument, without copying it.
+   */
+  int slot(int i) {
+    return Cluster.keySlot(buffer, base + offsets[i], lengths[i]);
+  }
+
+  /**
+   * Returns an argument as a String with one char per byte (ISO-8859-1),
+   * for command names and messages; stored data stays in byte arrays.
+   */
+  String string(int i) {
+    return new String(bytes(i), StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Case-insensitive comparison against an upper-case ASCII word, without allocating.
+   */
+  boolean is(int i, String upperCaseWord) {
+    int length = lengths[i];
+    if (length != upperCaseWord.length()) {
+      return false;
+    }
+    int start = base + offsets[i];
+    for (int j = 0; j < length; j++) {
+      int b = buffer.get(start + j);
+      if (b >= 'a' && b <= 'z') {
+        b -= 'a' - 'A';
+      }
+      if (b != upperCaseWord.charAt(j)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parses an argument as a signed 64-bit decimal, without allocating.
+   * @throws NumberFormatException If the argument is not a valid integer.
+   */
+  long parseLong(int i) {
+    int length = lengths[i];
+    int start = base + offsets[i];
+    if (length == 0 || length > 20) {
+      throw new NumberFormatException("value is not an integer");
+    }
+    boolean negative = buffer.get(start) == '-';
+    int j = negative ? 1 : 0;
+    if (j == length) {
+      throw new NumberFormatException("value is not an integer");
+    }
+    long value = 0;
+    for (; j < length; j++) {
+      int digit = buffer.get(start + j) - '0';
+      if (digit < 0 || digit > 9) {
+        throw new NumberFormatException("value is not an integer");
+      }
+      // Accumulate negatively so Long.MIN_VALUE parses too
+      if (value < (Long.MIN_VALUE + digit) / 10) {
+        throw new NumberFormatException("value is out of range");
+      }
+      value = value * 10 - digit;
+    }
+    if (!negative) {
+      if (value == Long.MIN_VALUE) {
+        throw new NumberFormatException("value is out of range");
+      }
+      value = -value;
+    }
+    return value;
+  }
+
+  /**
+   * Writes an argument's raw bytes, straight from the receive buffer when it is heap backed
+   * or the target is a ReplyStream.
+   */
+  void writeTo(int i, OutputStream outputStream) throws IOException {
+    if (outputStream instanceof ReplyStream replies) {
+      replies.write(buffer, base + offsets[i], lengths[i]);
+    } else if (buffer.hasArray()) {
+      outputStream.write(buffer.array(), buffer.arrayOffset() + base + offsets[i], lengths[i]);
+    } else {
+      outputStream.write(bytes(i));
+    }
+  }
+}
@@ -0,0 +1,66 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Encodes commands as RESP arrays of bulk strings, the form they take in the
+ * append-only file and in the replication stream.
+ */
+final class CommandEncoder {
+  private CommandEncoder() {
+  }
+
+  /**
+   * Appends a command given as its parsed arguments.
+   */
+  static void encode(ByteArrayOutputStream out, CommandArgs args) {
+    writeHeader(out, '*', args.count());
+    for (int i = 0; i < args.count(); i++) {
+      writeHeader(out, '$', args.length(i));
+      try {
+        args.writeTo(i, out);
+      } catch (IOException e) {
+        throw new IllegalStateException(e); // Not thrown by ByteArrayOutputStream
+      }
+      writeCrlf(out);
+    }
+  }
+
+  /**
+   * Appends a command given as separate byte strings.
+   */
+  static void encode(ByteArrayOutputStream out, byte[]... argv) {
+    writeHeader(out, '*', argv.length);
+    for (byte[] arg : argv) {
+      writeHeader(out, '$', arg.length);
+      out.write(arg, 0, arg.length);
+      writeCrlf(out);
+    }
+  }
+
+  /**
+   * @return The command encoded on its own, e.g. for sending over a socket.
+   */
+  static byte[] encode(String... argv) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[][] bytes = new byte[argv.length][];
+    for (int i = 0; i < argv.length; i++) {
+      bytes[i] = argv[i].getBytes();
+    }
+    encode(out, bytes);
+    return out.toByteArray();
+  }
+
+  private static void writeHeader(ByteArrayOutputStream out, char type, int number) {
+    out.write(type);
+    String digits = Integer.toString(number);
+    for (int i = 0; i < digits.length(); i++) {
+      out.write(digits.charAt(i));
+    }
+    writeCrlf(out);
+  }
+
+  private static void writeCrlf(ByteArrayOutputStream out) {
+    out.write('\r');
+    out.write('\n');
+  }
+}
@@ -0,0 +1,2879 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Executes parsed commands against the shared keyspace.
+ * Used by both the thread-per-connection handler and the NIO event loops,
+ * so command semantics stay identical in every server mode.
+ *
+ * Commands are looked up in a {@link CommandTable} rather than a string
+ * switch: each one is registered once with its arity, flags and key positions,
+ * and the checks those describe (arity, maxmemory) run in one place before the
+ * handler is called.
+ */
+class CommandProcessor {
+  private static final byte[] OOM_ERROR =
+      "-OOM command not allowed when used memory > 'maxmemory'.\r\n".getBytes();
+  private static final byte[] LOADING_ERROR =
+      "-LOADING Redis is loading the dataset in memory\r\n".getBytes();
+  private static final byte[] READONLY_ERROR =
+      "-READONLY You can't write against a read only replica.\r\n".getBytes();
+  private static final byte[] CLUSTER_DISABLED_ERROR =
+      "-ERR This instance has cluster support disabled\r\n".getBytes();
+  private static final byte[] OVERFLOW_ERROR = "-ERR increment or decrement would overflow\r\n".getBytes();
+  private static final byte[] NOT_FLOAT_ERROR = "-ERR value is not a valid float\r\n".getBytes();
+  private static final byte[] HASH_NOT_INTEGER_ERROR = "-ERR hash value is not an integer\r\n".getBytes();
+  private static final byte[] RANGE_NOT_FLOAT_ERROR = "-ERR min or max is not a float\r\n".getBytes();
+  private static final byte[] SCORE_NAN_ERROR = "-ERR resulting score is not a number (NaN)\r\n".getBytes();
+  private static final byte[] INVALID_CURSOR_ERROR = "-ERR invalid cursor\r\n".getBytes();
+  private static final byte[] QUEUED = "+QUEUED\r\n".getBytes();
+  private static final byte[] EXECABORT_ERROR =
+      "-EXECABORT Transaction discarded because of previous errors.\r\n".getBytes();
+  private static final byte[] NOMULTI_ERROR = "-ERR Command not allowed inside a transaction\r\n".getBytes();
+  private static final byte[] SUBSCRIBED_ERROR_PREFIX = "-ERR Can't execute '".getBytes();
+  private static final byte[] SUBSCRIBED_ERROR_SUFFIX =
+      "': only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING are allowed in this context\r\n".getBytes();
+  private static final List<String> TYPE_NAMES = List.of("string", "list", "set", "zset", "hash");
+
+  // Command names for the forms written to the AOF
+  private static final byte[] SET = "SET".getBytes();
+  private static final byte[] PXAT = "PXAT".getBytes();
+  private static final byte[] LPOP = "LPOP".getBytes();
+  private static final byte[] RPOP = "RPOP".getBytes();
+  private static final byte[] DEL = "DEL".getBytes();
+  private static final byte[] RESTORE = "RESTORE".getBytes();
+  private static final byte[] RESTORE_ASKING = "RESTORE-ASKING".getBytes();
+  private static final byte[] REPLACE = "REPLACE".getBytes();
+  private static final byte[] ABSTTL = "ABSTTL".getBytes();
+  private static final byte[] MULTI = "MULTI".getBytes();
+  private static final byte[] EXEC = "EXEC".getBytes();
+
+  // Pub/Sub confirmation kinds
+  private static final byte[] SUBSCRIBE = "subscribe".getBytes();
+  private static final byte[] UNSUBSCRIBE = "unsubscribe".getBytes();
+  private static final byte[] PSUBSCRIBE = "psubscribe".getBytes();
+  private static final byte[] PUNSUBSCRIBE = "punsubscribe".getBytes();
+  private static final byte[] PONG = "pong".getBytes();
+
+  // Reported by HELLO; the Redis release whose commands and protocol this follows
+  private static final String SERVER_VERSION = "6.2.0";
+
+  private final ServerConfig config;
+  private final Keyspace keyspace;
+  private final Persistence persistence;
+  private final Replication replication;
+  private final Cluster cluster; // Null unless cluster mode is enabled
+  private final MigrateConnections migrateConnections = new MigrateConnections();
+  private final BlockingRegistry blockingRegistry = new BlockingRegistry();
+  private final PubSub pubSub = new PubSub();
+  private final Tracking tracking;
+  // Connected clients by id, for CLIENT TRACKING's REDIRECT and the tracking table
+  private final ConcurrentHashMap<Long, Client> clients = new ConcurrentHashMap<>();
+  private final CommandTable commandTable = new CommandTable();
+  private final Command askingCommand; // Compared by identity on every command
+
+  public CommandProcessor(ServerConfig config, Keyspace keyspace, Persistence persistence,
+      Replication replication, Cluster cluster) {
+    this.config = config;
+    this.keyspace = keyspace;
+    this.persistence = persistence;
+    this.replication = replication;
+    this.cluster = cluster;
+    this.tracking = new Tracking(clients::get, pubSub, config.trackingTableMaxKeys);
+    keyspace.setWriteListener(tracking::invalidate);
+
+    // name, arity, flags, first key, last key, key step, handler
+    register("ping", -1, Command.FAST | Command.PUBSUB, 0, 0, 0, this::ping);
+    register("echo", 2, Command.FAST, 0, 0, 0, this::echo);
+    register("set", -3, Command.WRITE | Command.DENYOOM, 1, 1, 1, this::set);
+    register("get", 2, Command.READONLY | Command.FAST, 1, 1, 1, this::get);
+    register("incr", 2, Command.WRITE | Command.DENYOOM | Command.FAST | Command.ATOMIC, 1, 1, 1,
+        (client, args, out) -> incrBy(client, args, out, false));
+    register("decr", 2, Command.WRITE | Command.DENYOOM | Command.FAST | Command.ATOMIC, 1, 1, 1,
+        (client, args, out) -> incrBy(client, args, out, true));
+    register("incrby", 3, Command.WRITE | Command.DENYOOM | Command.FAST | Command.ATOMIC, 1, 1, 1,
+        (client, args, out) -> incrBy(client, args, out, false));
+    register("decrby", 3, Command.WRITE | Command.DENYOOM | Command.FAST | Command.ATOMIC, 1, 1, 1,
+        (client, args, out) -> incrBy(client, args, out, true));
+    register("incrbyfloat", 3, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1, this::incrByFloat);
+    register("getset", 3, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1, this::getSet);
+    register("getdel", 2, Command.WRITE | Command.FAST, 1, 1, 1, this::getDel);
+    register("setnx", 3, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1, this::setNx);
+    register("mset", -3, Command.WRITE | Command.DENYOOM, 1, -1, 2, this::mset);
+    register("mget", -2, Command.READONLY | Command.FAST, 1, -1, 1, this::mget);
+    register("rpush", -3, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1,
+        (client, args, out) -> push(client, args, out, false));
+    register("lpush", -3, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1,
+        (client, args, out) -> push(client, args, out, true));
+    register("lpop", -2, Command.WRITE | Command.FAST, 1, 1, 1,
+        (client, args, out) -> pop(client, args, out, true));
+    register("rpop", -2, Command.WRITE | Command.FAST, 1, 1, 1,
+        (client, args, out) -> pop(client, args, out, false));
+    register("blpop", -3, Command.WRITE | Command.BLOCKING, 1, -2, 1,
+        (client, args, out) -> blockingPop(client, args, out, true));
+    register("brpop", -3, Command.WRITE | Command.BLOCKING, 1, -2, 1,
+        (client, args, out) -> blockingPop(client, args, out, false));
+    register("llen", 2, Command.READONLY | Command.FAST, 1, 1, 1, this::llen);
+    register("lindex", 3, Command.READONLY, 1, 1, 1, this::lindex);
+    register("ltrim", 4, Command.WRITE, 1, 1, 1, this::ltrim);
+    register("lrange", 4, Command.READONLY, 1, 1, 1, this::lrange);
+    register("hset", -4, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1, this::hset);
+    register("hget", 3, Command.READONLY | Command.FAST, 1, 1, 1, this::hget);
+    register("hmget", -3, Command.READONLY | Command.FAST, 1, 1, 1, this::hmget);
+    register("hincrby", 4, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1, this::hincrby);
+    register("hdel", -3, Command.WRITE | Command.FAST, 1, 1, 1, this::hdel);
+    register("hlen", 2, Command.READONLY | Command.FAST, 1, 1, 1, this::hlen);
+    register("hexists", 3, Command.READONLY | Command.FAST, 1, 1, 1, this::hexists);
+    register("hgetall", 2, Command.READONLY, 1, 1, 1, this::hgetall);
+    register("hscan", -3, Command.READONLY, 1, 1, 1, this::hscan);
+    register("sadd", -3, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1, this::sadd);
+    register("srem", -3, Command.WRITE | Command.FAST, 1, 1, 1, this::srem);
+    register("sismember", 3, Command.READONLY | Command.FAST, 1, 1, 1, this::sismember);
+    register("scard", 2, Command.READONLY | Command.FAST, 1, 1, 1, this::scard);
+    register("smembers", 2, Command.READONLY, 1, 1, 1, this::smembers);
+    register("sinter", -2, Command.READONLY, 1, -1, 1, this::sinter);
+    register("sscan", -3, Command.READONLY, 1, 1, 1, this::sscan);
+    register("zadd", -4, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1, this::zadd);
+    register("zincrby", 4, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1, this::zincrby);
+    register("zrem", -3, Command.WRITE | Command.FAST, 1, 1, 1, this::zrem);
+    register("zscore", 3, Command.READONLY | Command.FAST, 1, 1, 1, this::zscore);
+    register("zcard", 2, Command.READONLY | Command.FAST, 1, 1, 1, this::zcard);
+    register("zrank", -3, Command.READONLY | Command.FAST, 1, 1, 1,
+        (client, args, out) -> zrank(client, args, out, false));
+    register("zrevrank", -3, Command.READONLY | Command.FAST, 1, 1, 1,
+        (client, args, out) -> zrank(client, args, out, true));
+    register("zrange", -4, Command.READONLY, 1, 1, 1, this::zrange);
+    register("zrangebyscore", -4, Command.READONLY, 1, 1, 1, this::zrangeByScore);
+    register("del", -2, Command.WRITE, 1, -1, 1, this::del);
+    register("unlink", -2, Command.WRITE | Command.FAST, 1, -1, 1, this::del);
+    register("exists", -2, Command.READONLY | Command.FAST, 1, -1, 1, this::exists);
+    register("type", 2, Command.READONLY | Command.FAST, 1, 1, 1, this::type);
+    register("dbsize", 1, Command.READONLY | Command.FAST | Command.LOCKFREE, 0, 0, 0, this::dbsize);
+    register("keys", 2, Command.READONLY | Command.LOCKFREE, 0, 0, 0, this::keys);
+    register("scan", -2, Command.READONLY | Command.LOCKFREE, 0, 0, 0, this::scan);
+    register("dump", 2, Command.READONLY, 1, 1, 1, this::dump);
+    register("object", 3, Command.READONLY, 2, 2, 1, this::object);
+    register("restore", -4, Command.WRITE | Command.DENYOOM, 1, 1, 1, this::restore);
+    register("restore-asking", -4, Command.WRITE | Command.DENYOOM | Command.ASKING, 1, 1, 1, this::restore);
+    register("migrate", -6, Command.WRITE | Command.MOVABLEKEYS, 0, 0, 0, this::migrate);
+    register("info", -1, Command.LOADING, 0, 0, 0, this::info);
+    register("command", -1, Command.LOADING, 0, 0, 0, this::command);
+    register("config", -2, Command.LOADING, 0, 0, 0, this::config);
+    register("save", 1, Command.NOMULTI, 0, 0, 0, this::save);
+    register("bgsave", -1, Command.NOMULTI, 0, 0, 0, this::bgsave);
+    register("lastsave", 1, Command.FAST, 0, 0, 0, this::lastsave);
+    register("bgrewriteaof", 1, Command.NOMULTI, 0, 0, 0, this::bgrewriteaof);
+    register("replconf", -1, Command.LOADING, 0, 0, 0, this::replconf);
+    register("psync", 3, Command.NOMULTI, 0, 0, 0, this::psync);
+    register("wait", 3, 0, 0, 0, 0, this::waitCommand);
+    register("cluster", -2, Command.LOADING, 0, 0, 0, this::cluster);
+    register("asking", 1, Command.FAST, 0, 0, 0, this::asking);
+    register("multi", 1, Command.FAST | Command.TRANSACTION, 0, 0, 0, this::multi);
+    register("exec", 1, Command.TRANSACTION, 0, 0, 0, this::exec);
+    register("discard", 1, Command.FAST | Command.TRANSACTION, 0, 0, 0, this::discard);
+    register("watch", -2, Command.FAST | Command.TRANSACTION, 1, -1, 1, this::watch);
+    register("unwatch", 1, Command.FAST, 0, 0, 0, this::unwatch);
+    register("subscribe", -2, Command.LOADING | Command.PUBSUB, 0, 0, 0,
+        (client, args, out) -> subscribe(client, args, out, false));
+    register("unsubscribe", -1, Command.LOADING | Command.PUBSUB, 0, 0, 0,
+        (client, args, out) -> unsubscribe(client, args, out, false));
+    register("psubscribe", -2, Command.LOADING | Command.PUBSUB, 0, 0, 0,
+        (client, args, out) -> subscribe(client, args, out, true));
+    register("punsubscribe", -1, Command.LOADING | Command.PUBSUB, 0, 0, 0,
+        (client, args, out) -> unsubscribe(client, args, out, true));
+    register("publish", 3, Command.LOADING | Command.FAST, 0, 0, 0, this::publish);
+    register("pubsub", -2, Command.LOADING, 0, 0, 0, this::pubsub);
+    register("hello", -1, Command.FAST | Command.LOADING, 0, 0, 0, this::hello);
+    register("client", -2, Command.LOADING, 0, 0, 0, this::clientCommand);
+    askingCommand = commandTable.lookup("asking");
+  }
+
+  private void register(String name, int arity, int flags, int firstKey, int lastKey, int keyStep,
+      Command.Handler handler) {
+    commandTable.register(new Command(name, arity, flags, firstKey, lastKey, keyStep, handler));
+  }
+
+  /**
+   * Runs a single command and writes its RESP reply.
+   * A blocking command that has to wait writes nothing and leaves the client
+   * blocked; its reply arrives later through {@link Client#unblock}. Inside
+   * MULTI, commands are checked and queued instead (see {@link #exec}).
+   * @param client The connection the command came from.
+   * @param args The command name followed by its arguments.
+   * @param outputStream Where the reply is written.
+   */
+  public void execute(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    Command command = commandTable.lookup(args);
+    if (!admit(command, client, args, outputStream)) {
+      if (client.transaction != null) {
+        client.transaction.failed = true;
+      }
+      return;
+    }
+    if (client.transaction != null && !command.has(Command.TRANSACTION)) {
+      client.transaction.queued.add(args.copy());
+      outputStream.write(QUEUED);
+      return;
+    }
+
+    long start = System.nanoTime();
+    run(command, client, args, outputStream, true);
+    command.record(System.nanoTime() - start);
+    if (command != askingCommand) {
+      client.asking = false; // ASKING covers the next command only
+    }
+  }
+
+  /**
+   * Checks a command before it runs or is queued.
+   * @param command The command, or null if there is none by that name.
+   * @return false after writing the error if it is refused.
+   */
+  private boolean admit(Command command, Client client, CommandArgs args, OutputStream outputStream)
+      throws IOException {
+    if (command == null) {
+      outputStream.write(("-ERR unknown command '" + args.string(0) + "'\r\n").getBytes());
+      return false;
+    }
+    if (!command.checkArity(args.count())) {
+      outputStream.write(("-ERR wrong number of arguments for '" + command.name + "' command\r\n").getBytes());
+      return false;
+    }
+    if (!command.has(Command.PUBSUB) && client.protocol == 2 && client.subscriptions() > 0) {
+      // A subscribed RESP2 connection carries messages, and replies would be
+      // mistaken for them; RESP3 tells them apart by the push type
+      outputStream.write(SUBSCRIBED_ERROR_PREFIX);
+      outputStream.write(command.name.getBytes());
+      outputStream.write(SUBSCRIBED_ERROR_SUFFIX);
+      return false;
+    }
+    if (command.has(Command.NOMULTI) && client.transaction != null) {
+      outputStream.write(NOMULTI_ERROR);
+      return false;
+    }
+    if (!command.has(Command.LOADING) && persistence.isLoading()) {
+      outputStream.write(LOADING_ERROR);
+      return false;
+    }
+    if (command.has(Command.WRITE) && replication.isReplica()) {
+      outputStream.write(READONLY_ERROR);
+      return false;
+    }
+    if (command.has(Command.DENYOOM) && !keyspace.freeMemoryIfNeeded()) {
+      outputStream.write(OOM_ERROR);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Runs a command read back from the AOF at startup, or received from the
+   * master on a replica. Replies are dropped, and neither loading, maxmemory
+   * nor the replica's read-only mode refuse it.
+   */
+  public void replay(Client client, CommandArgs args) throws IOException {
+    Command command = commandTable.lookup(args);
+    if (command == null || !command.checkArity(args.count())) {
+      throw new IOException("Bad command in the append only file: " + args.string(0));
+    }
+    if (client.transaction != null && !command.has(Command.TRANSACTION)) {
+      client.transaction.queued.add(args.copy());
+      return;
+    }
+    if (command.name.equals("multi")) {
+      client.transaction = new Transaction(true); // Its EXEC runs the commands as replayed
+      return;
+    }
+    run(command, client, args, OutputStream.nullOutputStream(), false);
+  }
+
+  /**
+   * @param fromClient false for replayed commands, which cluster mode never redirects.
+   */
+  private void run(Command command, Client client, CommandArgs args, OutputStream outputStream,
+      boolean fromClient) throws IOException {
+    boolean write = command.has(Command.WRITE);
+    if ((!write && !command.has(Command.READONLY))
+        || command.has(Command.MOVABLEKEYS) || command.has(Command.LOCKFREE)) {
+      command.handler.handle(client, args, outputStream);
+      return;
+    }
+    // The shards of the command's keys stay locked until it has replied and
+    // propagated, so it is atomic and reaches the AOF and the replicas in the
+    // order it was applied. A snapshot waits for it too.
+    write = locksExclusively(command, args);
+    Tracking.Tracker tracker = client.tracker;
+    boolean tracked = tracker != null && !tracker.broadcast && command.has(Command.READONLY)
+        && command.firstKey != 0;
+    int[] shardIndexes = shardsOf(command, args);
+    keyspace.lock(shardIndexes, write);
+    try {
+      if (fromClient && cluster != null && command.firstKey != 0) {
+        // Checked under the slot's lock, so the slot cannot move meanwhile
+        byte[] redirect = cluster.redirect(client, command, args);
+        if (redirect != null) {
+          outputStream.write(redirect);
+          return;
+        }
+      }
+      if (tracked) {
+        trackKeys(command, client, args);
+      }
+      command.handler.handle(client, args, outputStream);
+      if (tracked) {
+        trackKeys(command, client, args); // Again for keys it found expired, which dropped their readers
+      }
+    } finally {
+      keyspace.unlock(shardIndexes, write);
+    }
+    if (tracked) {
+      tracking.trim();
+    }
+  }
+
+  /**
+   * Picks how a command locks its shards. The shared lock keeps the shard
+   * from changing except through ATOMIC writes, each of which changes one
+   * key at once (see {@link Keyspace#update}): enough for a read of one key,
+   * which sees it before or after any such write. A read of several keys
+   * must see them all at one point, so it takes the exclusive lock as writes
+   * do, as otherwise an INCR could land between two of its keys.
+   * @return true for the exclusive lock, false for the shared one.
+   */
+  private static boolean locksExclusively(Command command, CommandArgs args) {
+    if (command.has(Command.WRITE)) {
+      return !command.has(Command.ATOMIC);
+    }
+    return command.lastKeyIndex(args.count()) > command.firstKey;
+  }
+
+  /**
+   * Remembers the keys a read-only command of a default-mode tracking client
+   * reads (see {@link Tracking}), with their shards locked.
+   */
+  private void trackKeys(Command command, Client client, CommandArgs args) {
+    int lastKey = command.lastKeyIndex(args.count());
+    for (int i = command.firstKey; i <= lastKey; i += command.keyStep) {
+      tracking.remember(client, args.key(i));
+    }
+  }
+
+  /**
+   * Finds the shards a command's keys live in.
+   * @return Distinct shard indexes in ascending order, or null (every shard)
+   * for a command without key arguments.
+   */
+  private int[] shardsOf(Command command, CommandArgs args) {
+    if (command.firstKey == 0) {
+      return null;
+    }
+    return shardsOf(args, command.firstKey, command.lastKeyIndex(args.count()), command.keyStep);
+  }
+
+  private int[] shardsOf(CommandArgs args, int firstKey, int lastKey, int keyStep) {
+    if (lastKey == firstKey) {
+      return new int[] {keyspace.shardOf(args, firstKey)};
+    }
+    int[] shardIndexes = new int[(lastKey - firstKey) / keyStep + 1];
+    int count = 0;
+    for (int i = firstKey; i <= lastKey; i += keyStep) {
+      shardIndexes[count++] = keyspace.shardOf(args, i);
+    }
+    Arrays.sort(shardIndexes, 0, count);
+    int distinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (distinct == 0 || shardIndexes[distinct - 1] != shardIndexes[i]) {
+        shardIndexes[distinct++] = shardIndexes[i];
+      }
+    }
+    return distinct == shardIndexes.length ? shardIndexes : Arrays.copyOf(shardIndexes, distinct);
+  }
+
+  /**
+   * @return false if the client's replies acknowledge writes that, with
+   * appendfsync always, are not on disk yet.
+   */
+  public boolean isDurable(Client client) {
+    return persistence.isDurable(client);
+  }
+
+  /**
+   * Called before a client's pending replies are sent, so that with
+   * appendfsync always no write is acknowledged before it is on disk.
+   * Concurrent callers share one fsync.
+   */
+  public void awaitDurable(Client client) throws IOException {
+    persistence.awaitDurable(client);
+  }
+
+  /**
+   * Hands a write command to the AOF and the replicas, in the order the
+   * commands were applied. Call after the change, while the command runs.
+   */
+  private void propagate(Client client, CommandArgs args) {
+    persistence.propagate(client, args);
+    replication.propagate(client, args);
+  }
+
+  /**
+   * Propagates a command in a different form than it was received.
+   */
+  private void propagate(Client client, byte[]... argv) {
+    persistence.propagate(client, argv);
+    replication.propagate(client, argv);
+  }
+
+  /**
+   * PING [message]
+   */
+  private void ping(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (args.count() > 2) {
+      outputStream.write("-ERR wrong number of arguments for 'ping' command\r\n".getBytes());
+    } else if (client.protocol == 2 && client.subscriptions() > 0) {
+      // A subscribed client gets an array, which cannot be confused with a message
+      writeArrayHeader(outputStream, 2);
+      writeBulk(outputStream, PONG);
+      writeBulk(outputStream, args.count() == 2 ? args.bytes(1) : PackedList.EMPTY);
+    } else if (args.count() == 2) {
+      echo(client, args, outputStream);
+    } else {
+      outputStream.write(Replies.PONG);
+    }
+  }
+
+  /**
+   * ECHO message
+   */
+  private void echo(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    // Copy the argument straight from the receive buffer
+    writeBulkHeader(outputStream, args.length(1));
+    args.writeTo(1, outputStream);
+    outputStream.write(Replies.CRLF);
+  }
+
+  /**
+   * SET key value [PX milliseconds | PXAT unix-time-milliseconds]
+   */
+  private void set(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    ByteKey key = args.key(1);
+    byte[] value = args.bytes(2);
+    long expiryTime = -1;
+
+    if (args.count() == 5) {
+      if (args.is(3, "PX") || args.is(3, "PXAT")) {
+        try {
+          long time = args.parseLong(4);
+          expiryTime = args.is(3, "PX") ? System.currentTimeMillis() + time : time;
+        } catch (NumberFormatException e) {
+          outputStream.write(Replies.NOT_INTEGER_ERROR);
+          return;
+        }
+      } else {
+        outputStream.write(Replies.SYNTAX_ERROR);
+        return;
+      }
+    } else if (args.count() != 3) {
+      outputStream.write("-ERR wrong number of arguments for 'set' command\r\n".getBytes());
+      return;
+    }
+
+    // Stored in the most compact encoding for the value
+    keyspace.put(key, RedisString.of(value, expiryTime));
+
+    if (expiryTime == -1) {
+      propagate(client, args);
+    } else {
+      // Log the absolute expiry so replaying the log later does not extend it
+      propagateSet(client, key, value, expiryTime);
+    }
+    outputStream.write(Replies.OK);
+  }
+
+  /**
+   * GET key
+   */
+  private void get(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    RedisData getValue = keyspace.get(args.key(1)); // Expired keys are evicted here
+
+    if (getValue == null) {
+      // Key not found or expired
+      outputStream.write(Replies.NULL_BULK);
+    } else if (getValue instanceof RedisString) {
+      // Key found, not expired, and is a String
+      ((RedisString) getValue).writeBulk(outputStream);
+    } else {
+      // Key found, but it's not a String (e.g., it's a List)
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+    }
+  }
+
+  /**
+   * INCR/DECR key, INCRBY/DECRBY key increment
+   * Runs under the shared lock of the key's shard, with the update itself
+   * atomic for the key (see {@link Keyspace#update}), so counters on
+   * different keys never wait for each other. The key keeps its expiry.
+   * Propagated as the SET of the result with that expiry, so replaying it
+   * after the key has expired cannot bring the key back.
+   */
+  private void incrBy(Client client, CommandArgs args, OutputStream outputStream, boolean decrement)
+      throws IOException {
+    long increment = 1;
+    if (args.count() == 3) {
+      try {
+        increment = args.parseLong(2);
+      } catch (NumberFormatException e) {
+        outputStream.write(Replies.NOT_INTEGER_ERROR);
+        return;
+      }
+    }
+    if (decrement) {
+      if (increment == Long.MIN_VALUE) {
+        outputStream.write("-ERR decrement would overflow\r\n".getBytes());
+        return;
+      }
+      increment = -increment;
+    }
+
+    ByteKey key = args.key(1);
+    long delta = increment;
+    byte[][] error = new byte[1][];
+    long[] result = new long[1];
+    keyspace.update(key, current -> {
+      long value = 0;
+      long expiryTime = -1;
+      if (current instanceof RedisString.IntString number) {
+        value = number.value;
+        expiryTime = number.expiryTime;
+      } else if (current != null) {
+        // Any integer would have been stored int-encoded
+        error[0] = current instanceof RedisString ? Replies.NOT_INTEGER_ERROR : Replies.WRONGTYPE_ERROR;
+        return null;
+      }
+      long sum = value + delta;
+      if (((value ^ sum) & (delta ^ sum)) < 0) {
+        error[0] = OVERFLOW_ERROR;
+        return null;
+      }
+      result[0] = sum;
+      propagateSet(client, key, Long.toString(sum).getBytes(), expiryTime);
+      return new RedisString.IntString(sum, expiryTime);
+    });
+    if (error[0] != null) {
+      outputStream.write(error[0]);
+    } else {
+      writeInteger(outputStream, result[0]);
+    }
+  }
+
+  /**
+   * INCRBYFLOAT key increment
+   * Adds in decimal, rounded to 17 decimal places as Redis prints its long
+   * doubles, so 10.5 plus 0.1 is 10.6. Propagated as the SET of the result,
+   * so replaying it gives the same digits.
+   */
+  private void incrByFloat(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    BigDecimal increment = parseDecimal(args.string(2));
+    if (increment == null) {
+      outputStream.write(NOT_FLOAT_ERROR);
+      return;
+    }
+    ByteKey key = args.key(1);
+    RedisData current = keyspace.get(key);
+    BigDecimal value = BigDecimal.ZERO;
+    long expiryTime = -1;
+    if (current instanceof RedisString.IntString number) {
+      value = BigDecimal.valueOf(number.value);
+      expiryTime = number.expiryTime;
+    } else if (current instanceof RedisString string) {
+      value = parseDecimal(new String(string.bytes(), StandardCharsets.ISO_8859_1));
+      expiryTime = string.expiryTime;
+      if (value == null) {
+        outputStream.write(NOT_FLOAT_ERROR);
+        return;
+      }
+    } else if (current != null) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+
+    BigDecimal result = value.add(increment);
+    if (!Double.isFinite(result.doubleValue())) {
+      outputStream.write("-ERR increment would produce NaN or Infinity\r\n".getBytes());
+      return;
+    }
+    if (result.scale() > 17) {
+      result = result.setScale(17, RoundingMode.HALF_EVEN);
+    }
+    byte[] bytes = result.stripTrailingZeros().toPlainString().getBytes();
+    keyspace.put(key, RedisString.of(bytes, expiryTime));
+    propagateSet(client, key, bytes, expiryTime);
+    writeBulk(outputStream, bytes);
+  }
+
+  /**
+   * Parses an INCRBYFLOAT operand: plain or exponent notation, no spaces,
+   * NaN or infinities, and a scale small enough to add cheaply.
+   * @return The number, or null if it is not a valid one.
+   */
+  private static BigDecimal parseDecimal(String text) {
+    try {
+      BigDecimal number = new BigDecimal(text);
+      return Math.abs(number.scale()) <= 5000 && Double.isFinite(number.doubleValue()) ? number : null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * GETSET key value
+   */
+  private void getSet(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    ByteKey key = args.key(1);
+    RedisData previous = keyspace.get(key);
+    if (previous != null && !(previous instanceof RedisString)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    byte[] value = args.bytes(2);
+    keyspace.put(key, RedisString.of(value, -1)); // Like SET, drops the expiry
+    propagate(client, SET, key.bytes, value);
+    if (previous == null) {
+      outputStream.write(Replies.NULL_BULK);
+    } else {
+      ((RedisString) previous).writeBulk(outputStream);
+    }
+  }
+
+  /**
+   * GETDEL key
+   */
+  private void getDel(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    ByteKey key = args.key(1);
+    RedisData data = keyspace.get(key);
+    if (data == null) {
+      outputStream.write(Replies.NULL_BULK);
+    } else if (!(data instanceof RedisString)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+    } else {
+      keyspace.remove(key, data);
+      propagate(client, DEL, key.bytes);
+      ((RedisString) data).writeBulk(outputStream);
+    }
+  }
+
+  /**
+   * SETNX key value
+   */
+  private void setNx(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    ByteKey key = args.key(1);
+    if (keyspace.get(key) != null) {
+      writeInteger(outputStream, 0);
+      return;
+    }
+    keyspace.put(key, RedisString.of(args.bytes(2), -1));
+    propagate(client, args);
+    writeInteger(outputStream, 1);
+  }
+
+  /**
+   * MSET key value [key value ...]
+   */
+  private void mset(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (args.count() % 2 == 0) {
+      outputStream.write("-ERR wrong number of arguments for 'mset' command\r\n".getBytes());
+      return;
+    }
+    for (int i = 1; i < args.count(); i += 2) {
+      keyspace.put(args.key(i), RedisString.of(args.bytes(i + 1), -1));
+    }
+    propagate(client, args);
+    outputStream.write(Replies.OK);
+  }
+
+  /**
+   * MGET key [key ...]
+   * Keys that do not hold a string come back as nulls.
+   */
+  private void mget(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    writeArrayHeader(outputStream, args.count() - 1);
+    for (int i = 1; i < args.count(); i++) {
+      RedisData data = keyspace.get(args.key(i));
+      if (data instanceof RedisString string) {
+        string.writeBulk(outputStream);
+      } else {
+        outputStream.write(Replies.NULL_BULK);
+      }
+    }
+  }
+
+  /**
+   * Propagates a string write as a plain SET, with the absolute expiry if it has one.
+   */
+  private void propagateSet(Client client, ByteKey key, byte[] value, long expiryTime) {
+    if (expiryTime == -1) {
+      propagate(client, SET, key.bytes, value);
+    } else {
+      propagate(client, SET, key.bytes, value, PXAT, Long.toString(expiryTime).getBytes());
+    }
+  }
+
+  /**
+   * RPUSH/LPUSH key element [element ...]
+   */
+  private void push(Client client, CommandArgs args, OutputStream outputStream, boolean toHead)
+      throws IOException {
+    ByteKey listKey = args.key(1);
+    RedisData existingEntry = keyspace.getForWrite(listKey);
+    RedisList list;
+
+    if (existingEntry == null) {
+      // Case 1: Key doesn't exist (or had expired). Create a new list.
+      list = new RedisList();
+      keyspace.put(listKey, list);
+    } else if (existingEntry instanceof RedisList) {
+      // Case 2: Key exists and is a list.
+      list = (RedisList) existingEntry;
+    } else {
+      // Case 3: Key exists but is NOT a list.
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+
+    // Add all provided elements to the list
+    int newSize = 0;
+    for (int i = 2; i < args.count(); i++) {
+      newSize = toHead ? list.lpush(args.bytes(i)) : list.rpush(args.bytes(i));
+    }
+    keyspace.updateSize(listKey, list);
+    propagate(client, args);
+
+    // Respond with the *final* size of the list as an Integer
+    writeInteger(outputStream, newSize);
+
+    // Hand the new elements to clients blocked on this list, oldest first
+    blockingRegistry.serveBlocked(listKey, this::serveBlockedPop);
+  }
+
+  /**
+   * LLEN key
+   */
+  private void llen(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    RedisData entry = keyspace.get(args.key(1));
+    if (entry != null && !(entry instanceof RedisList)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+    } else {
+      writeInteger(outputStream, entry == null ? 0 : ((RedisList) entry).size());
+    }
+  }
+
+  /**
+   * LINDEX key index
+   */
+  private void lindex(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    long index;
+    try {
+      index = args.parseLong(2);
+    } catch (NumberFormatException e) {
+      outputStream.write(Replies.NOT_INTEGER_ERROR);
+      return;
+    }
+    RedisData entry = keyspace.get(args.key(1));
+    if (entry != null && !(entry instanceof RedisList)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+    } else {
+      writeBulk(outputStream, entry == null ? null : ((RedisList) entry).index(index));
+    }
+  }
+
+  /**
+   * LTRIM key start stop
+   */
+  private void ltrim(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    long start;
+    long stop;
+    try {
+      start = args.parseLong(2);
+      stop = args.parseLong(3);
+    } catch (NumberFormatException e) {
+      outputStream.write(Replies.NOT_INTEGER_ERROR);
+      return;
+    }
+    ByteKey key = args.key(1);
+    RedisData entry = keyspace.getForWrite(key);
+    if (entry != null && !(entry instanceof RedisList)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    if (entry != null) {
+      ((RedisList) entry).ltrim(start, stop);
+      listChanged(key, (RedisList) entry);
+      propagate(client, args);
+    }
+    outputStream.write(Replies.OK);
+  }
+
+  /**
+   * LRANGE key start stop
+   */
+  private void lrange(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    ByteKey lrangeKey = args.key(1);
+    long start;
+    long stop;
+
+    // Parse start and stop indices (negative ones count from the end)
+    try {
+      start = args.parseLong(2);
+      stop = args.parseLong(3);
+    } catch (NumberFormatException e) {
+      outputStream.write(Replies.NOT_INTEGER_ERROR);
+      return;
+    }
+
+    RedisData lrangeEntry = keyspace.get(lrangeKey);
+
+    // Case 1: List doesn't exist or is expired (Treat as empty list)
+    if (lrangeEntry == null) {
+      outputStream.write(Replies.EMPTY_ARRAY); // Return empty RESP array
+      return;
+    }
+
+    // Case 2: Key exists, but it's not a list
+    if (!(lrangeEntry instanceof RedisList)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+
+    // Case 3: Key is a list. Get the range.
+    RedisList redisList = (RedisList) lrangeEntry;
+    // Respond with the range as a RESP array, written straight from the list's chunks
+    writeArrayHeader(outputStream, redisList.lrangeLength(start, stop));
+    redisList.lrange(start, stop, (data, offset, length) -> writeBulk(outputStream, data, offset, length));
+  }
+
+  /**
+   * HSET key field value [field value ...]
+   */
+  private void hset(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (args.count() % 2 != 0) {
+      outputStream.write("-ERR wrong number of arguments for 'hset' command\r\n".getBytes());
+      return;
+    }
+    ByteKey key = args.key(1);
+    RedisData entry = keyspace.getForWrite(key);
+    if (entry != null && !(entry instanceof RedisHash)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    RedisHash hash = entry == null ? new RedisHash() : (RedisHash) entry;
+    int added = 0;
+    for (int i = 2; i < args.count(); i += 2) {
+      if (hash.put(args.bytes(i), args.bytes(i + 1))) {
+        added++;
+      }
+    }
+    collectionChanged(key, entry, hash, hash.size());
+    propagate(client, args);
+    writeInteger(outputStream, added);
+  }
+
+  /**
+   * HGET key field
+   */
+  private void hget(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    RedisData entry = keyspace.get(args.key(1));
+    if (entry != null && !(entry instanceof RedisHash)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+    } else {
+      writeBulk(outputStream, entry == null ? null : ((RedisHash) entry).get(args.bytes(2)));
+    }
+  }
+
+  /**
+   * HMGET key field [field ...]
+   */
+  private void hmget(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    RedisData entry = keyspace.get(args.key(1));
+    if (entry != null && !(entry instanceof RedisHash)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    writeArrayHeader(outputStream, args.count() - 2);
+    for (int i = 2; i < args.count(); i++) {
+      writeBulk(outputStream, entry == null ? null : ((RedisHash) entry).get(args.bytes(i)));
+    }
+  }
+
+  /**
+   * HINCRBY key field increment
+   */
+  private void hincrby(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    long delta;
+    try {
+      delta = args.parseLong(3);
+    } catch (NumberFormatException e) {
+      outputStream.write(Replies.NOT_INTEGER_ERROR);
+      return;
+    }
+    ByteKey key = args.key(1);
+    RedisData entry = keyspace.getForWrite(key);
+    if (entry != null && !(entry instanceof RedisHash)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    RedisHash hash = entry == null ? new RedisHash() : (RedisHash) entry;
+    byte[] field = args.bytes(2);
+    byte[] current = hash.get(field);
+    long value = 0;
+    if (current != null) {
+      RedisString number = RedisString.parseInteger(current, -1);
+      if (number == null) {
+        outputStream.write(HASH_NOT_INTEGER_ERROR);
+        return;
+      }
+      value = ((RedisString.IntString) number).value;
+    }
+    long sum = value + delta;
+    if (((value ^ sum) & (delta ^ sum)) < 0) {
+      outputStream.write(OVERFLOW_ERROR);
+      return;
+    }
+    hash.put(field, Long.toString(sum).getBytes());
+    collectionChanged(key, entry, hash, hash.size());
+    propagate(client, args);
+    writeInteger(outputStream, sum);
+  }
+
+  /**
+   * HDEL key field [field ...]
+   */
+  private void hdel(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    ByteKey key = args.key(1);
+    RedisData entry = keyspace.getForWrite(key);
+    if (entry != null && !(entry instanceof RedisHash)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    int removed = 0;
+    if (entry != null) {
+      RedisHash hash = (RedisHash) entry;
+      for (int i = 2; i < args.count(); i++) {
+        if (hash.remove(args.bytes(i))) {
+          removed++;
+        }
+      }
+      if (removed > 0) {
+        collectionChanged(key, entry, hash, hash.size());
+        propagate(client, args);
+      }
+    }
+    writeInteger(outputStream, removed);
+  }
+
+  /**
+   * HLEN key
+   */
+  private void hlen(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    RedisData entry = keyspace.get(args.key(1));
+    if (entry != null && !(entry instanceof RedisHash)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+    } else {
+      writeInteger(outputStream, entry == null ? 0 : ((RedisHash) entry).size());
+    }
+  }
+
+  /**
+   * HEXISTS key field
+   */
+  private void hexists(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    RedisData entry = keyspace.get(args.key(1));
+    if (entry != null && !(entry instanceof RedisHash)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+    } else {
+      writeInteger(outputStream, entry != null && ((RedisHash) entry).get(args.bytes(2)) != null ? 1 : 0);
+    }
+  }
+
+  /**
+   * HGETALL key
+   */
+  private void hgetall(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    RedisData entry = keyspace.get(args.key(1));
+    if (entry == null) {
+      outputStream.write(Replies.EMPTY_ARRAY);
+      return;
+    }
+    if (!(entry instanceof RedisHash)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    RedisHash hash = (RedisHash) entry;
+    writeArrayHeader(outputStream, 2L * hash.size());
+    hash.forEach((data, offset, length) -> writeBulk(outputStream, data, offset, length));
+  }
+
+  /**
+   * SADD key member [member ...]
+   */
+  private void sadd(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    ByteKey key = args.key(1);
+    RedisData entry = keyspace.getForWrite(key);
+    if (entry != null && !(entry instanceof RedisSet)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    RedisSet set = entry == null ? new RedisSet() : (RedisSet) entry;
+    int added = 0;
+    for (int i = 2; i < args.count(); i++) {
+      if (set.add(args.bytes(i))) {
+        added++;
+      }
+    }
+    if (added > 0) {
+      collectionChanged(key, entry, set, set.size());
+      propagate(client, args);
+    }
+    writeInteger(outputStream, added);
+  }
+
+  /**
+   * SREM key member [member ...]
+   */
+  private void srem(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    ByteKey key = args.key(1);
+    RedisData entry = keyspace.getForWrite(key);
+    if (entry != null && !(entry instanceof RedisSet)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    int removed = 0;
+    if (entry != null) {
+      RedisSet set = (RedisSet) entry;
+      for (int i = 2; i < args.count(); i++) {
+        if (set.remove(args.bytes(i))) {
+          removed++;
+        }
+      }
+      if (removed > 0) {
+        collectionChanged(key, entry, set, set.size());
+        propagate(client, args);
+      }
+    }
+    writeInteger(outputStream, removed);
+  }
+
+  /**
+   * SISMEMBER key member
+   */
+  private void sismember(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    RedisData entry = keyspace.get(args.key(1));
+    if (entry != null && !(entry instanceof RedisSet)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+    } else {
+      writeInteger(outputStream, entry != null && ((RedisSet) entry).contains(args.bytes(2)) ? 1 : 0);
+    }
+  }
+
+  /**
+   * SCARD key
+   */
+  private void scard(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    RedisData entry = keyspace.get(args.key(1));
+    if (entry != null && !(entry instanceof RedisSet)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+    } else {
+      writeInteger(outputStream, entry == null ? 0 : ((RedisSet) entry).size());
+    }
+  }
+
+  /**
+   * SMEMBERS key
+   */
+  private void smembers(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    RedisData entry = keyspace.get(args.key(1));
+    if (entry == null) {
+      outputStream.write(Replies.EMPTY_ARRAY);
+      return;
+    }
+    if (!(entry instanceof RedisSet)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    RedisSet set = (RedisSet) entry;
+    writeArrayHeader(outputStream, set.size());
+    set.forEach((data, offset, length) -> writeBulk(outputStream, data, offset, length));
+  }
+
+  /**
+   * SINTER key [key ...]
+   * Walks the smallest set and probes the others, smallest first.
+   */
+  private void sinter(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    RedisSet[] sets = new RedisSet[args.count() - 1];
+    for (int i = 0; i < sets.length; i++) {
+      RedisData entry = keyspace.get(args.key(i + 1));
+      if (entry == null) {
+        outputStream.write(Replies.EMPTY_ARRAY); // Intersecting with an empty set
+        return;
+      }
+      if (!(entry instanceof RedisSet)) {
+        outputStream.write(Replies.WRONGTYPE_ERROR);
+        return;
+      }
+      sets[i] = (RedisSet) entry;
+    }
+    Arrays.sort(sets, (a, b) -> Integer.compare(a.size(), b.size()));
+    List<byte[]> members = new ArrayList<>();
+    sets[0].forEach((data, offset, length) -> {
+      byte[] member = Arrays.copyOfRange(data, offset, offset + length);
+      for (int i = 1; i < sets.length; i++) {
+        if (!sets[i].contains(member)) {
+          return;
+        }
+      }
+      members.add(member);
+    });
+    writeArrayHeader(outputStream, members.size());
+    for (byte[] member : members) {
+      writeBulk(outputStream, member);
+    }
+  }
+
+  /**
+   * ZADD key [NX | XX] [GT | LT] [CH] [INCR] score member [score member ...]
+   */
+  private void zadd(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    boolean nx = false;
+    boolean xx = false;
+    boolean gt = false;
+    boolean lt = false;
+    boolean ch = false;
+    boolean incr = false;
+    int i = 2;
+    for (; i < args.count(); i++) {
+      if (args.is(i, "NX")) {
+        nx = true;
+      } else if (args.is(i, "XX")) {
+        xx = true;
+      } else if (args.is(i, "GT")) {
+        gt = true;
+      } else if (args.is(i, "LT")) {
+        lt = true;
+      } else if (args.is(i, "CH")) {
+        ch = true;
+      } else if (args.is(i, "INCR")) {
+        incr = true;
+      } else {
+        break;
+      }
+    }
+    int pairs = (args.count() - i) / 2;
+    if (pairs == 0 || (args.count() - i) % 2 != 0) {
+      outputStream.write(Replies.SYNTAX_ERROR);
+      return;
+    }
+    if (nx && xx) {
+      outputStream.write("-ERR XX and NX options at the same time are not compatible\r\n".getBytes());
+      return;
+    }
+    if ((gt && lt) || (nx && (gt || lt))) {
+      outputStream.write("-ERR GT, LT, and/or NX options at the same time are not compatible\r\n".getBytes());
+      return;
+    }
+    if (incr && pairs > 1) {
+      outputStream.write("-ERR INCR option supports a single increment-element pair\r\n".getBytes());
+      return;
+    }
+    // Every score is checked before anything is added
+    double[] scores = new double[pairs];
+    for (int j = 0; j < pairs; j++) {
+      try {
+        scores[j] = RedisZSet.parseScore(args.string(i + 2 * j));
+      } catch (NumberFormatException e) {
+        outputStream.write(NOT_FLOAT_ERROR);
+        return;
+      }
+    }
+
+    ByteKey key = args.key(1);
+    RedisData entry = keyspace.getForWrite(key);
+    if (entry != null && !(entry instanceof RedisZSet)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    RedisZSet zset = entry == null ? new RedisZSet() : (RedisZSet) entry;
+    int added = 0;
+    int updated = 0;
+    double result = Double.NaN; // The new score for INCR, NaN if the member was skipped
+    for (int j = 0; j < pairs; j++) {
+      byte[] member = args.bytes(i + 2 * j + 1);
+      Double current = zset.score(member);
+      double score = scores[j];
+      if (current == null ? xx : nx) {
+        continue;
+      }
+      if (current != null && incr) {
+        score += current;
+        if (Double.isNaN(score)) {
+          outputStream.write(SCORE_NAN_ERROR);
+          return;
+        }
+      }
+      if (current != null && ((gt && score <= current) || (lt && score >= current))) {
+        continue;
+      }
+      result = score;
+      if (zset.put(member, score)) {
+        added++;
+      } else if (current != score) {
+        updated++;
+      }
+    }
+    if (added + updated > 0) {
+      collectionChanged(key, entry, zset, zset.size());
+      propagate(client, args);
+    }
+    if (incr) {
+      writeBulk(outputStream, Double.isNaN(result) ? null : RedisZSet.formatScore(result));
+    } else {
+      writeInteger(outputStream, ch ? added + updated : added);
+    }
+  }
+
+  /**
+   * ZINCRBY key increment member
+   */
+  private void zincrby(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    double delta;
+    try {
+      delta = RedisZSet.parseScore(args.string(2));
+    } catch (NumberFormatException e) {
+      outputStream.write(NOT_FLOAT_ERROR);
+      return;
+    }
+    ByteKey key = args.key(1);
+    RedisData entry = keyspace.getForWrite(key);
+    if (entry != null && !(entry instanceof RedisZSet)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    RedisZSet zset = entry == null ? new RedisZSet() : (RedisZSet) entry;
+    byte[] member = args.bytes(3);
+    Double current = zset.score(member);
+    double score = current == null ? delta : current + delta;
+    if (Double.isNaN(score)) {
+      outputStream.write(SCORE_NAN_ERROR);
+      return;
+    }
+    zset.put(member, score);
+    collectionChanged(key, entry, zset, zset.size());
+    propagate(client, args);
+    writeBulk(outputStream, RedisZSet.formatScore(score));
+  }
+
+  /**
+   * ZREM key member [member ...]
+   */
+  private void zrem(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    ByteKey key = args.key(1);
+    RedisData entry = keyspace.getForWrite(key);
+    if (entry != null && !(entry instanceof RedisZSet)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    int removed = 0;
+    if (entry != null) {
+      RedisZSet zset = (RedisZSet) entry;
+      for (int i = 2; i < args.count(); i++) {
+        if (zset.remove(args.bytes(i))) {
+          removed++;
+        }
+      }
+      if (removed > 0) {
+        collectionChanged(key, entry, zset, zset.size());
+        propagate(client, args);
+      }
+    }
+    writeInteger(outputStream, removed);
+  }
+
+  /**
+   * ZSCORE key member
+   */
+  private void zscore(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    RedisData entry = keyspace.get(args.key(1));
+    if (entry != null && !(entry instanceof RedisZSet)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    Double score = entry == null ? null : ((RedisZSet) entry).score(args.bytes(2));
+    writeBulk(outputStream, score == null ? null : RedisZSet.formatScore(score));
+  }
+
+  /**
+   * ZCARD key
+   */
+  private void zcard(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    RedisData entry = keyspace.get(args.key(1));
+    if (entry != null && !(entry instanceof RedisZSet)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+    } else {
+      writeInteger(outputStream, entry == null ? 0 : ((RedisZSet) entry).size());
+    }
+  }
+
+  /**
+   * ZRANK/ZREVRANK key member [WITHSCORE]
+   */
+  private void zrank(Client client, CommandArgs args, OutputStream outputStream, boolean reverse)
+      throws IOException {
+    boolean withScore = args.count() == 4 && args.is(3, "WITHSCORE");
+    if (args.count() > 3 && !withScore) {
+      outputStream.write(Replies.SYNTAX_ERROR);
+      return;
+    }
+    RedisData entry = keyspace.get(args.key(1));
+    if (entry != null && !(entry instanceof RedisZSet)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    RedisZSet zset = (RedisZSet) entry;
+    byte[] member = args.bytes(2);
+    long rank = zset == null ? -1 : zset.rank(member);
+    if (rank < 0) {
+      outputStream.write(withScore ? Replies.NULL_ARRAY : Replies.NULL_BULK);
+      return;
+    }
+    if (reverse) {
+      rank = zset.size() - 1 - rank;
+    }
+    if (withScore) {
+      writeArrayHeader(outputStream, 2);
+      writeInteger(outputStream, rank);
+      writeBulk(outputStream, RedisZSet.formatScore(zset.score(member)));
+    } else {
+      writeInteger(outputStream, rank);
+    }
+  }
+
+  /**
+   * ZRANGE key start stop [BYSCORE] [REV] [LIMIT offset count] [WITHSCORES]
+   * With BYSCORE, start and stop are scores (max and min with REV).
+   */
+  private void zrange(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    boolean byScore = false;
+    boolean reverse = false;
+    boolean withScores = false;
+    long offset = 0;
+    long limit = -1;
+    boolean hasLimit = false;
+    for (int i = 4; i < args.count(); i++) {
+      if (args.is(i, "BYSCORE")) {
+        byScore = true;
+      } else if (args.is(i, "REV")) {
+        reverse = true;
+      } else if (args.is(i, "WITHSCORES")) {
+        withScores = true;
+      } else if (args.is(i, "LIMIT") && i + 2 < args.count()) {
+        try {
+          offset = args.parseLong(i + 1);
+          limit = args.parseLong(i + 2);
+        } catch (NumberFormatException e) {
+          outputStream.write(Replies.NOT_INTEGER_ERROR);
+          return;
+        }
+        hasLimit = true;
+        i += 2;
+      } else {
+        outputStream.write(Replies.SYNTAX_ERROR);
+        return;
+      }
+    }
+    if (hasLimit && !byScore) {
+      outputStream.write(("-ERR syntax error, LIMIT is only supported in combination with either "
+          + "BYSCORE or BYLEX\r\n").getBytes());
+      return;
+    }
+    writeRange(args, outputStream, byScore, reverse, withScores, offset, limit);
+  }
+
+  /**
+   * ZRANGEBYSCORE key min max [WITHSCORES] [LIMIT offset count]
+   */
+  private void zrangeByScore(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    boolean withScores = false;
+    long offset = 0;
+    long limit = -1;
+    for (int i = 4; i < args.count(); i++) {
+      if (args.is(i, "WITHSCORES")) {
+        withScores = true;
+      } else if (args.is(i, "LIMIT") && i + 2 < args.count()) {
+        try {
+          offset = args.parseLong(i + 1);
+          limit = args.parseLong(i + 2);
+        } catch (NumberFormatException e) {
+          outputStream.write(Replies.NOT_INTEGER_ERROR);
+          return;
+        }
+        i += 2;
+      } else {
+        outputStream.write(Replies.SYNTAX_ERROR);
+        return;
+      }
+    }
+    writeRange(args, outputStream, true, false, withScores, offset, limit);
+  }
+
+  /**
+   * Replies with a range of a sorted set. Both kinds of range come down to
+   * ranks: a score bound is the number of members below it, which the
+   * skiplist counts in O(log n), so only the members replied with are walked.
+   * @param limit The most members to reply with, negative for all.
+   */
+  private void writeRange(CommandArgs args, OutputStream outputStream, boolean byScore, boolean reverse,
+      boolean withScores, long offset, long limit) throws IOException {
+    long start = 0;
+    long stop = 0;
+    double min = 0;
+    double max = 0;
+    boolean[] exclusive = new boolean[2]; // Of min and max
+    try {
+      if (byScore) {
+        min = parseScoreBound(args.string(reverse ? 3 : 2), exclusive, 0);
+        max = parseScoreBound(args.string(reverse ? 2 : 3), exclusive, 1);
+      } else {
+        start = args.parseLong(2);
+        stop = args.parseLong(3);
+      }
+    } catch (NumberFormatException e) {
+      outputStream.write(byScore ? RANGE_NOT_FLOAT_ERROR : Replies.NOT_INTEGER_ERROR);
+      return;
+    }
+    RedisData entry = keyspace.get(args.key(1));
+    if (entry != null && !(entry instanceof RedisZSet)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    if (entry == null) {
+      outputStream.write(Replies.EMPTY_ARRAY);
+      return;
+    }
+    RedisZSet zset = (RedisZSet) entry;
+    long size = zset.size();
+
+    // Resolve to ascending ranks first..last, both inclusive
+    long first;
+    long last;
+    if (byScore) {
+      first = zset.countBelow(min, exclusive[0]);
+      last = zset.countBelow(max, !exclusive[1]) - 1;
+      if (offset < 0) {
+        first = last + 1;
+      } else if (reverse) {
+        last -= offset;
+        if (limit >= 0) {
+          first = Math.max(first, last - limit + 1);
+        }
+      } else {
+        first += offset;
+        if (limit >= 0) {
+          last = Math.min(last, first + limit - 1);
+        }
+      }
+    } else {
+      if (start < 0) {
+        start = Math.max(0, size + start);
+      }
+      if (stop < 0) {
+        stop = size + stop;
+      }
+      stop = Math.min(stop, size - 1);
+      // Indices count from the top with REV
+      first = reverse ? size - 1 - stop : start;
+      last = reverse ? size - 1 - start : stop;
+    }
+    if (first > last || first >= size || last < 0) {
+      outputStream.write(Replies.EMPTY_ARRAY);
+      return;
+    }
+    writeArrayHeader(outputStream, (last - first + 1) * (withScores ? 2 : 1));
+    zset.forEach(first, last, reverse, (data, offsetInData, length, score) -> {
+      writeBulk(outputStream, data, offsetInData, length);
+      if (withScores) {
+        writeBulk(outputStream, RedisZSet.formatScore(score));
+      }
+    });
+  }
+
+  /**
+   * Parses a ZRANGEBYSCORE bound: a score, exclusive when prefixed with '('.
+   * @param exclusive Set at index to whether the bound is exclusive.
+   */
+  private static double parseScoreBound(String text, boolean[] exclusive, int index) {
+    exclusive[index] = text.startsWith("(");
+    return RedisZSet.parseScore(exclusive[index] ? text.substring(1) : text);
+  }
+
+  /**
+   * DEL key [key ...]
+   * UNLINK key [key ...]
+   * The same command here: dropping a value of any size is O(1), and the
+   * garbage collector reclaims it off the request thread. A save in progress
+   * keeps the removed object itself rather than a copy (see
+   * {@link Snapshot#beforeReplace}), so that stays O(1) during a BGSAVE too.
+   */
+  private void del(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    int deleted = 0;
+    for (int i = 1; i < args.count(); i++) {
+      ByteKey key = args.key(i);
+      RedisData data = keyspace.get(key);
+      if (data != null && keyspace.remove(key, data)) {
+        deleted++;
+      }
+    }
+    if (deleted > 0) {
+      propagate(client, args);
+    }
+    writeInteger(outputStream, deleted);
+  }
+
+  /**
+   * EXISTS key [key ...]
+   * A key given more than once is counted each time.
+   */
+  private void exists(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    int count = 0;
+    for (int i = 1; i < args.count(); i++) {
+      if (keyspace.get(args.key(i)) != null) {
+        count++;
+      }
+    }
+    writeInteger(outputStream, count);
+  }
+
+  /**
+   * TYPE key
+   */
+  private void type(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    RedisData data = keyspace.get(args.key(1));
+    outputStream.write(("+" + (data == null ? "none" : data.type()) + "\r\n").getBytes());
+  }
+
+  /**
+   * DBSIZE
+   * Counts expired keys not reclaimed yet, as Redis does.
+   */
+  private void dbsize(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    writeInteger(outputStream, keyspace.size());
+  }
+
+  /**
+   * KEYS pattern
+   * Walks the shard maps without locking them (see {@link Keyspace#forEach}),
+   * so other clients carry on while it runs; a pattern without special
+   * characters is a single lookup.
+   */
+  private void keys(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    byte[] pattern = args.bytes(1);
+    List<byte[]> keys = new ArrayList<>();
+    if (Glob.isLiteral(pattern)) {
+      RedisData data = keyspace.peek(new ByteKey(pattern));
+      if (data != null && !data.isExpired()) {
+        keys.add(pattern);
+      }
+    } else {
+      boolean all = Glob.matchesAll(pattern);
+      keyspace.forEach((key, data) -> {
+        if (!data.isExpired() && (all || Glob.matches(pattern, key.bytes))) {
+          keys.add(key.bytes);
+        }
+      });
+    }
+    writeArrayHeader(outputStream, keys.size());
+    for (byte[] key : keys) {
+      writeBulk(outputStream, key);
+    }
+  }
+
+  /**
+   * SCAN cursor [MATCH pattern] [COUNT count] [TYPE type]
+   * Walks a few bins of the shard maps without locking them (see
+   * {@link Keyspace#scan}), or whole shards should the JDK's map no longer
+   * split by bin, which is logged at startup. MATCH and TYPE are checked as
+   * the bins are walked, so only the keys that pass are collected.
+   */
+  private void scan(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    ScanOptions options = ScanOptions.parse(args, 1, true, outputStream);
+    if (options == null) {
+      return;
+    }
+    List<byte[]> keys = new ArrayList<>();
+    long next = keyspace.scan(options.cursor, options.count, (key, data) -> {
+      if (!data.isExpired() && options.matches(key.bytes, 0, key.bytes.length)
+          && (options.type == null || options.type.equals(data.type()))) {
+        keys.add(key.bytes);
+      }
+    });
+    writeScanReply(outputStream, next, keys);
+  }
+
+  /**
+   * HSCAN key cursor [MATCH pattern] [COUNT count]
+   * MATCH applies to the fields; a field that passes comes with its value.
+   */
+  private void hscan(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    ScanOptions options = ScanOptions.parse(args, 2, false, outputStream);
+    if (options == null) {
+      return;
+    }
+    RedisData entry = keyspace.get(args.key(1));
+    if (entry != null && !(entry instanceof RedisHash)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    List<byte[]> elements = new ArrayList<>();
+    long next = 0;
+    if (entry != null) {
+      boolean[] isField = {true};
+      boolean[] keep = new boolean[1];
+      next = ((RedisHash) entry).scan(options.cursor, options.count, (data, offset, length) -> {
+        if (isField[0]) {
+          keep[0] = options.matches(data, offset, length);
+        }
+        if (keep[0]) {
+          elements.add(Arrays.copyOfRange(data, offset, offset + length));
+        }
+        isField[0] = !isField[0];
+      });
+    }
+    writeScanReply(outputStream, next, elements);
+  }
+
+  /**
+   * SSCAN key cursor [MATCH pattern] [COUNT count]
+   */
+  private void sscan(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    ScanOptions options = ScanOptions.parse(args, 2, false, outputStream);
+    if (options == null) {
+      return;
+    }
+    RedisData entry = keyspace.get(args.key(1));
+    if (entry != null && !(entry instanceof RedisSet)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+    List<byte[]> members = new ArrayList<>();
+    long next = 0;
+    if (entry != null) {
+      next = ((RedisSet) entry).scan(options.cursor, options.count, (data, offset, length) -> {
+        if (options.matches(data, offset, length)) {
+          members.add(Arrays.copyOfRange(data, offset, offset + length));
+        }
+      });
+    }
+    writeScanReply(outputStream, next, members);
+  }
+
+  /**
+   * The cursor and options of the SCAN family.
+   */
+  private static final class ScanOptions {
+    long cursor;
+    int count = 10;
+    byte[] pattern; // Null to match everything
+    String type;    // Null for every type
+
+    /**
+     * @param cursorIndex The position of the cursor; options follow it.
+     * @param allowType Whether TYPE is accepted (SCAN).
+     * @return The options, or null after writing an error.
+     */
+    static ScanOptions parse(CommandArgs args, int cursorIndex, boolean allowType,
+        OutputStream outputStream) throws IOException {
+      ScanOptions options = new ScanOptions();
+      try {
+        options.cursor = Long.parseUnsignedLong(args.string(cursorIndex));
+      } catch (NumberFormatException e) {
+        outputStream.write(INVALID_CURSOR_ERROR);
+        return null;
+      }
+      for (int i = cursorIndex + 1; i < args.count(); i += 2) {
+        if (i + 1 == args.count()) {
+          outputStream.write(Replies.SYNTAX_ERROR);
+          return null;
+        }
+        if (args.is(i, "MATCH")) {
+          byte[] pattern = args.bytes(i + 1);
+          options.pattern = Glob.matchesAll(pattern) ? null : pattern;
+        } else if (args.is(i, "COUNT")) {
+          long count;
+          try {
+            count = args.parseLong(i + 1);
+          } catch (NumberFormatException e) {
+            outputStream.write(Replies.NOT_INTEGER_ERROR);
+            return null;
+          }
+          if (count < 1) {
+            outputStream.write(Replies.SYNTAX_ERROR);
+            return null;
+          }
+          options.count = (int) Math.min(count, Integer.MAX_VALUE / 10);
+        } else if (allowType && args.is(i, "TYPE")) {
+          options.type = args.string(i + 1).toLowerCase();
+          if (!TYPE_NAMES.contains(options.type)) {
+            outputStream.write(("-ERR unknown type name '" + args.string(i + 1) + "'\r\n").getBytes());
+            return null;
+          }
+        } else {
+          outputStream.write(Replies.SYNTAX_ERROR);
+          return null;
+        }
+      }
+      return options;
+    }
+
+    boolean matches(byte[] data, int offset, int length) {
+      return pattern == null || Glob.matches(pattern, data, offset, length);
+    }
+  }
+
+  /**
+   * Writes a SCAN family reply: the next cursor, then the elements found.
+   */
+  private static void writeScanReply(OutputStream outputStream, long cursor, List<byte[]> elements)
+      throws IOException {
+    writeArrayHeader(outputStream, 2);
+    writeBulk(outputStream, Long.toUnsignedString(cursor).getBytes());
+    writeArrayHeader(outputStream, elements.size());
+    for (byte[] element : elements) {
+      writeBulk(outputStream, element);
+    }
+  }
+
+  /**
+   * DUMP key
+   */
+  private void dump(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    RedisData data = keyspace.get(args.key(1));
+    writeBulk(outputStream, data == null ? null : RdbWriter.dump(data));
+  }
+
+  /**
+   * OBJECT ENCODING key
+   */
+  private void object(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (!args.is(1, "ENCODING")) {
+      outputStream.write(("-ERR unknown subcommand '" + args.string(1) + "'\r\n").getBytes());
+      return;
+    }
+    RedisData data = keyspace.get(args.key(2));
+    writeBulk(outputStream, data == null ? null : data.encoding().getBytes());
+  }
+
+  /**
+   * RESTORE key ttl serialized-value [REPLACE] [ABSTTL]
+   * RESTORE-ASKING is the same command, also served by a node still importing
+   * the key's slot; MIGRATE sends it in cluster mode.
+   */
+  private void restore(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    long ttl;
+    try {
+      ttl = args.parseLong(2);
+    } catch (NumberFormatException e) {
+      outputStream.write(Replies.NOT_INTEGER_ERROR);
+      return;
+    }
+    boolean replace = false;
+    boolean absTtl = false;
+    for (int i = 4; i < args.count(); i++) {
+      if (args.is(i, "REPLACE")) {
+        replace = true;
+      } else if (args.is(i, "ABSTTL")) {
+        absTtl = true;
+      } else {
+        outputStream.write(Replies.SYNTAX_ERROR);
+        return;
+      }
+    }
+    if (ttl < 0) {
+      outputStream.write("-ERR Invalid TTL value, must be >= 0\r\n".getBytes());
+      return;
+    }
+
+    ByteKey key = args.key(1);
+    RedisData existing = keyspace.get(key);
+    if (existing != null && !replace) {
+      outputStream.write("-BUSYKEY Target key name already exists.\r\n".getBytes());
+      return;
+    }
+    RedisData data;
+    try {
+      data = RdbLoader.restore(args.bytes(3));
+    } catch (IOException e) {
+      outputStream.write("-ERR DUMP payload version or checksum are wrong\r\n".getBytes());
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    data.expiryTime = ttl == 0 ? -1 : absTtl ? ttl : now + ttl;
+    if (data.expiryTime != -1 && data.expiryTime <= now) {
+      // Already expired: only the replaced key goes away
+      if (existing != null && keyspace.remove(key, existing)) {
+        propagate(client, DEL, key.bytes);
+      }
+    } else {
+      keyspace.put(key, data);
+      // Log the absolute expiry so replaying the log later does not extend it
+      long expiry = data.expiryTime == -1 ? 0 : data.expiryTime;
+      propagate(client, RESTORE, key.bytes, Long.toString(expiry).getBytes(), args.bytes(3), REPLACE, ABSTTL);
+    }
+    outputStream.write(Replies.OK);
+  }
+
+  /**
+   * MIGRATE host port key|"" destination-db timeout [COPY] [REPLACE] [KEYS key [key ...]]
+   * Moves keys to another instance: each goes as a RESTORE (RESTORE-ASKING in
+   * cluster mode) of its DUMP payload, all keys in one pipeline over a cached
+   * connection, and is deleted here once the target has stored it. The keys'
+   * shards stay locked for the transfer, so clients see each key either here
+   * or on the target, and a slot can be moved in batches of KEYS.
+   */
+  private void migrate(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    String host = args.string(1);
+    int port;
+    long db;
+    long timeout;
+    try {
+      port = (int) args.parseLong(2);
+      db = args.parseLong(4);
+      timeout = args.parseLong(5);
+    } catch (NumberFormatException e) {
+      outputStream.write(Replies.NOT_INTEGER_ERROR);
+      return;
+    }
+    boolean copy = false;
+    boolean replace = false;
+    int firstKey = 3;
+    int lastKey = 3;
+    for (int i = 6; i < args.count(); i++) {
+      if (args.is(i, "COPY")) {
+        copy = true;
+      } else if (args.is(i, "REPLACE")) {
+        replace = true;
+      } else if (args.is(i, "KEYS") && i + 1 < args.count()) {
+        if (args.length(3) != 0) {
+          outputStream.write(("-ERR When using MIGRATE KEYS option, the key argument must be set to "
+              + "the empty string\r\n").getBytes());
+          return;
+        }
+        firstKey = i + 1;
+        lastKey = args.count() - 1;
+        break;
+      } else {
+        outputStream.write(Replies.SYNTAX_ERROR);
+        return;
+      }
+    }
+    if (db != 0) {
+      outputStream.write("-ERR DB index is out of range\r\n".getBytes());
+      return;
+    }
+    if (timeout <= 0) {
+      timeout = 1000;
+    }
+
+    int[] shardIndexes = shardsOf(args, firstKey, lastKey, 1);
+    keyspace.lock(shardIndexes, true);
+    try {
+      ByteArrayOutputStream pipeline = new ByteArrayOutputStream();
+      List<ByteKey> keys = new ArrayList<>();
+      List<RedisData> values = new ArrayList<>();
+      long now = System.currentTimeMillis();
+      for (int i = firstKey; i <= lastKey; i++) {
+        ByteKey key = args.key(i);
+        RedisData data = keyspace.get(key);
+        if (data == null) {
+          continue;
+        }
+        byte[] ttl = Long.toString(data.expiryTime == -1 ? 0 : Math.max(1, data.expiryTime - now)).getBytes();
+        byte[] command = cluster != null ? RESTORE_ASKING : RESTORE;
+        if (replace) {
+          CommandEncoder.encode(pipeline, command, key.bytes, ttl, RdbWriter.dump(data), REPLACE);
+        } else {
+          CommandEncoder.encode(pipeline, command, key.bytes, ttl, RdbWriter.dump(data));
+        }
+        keys.add(key);
+        values.add(data);
+      }
+      if (keys.isEmpty()) {
+        outputStream.write("+NOKEY\r\n".getBytes());
+        return;
+      }
+
+      List<String> replies;
+      try {
+        replies = migrateConnections.call(host, port, timeout, pipeline.toByteArray(), keys.size());
+      } catch (IOException e) {
+        outputStream.write(("-IOERR error or timeout connecting or talking to target instance: "
+            + e.getMessage() + "\r\n").getBytes());
+        return;
+      }
+      String error = null;
+      for (int i = 0; i < keys.size(); i++) {
+        String reply = replies.get(i);
+        if (reply.startsWith("-")) {
+          if (error == null) {
+            error = reply.substring(1);
+          }
+        } else if (!copy && keyspace.remove(keys.get(i), values.get(i))) {
+          propagate(client, DEL, keys.get(i).bytes);
+        }
+      }
+      if (error != null) {
+        outputStream.write(("-ERR Target instance replied with error: " + error + "\r\n").getBytes());
+      } else {
+        outputStream.write(Replies.OK);
+      }
+    } finally {
+      keyspace.unlock(shardIndexes, true);
+    }
+  }
+
+  /**
+   * INFO [section] - every section is returned
+   */
+  private void info(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    StringBuilder info = new StringBuilder("# Memory\r\n");
+    keyspace.appendMemoryInfo(info);
+    info.append("\r\n# Persistence\r\n");
+    persistence.appendInfo(info);
+    info.append("\r\n# Replication\r\n");
+    replication.appendInfo(info);
+    info.append("\r\n# Cluster\r\n");
+    info.append("cluster_enabled:").append(cluster != null ? 1 : 0).append("\r\n");
+    info.append("\r\n# Stats\r\n");
+    keyspace.appendStatsInfo(info);
+    info.append("client_output_buffer_limit_disconnections:").append(ReplyStream.limitDisconnections.sum())
+        .append("\r\n");
+    info.append("pubsub_channels:").append(pubSub.channelCount()).append("\r\n");
+    info.append("pubsub_patterns:").append(pubSub.patternCount()).append("\r\n");
+    info.append("tracking_clients:").append(tracking.clientCount()).append("\r\n");
+    info.append("tracking_total_keys:").append(tracking.keyCount()).append("\r\n");
+    info.append("tracking_total_prefixes:").append(tracking.prefixCount()).append("\r\n");
+    info.append("tracking_forgotten_keys:").append(tracking.forgottenKeys()).append("\r\n");
+    info.append("\r\n# Commandstats\r\n");
+    for (Command command : commandTable.commands()) {
+      command.appendStats(info);
+    }
+    writeBulk(outputStream, info.toString().getBytes());
+  }
+
+  /**
+   * COMMAND | COMMAND COUNT | COMMAND INFO name [name ...]
+   */
+  private void command(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (args.count() == 1) {
+      writeArrayHeader(outputStream, commandTable.commands().size());
+      for (Command command : commandTable.commands()) {
+        command.writeInfo(outputStream);
+      }
+    } else if (args.count() == 2 && args.is(1, "COUNT")) {
+      writeInteger(outputStream, commandTable.commands().size());
+    } else if (args.is(1, "INFO")) {
+      writeArrayHeader(outputStream, args.count() - 2);
+      for (int i = 2; i < args.count(); i++) {
+        Command command = commandTable.lookup(args.string(i));
+        if (command == null) {
+          outputStream.write(Replies.NULL_ARRAY);
+        } else {
+          command.writeInfo(outputStream);
+        }
+      }
+    } else {
+      outputStream.write(("-ERR unknown subcommand '" + args.string(1) + "'\r\n").getBytes());
+    }
+  }
+
+  /**
+   * CONFIG GET parameter [parameter ...]
+   */
+  private void config(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (!args.is(1, "GET")) {
+      outputStream.write(("-ERR unknown subcommand '" + args.string(1) + "'\r\n").getBytes());
+      return;
+    }
+    if (args.count() < 3) {
+      outputStream.write("-ERR wrong number of arguments for 'config|get' command\r\n".getBytes());
+      return;
+    }
+    ByteArrayOutputStream pairs = new ByteArrayOutputStream();
+    int found = 0;
+    for (int i = 2; i < args.count(); i++) {
+      String name = args.string(i).toLowerCase();
+      String value = config.get(name);
+      if (value != null) {
+        writeBulk(pairs, name.getBytes());
+        writeBulk(pairs, value.getBytes());
+        found++;
+      }
+    }
+    writeArrayHeader(outputStream, found * 2);
+    pairs.writeTo(outputStream);
+  }
+
+  /**
+   * SAVE
+   */
+  private void save(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    try {
+      if (persistence.save()) {
+        outputStream.write(Replies.OK);
+      } else {
+        outputStream.write("-ERR Background save already in progress\r\n".getBytes());
+      }
+    } catch (IOException e) {
+      System.out.println("SAVE failed: " + e.getMessage());
+      outputStream.write("-ERR Failed saving the DB, see the server log for details\r\n".getBytes());
+    }
+  }
+
+  /**
+   * BGSAVE [SCHEDULE]
+   */
+  private void bgsave(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (persistence.backgroundSave()) {
+      outputStream.write("+Background saving started\r\n".getBytes());
+    } else {
+      outputStream.write("-ERR Background save already in progress\r\n".getBytes());
+    }
+  }
+
+  /**
+   * LASTSAVE
+   */
+  private void lastsave(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    writeInteger(outputStream, persistence.lastSaveTime());
+  }
+
+  /**
+   * BGREWRITEAOF
+   */
+  private void bgrewriteaof(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (!persistence.isAppendOnly()) {
+      outputStream.write("-ERR Append only file is disabled\r\n".getBytes());
+    } else if (persistence.rewriteAppendOnlyFile()) {
+      outputStream.write("+Background append only file rewriting started\r\n".getBytes());
+    } else {
+      outputStream.write("-ERR Background save or append only file rewrite already in progress\r\n".getBytes());
+    }
+  }
+
+  /**
+   * REPLCONF listening-port port | capa ... | GETACK *
+   * Sent by a replica during its handshake.
+   */
+  private void replconf(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (args.count() == 3 && args.is(1, "LISTENING-PORT")) {
+      try {
+        client.listeningPort = (int) args.parseLong(2);
+      } catch (NumberFormatException e) {
+        outputStream.write(Replies.NOT_INTEGER_ERROR);
+        return;
+      }
+    }
+    outputStream.write(Replies.OK);
+  }
+
+  /**
+   * PSYNC replicationid offset
+   * Turns the connection into a replica link: the reply (+FULLRESYNC with a
+   * snapshot, or +CONTINUE) and the command stream come from the link's own
+   * thread, see {@link ReplicaLink}.
+   */
+  private void psync(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (replication.isReplica()) {
+      outputStream.write("-ERR PSYNC is not supported on a replica\r\n".getBytes());
+      return;
+    }
+    if (!client.hasSocket()) {
+      outputStream.write("-ERR PSYNC needs a client connection\r\n".getBytes());
+      return;
+    }
+    long offset;
+    try {
+      // PSYNC offsets are 1-based; the link works with the count of bytes the replica has
+      offset = args.parseLong(2) - 1;
+    } catch (NumberFormatException e) {
+      offset = -1;
+    }
+    String requestedReplid = args.string(1);
+    long requestedOffset = offset;
+    client.handOff(socket -> replication.attachReplica(socket, client, requestedReplid, requestedOffset,
+        persistence));
+  }
+
+  /**
+   * WAIT numreplicas timeout
+   * Blocks until that many replicas acknowledged the client's writes so far,
+   * or the timeout (in milliseconds, 0 for none) passes.
+   */
+  private void waitCommand(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (replication.isReplica()) {
+      outputStream.write("-ERR WAIT cannot be used with replica instances.\r\n".getBytes());
+      return;
+    }
+    long numReplicas;
+    long timeout;
+    try {
+      numReplicas = args.parseLong(1);
+      timeout = args.parseLong(2);
+    } catch (NumberFormatException e) {
+      outputStream.write(Replies.NOT_INTEGER_ERROR);
+      return;
+    }
+    if (timeout < 0) {
+      outputStream.write("-ERR timeout is negative\r\n".getBytes());
+      return;
+    }
+    replication.waitForReplicas(client, (int) Math.min(numReplicas, Integer.MAX_VALUE), timeout, outputStream);
+  }
+
+  /**
+   * CLUSTER subcommand [arguments]
+   */
+  private void cluster(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (cluster == null) {
+      outputStream.write(CLUSTER_DISABLED_ERROR);
+      return;
+    }
+    cluster.command(client, args, outputStream);
+  }
+
+  /**
+   * ASKING
+   * Lets the next command use a slot this node is importing.
+   */
+  private void asking(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (cluster == null) {
+      outputStream.write(CLUSTER_DISABLED_ERROR);
+      return;
+    }
+    client.asking = true;
+    outputStream.write(Replies.OK);
+  }
+
+  /**
+   * MULTI
+   * Starts queuing the client's commands for EXEC.
+   */
+  private void multi(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (client.transaction != null) {
+      outputStream.write("-ERR MULTI calls can not be nested\r\n".getBytes());
+      return;
+    }
+    client.transaction = new Transaction(false);
+    outputStream.write(Replies.OK);
+  }
+
+  /**
+   * EXEC
+   * Runs the queued commands as one unit, or none of them if a watched key
+   * was written since WATCH (a null reply) or a command was refused while
+   * queuing. The shards of every queued and watched key are locked once, in
+   * ascending order, for the whole run, and no others, so commands on other
+   * shards carry on meanwhile; the commands then only re-enter locks already
+   * held. They are taken exclusively unless the transaction is one command
+   * that needs no more and nothing is watched: a shared lock lets ATOMIC
+   * writes through (see {@link #locksExclusively}), which could otherwise
+   * land between two queued commands or after the watch check. The watched
+   * versions are checked under those locks, so no write can slip in between
+   * the check and the commands. The AOF and the replicas
+   * get the writes wrapped in MULTI/EXEC, to apply them as one unit too.
+   */
+  private void exec(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    Transaction transaction = client.transaction;
+    if (transaction == null) {
+      outputStream.write("-ERR EXEC without MULTI\r\n".getBytes());
+      return;
+    }
+    if (transaction.failed) {
+      endTransaction(client);
+      outputStream.write(EXECABORT_ERROR);
+      return;
+    }
+    List<CommandArgs> queued = transaction.queued;
+    Command[] commands = new Command[queued.size()];
+    boolean write = false;
+    // At least as strong as what each command takes
+    boolean exclusive = commands.length > 1 || client.watched != null;
+    for (int i = 0; i < commands.length; i++) {
+      commands[i] = commandTable.lookup(queued.get(i));
+      write |= commands[i].has(Command.WRITE);
+      exclusive |= locksExclusively(commands[i], queued.get(i));
+    }
+    int[] shardIndexes = transactionShards(client, commands, queued);
+    keyspace.lock(shardIndexes, exclusive);
+    try {
+      if (client.watched != null) {
+        for (Map.Entry<ByteKey, Long> watched : client.watched.entrySet()) {
+          if (keyspace.version(watched.getKey()) != watched.getValue()) {
+            outputStream.write(Replies.NULL_ARRAY);
+            return;
+          }
+        }
+      }
+      if (write) {
+        propagate(client, MULTI);
+      }
+      writeArrayHeader(outputStream, commands.length);
+      for (int i = 0; i < commands.length; i++) {
+        long start = System.nanoTime();
+        run(commands[i], client, queued.get(i), outputStream, !transaction.replayed);
+        commands[i].record(System.nanoTime() - start);
+      }
+      if (write) {
+        propagate(client, EXEC);
+      }
+    } finally {
+      keyspace.unlock(shardIndexes, exclusive);
+      endTransaction(client);
+    }
+  }
+
+  /**
+   * Finds the shards a transaction locks: those of the queued commands' keys
+   * and of the watched keys.
+   * @return Distinct shard indexes in ascending order, or null (every shard)
+   * if a queued command needs them all.
+   */
+  private int[] transactionShards(Client client, Command[] commands, List<CommandArgs> queued) {
+    BitSet shards = new BitSet(keyspace.shardCount());
+    for (int i = 0; i < commands.length; i++) {
+      Command command = commands[i];
+      if (command.has(Command.LOCKFREE)
+          || (!command.has(Command.WRITE) && !command.has(Command.READONLY))) {
+        continue; // Runs without locks anyway
+      }
+      int[] commandShards = command.has(Command.MOVABLEKEYS) ? null : shardsOf(command, queued.get(i));
+      if (commandShards == null) {
+        return null;
+      }
+      for (int shard : commandShards) {
+        shards.set(shard);
+      }
+    }
+    if (client.watched != null) {
+      for (ByteKey key : client.watched.keySet()) {
+        shards.set(keyspace.shardOf(key));
+      }
+    }
+    return shards.stream().toArray();
+  }
+
+  /**
+   * DISCARD
+   */
+  private void discard(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (client.transaction == null) {
+      outputStream.write("-ERR DISCARD without MULTI\r\n".getBytes());
+      return;
+    }
+    endTransaction(client);
+    outputStream.write(Replies.OK);
+  }
+
+  /**
+   * WATCH key [key ...]
+   * Records each key's version (see {@link Keyspace#watch}); EXEC goes ahead
+   * only if none has changed. Needs no lock: a write that lands after the
+   * key is registered changes its version, and one before is already visible.
+   */
+  private void watch(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (client.transaction != null) {
+      outputStream.write("-ERR WATCH inside MULTI is not allowed\r\n".getBytes());
+      return;
+    }
+    if (client.watched == null) {
+      client.watched = new HashMap<>();
+    }
+    for (int i = 1; i < args.count(); i++) {
+      ByteKey key = args.key(i);
+      if (!client.watched.containsKey(key)) {
+        client.watched.put(key, keyspace.watch(key));
+      }
+    }
+    outputStream.write(Replies.OK);
+  }
+
+  /**
+   * UNWATCH
+   */
+  private void unwatch(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    unwatchAll(client);
+    outputStream.write(Replies.OK);
+  }
+
+  /**
+   * SUBSCRIBE channel [channel ...] | PSUBSCRIBE pattern [pattern ...]
+   * Confirms each subscription with the client's subscription count. From
+   * then on the connection carries messages and only accepts Pub/Sub
+   * commands and PING, and it is held to the pubsub output buffer limits.
+   */
+  private void subscribe(Client client, CommandArgs args, OutputStream outputStream, boolean pattern)
+      throws IOException {
+    for (int i = 1; i < args.count(); i++) {
+      ByteKey channel = args.key(i);
+      if (pattern) {
+        pubSub.psubscribe(client, channel);
+      } else {
+        pubSub.subscribe(client, channel);
+      }
+      writeSubscription(client, outputStream, pattern ? PSUBSCRIBE : SUBSCRIBE, channel.bytes);
+    }
+    useClientLimits(client, outputStream);
+  }
+
+  /**
+   * UNSUBSCRIBE [channel ...] | PUNSUBSCRIBE [pattern ...]
+   * Without arguments, drops every channel (or pattern) subscription.
+   */
+  private void unsubscribe(Client client, CommandArgs args, OutputStream outputStream, boolean pattern)
+      throws IOException {
+    byte[] kind = pattern ? PUNSUBSCRIBE : UNSUBSCRIBE;
+    List<ByteKey> channels = new ArrayList<>();
+    if (args.count() > 1) {
+      for (int i = 1; i < args.count(); i++) {
+        channels.add(args.key(i));
+      }
+    } else {
+      Set<ByteKey> subscribed = pattern ? client.patterns : client.channels;
+      if (subscribed == null || subscribed.isEmpty()) {
+        writeSubscription(client, outputStream, kind, null);
+        return;
+      }
+      channels.addAll(subscribed);
+    }
+    for (ByteKey channel : channels) {
+      if (pattern) {
+        pubSub.punsubscribe(client, channel);
+      } else {
+        pubSub.unsubscribe(client, channel);
+      }
+      writeSubscription(client, outputStream, kind, channel.bytes);
+    }
+    useClientLimits(client, outputStream);
+  }
+
+  /**
+   * Confirms a (un)subscription with the client's subscription count, as a
+   * push for a RESP3 client like the messages that follow.
+   */
+  private static void writeSubscription(Client client, OutputStream outputStream, byte[] kind, byte[] channel)
+      throws IOException {
+    writeAggregateHeader(outputStream, client.protocol == 3, 3);
+    writeBulk(outputStream, kind);
+    writeBulk(outputStream, channel);
+    writeInteger(outputStream, client.subscriptions());
+  }
+
+  /**
+   * Holds a client's output to the limits of its class: pubsub while it has
+   * subscriptions, normal otherwise.
+   */
+  private static void useClientLimits(Client client, OutputStream outputStream) {
+    if (outputStream instanceof ReplyStream replies) {
+      replies.usePubSubLimits(client.subscriptions() > 0);
+    }
+  }
+
+  /**
+   * PUBLISH channel message
+   * Replies with the number of clients that received the message. Sent on to
+   * the replicas, which deliver it to their own subscribers, but not logged.
+   */
+  private void publish(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    int receivers = pubSub.publish(args.key(1), args.bytes(2));
+    replication.propagate(client, args);
+    writeInteger(outputStream, receivers);
+  }
+
+  /**
+   * PUBSUB CHANNELS [pattern] | PUBSUB NUMSUB [channel ...] | PUBSUB NUMPAT
+   */
+  private void pubsub(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (args.is(1, "CHANNELS") && args.count() <= 3) {
+      List<byte[]> channels = pubSub.channels(args.count() == 3 ? args.bytes(2) : null);
+      writeArrayHeader(outputStream, channels.size());
+      for (byte[] channel : channels) {
+        writeBulk(outputStream, channel);
+      }
+    } else if (args.is(1, "NUMSUB")) {
+      writeArrayHeader(outputStream, 2L * (args.count() - 2));
+      for (int i = 2; i < args.count(); i++) {
+        ByteKey channel = args.key(i);
+        writeBulk(outputStream, channel.bytes);
+        writeInteger(outputStream, pubSub.subscriberCount(channel));
+      }
+    } else if (args.is(1, "NUMPAT") && args.count() == 2) {
+      writeInteger(outputStream, pubSub.patternCount());
+    } else {
+      outputStream.write(("-ERR unknown subcommand '" + args.string(1) + "'\r\n").getBytes());
+    }
+  }
+
+  /**
+   * HELLO [protover [AUTH username password] [SETNAME clientname]]
+   * Switches the connection to RESP2 or RESP3 and describes the server. With
+   * RESP3, Pub/Sub messages and invalidations arrive as push frames, so a
+   * subscribed or tracking connection can still run commands; replies keep
+   * their RESP2 types, which RESP3 includes. There are no users or
+   * passwords, so AUTH is accepted as it is with Redis's default user, and
+   * the name is not kept.
+   */
+  private void hello(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    int protocol = client.protocol;
+    if (args.count() > 1) {
+      long requested;
+      try {
+        requested = args.parseLong(1);
+      } catch (NumberFormatException e) {
+        outputStream.write("-ERR Protocol version is not an integer or out of range\r\n".getBytes());
+        return;
+      }
+      if (requested != 2 && requested != 3) {
+        outputStream.write("-NOPROTO unsupported protocol version\r\n".getBytes());
+        return;
+      }
+      for (int i = 2; i < args.count(); i++) {
+        if (args.is(i, "AUTH") && i + 2 < args.count()) {
+          i += 2;
+        } else if (args.is(i, "SETNAME") && i + 1 < args.count()) {
+          i++;
+        } else {
+          outputStream.write(("-ERR Syntax error in HELLO option '" + args.string(i) + "'\r\n").getBytes());
+          return;
+        }
+      }
+      protocol = (int) requested;
+    }
+    client.protocol = protocol;
+
+    // A map in RESP3, a flat array of the same pairs in RESP2
+    if (protocol == 3) {
+      outputStream.write("%7\r\n".getBytes());
+    } else {
+      writeArrayHeader(outputStream, 14);
+    }
+    writeBulk(outputStream, "server".getBytes());
+    writeBulk(outputStream, "redis".getBytes());
+    writeBulk(outputStream, "version".getBytes());
+    writeBulk(outputStream, SERVER_VERSION.getBytes());
+    writeBulk(outputStream, "proto".getBytes());
+    writeInteger(outputStream, protocol);
+    writeBulk(outputStream, "id".getBytes());
+    writeInteger(outputStream, client.id);
+    writeBulk(outputStream, "mode".getBytes());
+    writeBulk(outputStream, (cluster != null ? "cluster" : "standalone").getBytes());
+    writeBulk(outputStream, "role".getBytes());
+    writeBulk(outputStream, (replication.isReplica() ? "replica" : "master").getBytes());
+    writeBulk(outputStream, "modules".getBytes());
+    writeArrayHeader(outputStream, 0);
+  }
+
+  /**
+   * CLIENT ID | CLIENT GETREDIR
+   * | CLIENT TRACKING ON|OFF [REDIRECT id] [BCAST] [PREFIX prefix ...]
+   */
+  private void clientCommand(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    if (args.is(1, "ID") && args.count() == 2) {
+      writeInteger(outputStream, client.id);
+    } else if (args.is(1, "GETREDIR") && args.count() == 2) {
+      Tracking.Tracker tracker = client.tracker;
+      writeInteger(outputStream, tracker == null ? -1 : tracker.redirect);
+    } else if (args.is(1, "TRACKING") && args.count() >= 3) {
+      clientTracking(client, args, outputStream);
+    } else {
+      outputStream.write(("-ERR unknown subcommand '" + args.string(1) + "'\r\n").getBytes());
+    }
+  }
+
+  /**
+   * CLIENT TRACKING ON|OFF [REDIRECT id] [BCAST] [PREFIX prefix ...]
+   * Turns invalidation messages on or off for the keys the client reads, or
+   * with BCAST for every key under the prefixes (all keys without PREFIX).
+   * REDIRECT sends them to another connection instead, which a RESP2 client
+   * needs: it gets them as messages on __redis__:invalidate. OPTIN, OPTOUT
+   * and NOLOOP are not supported.
+   */
+  private void clientTracking(Client client, CommandArgs args, OutputStream outputStream) throws IOException {
+    boolean on;
+    if (args.is(2, "ON")) {
+      on = true;
+    } else if (args.is(2, "OFF")) {
+      on = false;
+    } else {
+      outputStream.write(Replies.SYNTAX_ERROR);
+      return;
+    }
+    long redirect = 0;
+    boolean broadcast = false;
+    List<ByteKey> prefixes = new ArrayList<>();
+    for (int i = 3; i < args.count(); i++) {
+      if (args.is(i, "REDIRECT") && i + 1 < args.count()) {
+        try {
+          redirect = args.parseLong(++i);
+        } catch (NumberFormatException e) {
+          outputStream.write(Replies.NOT_INTEGER_ERROR);
+          return;
+        }
+        if (redirect == client.id) {
+          outputStream.write("-ERR It is not possible to redirect invalidation messages to the same client\r\n"
+              .getBytes());
+          return;
+        }
+        if (!clients.containsKey(redirect)) {
+          outputStream.write("-ERR The client ID you want redirect to does not exist\r\n".getBytes());
+          return;
+        }
+      } else if (args.is(i, "BCAST")) {
+        broadcast = true;
+      } else if (args.is(i, "PREFIX") && i + 1 < args.count()) {
+        prefixes.add(args.key(++i));
+      } else {
+        outputStream.write(Replies.SYNTAX_ERROR);
+        return;
+      }
+    }
+    if (!on) {
+      tracking.disable(client);
+      outputStream.write(Replies.OK);
+      return;
+    }
+    Tracking.Tracker tracker = client.tracker;
+    if (tracker != null && tracker.broadcast != broadcast) {
+      outputStream.write(("-ERR You can't switch BCAST mode on/off before disabling tracking for this client,"
+          + " and then re-enabling it with a different mode.\r\n").getBytes());
+      return;
+    }
+    if (!broadcast && !prefixes.isEmpty()) {
+      outputStream.write("-ERR PREFIX option requires BCAST mode to be enabled\r\n".getBytes());
+      return;
+    }
+    // Like Redis, a client's prefixes must not overlap, so a key matches at
+    // most one and is sent once
+    List<ByteKey> existing = tracker == null ? List.of() : tracker.prefixes;
+    for (int i = 0; i < prefixes.size(); i++) {
+      byte[] prefix = prefixes.get(i).bytes;
+      for (ByteKey other : existing) {
+        if (overlaps(prefix, other.bytes)) {
+          outputStream.write(("-ERR Prefix '" + new String(prefix, StandardCharsets.UTF_8)
+              + "' overlaps with an existing prefix '" + new String(other.bytes, StandardCharsets.UTF_8)
+              + "'. Prefixes for a single client must not overlap.\r\n").getBytes());
+          return;
+        }
+      }
+      for (int j = i + 1; j < prefixes.size(); j++) {
+        if (overlaps(prefix, prefixes.get(j).bytes)) {
+          outputStream.write(("-ERR Prefix '" + new String(prefix, StandardCharsets.UTF_8)
+              + "' overlaps with another provided prefix '"
+              + new String(prefixes.get(j).bytes, StandardCharsets.UTF_8)
+              + "'. Prefixes for a single client must not overlap.\r\n").getBytes());
+          return;
+        }
+      }
+    }
+    tracking.enable(client, broadcast, redirect, prefixes);
+    outputStream.write(Replies.OK);
+  }
+
+  /**
+   * @return true if one prefix starts with the other.
+   */
+  private static boolean overlaps(byte[] a, byte[] b) {
+    return Arrays.equals(a, 0, Math.min(a.length, b.length), b, 0, Math.min(a.length, b.length));
+  }
+
+  /**
+   * Closes the client's transaction, if any; like Redis, EXEC and DISCARD
+   * also drop its watches.
+   */
+  private void endTransaction(Client client) {
+    client.transaction = null;
+    unwatchAll(client);
+  }
+
+  private void unwatchAll(Client client) {
+    if (client.watched != null) {
+      for (ByteKey key : client.watched.keySet()) {
+        keyspace.unwatch(key);
+      }
+      client.watched = null;
+    }
+  }
+
+  /**
+   * LPOP/RPOP key [count]
+   */
+  private void pop(Client client, CommandArgs args, OutputStream outputStream, boolean fromHead)
+      throws IOException {
+    if (args.count() > 3) {
+      String name = fromHead ? "lpop" : "rpop";
+      outputStream.write(("-ERR wrong number of arguments for '" + name + "' command\r\n").getBytes());
+      return;
+    }
+
+    long count = -1; // No count given: reply with a single bulk string
+    if (args.count() == 3) {
+      try {
+        count = args.parseLong(2);
+      } catch (NumberFormatException e) {
+        count = -2;
+      }
+      if (count < 0) {
+        outputStream.write("-ERR value is out of range, must be positive\r\n".getBytes());
+        return;
+      }
+    }
+
+    ByteKey key = args.key(1);
+    RedisData entry = keyspace.getForWrite(key);
+    if (entry == null) {
+      outputStream.write(count == -1 ? Replies.NULL_BULK : Replies.NULL_ARRAY);
+      return;
+    }
+    if (!(entry instanceof RedisList)) {
+      outputStream.write(Replies.WRONGTYPE_ERROR);
+      return;
+    }
+
+    RedisList list = (RedisList) entry;
+    if (count == -1) {
+      writeBulk(outputStream, fromHead ? list.lpop() : list.rpop());
+    } else {
+      int popped = (int) Math.min(count, list.size());
+      writeArrayHeader(outputStream, popped);
+      for (int i = 0; i < popped; i++) {
+        writeBulk(outputStream, fromHead ? list.lpop() : list.rpop());
+      }
+    }
+    listChanged(key, list);
+    propagate(client, args);
+  }
+
+  /**
+   * BLPOP/BRPOP key [key ...] timeout
+   * Pops from the first non-empty list, or blocks the client until a push
+   * to one of the keys or the timeout.
+   */
+  private void blockingPop(Client client, CommandArgs args, OutputStream outputStream, boolean fromHead)
+      throws IOException {
+    double timeoutSeconds;
+    try {
+      timeoutSeconds = Double.parseDouble(args.string(args.count() - 1));
+    } catch (NumberFormatException e) {
+      outputStream.write("-ERR timeout is not a float or out of range\r\n".getBytes());
+      return;
+    }
+    if (timeoutSeconds < 0 || Double.isNaN(timeoutSeconds)) {
+      outputStream.write("-ERR timeout is negative\r\n".getBytes());
+      return;
+    }
+
+    ByteKey[] keys = new ByteKey[args.count() - 2];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = args.key(i + 1);
+    }
+
+    // Check and block under the registry's monitor so no push slips in between
+    synchronized (blockingRegistry) {
+      for (ByteKey key : keys) {
+        RedisData entry = keyspace.getForWrite(key);
+        if (entry == null) {
+          continue;
+        }
+        if (!(entry instanceof RedisList)) {
+          outputStream.write(Replies.WRONGTYPE_ERROR);
+          return;
+        }
+        RedisList list = (RedisList) entry;
+        byte[] element = fromHead ? list.lpop() : list.rpop();
+        listChanged(key, list);
+        propagate(client, fromHead ? LPOP : RPOP, key.bytes);
+        outputStream.write(keyElementReply(key, element));
+        return;
+      }
+      if (client.transaction != null) {
+        outputStream.write(Replies.NULL_ARRAY); // Inside EXEC it times out at once, as in Redis
+        return;
+      }
+      blockingRegistry.block(client, keys, fromHead, (long) Math.ceil(timeoutSeconds * 1000));
+    }
+  }
+
+  /**
+   * Pops an element for a blocked client from a list that just received data.
+   * @return The client's reply, or null if the list has nothing left.
+   */
+  private byte[] serveBlockedPop(BlockingRegistry.Waiter waiter, ByteKey key) {
+    RedisData entry = keyspace.getForWrite(key);
+    if (!(entry instanceof RedisList)) {
+      return null;
+    }
+    RedisList list = (RedisList) entry;
+    byte[] element = waiter.fromLeft ? list.lpop() : list.rpop();
+    if (element == null) {
+      return null;
+    }
+    listChanged(key, list);
+    // Logged after the push that fed it, and on the blocked client's offset so
+    // its reply waits for the pop to be durable
+    propagate(waiter.client, waiter.fromLeft ? LPOP : RPOP, key.bytes);
+    return keyElementReply(key, element);
+  }
+
+  /**
+   * Called when a client connection is accepted, before its first command.
+   */
+  public void connected(Client client) {
+    clients.put(client.id, client);
+  }
+
+  /**
+   * Called when a client connection goes away.
+   */
+  public void disconnected(Client client) {
+    blockingRegistry.cancel(client);
+    replication.cancel(client);
+    endTransaction(client);
+    pubSub.unsubscribeAll(client);
+    tracking.disable(client);
+    clients.remove(client.id);
+  }
+
+  /**
+   * Re-accounts a list after elements were removed, deleting it once empty
+   * (Redis never keeps empty lists around).
+   */
+  private void listChanged(ByteKey key, RedisList list) {
+    collectionChanged(key, list, list, list.size());
+  }
+
+  /**
+   * Stores a collection after a change: a new one is put under the key
+   * unless it stayed empty, one changed in place is re-accounted, and one
+   * left empty is deleted.
+   * @param existing What the key held before the change, or null if the
+   * collection was created for it.
+   * @param size The collection's size after the change.
+   */
+  private void collectionChanged(ByteKey key, RedisData existing, RedisData collection, int size) {
+    if (existing == null) {
+      if (size > 0) {
+        keyspace.put(key, collection);
+      }
+    } else if (size == 0) {
+      keyspace.remove(key, collection);
+    } else {
+      keyspace.updateSize(key, collection);
+    }
+  }
+
+  private static byte[] keyElementReply(ByteKey key, byte[] element) {
+    ByteArrayOutputStream reply = new ByteArrayOutputStream(element.length + key.bytes.length + 32);
+    try {
+      writeArrayHeader(reply, 2);
+      writeBulk(reply, key.bytes);
+      writeBulk(reply, element);
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // Not thrown by ByteArrayOutputStream
+    }
+    return reply.toByteArray();
+  }
+
+  // The RESP writers below encode in place when writing to a client's
+  // ReplyStream, and through strings for any other stream
+
+  /**
+   * Writes a bulk string, or the null bulk string for null.
+   */
+  static void writeBulk(OutputStream outputStream, byte[] value) throws IOException {
+    if (value == null) {
+      if (outputStream instanceof ReplyStream replies) {
+        replies.writeNullBulk();
+      } else {
+        outputStream.write(Replies.NULL_BULK);
+      }
+      return;
+    }
+    writeBulk(outputStream, value, 0, value.length);
+  }
+
+  /**
+   * Writes a number as a bulk string reply, e.g. an int-encoded string value.
+   */
+  static void writeBulk(OutputStream outputStream, long value) throws IOException {
+    if (outputStream instanceof ReplyStream replies) {
+      replies.writeBulk(value);
+    } else {
+      writeBulk(outputStream, Long.toString(value).getBytes());
+    }
+  }
+
+  static void writeBulk(OutputStream outputStream, byte[] value, int offset, int length) throws IOException {
+    if (outputStream instanceof ReplyStream replies) {
+      replies.writeBulk(value, offset, length);
+      return;
+    }
+    writeBulkHeader(outputStream, length);
+    outputStream.write(value, offset, length);
+    outputStream.write(Replies.CRLF);
+  }
+
+  static void writeBulkHeader(OutputStream outputStream, int length) throws IOException {
+    if (outputStream instanceof ReplyStream replies) {
+      replies.writeHeader('$', length);
+    } else if (!Replies.writeHeader(outputStream, '$', length)) {
+      outputStream.write(("$" + length + "\r\n").getBytes());
+    }
+  }
+
+  static void writeArrayHeader(OutputStream outputStream, long count) throws IOException {
+    if (outputStream instanceof ReplyStream replies) {
+      replies.writeArrayHeader(count);
+    } else if (!Replies.writeHeader(outputStream, '*', count)) {
+      outputStream.write(("*" + count + "\r\n").getBytes());
+    }
+  }
+
+  /**
+   * Writes the header of an array, or with push set, of a RESP3 push (>):
+   * a message sent outside the request/reply flow, such as a published
+   * message or an invalidation.
+   */
+  static void writeAggregateHeader(OutputStream outputStream, boolean push, long count) throws IOException {
+    if (push) {
+      outputStream.write((">" + count + "\r\n").getBytes()); // Not in the header cache
+    } else {
+      writeArrayHeader(outputStream, count);
+    }
+  }
+
+  static void writeInteger(OutputStream outputStream, long value) throws IOException {
+    if (outputStream instanceof ReplyStream replies) {
+      replies.writeInteger(value);
+    } else if (!Replies.writeHeader(outputStream, ':', value)) {
+      outputStream.write((":" + value + "\r\n").getBytes());
+    }
+  }
+}
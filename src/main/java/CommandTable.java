@@ -0,0 +1,111 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps command names to {@link Command}s.
+ *
+ * Lookups hash the name straight from the receive buffer, folding ASCII case
+ * as they go, so dispatch allocates nothing (no String, no toUpperCase). The
+ * table is open addressed and kept at most a quarter full, so a lookup is one
+ * hash plus, almost always, a single probe and compare however many commands
+ * are registered.
+ */
+class CommandTable {
+  private Command[] slots = new Command[64]; // Power of two
+  private byte[][] names = new byte[64][];   // Lower-case name per slot
+  private final List<Command> commands = new ArrayList<>();
+
+  /**
+   * Registers a command. Not thread-safe; all commands are registered at startup.
+   */
+  void register(Command command) {
+    if ((commands.size() + 1) * 4 > slots.length) {
+      resize(slots.length * 2);
+    }
+    insert(command);
+    commands.add(command);
+  }
+
+  /**
+   * Finds the command named by the first argument, ignoring case.
+   * @return The command, or null if there is no such command.
+   */
+  Command lookup(CommandArgs args) {
+    int length = args.length(0);
+    int hash = 0x811c9dc5;
+    for (int i = 0; i < length; i++) {
+      hash = (hash ^ lower(args.byteAt(0, i))) * 0x01000193;
+    }
+
+    int mask = slots.length - 1;
+    for (int slot = spread(hash) & mask; slots[slot] != null; slot = (slot + 1) & mask) {
+      byte[] name = names[slot];
+      if (name.length == length && matches(name, args)) {
+        return slots[slot];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Finds a command by name, ignoring case (for COMMAND INFO and the like).
+   */
+  Command lookup(String name) {
+    for (Command command : commands) {
+      if (command.name.equalsIgnoreCase(name)) {
+        return command;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return Every command, in registration order.
+   */
+  List<Command> commands() {
+    return commands;
+  }
+
+  private void insert(Command command) {
+    byte[] name = command.name.toLowerCase().getBytes();
+    int hash = 0x811c9dc5;
+    for (byte b : name) {
+      hash = (hash ^ b) * 0x01000193;
+    }
+    int mask = slots.length - 1;
+    int slot = spread(hash) & mask;
+    while (slots[slot] != null) {
+      slot = (slot + 1) & mask;
+    }
+    slots[slot] = command;
+    names[slot] = name;
+  }
+
+  private void resize(int capacity) {
+    Command[] old = slots;
+    slots = new Command[capacity];
+    names = new byte[capacity][];
+    for (Command command : old) {
+      if (command != null) {
+        insert(command);
+      }
+    }
+  }
+
+  private static boolean matches(byte[] name, CommandArgs args) {
+    for (int i = 0; i < name.length; i++) {
+      if (lower(args.byteAt(0, i)) != name[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int lower(byte b) {
+    return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+}
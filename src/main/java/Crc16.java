@@ -0,0 +1,34 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The CRC-16 variant Redis Cluster hashes keys with (XMODEM: polynomial
+ * 0x1021, zero initial value, not reflected). Table driven, a byte per step.
+ */
+final class Crc16 {
+  private static final int POLY = 0x1021;
+  private static final int[] TABLE = new int[256];
+
+  static {
+    for (int n = 0; n < 256; n++) {
+      int crc = n << 8;
+      for (int k = 0; k < 8; k++) {
+        crc = (crc & 0x8000) != 0 ? (crc << 1) ^ POLY : crc << 1;
+      }
+      TABLE[n] = crc & 0xffff;
+    }
+  }
+
+  private Crc16() {
+  }
+
+  /**
+   * @return The checksum of data[start, start + length), read with absolute gets.
+   */
+  static int crc16(ByteBuffer data, int start, int length) {
+    int crc = 0;
+    for (int i = start; i < start + length; i++) {
+      crc = ((crc << 8) ^ TABLE[((crc >>> 8) ^ data.get(i)) & 0xff]) & 0xffff;
+    }
+    return crc;
+  }
+}
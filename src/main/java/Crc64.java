@@ -0,0 +1,86 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The CRC-64 variant Redis uses for RDB checksums (Jones polynomial,
+ * reflected, zero initial value). Table driven, eight bytes per step.
+ */
+final class Crc64 {
+  private static final long POLY = 0x95ac9329ac4bc9b5L; // 0xad93d23594c935a9 reflected
+  private static final long[][] TABLES = new long[8][256];
+
+  static {
+    for (int n = 0; n < 256; n++) {
+      long crc = n;
+      for (int k = 0; k < 8; k++) {
+        crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+      }
+      TABLES[0][n] = crc;
+    }
+    for (int n = 0; n < 256; n++) {
+      long crc = TABLES[0][n];
+      for (int k = 1; k < 8; k++) {
+        crc = TABLES[0][(int) (crc & 0xff)] ^ (crc >>> 8);
+        TABLES[k][n] = crc;
+      }
+    }
+  }
+
+  private Crc64() {
+  }
+
+  /**
+   * Continues a checksum over data[offset, offset + length).
+   * @param crc The checksum so far, 0 to start.
+   */
+  static long update(long crc, byte[] data, int offset, int length) {
+    int i = offset;
+    int end = offset + length;
+    // Slicing-by-8: fold in a whole little-endian word per iteration
+    for (; end - i >= 8; i += 8) {
+      crc ^= (data[i] & 0xffL)
+          | (data[i + 1] & 0xffL) << 8
+          | (data[i + 2] & 0xffL) << 16
+          | (data[i + 3] & 0xffL) << 24
+          | (data[i + 4] & 0xffL) << 32
+          | (data[i + 5] & 0xffL) << 40
+          | (data[i + 6] & 0xffL) << 48
+          | (data[i + 7] & 0xffL) << 56;
+      crc = TABLES[7][(int) (crc & 0xff)]
+          ^ TABLES[6][(int) ((crc >>> 8) & 0xff)]
+          ^ TABLES[5][(int) ((crc >>> 16) & 0xff)]
+          ^ TABLES[4][(int) ((crc >>> 24) & 0xff)]
+          ^ TABLES[3][(int) ((crc >>> 32) & 0xff)]
+          ^ TABLES[2][(int) ((crc >>> 40) & 0xff)]
+          ^ TABLES[1][(int) ((crc >>> 48) & 0xff)]
+          ^ TABLES[0][(int) (crc >>> 56)];
+    }
+    for (; i < end; i++) {
+      crc = TABLES[0][(int) ((crc ^ data[i]) & 0xff)] ^ (crc >>> 8);
+    }
+    return crc;
+  }
+
+  /**
+   * Continues a checksum over the buffer's remaining bytes (e.g. a mapped
+   * file), leaving its position at the limit.
+   */
+  static long update(long crc, ByteBuffer data) {
+    ByteBuffer in = data.order(ByteOrder.LITTLE_ENDIAN);
+    while (in.remaining() >= 8) {
+      crc ^= in.getLong();
+      crc = TABLES[7][(int) (crc & 0xff)]
+          ^ TABLES[6][(int) ((crc >>> 8) & 0xff)]
+          ^ TABLES[5][(int) ((crc >>> 16) & 0xff)]
+          ^ TABLES[4][(int) ((crc >>> 24) & 0xff)]
+          ^ TABLES[3][(int) ((crc >>> 32) & 0xff)]
+          ^ TABLES[2][(int) ((crc >>> 40) & 0xff)]
+          ^ TABLES[1][(int) ((crc >>> 48) & 0xff)]
+          ^ TABLES[0][(int) (crc >>> 56)];
+    }
+    while (in.hasRemaining()) {
+      crc = TABLES[0][(int) ((crc ^ in.get()) & 0xff)] ^ (crc >>> 8);
+    }
+    return crc;
+  }
+}
@@ -0,0 +1,299 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A hash table from byte strings to byte strings, the hashtable encoding of
+ * large hashes and sets (a set maps each member to {@link #PRESENT}).
+ *
+ * Chained, with a power-of-two table that doubles when it holds as many
+ * entries as buckets and shrinks when it is under 1/8 full, as Redis's dict.
+ * An entry is one 32-byte object holding the key array and its hash
+ * directly, where a HashMap node and a ByteKey take 56 bytes together.
+ *
+ * A resize is incremental, as Redis's dictRehashStep: the new table is
+ * allocated, then each put or remove moves one more bucket into it, skipping
+ * at most {@link #REHASH_EMPTY_VISITS} empty ones, until the old table is
+ * empty. No write under the shard lock pays for rehashing a whole large
+ * hash. Reads never move buckets, as they run under a shared lock; they
+ * look in the table that holds the key's bucket.
+ *
+ * {@link #scan} walks the buckets in reverse-binary order, so a cursor stays
+ * valid however the table is resized between calls: every entry present for
+ * the whole iteration is returned at least once (see Redis's dictScan).
+ */
+final class Dict {
+  static final byte[] PRESENT = new byte[0];
+  // Entry object; the bucket array is counted as a whole
+  private static final long ENTRY_OVERHEAD = 32;
+  private static final int MIN_BUCKETS = 4;
+  // Empty buckets a rehash step may skip before giving up until the next write
+  private static final int REHASH_EMPTY_VISITS = 10;
+
+  private static final class Entry {
+    final byte[] key;
+    final int hash;
+    byte[] value;
+    Entry next;
+
+    Entry(byte[] key, int hash, byte[] value, Entry next) {
+      this.key = key;
+      this.hash = hash;
+      this.value = value;
+      this.next = next;
+    }
+  }
+
+  private Entry[] table = new Entry[MIN_BUCKETS];
+  // While resizing: the new table, and the first bucket of the old one not moved to it yet
+  private Entry[] rehashTable;
+  private int rehashIndex;
+  private int size;
+  private long entryBytes; // Running estimate of the entries and their arrays
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return The approximate heap used by the table and its entries.
+   */
+  long memoryUsage() {
+    long tables = RedisData.arraySize(4 * table.length);
+    if (rehashTable != null) {
+      tables += RedisData.arraySize(4 * rehashTable.length);
+    }
+    return 24 + tables + entryBytes;
+  }
+
+  /**
+   * @return The key's value, or null if the key is not in the table.
+   */
+  byte[] get(byte[] key) {
+    int hash = hash(key);
+    Entry[] buckets = tableOf(hash);
+    for (Entry e = buckets[hash & (buckets.length - 1)]; e != null; e = e.next) {
+      if (e.hash == hash && Arrays.equals(e.key, key)) {
+        return e.value;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Sets a key's value. The arrays are kept, not copied.
+   * @return The previous value, or null if the key is new.
+   */
+  byte[] put(byte[] key, byte[] value) {
+    if (rehashTable != null) {
+      rehashStep();
+    }
+    int hash = hash(key);
+    Entry[] buckets = tableOf(hash);
+    int bucket = hash & (buckets.length - 1);
+    for (Entry e = buckets[bucket]; e != null; e = e.next) {
+      if (e.hash == hash && Arrays.equals(e.key, key)) {
+        byte[] previous = e.value;
+        e.value = value;
+        entryBytes += valueSize(value) - valueSize(previous);
+        return previous;
+      }
+    }
+    buckets[bucket] = new Entry(key, hash, value, buckets[bucket]);
+    entryBytes += ENTRY_OVERHEAD + RedisData.arraySize(key.length) + valueSize(value);
+    if (++size > table.length && rehashTable == null) {
+      resize(table.length * 2);
+    }
+    return null;
+  }
+
+  /**
+   * @return The removed key's value, or null if the key was not in the table.
+   */
+  byte[] remove(byte[] key) {
+    if (rehashTable != null) {
+      rehashStep();
+    }
+    int hash = hash(key);
+    Entry[] buckets = tableOf(hash);
+    int bucket = hash & (buckets.length - 1);
+    Entry previous = null;
+    for (Entry e = buckets[bucket]; e != null; previous = e, e = e.next) {
+      if (e.hash == hash && Arrays.equals(e.key, key)) {
+        if (previous == null) {
+          buckets[bucket] = e.next;
+        } else {
+          previous.next = e.next;
+        }
+        entryBytes -= ENTRY_OVERHEAD + RedisData.arraySize(key.length) + valueSize(e.value);
+        if (--size < table.length / 8 && table.length > MIN_BUCKETS && rehashTable == null) {
+          resize(Math.max(MIN_BUCKETS, Integer.highestOneBit(size) * 2));
+        }
+        return e.value;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Visits every key, followed by its value unless the value is {@link #PRESENT}.
+   */
+  void forEach(QuickList.ElementVisitor visitor) throws IOException {
+    forEach(table, visitor);
+    if (rehashTable != null) {
+      forEach(rehashTable, visitor); // The moved buckets are empty in the old table
+    }
+  }
+
+  private static void forEach(Entry[] table, QuickList.ElementVisitor visitor) throws IOException {
+    for (Entry head : table) {
+      for (Entry e = head; e != null; e = e.next) {
+        visit(e, visitor);
+      }
+    }
+  }
+
+  /**
+   * Visits the entries of whole buckets, as {@link #forEach} does, until at
+   * least count were visited or 10 * count buckets were found empty.
+   * @param cursor 0 to start an iteration, then the value returned by the last call.
+   * @return The cursor for the next call, 0 once the iteration is complete.
+   */
+  long scan(long cursor, int count, QuickList.ElementVisitor visitor) throws IOException {
+    long budget = 10L * count;
+    int visited = 0;
+    do {
+      if (rehashTable == null) {
+        long mask = table.length - 1;
+        visited += visitBucket(table, cursor, visitor);
+        cursor = nextCursor(cursor, mask);
+      } else {
+        // Both tables are live: visit the cursor's bucket in the smaller one,
+        // then every bucket of the larger one it expands to, as dictScan does
+        Entry[] small = table.length <= rehashTable.length ? table : rehashTable;
+        Entry[] large = small == table ? rehashTable : table;
+        long smallMask = small.length - 1;
+        long largeMask = large.length - 1;
+        visited += visitBucket(small, cursor, visitor);
+        do {
+          visited += visitBucket(large, cursor, visitor);
+          cursor = nextCursor(cursor, largeMask);
+        } while ((cursor & (smallMask ^ largeMask)) != 0);
+      }
+    } while (cursor != 0 && visited < count && --budget > 0);
+    return cursor;
+  }
+
+  /**
+   * @return How many entries the bucket the cursor points at holds.
+   */
+  private static int visitBucket(Entry[] table, long cursor, QuickList.ElementVisitor visitor)
+      throws IOException {
+    int visited = 0;
+    for (Entry e = table[(int) (cursor & (table.length - 1))]; e != null; e = e.next) {
+      visit(e, visitor);
+      visited++;
+    }
+    return visited;
+  }
+
+  /**
+   * Advances a reverse-binary cursor: the bucket bits are incremented from
+   * the top, so the buckets a bucket splits into or merges with when the
+   * table is resized are all visited after it, and none before it again.
+   */
+  static long nextCursor(long cursor, long mask) {
+    cursor |= ~mask; // Set the bits above the mask, so the increment carries through them
+    cursor = Long.reverse(cursor);
+    cursor++;
+    return Long.reverse(cursor);
+  }
+
+  /**
+   * @return An independent copy; the key and value arrays are shared, as they
+   * are never changed in place.
+   */
+  Dict copy() {
+    Dict copy = new Dict();
+    // A resize in progress is finished in the copy
+    copy.table = new Entry[rehashTable != null ? rehashTable.length : table.length];
+    copyInto(table, copy.table);
+    if (rehashTable != null) {
+      copyInto(rehashTable, copy.table);
+    }
+    copy.size = size;
+    copy.entryBytes = entryBytes;
+    return copy;
+  }
+
+  private static void copyInto(Entry[] source, Entry[] target) {
+    for (Entry head : source) {
+      for (Entry e = head; e != null; e = e.next) {
+        int bucket = e.hash & (target.length - 1);
+        target[bucket] = new Entry(e.key, e.hash, e.value, target[bucket]);
+      }
+    }
+  }
+
+  /**
+   * @return The table holding the bucket of a hash: the old table's buckets
+   * below rehashIndex have been moved to the new one.
+   */
+  private Entry[] tableOf(int hash) {
+    return rehashTable != null && (hash & (table.length - 1)) < rehashIndex ? rehashTable : table;
+  }
+
+  /**
+   * Starts moving the entries to a table of the given size; see {@link #rehashStep}.
+   */
+  private void resize(int buckets) {
+    rehashTable = new Entry[buckets];
+    rehashIndex = 0;
+  }
+
+  /**
+   * Moves the next non-empty bucket of the old table to the new one, giving
+   * up after {@link #REHASH_EMPTY_VISITS} empty buckets, and swaps the
+   * tables once the old one is all moved.
+   */
+  private void rehashStep() {
+    int emptyVisits = REHASH_EMPTY_VISITS;
+    while (rehashIndex < table.length && table[rehashIndex] == null) {
+      rehashIndex++;
+      if (--emptyVisits == 0) {
+        break;
+      }
+    }
+    if (rehashIndex < table.length && table[rehashIndex] != null) {
+      int mask = rehashTable.length - 1;
+      for (Entry e = table[rehashIndex]; e != null; ) {
+        Entry next = e.next;
+        int bucket = e.hash & mask;
+        e.next = rehashTable[bucket];
+        rehashTable[bucket] = e;
+        e = next;
+      }
+      table[rehashIndex++] = null;
+    }
+    if (rehashIndex == table.length) {
+      table = rehashTable;
+      rehashTable = null;
+      rehashIndex = 0;
+    }
+  }
+
+  private static void visit(Entry e, QuickList.ElementVisitor visitor) throws IOException {
+    visitor.visit(e.key, 0, e.key.length);
+    if (e.value != PRESENT) {
+      visitor.visit(e.value, 0, e.value.length);
+    }
+  }
+
+  private static long valueSize(byte[] value) {
+    return value == PRESENT ? 0 : RedisData.arraySize(value.length);
+  }
+
+  private static int hash(byte[] key) {
+    int h = Arrays.hashCode(key);
+    return h ^ (h >>> 16); // Low bits pick the bucket; fold the high ones in
+  }
+}
@@ -0,0 +1,464 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking server: accepts connections and spreads them over a fixed
+ * set of event loops, so the thread count no longer grows with clients.
+ */
+class EventLoopServer {
+  private final ServerConfig config;
+  private final EventLoop[] loops;
+
+  public EventLoopServer(ServerConfig config, CommandProcessor commandProcessor) throws IOException {
+    this.config = config;
+    this.loops = new EventLoop[config.ioThreads];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop(config, commandProcessor);
+    }
+  }
+
+  /**
+   * Starts the event loops and accepts connections on the calling thread.
+   */
+  public void run() throws IOException {
+    for (int i = 0; i < loops.length; i++) {
+      Thread thread = new Thread(loops[i], "io-loop-" + i);
+      thread.start();
+    }
+
+    try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+      serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      serverChannel.bind(new InetSocketAddress(config.port), 1024);
+      System.out.println("Listening on port " + config.port + " with " + loops.length + " event loop(s)");
+
+      int next = 0;
+      while (true) {
+        SocketChannel channel = serverChannel.accept();
+        System.out.println("Client connected");
+
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        // Round-robin connections over the loops
+        loops[next].register(channel);
+        next = (next + 1) % loops.length;
+      }
+    }
+  }
+}
+
+/**
+ * One selector thread serving many connections.
+ */
+class EventLoop implements Runnable {
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private final Selector selector;
+  private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final ServerConfig config;
+  private final CommandProcessor commandProcessor;
+
+  // Shared by every connection of this loop; connections only keep their own
+  // buffers while they have a partial command or unsent replies.
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+  // Connections whose replies wait for the AOF fsync at the end of this round
+  private final List<NioConnection> awaitingFsync = new ArrayList<>();
+  // Connections that received published messages this round, sent at its end
+  private final List<NioConnection> pushed = new ArrayList<>();
+  private Thread thread;
+
+  public EventLoop(ServerConfig config, CommandProcessor commandProcessor) throws IOException {
+    this.selector = Selector.open();
+    this.config = config;
+    this.commandProcessor = commandProcessor;
+  }
+
+  /**
+   * Hands a newly accepted connection to this loop. Safe to call from any thread.
+   */
+  public void register(SocketChannel channel) {
+    pendingChannels.add(channel);
+    selector.wakeup();
+  }
+
+  /**
+   * Runs a task on this loop's thread. Safe to call from any thread.
+   */
+  public void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * @return true when called on this loop's thread.
+   */
+  boolean inLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  @Override
+  public void run() {
+    thread = Thread.currentThread();
+    while (true) {
+      try {
+        selector.select();
+        registerPendingChannels();
+        runTasks();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          handle(key);
+        }
+        sendPushed();
+        releaseDurableReplies();
+      } catch (IOException e) {
+        System.out.println("IOException in event loop: " + e.getMessage());
+      }
+    }
+  }
+
+  private void registerPendingChannels() {
+    SocketChannel channel;
+    while ((channel = pendingChannels.poll()) != null) {
+      try {
+        NioConnection connection = new NioConnection(this, channel, config);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        commandProcessor.connected(connection);
+      } catch (ClosedChannelException e) {
+        System.out.println("Client disconnected before registration");
+      }
+    }
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  private void handle(SelectionKey key) {
+    NioConnection connection = (NioConnection) key.attachment();
+    try {
+      if (key.isValid() && key.isReadable()) {
+        handleRead(key, connection);
+      }
+      if (key.isValid() && key.isWritable()) {
+        handleWrite(key, connection);
+      }
+    } catch (IOException e) {
+      System.out.println("Client disconnected or IOException: " + e.getMessage());
+      close(key, connection);
+    }
+  }
+
+  private void handleRead(SelectionKey key, NioConnection connection) throws IOException {
+    readBuffer.clear();
+    int read = connection.channel.read(readBuffer);
+    if (read < 0) {
+      close(key, connection);
+      return;
+    }
+    readBuffer.flip();
+
+    // Continue a partial command from an earlier read, if there is one
+    ByteBuffer source = readBuffer;
+    if (connection.input != null) {
+      connection.input = ensureCapacity(connection.input, readBuffer.remaining());
+      connection.input.put(readBuffer);
+      connection.input.flip();
+      source = connection.input;
+    }
+
+    processInput(key, connection, source);
+  }
+
+  /**
+   * Runs every complete command in the source, stopping early if one of them
+   * blocks the client, and keeps whatever is left for later.
+   */
+  private void processInput(SelectionKey key, NioConnection connection, ByteBuffer source) throws IOException {
+    CommandArgs args;
+    while (!connection.isBlocked() && (args = connection.decoder.decode(source)) != null) {
+      if (args.count() == 0) {
+        continue;
+      }
+      commandProcessor.execute(connection, args, connection.output);
+      if (connection.output.isDiscarded()) {
+        System.out.println("Closing client " + connection.id + ": " + connection.output.discardReason());
+        close(key, connection);
+        return;
+      }
+      if (connection.handOffReceiver != null) {
+        handOff(key, connection);
+        return;
+      }
+
+      // A long pipeline is sent in pieces rather than buffered whole
+      if (connection.output.size() >= ReplyStream.FLUSH_THRESHOLD) {
+        flushReplies(key, connection);
+      }
+    }
+
+    // Keep the incomplete tail (or the commands queued behind a blocking one) for later
+    if (!source.hasRemaining()) {
+      connection.input = null;
+    } else if (source == readBuffer) {
+      connection.input = ByteBuffer.allocate(Math.max(1024, source.remaining() * 2));
+      connection.input.put(source);
+    } else {
+      source.compact();
+    }
+
+    flushReplies(key, connection);
+  }
+
+  /**
+   * Gives the connection's socket to the receiver PSYNC set (see
+   * {@link Client#handOff}): the channel leaves this loop, switches to
+   * blocking mode and the replies so far are sent before the receiver gets it.
+   */
+  private void handOff(SelectionKey key, NioConnection connection) throws IOException {
+    awaitingFsync.remove(connection);
+    connection.awaitingFsync = false;
+    key.cancel();
+    // The channel can only turn blocking once the next select has deregistered it
+    execute(() -> {
+      try {
+        connection.channel.configureBlocking(true);
+        commandProcessor.awaitDurable(connection);
+        connection.output.drainTo(connection.channel); // Blocking: sends everything
+        connection.output.release();
+        commandProcessor.disconnected(connection); // No longer a client
+        connection.handOffReceiver.accept(connection.channel.socket());
+      } catch (IOException e) {
+        System.out.println("Client disconnected or IOException: " + e.getMessage());
+        close(key, connection);
+      }
+    });
+  }
+
+  /**
+   * Sends the reply of a blocking command that was served or timed out, then
+   * carries on with the commands the client sent while it was blocked.
+   */
+  void resume(NioConnection connection, byte[] reply) {
+    SelectionKey key = connection.key;
+    if (!key.isValid()) {
+      return; // Closed while blocked
+    }
+    connection.waiter = null;
+    try {
+      connection.output.write(reply);
+      if (connection.input != null) {
+        connection.input.flip();
+        processInput(key, connection, connection.input);
+      } else {
+        flushReplies(key, connection);
+      }
+    } catch (IOException e) {
+      System.out.println("Client disconnected or IOException: " + e.getMessage());
+      close(key, connection);
+    }
+  }
+
+  /**
+   * Queues a published message for one of this loop's connections (see
+   * {@link Client#push}). It is sent at the end of the round, with one
+   * write per connection however many messages arrived for it.
+   */
+  void push(NioConnection connection, ByteBuffer frame) {
+    if (!connection.key.isValid()) {
+      return; // Closed meanwhile
+    }
+    connection.output.writeShared(frame);
+    if (!connection.pushed) {
+      connection.pushed = true;
+      pushed.add(connection);
+    }
+  }
+
+  /**
+   * Sends the messages published this round. A subscriber that went over its
+   * output buffer limit is closed here rather than while a PUBLISH is still
+   * delivering.
+   */
+  private void sendPushed() {
+    for (NioConnection connection : pushed) {
+      connection.pushed = false;
+      SelectionKey key = connection.key;
+      if (!key.isValid()) {
+        continue;
+      }
+      if (connection.output.isDiscarded()) {
+        System.out.println("Closing client " + connection.id + ": " + connection.output.discardReason());
+        close(key, connection);
+        continue;
+      }
+      try {
+        flushReplies(key, connection);
+      } catch (IOException e) {
+        System.out.println("Client disconnected or IOException: " + e.getMessage());
+        close(key, connection);
+      }
+    }
+    pushed.clear();
+  }
+
+  private void flushReplies(SelectionKey key, NioConnection connection) throws IOException {
+    if (connection.output.size() == 0) {
+      return;
+    }
+
+    if (connection.awaitingFsync || !commandProcessor.isDurable(connection)) {
+      // appendfsync always: hold the replies until the writes they acknowledge
+      // are on disk, so every connection served this round shares one fsync
+      if (!connection.awaitingFsync) {
+        connection.awaitingFsync = true;
+        awaitingFsync.add(connection);
+      }
+      return;
+    }
+
+    // Stop reading from a client that is not draining its replies
+    if (!connection.output.drainTo(connection.channel)) {
+      key.interestOps(SelectionKey.OP_WRITE);
+    }
+  }
+
+  /**
+   * Sends a connection's replies while a command is still writing a large
+   * one (see {@link ReplyStream#onBacklog}), unless they have to wait for
+   * the AOF. Takes only what the socket accepts right away.
+   */
+  void sendEarly(NioConnection connection) {
+    if (connection.awaitingFsync || !commandProcessor.isDurable(connection)) {
+      return;
+    }
+    try {
+      if (!connection.output.drainTo(connection.channel)) {
+        connection.key.interestOps(SelectionKey.OP_WRITE);
+      }
+    } catch (IOException e) {
+      connection.output.discard("write failed: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Forces the AOF once for every connection that was held back this round,
+   * then sends their replies.
+   */
+  private void releaseDurableReplies() {
+    for (NioConnection connection : awaitingFsync) {
+      connection.awaitingFsync = false;
+      SelectionKey key = connection.key;
+      if (!key.isValid()) {
+        continue;
+      }
+      try {
+        // The first call forces everything logged so far; the rest return at once
+        commandProcessor.awaitDurable(connection);
+        if (!connection.output.drainTo(connection.channel)) {
+          key.interestOps(SelectionKey.OP_WRITE);
+        }
+      } catch (IOException e) {
+        System.out.println("Client disconnected or IOException: " + e.getMessage());
+        close(key, connection);
+      }
+    }
+    awaitingFsync.clear();
+  }
+
+  private void handleWrite(SelectionKey key, NioConnection connection) throws IOException {
+    if (connection.awaitingFsync) {
+      return; // Sent once the AOF is forced, at the end of this round
+    }
+    if (connection.output.drainTo(connection.channel)) {
+      key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+
+  private static ByteBuffer ensureCapacity(ByteBuffer buffer, int extra) {
+    if (buffer.remaining() >= extra) {
+      return buffer;
+    }
+    ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+    buffer.flip();
+    grown.put(buffer);
+    return grown;
+  }
+
+  private void close(SelectionKey key, NioConnection connection) {
+    key.cancel();
+    commandProcessor.disconnected(connection);
+    connection.output.release();
+    try {
+      connection.channel.close();
+    } catch (IOException e) {
+      System.out.println("IOException closing client socket: " + e.getMessage());
+    }
+  }
+}
+
+/**
+ * Per-connection state owned by an event loop.
+ */
+class NioConnection extends Client {
+  final EventLoop loop;
+  final SocketChannel channel;
+  final RespDecoder decoder = new RespDecoder();
+  SelectionKey key;
+  ByteBuffer input;  // Unprocessed input in write mode, or null
+  final ReplyStream output; // Replies not sent yet
+  boolean awaitingFsync; // Output is held until the AOF is forced
+  Consumer<Socket> handOffReceiver; // Set by PSYNC; the loop lets go of the channel
+  boolean pushed; // Has published messages to send at the end of the loop's round
+
+  NioConnection(EventLoop loop, SocketChannel channel, ServerConfig config) {
+    this.loop = loop;
+    this.channel = channel;
+    this.output = new ReplyStream(config);
+    output.onBacklog(() -> loop.sendEarly(this));
+  }
+
+  @Override
+  void unblock(byte[] reply) {
+    loop.execute(() -> loop.resume(this, reply));
+  }
+
+  @Override
+  void push(ByteBuffer frame) {
+    if (loop.inLoop()) {
+      loop.push(this, frame);
+    } else {
+      loop.execute(() -> loop.push(this, frame));
+    }
+  }
+
+  @Override
+  boolean hasSocket() {
+    return true;
+  }
+
+  @Override
+  void handOff(Consumer<Socket> receiver) {
+    handOffReceiver = receiver;
+  }
+}
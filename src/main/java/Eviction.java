@@ -0,0 +1,185 @@
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Chooses keys to evict when the store is over maxmemory.
+ *
+ * Like Redis, this is an approximation: instead of keeping every key in a
+ * global LRU list (one more lock and two pointers per key), each entry carries
+ * a small access stamp and eviction compares a handful of randomly sampled
+ * keys, evicting the best candidate among them.
+ */
+class Eviction {
+
+  /**
+   * Which keys may be evicted, and how the victim is chosen.
+   */
+  enum Policy {
+    NOEVICTION,   // Refuse writes instead of evicting
+    ALLKEYS_LRU,  // Least recently used key
+    ALLKEYS_LFU,  // Least frequently used key
+    VOLATILE_TTL; // Key with an expiry that expires soonest
+
+    static Policy parse(String name) {
+      return valueOf(name.toUpperCase().replace('-', '_'));
+    }
+
+    String configName() {
+      return name().toLowerCase().replace('_', '-');
+    }
+  }
+
+  // LFU counter tuning, same defaults as Redis
+  private static final int LFU_INIT_VAL = 5;
+  private static final int LFU_LOG_FACTOR = 10;
+  private static final long LFU_DECAY_MINUTES = 1;
+
+  final Policy policy;
+  private final int samples;
+  private final boolean stamps; // Whether the policy reads access stamps
+
+  Eviction(Policy policy, int samples) {
+    this.policy = policy;
+    this.samples = samples;
+    this.stamps = policy == Policy.ALLKEYS_LRU || policy == Policy.ALLKEYS_LFU;
+  }
+
+  /**
+   * @return true if entries carry access stamps; other policies leave them unset.
+   */
+  boolean usesAccessStamps() {
+    return stamps;
+  }
+
+  /**
+   * Sets the access stamp of an entry that is being inserted.
+   */
+  void init(RedisData data) {
+    if (!stamps) {
+      return;
+    }
+    if (policy == Policy.ALLKEYS_LFU) {
+      data.lru = (minutes() << 8) | LFU_INIT_VAL;
+    } else {
+      data.lru = seconds();
+    }
+  }
+
+  /**
+   * Records an access to an entry.
+   */
+  void touch(RedisData data) {
+    if (!stamps) {
+      return;
+    }
+    if (policy == Policy.ALLKEYS_LFU) {
+      int counter = lfuIncrement(lfuDecay(data.lru));
+      data.lru = (minutes() << 8) | counter;
+    } else {
+      int now = seconds();
+      if (data.lru != now) { // Avoid dirtying the cache line on every hit
+        data.lru = now;
+      }
+    }
+  }
+
+  /**
+   * Samples a few random entries and returns the best one to evict.
+   * @return The chosen entry, or null if the sample had no eligible key.
+   */
+  Map.Entry<ByteKey, RedisData> pickVictim(Map<ByteKey, RedisData> dataStore) {
+    Candidate best = new Candidate();
+    Spliterator<Map.Entry<ByteKey, RedisData>> slice = randomSlice(dataStore);
+    int sampled = 0;
+    while (sampled < samples && slice.tryAdvance(best)) {
+      sampled++;
+    }
+    return best.entry;
+  }
+
+  /**
+   * Higher scores are better eviction candidates; Long.MIN_VALUE means not eligible.
+   */
+  private long score(RedisData data) {
+    switch (policy) {
+      case ALLKEYS_LRU:
+        return seconds() - data.lru; // Idle time
+      case ALLKEYS_LFU:
+        return 255 - lfuDecay(data.lru);
+      case VOLATILE_TTL:
+        return data.expiryTime == -1 ? Long.MIN_VALUE : -data.expiryTime;
+      default:
+        return Long.MIN_VALUE;
+    }
+  }
+
+  /**
+   * Narrows a spliterator over the map down to a random region of its hash
+   * table holding roughly as many entries as we want to sample. Each split
+   * halves the range in constant time, so this costs O(log n) rather than a
+   * walk from the start of the table.
+   */
+  private Spliterator<Map.Entry<ByteKey, RedisData>> randomSlice(Map<ByteKey, RedisData> dataStore) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    Spliterator<Map.Entry<ByteKey, RedisData>> slice = dataStore.entrySet().spliterator();
+    while (slice.estimateSize() > samples * 2L) {
+      Spliterator<Map.Entry<ByteKey, RedisData>> other = slice.trySplit();
+      if (other == null) {
+        break;
+      }
+      if (random.nextBoolean()) {
+        slice = other;
+      }
+    }
+    return slice;
+  }
+
+  /**
+   * Keeps the best eviction candidate among the entries offered to it.
+   */
+  private final class Candidate implements Consumer<Map.Entry<ByteKey, RedisData>> {
+    Map.Entry<ByteKey, RedisData> entry;
+    long score = Long.MIN_VALUE;
+
+    @Override
+    public void accept(Map.Entry<ByteKey, RedisData> offered) {
+      long offeredScore = score(offered.getValue());
+      if (offeredScore > score) {
+        entry = offered;
+        score = offeredScore;
+      }
+    }
+  }
+
+  /**
+   * Applies the time based decay to an LFU stamp and returns the counter.
+   */
+  private static int lfuDecay(int stamp) {
+    int counter = stamp & 0xff;
+    long elapsed = (minutes() - (stamp >>> 8)) & 0xffff;
+    long periods = elapsed / LFU_DECAY_MINUTES;
+    return periods > counter ? 0 : counter - (int) periods;
+  }
+
+  /**
+   * Logarithmic counter increment: the higher the counter, the less likely it grows.
+   */
+  private static int lfuIncrement(int counter) {
+    if (counter == 255) {
+      return counter;
+    }
+    double baseValue = Math.max(0, counter - LFU_INIT_VAL);
+    double probability = 1.0 / (baseValue * LFU_LOG_FACTOR + 1);
+    return ThreadLocalRandom.current().nextDouble() < probability ? counter + 1 : counter;
+  }
+
+  private static int seconds() {
+    return (int) (System.currentTimeMillis() / 1000);
+  }
+
+  private static int minutes() {
+    return (int) ((System.currentTimeMillis() / 60000) & 0xffff);
+  }
+}
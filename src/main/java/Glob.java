@@ -0,0 +1,149 @@
+/**
+ * Glob-style matching of byte strings, as Redis's stringmatchlen does it for
+ * KEYS and the MATCH option of the SCAN family: * matches any run of bytes,
+ * ? any one byte, [abc], [^abc] and [a-z] a byte of (or not of) a set, and
+ * \ makes the next byte literal.
+ *
+ * Matching walks the pattern once, backtracking only to the last * seen:
+ * a later * can absorb anything an earlier one would have, so no earlier
+ * choice needs to be revisited, and a match is O(pattern * string) at worst
+ * instead of exponential like the recursive matcher.
+ */
+final class Glob {
+  private Glob() {
+  }
+
+  /**
+   * @return true if the pattern matches the whole string.
+   */
+  static boolean matches(byte[] pattern, byte[] data, int offset, int length) {
+    int p = 0;
+    int s = offset;
+    int end = offset + length;
+    int starPattern = -1; // Where the pattern resumes after the last *
+    int starString = -1;  // Where the string resumes when that * absorbs one more byte
+    while (s < end) {
+      if (p < pattern.length) {
+        if (pattern[p] == '*') {
+          starPattern = ++p;
+          starString = s;
+          continue;
+        }
+        int next = matchOne(pattern, p, data[s]);
+        if (next >= 0) {
+          p = next;
+          s++;
+          continue;
+        }
+      }
+      if (starPattern < 0) {
+        return false;
+      }
+      p = starPattern;
+      s = ++starString;
+    }
+    while (p < pattern.length && pattern[p] == '*') {
+      p++;
+    }
+    return p == pattern.length;
+  }
+
+  static boolean matches(byte[] pattern, byte[] string) {
+    return matches(pattern, string, 0, string.length);
+  }
+
+  /**
+   * @return true if the pattern matches every string ("*"), so matching can be skipped.
+   */
+  static boolean matchesAll(byte[] pattern) {
+    for (byte b : pattern) {
+      if (b != '*') {
+        return false;
+      }
+    }
+    return pattern.length > 0;
+  }
+
+  /**
+   * @return true if the pattern has no special characters, so it only
+   * matches the string equal to it.
+   */
+  static boolean isLiteral(byte[] pattern) {
+    for (byte b : pattern) {
+      if (b == '*' || b == '?' || b == '[' || b == '\\') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Compiles the set starting at pattern[p - 1] into a map of the bytes it
+   * matches, for matchers that test many strings against it (see {@link GlobTrie}).
+   * @param p Just past the opening bracket.
+   * @param bits 256 bits, set for each byte the set matches.
+   * @return Where the next pattern element starts, or -1 if the set matches no byte.
+   */
+  static int compileSet(byte[] pattern, int p, long[] bits) {
+    int next = -1;
+    for (int b = 0; b < 256; b++) {
+      int end = matchSet(pattern, p, (byte) b);
+      if (end >= 0) {
+        bits[b >>> 6] |= 1L << b;
+        next = end;
+      }
+    }
+    return next;
+  }
+
+  /**
+   * Matches one byte against the pattern element (a byte, ?, \x or a set) at p.
+   * @return Where the next pattern element starts, or -1 if the byte does not match.
+   */
+  private static int matchOne(byte[] pattern, int p, byte b) {
+    switch (pattern[p]) {
+      case '?':
+        return p + 1;
+      case '\\':
+        if (p + 1 < pattern.length) {
+          return pattern[p + 1] == b ? p + 2 : -1;
+        }
+        break; // A trailing backslash is literal
+      case '[':
+        return matchSet(pattern, p + 1, b);
+      default:
+        break;
+    }
+    return pattern[p] == b ? p + 1 : -1;
+  }
+
+  /**
+   * @param p Just past the opening bracket.
+   */
+  private static int matchSet(byte[] pattern, int p, byte b) {
+    boolean negated = p < pattern.length && pattern[p] == '^';
+    if (negated) {
+      p++;
+    }
+    boolean matched = false;
+    int value = b & 0xff;
+    while (p < pattern.length && pattern[p] != ']') {
+      if (pattern[p] == '\\' && p + 1 < pattern.length) {
+        matched |= pattern[p + 1] == b;
+        p += 2;
+      } else if (p + 2 < pattern.length && pattern[p + 1] == '-') {
+        int from = pattern[p] & 0xff;
+        int to = pattern[p + 2] & 0xff;
+        matched |= value >= Math.min(from, to) && value <= Math.max(from, to);
+        p += 3;
+      } else {
+        matched |= pattern[p] == b;
+        p++;
+      }
+    }
+    if (p < pattern.length) {
+      p++; // The closing bracket; an unclosed set ends with the pattern
+    }
+    return matched != negated ? p : -1;
+  }
+}
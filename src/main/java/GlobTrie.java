@@ -0,0 +1,337 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Glob patterns (see {@link Glob}) compiled into one trie, so a string is
+ * matched against all of them in a single pass instead of one
+ * {@link Glob#matches} per pattern. Holds the pattern subscriptions of
+ * Pub/Sub, each with a value.
+ *
+ * A pattern is parsed once, when it is added, into a path of elements: a
+ * byte, ?, * or a set compiled to a 256-bit map. Patterns with a common
+ * prefix share its nodes. Matching runs the trie as an automaton: it keeps
+ * the nodes the bytes so far lead to, follows every edge the next byte
+ * matches, and a node reached by * also stays active on any byte. The work
+ * per byte depends on how many nodes are active, typically a few, not on
+ * how many patterns there are.
+ *
+ * Not thread-safe.
+ */
+final class GlobTrie<V> {
+  // Path elements: 0-255 for a literal byte, then these
+  private static final int ANY = 256;
+  private static final int STAR = 257;
+  private static final int SET = 258; // Plus the set's index in Path.sets
+
+  private static final byte[] NO_LABELS = new byte[0];
+
+  private static final class Node<V> {
+    final boolean loops; // Reached by *: consumes any byte and stays here
+    byte[] labels = NO_LABELS; // Literal edges, sorted
+    Node<V>[] literals;
+    Node<V> any;  // ?
+    Node<V> star; // *, which also matches zero bytes: entering this node enters it too
+    List<SetEdge<V>> sets;
+    Map<ByteKey, V> values; // Patterns ending here, by their text
+
+    Node(boolean loops) {
+      this.loops = loops;
+    }
+
+    Node<V> literal(int b) {
+      int i = Arrays.binarySearch(labels, (byte) b);
+      return i >= 0 ? literals[i] : null;
+    }
+
+    boolean isEmpty() {
+      return labels.length == 0 && any == null && star == null
+          && (sets == null || sets.isEmpty()) && (values == null || values.isEmpty());
+    }
+  }
+
+  private static final class SetEdge<V> {
+    final long[] bits;
+    final Node<V> node;
+
+    SetEdge(long[] bits, Node<V> node) {
+      this.bits = bits;
+      this.node = node;
+    }
+
+    boolean matches(int b) {
+      return (bits[b >>> 6] & (1L << b)) != 0;
+    }
+  }
+
+  /**
+   * A pattern parsed into elements.
+   */
+  private static final class Path {
+    final int[] elements;
+    final int length;
+    final List<long[]> sets;
+
+    Path(int[] elements, int length, List<long[]> sets) {
+      this.elements = elements;
+      this.length = length;
+      this.sets = sets;
+    }
+  }
+
+  private final Node<V> root = new Node<>(false);
+  private int size;
+
+  /**
+   * @return The number of patterns.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return The pattern's value, or null if it is not in the trie.
+   */
+  V get(byte[] pattern) {
+    Path path = parse(pattern);
+    Node<V> node = root;
+    for (int i = 0; i < path.length && node != null; i++) {
+      node = child(node, path, i, false);
+    }
+    return node == null || node.values == null ? null : node.values.get(new ByteKey(pattern));
+  }
+
+  /**
+   * Adds a pattern, or replaces its value. The pattern array is kept, not copied.
+   */
+  void put(byte[] pattern, V value) {
+    Path path = parse(pattern);
+    Node<V> node = root;
+    for (int i = 0; i < path.length; i++) {
+      node = child(node, path, i, true);
+    }
+    if (node.values == null) {
+      node.values = new HashMap<>(2);
+    }
+    if (node.values.put(new ByteKey(pattern), value) == null) {
+      size++;
+    }
+  }
+
+  /**
+   * Removes a pattern, and the nodes only it was using.
+   * @return Its value, or null if it was not in the trie.
+   */
+  V remove(byte[] pattern) {
+    Path path = parse(pattern);
+    Node<V>[] trail = nodes(path.length + 1);
+    trail[0] = root;
+    for (int i = 0; i < path.length; i++) {
+      trail[i + 1] = child(trail[i], path, i, false);
+      if (trail[i + 1] == null) {
+        return null;
+      }
+    }
+    Node<V> node = trail[path.length];
+    V value = node.values == null ? null : node.values.remove(new ByteKey(pattern));
+    if (value == null) {
+      return null;
+    }
+    size--;
+    for (int i = path.length - 1; i >= 0 && trail[i + 1].isEmpty(); i--) {
+      unlink(trail[i], path, i, trail[i + 1]);
+    }
+    return value;
+  }
+
+  /**
+   * Calls the visitor with every pattern that matches the whole string, and its value.
+   */
+  void match(byte[] string, BiConsumer<byte[], V> visitor) {
+    List<Node<V>> active = new ArrayList<>();
+    List<Node<V>> next = new ArrayList<>();
+    enter(active, root);
+    for (int i = 0; i < string.length && !active.isEmpty(); i++) {
+      int b = string[i] & 0xff;
+      for (Node<V> node : active) {
+        if (node.loops) {
+          enter(next, node);
+        }
+        Node<V> literal = node.literal(b);
+        if (literal != null) {
+          enter(next, literal);
+        }
+        if (node.any != null) {
+          enter(next, node.any);
+        }
+        if (node.sets != null) {
+          for (SetEdge<V> set : node.sets) {
+            if (set.matches(b)) {
+              enter(next, set.node);
+            }
+          }
+        }
+      }
+      List<Node<V>> swap = active;
+      active = next;
+      next = swap;
+      next.clear();
+    }
+    for (Node<V> node : active) {
+      if (node.values != null) {
+        for (Map.Entry<ByteKey, V> entry : node.values.entrySet()) {
+          visitor.accept(entry.getKey().bytes, entry.getValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds a node to the active ones, with the * node after it: a * may match
+   * nothing. Each node is kept once, or patterns such as a*a*a* would
+   * multiply the active list at every byte.
+   */
+  private static <V> void enter(List<Node<V>> active, Node<V> node) {
+    if (!active.contains(node)) {
+      active.add(node);
+      if (node.star != null) {
+        enter(active, node.star);
+      }
+    }
+  }
+
+  /**
+   * Follows the edge of path element i from a node.
+   * @param create Whether to add the edge if there is none.
+   * @return The node it leads to, or null if there is none and create is false.
+   */
+  private Node<V> child(Node<V> node, Path path, int i, boolean create) {
+    int element = path.elements[i];
+    if (element == ANY) {
+      if (node.any == null && create) {
+        node.any = new Node<>(false);
+      }
+      return node.any;
+    }
+    if (element == STAR) {
+      if (node.star == null && create) {
+        node.star = new Node<>(true);
+      }
+      return node.star;
+    }
+    if (element >= SET) {
+      long[] bits = path.sets.get(element - SET);
+      if (node.sets != null) {
+        for (SetEdge<V> set : node.sets) {
+          if (Arrays.equals(set.bits, bits)) {
+            return set.node;
+          }
+        }
+      }
+      if (!create) {
+        return null;
+      }
+      if (node.sets == null) {
+        node.sets = new ArrayList<>(1);
+      }
+      SetEdge<V> set = new SetEdge<>(bits, new Node<>(false));
+      node.sets.add(set);
+      return set.node;
+    }
+    int index = Arrays.binarySearch(node.labels, (byte) element);
+    if (index >= 0) {
+      return node.literals[index];
+    }
+    if (!create) {
+      return null;
+    }
+    index = -index - 1;
+    int count = node.labels.length;
+    byte[] labels = new byte[count + 1];
+    Node<V>[] literals = nodes(count + 1);
+    System.arraycopy(node.labels, 0, labels, 0, index);
+    System.arraycopy(node.labels, index, labels, index + 1, count - index);
+    if (count > 0) {
+      System.arraycopy(node.literals, 0, literals, 0, index);
+      System.arraycopy(node.literals, index, literals, index + 1, count - index);
+    }
+    labels[index] = (byte) element;
+    literals[index] = new Node<>(false);
+    node.labels = labels;
+    node.literals = literals;
+    return literals[index];
+  }
+
+  /**
+   * Allocates a node array; generic arrays can only be made from a wildcard one.
+   */
+  @SuppressWarnings("unchecked")
+  private static <V> Node<V>[] nodes(int length) {
+    return (Node<V>[]) new Node<?>[length];
+  }
+
+  /**
+   * Removes the edge of path element i, which leads to child, from a node.
+   */
+  private void unlink(Node<V> node, Path path, int i, Node<V> child) {
+    int element = path.elements[i];
+    if (element == ANY) {
+      node.any = null;
+    } else if (element == STAR) {
+      node.star = null;
+    } else if (element >= SET) {
+      node.sets.removeIf(set -> set.node == child);
+    } else {
+      int index = Arrays.binarySearch(node.labels, (byte) element);
+      int count = node.labels.length - 1;
+      byte[] labels = new byte[count];
+      Node<V>[] literals = nodes(count);
+      System.arraycopy(node.labels, 0, labels, 0, index);
+      System.arraycopy(node.labels, index + 1, labels, index, count - index);
+      System.arraycopy(node.literals, 0, literals, 0, index);
+      System.arraycopy(node.literals, index + 1, literals, index, count - index);
+      node.labels = labels;
+      node.literals = count == 0 ? null : literals;
+    }
+  }
+
+  /**
+   * Parses a pattern with the rules {@link Glob#matches} applies.
+   */
+  private static Path parse(byte[] pattern) {
+    int[] elements = new int[pattern.length];
+    List<long[]> sets = new ArrayList<>(0);
+    int length = 0;
+    int p = 0;
+    while (p < pattern.length) {
+      byte b = pattern[p];
+      if (b == '*') {
+        if (length == 0 || elements[length - 1] != STAR) {
+          elements[length++] = STAR; // ** matches what * does
+        }
+        p++;
+      } else if (b == '?') {
+        elements[length++] = ANY;
+        p++;
+      } else if (b == '\\' && p + 1 < pattern.length) {
+        elements[length++] = pattern[p + 1] & 0xff;
+        p += 2;
+      } else if (b == '[') {
+        long[] bits = new long[4];
+        p = Glob.compileSet(pattern, p + 1, bits);
+        elements[length++] = SET + sets.size();
+        sets.add(bits);
+        if (p < 0) {
+          break; // The set matches nothing, so nothing after it is ever reached
+        }
+      } else {
+        elements[length++] = b & 0xff;
+        p++;
+      }
+    }
+    return new Path(elements, length, sets);
+  }
+}
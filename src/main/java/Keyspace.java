@@ -0,0 +1,763 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * All access to the dataStore goes through here, so expiry, memory
+ * accounting and eviction bookkeeping happen in one place.
+ *
+ * The dataStore is split into shards by key hash, each with its own
+ * read-write lock. A command holds the locks of the shards its keys live in
+ * for its whole run (see {@link #lock}), so a get-then-put such as RPUSH
+ * creating a list is atomic, while commands on keys in other shards run in
+ * parallel. The maps themselves stay concurrent: readers under a shared lock
+ * still remove the expired keys they find, and loading fills them without
+ * locks. In cluster mode there is one shard per hash slot, so a slot can
+ * be locked as a whole while it changes hands.
+ *
+ * The shared lock does not freeze a shard: {@link #update} changes single
+ * keys under it. Each key still reads as a whole, but a command that needs
+ * several keys to agree, such as MGET or EXEC, takes the exclusive lock.
+ */
+class Keyspace {
+  // Rough per-key overhead: the map node plus the ByteKey object and its array header
+  private static final long KEY_OVERHEAD = 32 + 24 + 16;
+  // Evictions after which the list of shards to sample is built anew
+  private static final int EVICTION_SHARDS_REUSE = 1024;
+  // Whether ConcurrentHashMap spliterators split the way scanBin needs (see binScanWorks)
+  private static final boolean BIN_SCAN = binScanWorks();
+
+  /**
+   * One partition of the dataStore.
+   */
+  private static final class Shard {
+    // Only replaced by presize(), while the keyspace is still empty at startup
+    volatile Map<ByteKey, RedisData> dataStore = new ConcurrentHashMap<>();
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  }
+
+  private final Shard[] shards;
+  private final int shardShift; // Turns a mixed 32-bit hash into a shard index
+  private final boolean bySlot; // Cluster mode: shard index == hash slot
+
+  final ActiveExpiry activeExpiry;
+  private final Eviction eviction;
+  private final long maxMemory;
+  private final boolean sharedIntegers; // Store small integers as shared objects
+
+  private final AtomicLong usedMemory = new AtomicLong();
+  private final LongAdder evictedKeys = new LongAdder();
+
+  // The non-empty shards eviction samples once random picks miss too often,
+  // and the evictedKeys count when they were listed (see freeMemoryIfNeeded)
+  private volatile int[] evictionShards;
+  private volatile long evictionShardsBuiltAt;
+
+  // Open while a save is writing the keyspace out; writes preserve old versions for it
+  private volatile Snapshot snapshot;
+
+  // Version counters of the keys under WATCH, bumped by every write to them.
+  // Only watched keys have one, so other writes pay one isEmpty() check
+  private final ConcurrentHashMap<ByteKey, Watch> watches = new ConcurrentHashMap<>();
+
+  private static final class Watch {
+    final AtomicLong version = new AtomicLong();
+    int watchers; // Changed only inside the map's compute
+  }
+
+  // Told of every write, or null; set once at startup
+  private volatile Consumer<ByteKey> writeListener;
+
+  public Keyspace(ServerConfig config) {
+    this.bySlot = config.clusterEnabled;
+    int count = 1;
+    while (count < (bySlot ? Cluster.SLOTS : config.keyspaceShards)) {
+      count <<= 1;
+    }
+    this.shards = new Shard[count];
+    for (int i = 0; i < count; i++) {
+      shards[i] = new Shard();
+    }
+    this.shardShift = 32 - Integer.numberOfTrailingZeros(count);
+    this.activeExpiry = new ActiveExpiry(this);
+    this.eviction = new Eviction(config.maxMemoryPolicy, config.maxMemorySamples);
+    this.maxMemory = config.maxMemory;
+    // A shared object has one access stamp for all its keys, which LRU and LFU cannot work with
+    this.sharedIntegers = !eviction.usesAccessStamps();
+  }
+
+  /**
+   * Looks up a live entry. An expired entry is removed (lazy eviction) and
+   * reported as missing.
+   * @return The entry, or null if the key does not exist or has expired.
+   */
+  public RedisData get(ByteKey key) {
+    RedisData data = shard(key).dataStore.get(key);
+    if (data == null) {
+      return null;
+    }
+    if (data.isExpired()) {
+      if (remove(key, data)) {
+        activeExpiry.expiredLazily();
+      }
+      return null;
+    }
+    eviction.touch(data);
+    return data;
+  }
+
+  /**
+   * Looks up an entry that the caller is about to change in place (e.g. LPOP).
+   * Same as {@link #get}, but lets an open snapshot keep the unchanged version.
+   * @return The entry, or null if the key does not exist or has expired.
+   */
+  public RedisData getForWrite(ByteKey key) {
+    Snapshot open = snapshot;
+    if (open != null) {
+      open.beforeWrite(key);
+    }
+    return get(key);
+  }
+
+  /**
+   * Stores an entry, replacing any previous value of the key.
+   */
+  public void put(ByteKey key, RedisData data) {
+    if (sharedIntegers) {
+      data = RedisString.share(data);
+    }
+    data.setChargedUsage(data.memoryUsage());
+    eviction.init(data);
+
+    Map<ByteKey, RedisData> dataStore = shard(key).dataStore;
+    Snapshot open = snapshot;
+    if (open != null) {
+      open.beforeReplace(key, dataStore.get(key));
+    }
+    RedisData previous = dataStore.put(key, data);
+    modified(key);
+    long delta = charge(key, data);
+    if (previous != null) {
+      delta -= charge(key, previous);
+    }
+    usedMemory.addAndGet(delta);
+
+    if (data.expiryTime != -1 || (previous != null && previous.expiryTime != -1)) {
+      activeExpiry.schedule(key, data.expiryTime);
+    }
+  }
+
+  /**
+   * Computes a key's new entry from its live one, atomically for that key
+   * alone, for writes that run under the shared lock of its shard (see
+   * {@link Command#ATOMIC}). The map locks only the key's bin while the
+   * function runs, so updates of one key, and what the function does along
+   * with them such as propagating, happen one at a time, while other keys of
+   * the shard carry on. The function must not touch other keys.
+   * @param update Gets the live entry, or null if there is none; returns the
+   * new entry, which keeps the old one's expiry, or null to leave the key as is.
+   */
+  public void update(ByteKey key, UnaryOperator<RedisData> update) {
+    Snapshot open = snapshot;
+    if (open != null) {
+      open.beforeWrite(key);
+    }
+    boolean[] changed = {false}; // Out-params of the lambda below
+    long[] expired = {-1};          // The deadline of an expired entry it dropped
+    shard(key).dataStore.compute(key, (k, current) -> {
+      if (current != null && current.isExpired()) {
+        usedMemory.addAndGet(-charge(k, current));
+        activeExpiry.expiredLazily();
+        expired[0] = current.expiryTime;
+        current = null;
+      }
+      RedisData data = update.apply(current);
+      if (data == null) {
+        return current;
+      }
+      changed[0] = true;
+      if (sharedIntegers) {
+        data = RedisString.share(data);
+      }
+      data.setChargedUsage(data.memoryUsage());
+      eviction.init(data);
+      long delta = charge(k, data);
+      if (current != null) {
+        delta -= charge(k, current);
+      }
+      usedMemory.addAndGet(delta);
+      return data;
+    });
+    if (changed[0]) {
+      // Once the new value is visible, so a reader told of the write cannot
+      // still be reading the old one
+      modified(key);
+    }
+    if (expired[0] != -1) {
+      activeExpiry.unschedule(key, expired[0]); // The new entry, if any, has no expiry
+    }
+  }
+
+  /**
+   * Removes the key only if it still maps to the given entry.
+   * @return true if the entry was removed.
+   */
+  public boolean remove(ByteKey key, RedisData data) {
+    Map<ByteKey, RedisData> dataStore = shard(key).dataStore;
+    Snapshot open = snapshot;
+    if (open != null) {
+      open.beforeReplace(key, data);
+    }
+    if (dataStore.remove(key, data)) {
+      modified(key);
+      usedMemory.addAndGet(-charge(key, data));
+      if (data.expiryTime != -1) {
+        activeExpiry.unschedule(key, data.expiryTime);
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Re-accounts an entry whose value was changed in place (e.g. RPUSH).
+   */
+  public void updateSize(ByteKey key, RedisData data) {
+    modified(key);
+    long usage = data.memoryUsage();
+    usedMemory.addAndGet(usage - data.chargedUsage());
+    data.setChargedUsage(usage);
+  }
+
+  /**
+   * Starts tracking a key's version for a client's WATCH.
+   * @return The key's current version.
+   */
+  public long watch(ByteKey key) {
+    return watches.compute(key, (k, watch) -> {
+      if (watch == null) {
+        watch = new Watch();
+      }
+      watch.watchers++;
+      return watch;
+    }).version.get();
+  }
+
+  /**
+   * Ends one {@link #watch} of a key; its counter goes once nobody watches it.
+   */
+  public void unwatch(ByteKey key) {
+    watches.computeIfPresent(key, (k, watch) -> --watch.watchers == 0 ? null : watch);
+  }
+
+  /**
+   * @return The version of a watched key: unchanged as long as nothing wrote the key.
+   */
+  public long version(ByteKey key) {
+    Watch watch = watches.get(key);
+    return watch == null ? -1 : watch.version.get();
+  }
+
+  /**
+   * Sets what is told of every write to a key, expiry and eviction included
+   * (client-side caching invalidation, see {@link Tracking}).
+   */
+  public void setWriteListener(Consumer<ByteKey> listener) {
+    writeListener = listener;
+  }
+
+  /**
+   * Called on every write to a key, once the new value is in place, so the
+   * clients watching it see it changed and those caching it drop it.
+   */
+  private void modified(ByteKey key) {
+    if (!watches.isEmpty()) {
+      Watch watch = watches.get(key);
+      if (watch != null) {
+        watch.version.incrementAndGet();
+      }
+    }
+    Consumer<ByteKey> listener = writeListener;
+    if (listener != null) {
+      listener.accept(key);
+    }
+  }
+
+  /**
+   * @return The bytes charged to used_memory for an entry.
+   */
+  private static long charge(ByteKey key, RedisData data) {
+    return KEY_OVERHEAD + key.bytes.length + data.chargedUsage();
+  }
+
+  /**
+   * Evicts keys until used memory is back under maxmemory.
+   * Called before commands that may add data.
+   * @return false if the limit is still exceeded and the write must be refused.
+   */
+  public boolean freeMemoryIfNeeded() {
+    if (maxMemory == 0 || usedMemory.get() <= maxMemory) {
+      return true;
+    }
+    if (eviction.policy == Eviction.Policy.NOEVICTION) {
+      return false;
+    }
+
+    // Shards are sampled at random. In cluster mode there is one per slot and
+    // a node may own few of them, so once random picks keep finding empty
+    // shards, the non-empty ones are listed (one pass) and sampled instead.
+    // The list is kept for later calls and rebuilt after a while, so shards
+    // that fill up meanwhile are sampled too
+    int[] candidates = evictionShards;
+    if (candidates != null && evictedKeys.sum() - evictionShardsBuiltAt > EVICTION_SHARDS_REUSE) {
+      candidates = null;
+    }
+    int emptyPicks = 0;
+    int fruitlessSamples = 0;
+    while (usedMemory.get() > maxMemory) {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      Shard shard;
+      if (candidates == null) {
+        shard = shards[random.nextInt(shards.length)];
+        if (shard.dataStore.isEmpty()) {
+          if (++emptyPicks > 16) {
+            candidates = listEvictionShards();
+            if (candidates.length == 0) {
+              return false;
+            }
+          }
+          continue;
+        }
+      } else {
+        shard = shards[candidates[random.nextInt(candidates.length)]];
+        if (shard.dataStore.isEmpty()) {
+          candidates = listEvictionShards(); // Emptied by the evictions so far
+          if (candidates.length == 0) {
+            return false;
+          }
+          continue;
+        }
+      }
+      Map.Entry<ByteKey, RedisData> victim = eviction.pickVictim(shard.dataStore);
+      if (victim == null) {
+        // No eligible key in the sample (e.g. no volatile keys for volatile-ttl)
+        if (++fruitlessSamples > 16) {
+          return false;
+        }
+        continue;
+      }
+      shard.lock.writeLock().lock();
+      try {
+        if (remove(victim.getKey(), victim.getValue())) {
+          evictedKeys.increment();
+        }
+      } finally {
+        shard.lock.writeLock().unlock();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Lists the shards holding at least one key, for eviction to sample.
+   * @return Their indexes.
+   */
+  private int[] listEvictionShards() {
+    int[] indexes = new int[shards.length];
+    int count = 0;
+    for (int i = 0; i < shards.length; i++) {
+      if (!shards[i].dataStore.isEmpty()) {
+        indexes[count++] = i;
+      }
+    }
+    indexes = Arrays.copyOf(indexes, count);
+    evictionShardsBuiltAt = evictedKeys.sum();
+    evictionShards = indexes;
+    return indexes;
+  }
+
+  /**
+   * Removes a key whose deadline the background expiry found due, if its
+   * live entry has expired; one that a racing write left with a later
+   * deadline is scheduled again. Takes the key's shard lock itself.
+   * @return true if the key was removed.
+   */
+  public boolean removeExpired(ByteKey key) {
+    Shard shard = shard(key);
+    shard.lock.writeLock().lock();
+    try {
+      RedisData current = shard.dataStore.get(key);
+      if (current == null || current.expiryTime == -1) {
+        return false;
+      }
+      if (!current.isExpired()) {
+        activeExpiry.schedule(key, current.expiryTime);
+        return false;
+      }
+      return remove(key, current);
+    } finally {
+      shard.lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes every key (a replica replacing its data with the master's).
+   */
+  public void clear() {
+    for (Shard shard : shards) {
+      shard.lock.writeLock().lock();
+      try {
+        for (Map.Entry<ByteKey, RedisData> entry : shard.dataStore.entrySet()) {
+          remove(entry.getKey(), entry.getValue());
+        }
+      } finally {
+        shard.lock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Sizes the dataStore for a load of the given number of keys, so it does not
+   * rehash over and over while the keys go in. Only done while it is empty.
+   */
+  public synchronized void presize(long expectedKeys) {
+    long perShard = expectedKeys / shards.length;
+    if (size() != 0 || perShard <= 1024) {
+      return;
+    }
+    for (Shard shard : shards) {
+      if (shard.dataStore instanceof ConcurrentHashMap) {
+        shard.dataStore = new ConcurrentHashMap<>((int) Math.min(perShard, 1 << 30));
+      }
+    }
+  }
+
+  /**
+   * @return The number of keys, including expired ones not reclaimed yet.
+   */
+  public int size() {
+    int size = 0;
+    for (Shard shard : shards) {
+      size += shard.dataStore.size();
+    }
+    return size;
+  }
+
+  /**
+   * Visits every entry as stored, expired ones included (KEYS). Walks the
+   * shard maps without locks: entries changed meanwhile may or may not be seen.
+   */
+  public void forEach(BiConsumer<ByteKey, RedisData> visitor) {
+    for (Shard shard : shards) {
+      shard.dataStore.forEach(visitor);
+    }
+  }
+
+  /**
+   * Visits entries as stored, expired ones included, a few bins of the shard
+   * maps at a time (SCAN): whole bins until at least count entries were
+   * visited or 10 * count bins were found empty. Takes no locks.
+   *
+   * The cursor holds a shard index in its low bits and a reverse-binary bin
+   * cursor for that shard above them (see {@link Dict#nextCursor}); shards
+   * are walked through one after the other. As with Redis's dictScan, every
+   * key present from the first call to the last is visited at least once,
+   * however the maps are resized in between, and some may be visited twice.
+   *
+   * Finding a bin relies on how ConcurrentHashMap spliterators split, which
+   * the JDK does not specify (see {@link #scanBin}). Should the check at
+   * startup find them unfit, each call walks whole shards instead and the
+   * bin cursor stays 0. That is still complete, but a call then visits at
+   * least one whole shard, however small count is: by default 1/64 of the
+   * keyspace or less, one slot in cluster mode. On a large keyspace each
+   * call then takes that long, holding up the other clients of its event
+   * loop in NIO mode.
+   * @return The cursor to continue from, 0 once every shard was walked through.
+   */
+  public long scan(long cursor, int count, BiConsumer<ByteKey, RedisData> visitor) {
+    int shardBits = Integer.numberOfTrailingZeros(shards.length);
+    int index = (int) (cursor & (shards.length - 1));
+    long binCursor = cursor >>> shardBits;
+    long budget = 10L * count;
+    int[] visited = new int[1];
+    Consumer<Map.Entry<ByteKey, RedisData>> counting = entry -> {
+      visitor.accept(entry.getKey(), entry.getValue());
+      visited[0]++;
+    };
+    do {
+      ConcurrentHashMap<ByteKey, RedisData> map = (ConcurrentHashMap<ByteKey, RedisData>) shards[index].dataStore;
+      if (BIN_SCAN) {
+        binCursor = scanBin(map, binCursor, counting);
+      } else {
+        map.entrySet().forEach(counting);
+        binCursor = 0;
+      }
+      if (binCursor == 0 && ++index == shards.length) {
+        return 0;
+      }
+    } while (visited[0] < count && --budget > 0);
+    return (binCursor << shardBits) | index;
+  }
+
+  /**
+   * Visits the entries of the bin a reverse-binary cursor points at.
+   *
+   * A ConcurrentHashMap has no bin-level API, but its spliterators cover a
+   * range of bins of the table they were created on and split it in halves,
+   * keeping the lower one: splitting until nothing is left gives the table
+   * size, and choosing a half per bit of the cursor, highest first, narrows
+   * a spliterator down to one bin in O(log n). A spliterator that can still
+   * split after that was created on a table that grew meanwhile, so the
+   * lookup starts over. One that meets a bin being moved by a resize follows
+   * it into the new table, so it still visits every key of the old bin.
+   *
+   * None of this is specified, only how the JDK's map has long worked, so
+   * {@link #binScanWorks} checks it once before SCAN relies on it.
+   * @return The cursor of the next bin, 0 after the last one.
+   */
+  private static <K, V> long scanBin(ConcurrentHashMap<K, V> map, long cursor,
+      Consumer<Map.Entry<K, V>> visitor) {
+    while (true) {
+      Spliterator<Map.Entry<K, V>> range = map.entrySet().spliterator();
+      long bins = 1;
+      while (range.trySplit() != null) {
+        bins <<= 1;
+      }
+      Spliterator<Map.Entry<K, V>> bin = map.entrySet().spliterator();
+      for (long half = bins >>> 1; half > 0; half >>>= 1) {
+        Spliterator<Map.Entry<K, V>> upper = bin.trySplit();
+        if ((cursor & half) != 0) {
+          bin = upper;
+        }
+      }
+      if (bin.trySplit() != null) {
+        continue; // The table grew between the two spliterators
+      }
+      bin.forEachRemaining(visitor);
+      return Dict.nextCursor(cursor, bins - 1);
+    }
+  }
+
+  /**
+   * Checks what {@link #scanBin} assumes of ConcurrentHashMap on maps whose
+   * bins are known, as Integer keys hash to themselves: that a walk visits
+   * every key exactly once, each in the call for the bin its hash picks, and
+   * that the keys present from the start are all visited when the table
+   * grows several times halfway through.
+   * @return true if it holds; if not, the reason is logged.
+   */
+  static boolean binScanWorks() {
+    ConcurrentHashMap<Integer, Integer> map = new ConcurrentHashMap<>();
+    for (int i = 0; i < 1000; i++) {
+      map.put(i * 0x9E3779B9, i); // Spread over the high bits too, which the map folds in
+    }
+    Map<Integer, Long> visitedAt = new HashMap<>();
+    long calls = 0;
+    boolean[] repeated = {false}; // Out-param of the lambda below
+    long cursor = 0;
+    do {
+      long at = cursor;
+      cursor = scanBin(map, cursor, entry -> repeated[0] |= visitedAt.put(entry.getKey(), at) != null);
+      calls++;
+    } while (cursor != 0 && calls <= 1 << 20);
+    long mask = calls - 1; // One call per bin, so this is the table's
+    String failure = null;
+    if (cursor != 0 || (calls & mask) != 0 || calls < map.size()) {
+      failure = "the walk took " + calls + " calls for " + map.size() + " keys";
+    } else if (repeated[0] || visitedAt.size() != map.size()) {
+      failure = "a walk visited " + visitedAt.size() + " of " + map.size() + " keys, some twice";
+    } else {
+      for (Map.Entry<Integer, Long> entry : visitedAt.entrySet()) {
+        int hash = entry.getKey() ^ (entry.getKey() >>> 16); // The map's own spreading
+        if ((hash & mask) != entry.getValue()) {
+          failure = "key " + entry.getKey() + " was visited in the wrong bin";
+          break;
+        }
+      }
+    }
+
+    if (failure == null) {
+      ConcurrentHashMap<Integer, Integer> growing = new ConcurrentHashMap<>();
+      for (int i = 0; i < 64; i++) {
+        growing.put(i * 0x9E3779B9, i);
+      }
+      Map<Integer, Integer> seen = new HashMap<>();
+      cursor = 0;
+      int steps = 0;
+      do {
+        cursor = scanBin(growing, cursor, entry -> seen.put(entry.getKey(), entry.getValue()));
+        if (++steps == 40) {
+          for (int i = 64; i < 4000; i++) {
+            growing.put(i * 0x9E3779B9, i);
+          }
+        }
+      } while (cursor != 0 && steps <= 1 << 20);
+      for (int i = 0; i < 64 && failure == null; i++) {
+        if (!seen.containsKey(i * 0x9E3779B9)) {
+          failure = "a key was missed when the table grew during a walk";
+        }
+      }
+    }
+
+    if (failure != null) {
+      System.out.println("SCAN walks whole keyspace shards per call: ConcurrentHashMap spliterators"
+          + " no longer split by bin as expected (" + failure + ")");
+    }
+    return failure == null;
+  }
+
+  /**
+   * @return The shard the key in argument i lives in.
+   */
+  int shardOf(CommandArgs args, int i) {
+    return bySlot ? args.slot(i) : shardOf(args.hash(i));
+  }
+
+  /**
+   * @return The shard a key lives in.
+   */
+  int shardOf(ByteKey key) {
+    return bySlot ? Cluster.keySlot(key.bytes) : shardOf(key.hashCode());
+  }
+
+  private int shardOf(int hash) {
+    // Fibonacci hashing: the shard comes from the high bits of the mixed hash,
+    // leaving the low bits spread for the map inside the shard
+    return (int) (((hash * 0x9E3779B9) & 0xFFFFFFFFL) >>> shardShift);
+  }
+
+  private Shard shard(ByteKey key) {
+    return shards[shardOf(key)];
+  }
+
+  /**
+   * Locks shards for a command: shared for a read, exclusive for a write.
+   * Multi-key commands lock in ascending shard order, so two commands can
+   * never wait for each other.
+   * @param shardIndexes Distinct shard indexes in ascending order, or null for every shard.
+   */
+  public void lock(int[] shardIndexes, boolean write) {
+    if (shardIndexes == null) {
+      for (Shard shard : shards) {
+        lockShard(shard, write);
+      }
+    } else {
+      for (int index : shardIndexes) {
+        lockShard(shards[index], write);
+      }
+    }
+  }
+
+  /**
+   * Releases what {@link #lock} took.
+   */
+  public void unlock(int[] shardIndexes, boolean write) {
+    if (shardIndexes == null) {
+      for (int i = shards.length - 1; i >= 0; i--) {
+        unlockShard(shards[i], write);
+      }
+    } else {
+      for (int i = shardIndexes.length - 1; i >= 0; i--) {
+        unlockShard(shards[shardIndexes[i]], write);
+      }
+    }
+  }
+
+  private static void lockShard(Shard shard, boolean write) {
+    if (write) {
+      shard.lock.writeLock().lock();
+    } else {
+      shard.lock.readLock().lock();
+    }
+  }
+
+  private static void unlockShard(Shard shard, boolean write) {
+    if (write) {
+      shard.lock.writeLock().unlock();
+    } else {
+      shard.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Opens a point-in-time view of the keyspace for a save.
+   * Write commands finished before this returns are in the snapshot, later ones are not.
+   * @param atCut Runs while no write command is in flight (e.g. to start an AOF
+   *              rewrite buffer at exactly the snapshot point), or null.
+   */
+  public synchronized Snapshot beginSnapshot(Runnable atCut) {
+    // Every shard at once: no write command can straddle the cut
+    lock(null, true);
+    try {
+      snapshot = new Snapshot(this);
+      if (atCut != null) {
+        atCut.run();
+      }
+      return snapshot;
+    } finally {
+      unlock(null, true);
+    }
+  }
+
+  /**
+   * Looks up an entry as stored, expired or not, without touching it (for snapshots).
+   */
+  RedisData peek(ByteKey key) {
+    return shard(key).dataStore.get(key);
+  }
+
+  int shardCount() {
+    return shards.length;
+  }
+
+  /**
+   * The map of one shard, for iterating it (snapshots).
+   */
+  Map<ByteKey, RedisData> shardMap(int index) {
+    return shards[index].dataStore;
+  }
+
+  /**
+   * Closes the snapshot, dropping the versions it preserved.
+   */
+  public synchronized void endSnapshot(Snapshot finished) {
+    if (snapshot == finished) {
+      snapshot = null;
+    }
+  }
+
+  /**
+   * Starts background maintenance (active expiry).
+   */
+  public void start() {
+    activeExpiry.start();
+  }
+
+  /**
+   * Appends the memory section in INFO format.
+   */
+  public void appendMemoryInfo(StringBuilder info) {
+    Runtime runtime = Runtime.getRuntime();
+    info.append("used_memory:").append(usedMemory.get()).append("\r\n");
+    info.append("used_memory_heap:").append(runtime.totalMemory() - runtime.freeMemory()).append("\r\n");
+    info.append("maxmemory:").append(maxMemory).append("\r\n");
+    info.append("maxmemory_policy:").append(eviction.policy.configName()).append("\r\n");
+  }
+
+  /**
+   * Appends the keyspace related counters of the stats section in INFO format.
+   */
+  public void appendStatsInfo(StringBuilder info) {
+    activeExpiry.appendInfo(info);
+    info.append("evicted_keys:").append(evictedKeys.sum()).append("\r\n");
+  }
+}
@@ -307,32 +307,85 @@
 //   }
 // }
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.LinkedList; // Import LinkedList
-import java.util.List; // Import List
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * Main server class.
  */
 public class Main {
-  
-  // Update dataStore to hold any type of RedisData
-  private static final Map<String, RedisData> dataStore = new ConcurrentHashMap<>();
 
   public static void main(String[] args) {
     System.out.println("Logs from your program will appear here!");
 
+    ServerConfig config = ServerConfig.parse(args);
+
+    Keyspace keyspace = new Keyspace(config);
+
+    Persistence persistence = new Persistence(keyspace, config);
+
+    Replication replication = new Replication(config);
+
+    // Cluster mode: this node serves the hash slots assigned to it and
+    // redirects clients to the other nodes for the rest
+    Cluster cluster = null;
+    if (config.clusterEnabled) {
+      try {
+        cluster = new Cluster(config, keyspace);
+      } catch (IOException e) {
+        System.out.println("Failed to load the cluster config: " + e.getMessage());
+        System.exit(1);
+      }
+      cluster.start();
+    }
+
+    // One processor is shared by all connections; it holds no per-client state
+    CommandProcessor commandProcessor = new CommandProcessor(config, keyspace, persistence, replication,
+        cluster);
+
+    // Warm start from the AOF or the last snapshot. Connections are accepted
+    // meanwhile and get -LOADING, so a failover sees the server up at once.
+    Thread loader = new Thread(() -> {
+      try {
+        persistence.load(commandProcessor);
+      } catch (IOException e) {
+        System.out.println("Failed to load the saved data: " + e.getMessage());
+        System.exit(1);
+      }
+      // Reclaim expired keys in the background, not only when they are touched
+      keyspace.start();
+      // A replica starts following its master once its own data is loaded
+      replication.start(keyspace, persistence, commandProcessor);
+    }, "loader");
+    loader.start();
+
+    // Non-blocking mode: a few selector threads own all the connections
+    if (config.ioMode == ServerConfig.IoMode.NIO) {
+      try {
+        new EventLoopServer(config, commandProcessor).run();
+      } catch (IOException e) {
+        System.out.println("IOException: " + e.getMessage());
+      }
+      return;
+    }
+
+    // Blocking mode: one thread per connection, virtual threads if requested
+    Thread.Builder threadBuilder = config.ioMode == ServerConfig.IoMode.VIRTUAL
+        ? Thread.ofVirtual().name("client-", 0)
+        : Thread.ofPlatform().name("client-", 0);
+
     ServerSocket serverSocket = null;
-    int port = 6379;
+    int port = config.port;
 
     try {
       serverSocket = new ServerSocket(port);
@@ -341,10 +394,13 @@ public class Main {
       while (true) {
         Socket clientSocket = serverSocket.accept();
         System.out.println("Client connected");
+        // Messages and invalidations are small writes of their own, outside the
+        // request/reply rhythm; Nagle would hold them until the client ACKs
+        clientSocket.setTcpNoDelay(true);
 
-        // Pass the shared dataStore to each new ClientHandler
-        ClientHandler handler = new ClientHandler(clientSocket, dataStore);
-        new Thread(handler).start();
+        // Pass the shared command processor to each new ClientHandler
+        ClientHandler handler = new ClientHandler(clientSocket, config, commandProcessor);
+        threadBuilder.start(handler);
       }
 
     } catch (IOException e) {
@@ -362,235 +418,128 @@ public class Main {
 }
 
 /**
- * Handles a single client connection in its own thread.
+ * Handles a single client connection in its own thread
+ * (a platform thread or a virtual thread, depending on --io-mode).
  */
-class ClientHandler implements Runnable {
-  private Socket clientSocket;
-  // Update dataStore field type
-  private Map<String, RedisData> dataStore;
+class ClientHandler extends Client implements Runnable {
+  private static final int INITIAL_BUFFER_SIZE = 4096;
 
-  // Update constructor to accept the new map type
-  public ClientHandler(Socket socket, Map<String, RedisData> dataStore) {
+  private Socket clientSocket;
+  private CommandProcessor commandProcessor;
+  // Replies are sent between commands, never from inside one: a blocking
+  // write there would hold the command's shard locks while the client reads
+  private final ReplyStream replies;
+  // Replies of blocking commands, handed over by whichever thread ended the wait
+  private final BlockingQueue<byte[]> unblockedReplies = new LinkedBlockingQueue<>();
+  // Set by PSYNC: the socket goes to a replica link once the replies are sent
+  private Consumer<Socket> handOffReceiver;
+  private Thread thread;
+  private WritableByteChannel output;
+
+  // Published messages arrive from other threads. Whoever holds the right to
+  // write to the socket sends them: this thread while it serves a batch of
+  // commands, so a SUBSCRIBE reply always goes out before the messages that
+  // follow it, otherwise a short-lived sender started by the first message
+  // to arrive while this thread waits for input. A j.u.c lock, not a monitor:
+  // a virtual thread waiting for the right to write must not pin its carrier
+  private final ReentrantLock sendLock = new ReentrantLock();
+  private final Condition sendFree = sendLock.newCondition(); // Signalled when sending clears
+  private ReplyStream pushes; // Messages not sent yet; guarded by sendLock
+  private ReplyStream spare;  // Swapped with pushes, so a batch is sent outside the lock
+  private boolean sending;    // The right to write is held; guarded by sendLock
+
+  public ClientHandler(Socket socket, ServerConfig config, CommandProcessor commandProcessor) {
     this.clientSocket = socket;
-    this.dataStore = dataStore;
+    this.commandProcessor = commandProcessor;
+    this.replies = new ReplyStream(config);
+    this.pushes = new ReplyStream(config);
+    this.spare = new ReplyStream(config);
+    pushes.usePubSubLimits(true);
+    spare.usePubSubLimits(true);
   }
 
   @Override
   public void run() {
     try {
+      // Read raw bytes straight from the socket. The socket streams only use
+      // j.u.c locks, so a virtual thread blocked here unmounts from its carrier;
+      // the old BufferedReader/InputStreamReader layers (and their charset
+      // decoding) are gone from the read path.
+      thread = Thread.currentThread();
+      commandProcessor.connected(this);
       InputStream inputStream = clientSocket.getInputStream();
-      BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-      OutputStream outputStream = clientSocket.getOutputStream();
-      
-      String line;
-
-      while ((line = reader.readLine()) != null) {
-        // --- RESP Parsing (same as before) ---
-        if (!line.startsWith("*")) {
-          System.out.println("Protocol error: Expected Array header, got: " + line);
-          continue;
-        }
+      output = channelOf(clientSocket.getOutputStream());
+      ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // Write mode between reads
+      RespDecoder decoder = new RespDecoder();
 
-        int numElements = Integer.parseInt(line.substring(1));
-        ArrayList<String> commandParts = new ArrayList<>();
-
-        for (int i = 0; i < numElements; i++) {
-          String bulkHeader = reader.readLine();
-          if (bulkHeader == null || !bulkHeader.startsWith("$")) {
-            throw new IOException("Protocol error: Expected Bulk String header");
-          }
-          int length = Integer.parseInt(bulkHeader.substring(1));
-          char[] data = new char[length];
-          reader.read(data, 0, length);
-          reader.skip(2); // Consume \r\n
-          commandParts.add(new String(data));
+      while (true) {
+        if (!buffer.hasRemaining()) {
+          buffer = grow(buffer); // A single command is larger than the buffer
         }
-        // --- End of RESP Parsing ---
-
-        if (commandParts.isEmpty()) {
-          continue;
+        int read = inputStream.read(buffer.array(), buffer.position(), buffer.remaining());
+        if (read < 0) {
+          break;
         }
+        buffer.position(buffer.position() + read);
+        buffer.flip();
+
+        acquireSend();
+        // Run every complete command received so far, collecting the replies
+        // so a pipelined batch goes out in one write instead of one per command
+        CommandArgs args;
+        while ((args = decoder.decode(buffer)) != null) {
+          if (args.count() == 0) {
+            continue;
+          }
 
-        String command = commandParts.get(0).toUpperCase();
-
-        // --- Command Handling ---
-        switch (command) {
-          case "PING":
-            outputStream.write("+PONG\r\n".getBytes());
-            break;
-
-          case "ECHO":
-            if (commandParts.size() < 2) {
-              outputStream.write("-ERR wrong number of arguments for 'echo' command\r\n".getBytes());
-            } else {
-              String echoArg = commandParts.get(1);
-              String response = "$" + echoArg.length() + "\r\n" + echoArg + "\r\n";
-              outputStream.write(response.getBytes());
-            }
-            break;
-          
-          case "SET":
-            if (commandParts.size() < 3) {
-              outputStream.write("-ERR wrong number of arguments for 'set' command\r\n".getBytes());
-              break;
-            }
-            
-            String key = commandParts.get(1);
-            String value = commandParts.get(2);
-            long expiryTime = -1; 
-
-            if (commandParts.size() == 5) {
-              if (commandParts.get(3).equalsIgnoreCase("PX")) {
-                try {
-                  long duration = Long.parseLong(commandParts.get(4));
-                  expiryTime = System.currentTimeMillis() + duration;
-                } catch (NumberFormatException e) {
-                  outputStream.write("-ERR value is not an integer or out of range\r\n".getBytes());
-                  break; 
-                }
-              } else {
-                outputStream.write("-ERR syntax error\r\n".getBytes());
-                break;
-              }
-            } else if (commandParts.size() != 3) {
-              outputStream.write("-ERR wrong number of arguments for 'set' command\r\n".getBytes());
-              break;
-            }
-
-            // Create a RedisString object
-            RedisString stringEntry = new RedisString(value, expiryTime);
-            dataStore.put(key, stringEntry);
-            
-            outputStream.write("+OK\r\n".getBytes());
-            break;
-            
-          case "GET":
-            if (commandParts.size() != 2) {
-              outputStream.write("-ERR wrong number of arguments for 'get' command\r\n".getBytes());
-            } else {
-              String getKey = commandParts.get(1);
-              RedisData getValue = dataStore.get(getKey);
-              
-              if (getValue == null) {
-                // Key not found
-                outputStream.write("$-1\r\n".getBytes());
-              } else if (getValue.isExpired()) {
-                // Key found, but it's expired
-                dataStore.remove(getKey); // Lazy eviction
-                outputStream.write("$-1\r\n".getBytes());
-              } else if (getValue instanceof RedisString) {
-                // Key found, not expired, and is a String
-                RedisString foundString = (RedisString) getValue;
-                String response = "$" + foundString.value.length() + "\r\n" + foundString.value + "\r\n";
-                outputStream.write(response.getBytes());
-              } else {
-                // Key found, but it's not a String (e.g., it's a List)
-                outputStream.write("-WRONGTYPE Operation against a key holding the wrong kind of value\r\n".getBytes());
-              }
-            }
-            break;
-
-          case "RPUSH":
-            // RPUSH key element [element ...]
-            if (commandParts.size() < 3) {
-              outputStream.write("-ERR wrong number of arguments for 'rpush' command\r\n".getBytes());
-              break;
-            }
-
-            String listKey = commandParts.get(1);
-            RedisData existingEntry = dataStore.get(listKey);
-            RedisList list;
-
-            if (existingEntry == null) {
-              // Case 1: Key doesn't exist. Create a new list.
-              list = new RedisList();
-              dataStore.put(listKey, list);
-            } else if (existingEntry.isExpired()) {
-              // Case 2: Key exists but is expired. Evict and create new.
-              dataStore.remove(listKey);
-              list = new RedisList();
-              dataStore.put(listKey, list);
-            } else if (existingEntry instanceof RedisList) {
-              // Case 3: Key exists and is a list.
-              list = (RedisList) existingEntry;
-            } else {
-              // Case 4: Key exists but is NOT a list.
-              outputStream.write("-WRONGTYPE Operation against a key holding the wrong kind of value\r\n".getBytes());
-              break;
-            }
-            
-            // Add all provided elements to the list
-            int newSize = 0;
-            for (int i = 2; i < commandParts.size(); i++) {
-              newSize = list.rpush(commandParts.get(i));
-            }
-            
-            // Respond with the *final* size of the list as an Integer
-            outputStream.write((":" + newSize + "\r\n").getBytes());
-            break;
-
-          // --- NEW CASE FOR LRANGE ---
-          case "LRANGE":
-            // LRANGE key start stop
-            if (commandParts.size() != 4) {
-              outputStream.write("-ERR wrong number of arguments for 'lrange' command\r\n".getBytes());
-              break;
-            }
-
-            String lrangeKey = commandParts.get(1);
-            int start;
-            int stop;
-
-            // Parse start and stop indices
-            try {
-              start = Integer.parseInt(commandParts.get(2));
-              stop = Integer.parseInt(commandParts.get(3));
-            } catch (NumberFormatException e) {
-              outputStream.write("-ERR value is not an integer or out of range\r\n".getBytes());
-              break;
-            }
-            
-            RedisData lrangeEntry = dataStore.get(lrangeKey);
-
-            // Case 1: List doesn't exist or is expired (Treat as empty list)
-            if (lrangeEntry == null || lrangeEntry.isExpired()) {
-              if (lrangeEntry != null) { // Lazy eviction
-                dataStore.remove(lrangeKey);
-              }
-              outputStream.write("*0\r\n".getBytes()); // Return empty RESP array
-              break;
-            }
-
-            // Case 2: Key exists, but it's not a list
-            if (!(lrangeEntry instanceof RedisList)) {
-              outputStream.write("-WRONGTYPE Operation against a key holding the wrong kind of value\r\n".getBytes());
-              break;
-            }
+          // --- Command Handling ---
+          commandProcessor.execute(this, args, replies);
+          if (replies.isDiscarded()) {
+            System.out.println("Closing client " + id + ": " + replies.discardReason());
+            return;
+          }
 
-            // Case 3: Key is a list. Get the range.
-            RedisList redisList = (RedisList) lrangeEntry;
-            List<String> subList = redisList.lrange(start, stop);
+          if (isBlocked()) {
+            // BLPOP/BRPOP is waiting: send what we have and park until it is served
+            flushReplies(output);
+            byte[] reply = unblockedReplies.take();
+            waiter = null;
+            replies.write(reply);
+          }
 
-            // Respond with the sublist as a RESP array
-            StringBuilder responseBuilder = new StringBuilder();
-            responseBuilder.append("*" + subList.size() + "\r\n");
-            for (String item : subList) {
-              responseBuilder.append("$" + item.length() + "\r\n");
-              responseBuilder.append(item + "\r\n");
-            }
-            outputStream.write(responseBuilder.toString().getBytes());
-            break;
-          // --- END OF LRANGE CASE ---
+          if (handOffReceiver != null) {
+            flushReplies(output);
+            Consumer<Socket> receiver = handOffReceiver;
+            receiver.accept(clientSocket);
+            clientSocket = null; // Owned by the receiver now
+            return;
+          }
 
-          default:
-            outputStream.write(("-ERR unknown command '" + commandParts.get(0) + "'\r\n").getBytes());
+          if (replies.size() >= ReplyStream.FLUSH_THRESHOLD) {
+            flushReplies(output);
+          }
         }
+        flushReplies(output);
+        sendPushes();
+
+        // Keep any partial command for the next read
+        buffer.compact();
       }
     } catch (IOException e) {
       System.out.println("Client disconnected or IOException: " + e.getMessage());
     } catch (NumberFormatException e) {
       System.out.println("Protocol error, bad number format: " + e.getMessage());
+    } catch (InterruptedException e) {
+      System.out.println("Interrupted while blocked: " + e.getMessage());
     } finally {
+      commandProcessor.disconnected(this);
+      replies.release();
+      sendLock.lock();
+      try {
+        pushes.discard("connection closed"); // Stops queuing messages
+      } finally {
+        sendLock.unlock();
+      }
       try {
         if (clientSocket != null) {
           clientSocket.close();
@@ -600,104 +549,191 @@ class ClientHandler implements Runnable {
       }
     }
   }
-}
 
-/**
- * Base class for all data types stored in Redis.
- * Handles expiry.
- */
-abstract class RedisData {
-  long expiryTime; // Absolute time in milliseconds when this expires
+  @Override
+  void unblock(byte[] reply) {
+    unblockedReplies.add(reply);
+  }
 
-  public RedisData(long expiryTime) {
-    this.expiryTime = expiryTime;
+  @Override
+  void push(ByteBuffer frame) {
+    if (Thread.currentThread() == thread) {
+      replies.writeShared(frame); // Published by this client: sent with its replies
+      return;
+    }
+    sendLock.lock();
+    try {
+      if (pushes.isDiscarded()) {
+        return; // Being closed
+      }
+      pushes.writeShared(frame);
+      if (pushes.isDiscarded()) {
+        // The handler's blocked read fails and it cleans up
+        System.out.println("Closing client " + id + ": " + pushes.discardReason());
+        closeSocket();
+        return;
+      }
+      if (sending) {
+        return; // Sent by the current holder before it lets go
+      }
+      sending = true;
+    } finally {
+      sendLock.unlock();
+    }
+    Thread.startVirtualThread(() -> {
+      try {
+        sendPushes();
+      } catch (IOException e) {
+        System.out.println("Client disconnected or IOException: " + e.getMessage());
+        closeSocket();
+      }
+    });
   }
-  
-  public RedisData() {
-    this.expiryTime = -1; // Default: no expiry
+
+  @Override
+  boolean hasSocket() {
+    return true;
+  }
+
+  @Override
+  void handOff(Consumer<Socket> receiver) {
+    handOffReceiver = receiver;
   }
 
   /**
-   * Checks if this entry is expired.
-   * @return true if the entry has an expiry time and the current time is past it,
-   * false otherwise.
+   * Takes the right to write to the socket, waiting for a sender of
+   * published messages to finish its batch.
    */
-  public boolean isExpired() {
-    if (expiryTime == -1) {
-      return false; // No expiry set
+  private void acquireSend() throws InterruptedException {
+    sendLock.lock();
+    try {
+      while (sending) {
+        sendFree.await();
+      }
+      sending = true;
+    } finally {
+      sendLock.unlock();
     }
-    return System.currentTimeMillis() > expiryTime;
   }
-}
-
-/**
- * Represents a String value in Redis.
- */
-class RedisString extends RedisData {
-  String value;
 
-  public RedisString(String value, long expiryTime) {
-    super(expiryTime);
-    this.value = value;
+  /**
+   * Sends the queued messages, then gives up the right to write. It is given
+   * up in the same step that finds the queue empty, so a message queued
+   * after that starts a new sender.
+   */
+  private void sendPushes() throws IOException {
+    boolean released = false;
+    try {
+      while (!released) {
+        ReplyStream batch = null;
+        sendLock.lock();
+        try {
+          if (pushes.size() == 0) {
+            release();
+            released = true;
+          } else {
+            batch = pushes;
+            pushes = spare;
+            spare = null;
+          }
+        } finally {
+          sendLock.unlock();
+        }
+        if (batch != null) {
+          try {
+            batch.drainTo(output); // Blocking: sends everything
+          } finally {
+            sendLock.lock();
+            try {
+              spare = batch;
+            } finally {
+              sendLock.unlock();
+            }
+          }
+        }
+      }
+    } finally {
+      if (!released) {
+        sendLock.lock();
+        try {
+          release();
+        } finally {
+          sendLock.unlock();
+        }
+      }
+    }
   }
 
-  public RedisString(String value) {
-    super(-1); // No expiry
-    this.value = value;
+  /**
+   * Gives up the right to write, waking the handler if it waits for it.
+   * Called holding sendLock.
+   */
+  private void release() {
+    sending = false;
+    sendFree.signalAll();
   }
-}
-
-/**
- * Represents a List value in Redis.
- */
-class RedisList extends RedisData {
-  // Use LinkedList for efficient push/pop from both ends
-  List<String> list = new LinkedList<>();
 
-  public RedisList() {
-    super(-1); // No expiry
+  private void closeSocket() {
+    Socket socket = clientSocket;
+    try {
+      if (socket != null) {
+        socket.close();
+      }
+    } catch (IOException e) {
+      System.out.println("IOException closing client socket: " + e.getMessage());
+    }
   }
-  
-  /**
-   * Appends an element to the end of the list (RPUSH).
-   * @param element The string element to add.
-   * @return The new size of the list.
-   */
-  public int rpush(String element) {
-    list.add(element);
-    return list.size();
+
+  private void flushReplies(WritableByteChannel output) throws IOException {
+    // appendfsync always: the writes being acknowledged must be on disk first
+    commandProcessor.awaitDurable(this);
+    replies.drainTo(output);
   }
 
   /**
-   * Retrieves a range of elements from the list (LRANGE).
-   * Handles non-negative indices as per the prompt.
-   * @param start The 0-based start index (inclusive).
-   * @param stop The 0-based stop index (inclusive).
-   * @return A new List<String> containing the requested range, or an empty list
-   * if the range is invalid.
+   * The socket's output stream as a channel. Channels.newChannel would do,
+   * but it writes holding a monitor, and a virtual thread blocked in a write
+   * there (a sender of messages to a slow subscriber, or any client in
+   * virtual mode) pins its carrier thread until the socket drains. This one
+   * takes no lock of its own: writers never overlap, as each holds the right
+   * to write (see sendLock) for as long as it writes.
    */
-  public List<String> lrange(int start, int stop) {
-    int size = list.size();
-
-    // Handle cases that return an empty list based on prompt rules:
-    // 1. If the start index is greater than or equal to the list's length
-    // 2. If the start index is greater than the stop index
-    // (We assume start/stop are non-negative per the prompt)
-    if (start >= size || start > stop) {
-      return new ArrayList<>(); 
-    }
-    
-    // Handle stop index:
-    // 3. If the stop index is greater than or equal to the list's length,
-    //    treat it as the last element.
-    int realStop = stop;
-    if (realStop >= size) {
-      realStop = size - 1; 
-    }
+  private static WritableByteChannel channelOf(OutputStream stream) {
+    return new WritableByteChannel() {
+      private final byte[] scratch = new byte[8192]; // For buffers without an accessible array
+
+      @Override
+      public int write(ByteBuffer source) throws IOException {
+        int length = source.remaining();
+        if (source.hasArray()) {
+          stream.write(source.array(), source.arrayOffset() + source.position(), length);
+          source.position(source.limit());
+          return length;
+        }
+        while (source.hasRemaining()) {
+          int n = Math.min(source.remaining(), scratch.length);
+          source.get(scratch, 0, n);
+          stream.write(scratch, 0, n);
+        }
+        return length;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true; // Closed with the socket
+      }
 
-    // Get the sublist. 
-    // `List.subList`'s 'toIndex' is exclusive, so we add 1 to our 'inclusive' stop index.
-    // We return a new ArrayList to prevent modification issues with the subList view.
-    return new ArrayList<>(list.subList(start, realStop + 1));
+      @Override
+      public void close() throws IOException {
+        stream.close();
+      }
+    };
+  }
+
+  private static ByteBuffer grow(ByteBuffer buffer) {
+    ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+    buffer.flip();
+    grown.put(buffer);
+    return grown;
   }
-}
\ No newline at end of file
+}
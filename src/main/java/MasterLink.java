@@ -0,0 +1,267 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A replica's connection to its master (--replicaof).
+ *
+ * Does the handshake (PING, REPLCONF, PSYNC), loads the snapshot of a full
+ * resync, then applies the command stream as it arrives and acknowledges
+ * the processed offset once a second and whenever the master asks
+ * (REPLCONF GETACK). When the connection drops it reconnects and asks to
+ * continue from where it stopped, which the master serves from its backlog
+ * if it still can.
+ */
+class MasterLink implements Runnable {
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+  private static final long RECONNECT_DELAY_MILLIS = 1000;
+  private static final long ACK_INTERVAL_MILLIS = 1000;
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+  private final ServerConfig config;
+  private final Replication replication;
+  private final Keyspace keyspace;
+  private final Persistence persistence;
+  private final CommandProcessor commandProcessor;
+
+  // The stream applied so far
+  private volatile String masterReplid = "?";
+  private volatile long offset = -1; // -1 until the first full resync
+  private volatile boolean connected;
+  private volatile long lastIoMillis;
+
+  // Commands from the master run as this client; it never blocks
+  private final Client masterClient = new Client() {
+    @Override
+    void unblock(byte[] reply) {
+      // Blocking commands arrive as the pops they turned into
+    }
+  };
+
+  MasterLink(ServerConfig config, Replication replication, Keyspace keyspace, Persistence persistence,
+      CommandProcessor commandProcessor) {
+    this.config = config;
+    this.replication = replication;
+    this.keyspace = keyspace;
+    this.persistence = persistence;
+    this.commandProcessor = commandProcessor;
+  }
+
+  String masterReplid() {
+    return masterReplid;
+  }
+
+  long offset() {
+    return Math.max(0, offset);
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try (Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress(config.masterHost, config.masterPort), CONNECT_TIMEOUT_MILLIS);
+        socket.setTcpNoDelay(true);
+        follow(socket);
+      } catch (IOException e) {
+        System.out.println("Connection with master " + config.masterHost + ":" + config.masterPort
+            + " lost: " + e.getMessage());
+      } finally {
+        connected = false;
+      }
+      try {
+        Thread.sleep(RECONNECT_DELAY_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private void follow(Socket socket) throws IOException {
+    InputStream in = new BufferedInputStream(socket.getInputStream(), READ_BUFFER_SIZE);
+    OutputStream out = socket.getOutputStream();
+
+    // Handshake
+    expect(in, out, CommandEncoder.encode("PING"), "+PONG");
+    expect(in, out, CommandEncoder.encode("REPLCONF", "listening-port", Integer.toString(config.port)), "+OK");
+    expect(in, out, CommandEncoder.encode("REPLCONF", "capa", "psync2"), "+OK");
+    // Offsets in PSYNC are 1-based: the first byte we do not have yet
+    out.write(CommandEncoder.encode("PSYNC", masterReplid, Long.toString(offset < 0 ? -1 : offset + 1)));
+    out.flush();
+
+    String reply = readLine(in);
+    if (reply.startsWith("+FULLRESYNC ")) {
+      String[] parts = reply.split(" ");
+      fullResync(in, parts[1], Long.parseLong(parts[2]));
+    } else if (reply.startsWith("+CONTINUE")) {
+      String[] parts = reply.split(" ");
+      if (parts.length > 1) {
+        masterReplid = parts[1];
+      }
+      System.out.println("Partial resync with master, continuing from offset " + offset);
+    } else {
+      throw new IOException("Unexpected reply to PSYNC: " + reply);
+    }
+    connected = true;
+
+    Thread acks = startAcks(out);
+    try {
+      apply(in, out);
+    } finally {
+      acks.interrupt();
+    }
+  }
+
+  /**
+   * Replaces the local data with the master's snapshot.
+   */
+  private void fullResync(InputStream in, String replid, long startOffset) throws IOException {
+    String header = readLine(in);
+    while (header.isEmpty()) {
+      header = readLine(in); // Newlines keep the link alive while the master saves
+    }
+    if (!header.startsWith("$")) {
+      throw new IOException("Expected the snapshot, got: " + header);
+    }
+    long length = Long.parseLong(header.substring(1));
+    Path temp = persistence.rdbPath().resolveSibling("temp-sync-" + ProcessHandle.current().pid() + ".rdb");
+    try {
+      try (OutputStream file = Files.newOutputStream(temp)) {
+        byte[] chunk = new byte[READ_BUFFER_SIZE];
+        long remaining = length;
+        while (remaining > 0) {
+          int read = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+          if (read < 0) {
+            throw new IOException("Connection closed during the snapshot transfer");
+          }
+          file.write(chunk, 0, read);
+          remaining -= read;
+        }
+      }
+      System.out.println("Full resync from master: " + length + " bytes");
+
+      // Clients get -LOADING while the old data is swapped for the new
+      persistence.setLoading(true);
+      try {
+        keyspace.clear();
+        RdbLoader.load(temp, keyspace);
+      } finally {
+        persistence.setLoading(false);
+      }
+      masterReplid = replid;
+      offset = startOffset;
+
+      // Keep it as our own snapshot too, like Redis does after a full sync
+      Files.move(temp, persistence.rdbPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      if (persistence.isAppendOnly()) {
+        persistence.rewriteAppendOnlyFile();
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Applies the command stream until the connection drops.
+   */
+  private void apply(InputStream in, OutputStream out) throws IOException {
+    RespDecoder decoder = new RespDecoder();
+    ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    while (true) {
+      if (!buffer.hasRemaining()) {
+        ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2); // A command larger than the buffer
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+      }
+      int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+      if (read < 0) {
+        throw new IOException("Connection closed by master");
+      }
+      lastIoMillis = System.currentTimeMillis();
+      buffer.position(buffer.position() + read);
+      buffer.flip();
+
+      int start = buffer.position();
+      CommandArgs args;
+      while ((args = decoder.decode(buffer)) != null) {
+        if (args.count() > 0) {
+          if (args.is(0, "REPLCONF") && args.count() > 1 && args.is(1, "GETACK")) {
+            sendAck(out); // The offset up to, not including, this request
+          } else if (!args.is(0, "PING")) {
+            commandProcessor.replay(masterClient, args);
+          }
+        }
+        offset += buffer.position() - start;
+        start = buffer.position();
+      }
+      buffer.compact();
+    }
+  }
+
+  private Thread startAcks(OutputStream out) {
+    Thread thread = new Thread(() -> {
+      try {
+        while (true) {
+          Thread.sleep(ACK_INTERVAL_MILLIS);
+          sendAck(out);
+        }
+      } catch (InterruptedException | IOException e) {
+        // Link closed
+      }
+    }, "master-link-acks");
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  private void sendAck(OutputStream out) throws IOException {
+    byte[] ack = CommandEncoder.encode("REPLCONF", "ACK", Long.toString(offset));
+    synchronized (out) {
+      out.write(ack);
+      out.flush();
+    }
+  }
+
+  private static void expect(InputStream in, OutputStream out, byte[] command, String expected) throws IOException {
+    out.write(command);
+    out.flush();
+    String reply = readLine(in);
+    if (!reply.startsWith(expected)) {
+      throw new IOException("Unexpected reply from master: " + reply);
+    }
+  }
+
+  /**
+   * Reads a reply line, without its CRLF.
+   */
+  static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b < 0) {
+        throw new IOException("Connection closed by peer");
+      }
+      if (b != '\r') {
+        line.append((char) b);
+      }
+    }
+    return line.toString();
+  }
+
+  /**
+   * Appends the replica fields of the replication section in INFO format.
+   */
+  void appendInfo(StringBuilder info) {
+    info.append("master_link_status:").append(connected ? "up" : "down").append("\r\n");
+    info.append("master_last_io_seconds_ago:")
+        .append(connected ? (System.currentTimeMillis() - lastIoMillis) / 1000 : -1).append("\r\n");
+    info.append("slave_repl_offset:").append(offset()).append("\r\n");
+  }
+}
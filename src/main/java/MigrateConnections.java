@@ -0,0 +1,74 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connections MIGRATE keeps open to its targets, like Redis's migrate socket
+ * cache, so moving a slot in many small batches does not connect for each.
+ * A connection serves one MIGRATE at a time; another MIGRATE to the same
+ * target meanwhile opens its own. Connections that failed are not reused.
+ */
+class MigrateConnections {
+  private static final int MAX_CACHED = 64;
+
+  private static final class Connection {
+    final Socket socket;
+    final InputStream in;
+    final OutputStream out;
+
+    Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      this.in = new BufferedInputStream(socket.getInputStream());
+      this.out = socket.getOutputStream();
+    }
+  }
+
+  // Idle connections by target address; taken out while in use
+  private final Map<String, Connection> idle = new ConcurrentHashMap<>();
+
+  /**
+   * Sends a pipeline of commands and reads their replies.
+   * @param commands The number of commands in the pipeline.
+   * @return One line per command: status, error or integer replies.
+   */
+  List<String> call(String host, int port, long timeoutMillis, byte[] pipeline, int commands)
+      throws IOException {
+    String address = host + ":" + port;
+    Connection connection = idle.remove(address);
+    if (connection == null) {
+      Socket socket = new Socket();
+      try {
+        socket.connect(new InetSocketAddress(host, port), (int) timeoutMillis);
+        socket.setTcpNoDelay(true);
+        connection = new Connection(socket);
+      } catch (IOException e) {
+        socket.close();
+        throw e;
+      }
+    }
+    try {
+      connection.socket.setSoTimeout((int) timeoutMillis);
+      connection.out.write(pipeline);
+      connection.out.flush();
+      List<String> replies = new ArrayList<>(commands);
+      for (int i = 0; i < commands; i++) {
+        replies.add(MasterLink.readLine(connection.in));
+      }
+      if (idle.size() < MAX_CACHED && idle.putIfAbsent(address, connection) == null) {
+        connection = null; // Kept for the next MIGRATE
+      }
+      return replies;
+    } finally {
+      if (connection != null) {
+        connection.socket.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The listpack encoding of small lists: every element in one byte array,
+ * each as a varint length (7 bits per byte, low bits first, high bit set on
+ * all but the last byte) followed by its bytes. A list of a few short
+ * elements then costs one array instead of a {@link QuickList} with its ring,
+ * chunk and offset arrays, which start at a few hundred bytes.
+ *
+ * Arrays are exact size and never changed once built: every change returns
+ * a new one, as Redis reallocates its listpacks. Operations walk from the
+ * head, which is cheap at the sizes a list stays packed for
+ * ({@link #MAX_ELEMENTS}, {@link #MAX_BYTES}); a list that outgrows them
+ * moves to a QuickList (see {@link RedisList}).
+ */
+final class PackedList {
+  static final int MAX_ELEMENTS = QuickList.CHUNK_ELEMENTS;
+  static final int MAX_BYTES = QuickList.CHUNK_BYTES;
+
+  static final byte[] EMPTY = new byte[0];
+
+  private PackedList() {
+  }
+
+  /**
+   * @return The bytes an element of the given length takes, its length included.
+   */
+  static int entrySize(int length) {
+    int size = 1;
+    for (int rest = length >>> 7; rest != 0; rest >>>= 7) {
+      size++;
+    }
+    return size + length;
+  }
+
+  static byte[] append(byte[] packed, byte[] element) {
+    byte[] grown = Arrays.copyOf(packed, packed.length + entrySize(element.length));
+    writeEntry(grown, packed.length, element);
+    return grown;
+  }
+
+  static byte[] prepend(byte[] packed, byte[] element) {
+    int size = entrySize(element.length);
+    byte[] grown = new byte[packed.length + size];
+    writeEntry(grown, 0, element);
+    System.arraycopy(packed, 0, grown, size, packed.length);
+    return grown;
+  }
+
+  /**
+   * Inserts an element before element index (index == size appends).
+   */
+  static byte[] insert(byte[] packed, int index, byte[] element) {
+    int offset = offsetOf(packed, index);
+    int size = entrySize(element.length);
+    byte[] grown = new byte[packed.length + size];
+    System.arraycopy(packed, 0, grown, 0, offset);
+    writeEntry(grown, offset, element);
+    System.arraycopy(packed, offset, grown, offset + size, packed.length - offset);
+    return grown;
+  }
+
+  /**
+   * Replaces element index with another.
+   */
+  static byte[] replace(byte[] packed, int index, byte[] element) {
+    int offset = offsetOf(packed, index);
+    int end = offset + entrySize(readLength(packed, offset));
+    int size = entrySize(element.length);
+    byte[] changed = new byte[packed.length - (end - offset) + size];
+    System.arraycopy(packed, 0, changed, 0, offset);
+    writeEntry(changed, offset, element);
+    System.arraycopy(packed, end, changed, offset + size, packed.length - end);
+    return changed;
+  }
+
+  /**
+   * Removes count elements starting at element index.
+   */
+  static byte[] remove(byte[] packed, int index, int count) {
+    int offset = offsetOf(packed, index);
+    int end = offsetOf(packed, count, offset);
+    if (offset == 0 && end == packed.length) {
+      return EMPTY;
+    }
+    byte[] shrunk = new byte[packed.length - (end - offset)];
+    System.arraycopy(packed, 0, shrunk, 0, offset);
+    System.arraycopy(packed, end, shrunk, offset, packed.length - end);
+    return shrunk;
+  }
+
+  /**
+   * Looks for an element among every step-th one, e.g. step 2 for the
+   * fields of field-value pairs, comparing in place.
+   * @param size The number of elements in the list.
+   * @return Its index, or -1 if there is none.
+   */
+  static int find(byte[] packed, int size, byte[] element, int step) {
+    int offset = 0;
+    for (int i = 0; i < size; i++) {
+      int length = readLength(packed, offset);
+      int data = offset + entrySize(length) - length;
+      if (i % step == 0 && length == element.length
+          && Arrays.equals(packed, data, data + length, element, 0, length)) {
+        return i;
+      }
+      offset = data + length;
+    }
+    return -1;
+  }
+
+  /**
+   * @param index 0-based, must be within the list.
+   * @return A copy of the element.
+   */
+  static byte[] get(byte[] packed, int index) {
+    int offset = offsetOf(packed, index);
+    int length = readLength(packed, offset);
+    int data = offset + entrySize(length) - length;
+    return Arrays.copyOfRange(packed, data, data + length);
+  }
+
+  /**
+   * @return A list of the elements in [start, stop), 0-based.
+   */
+  static byte[] slice(byte[] packed, int start, int stop) {
+    if (start >= stop) {
+      return EMPTY;
+    }
+    int from = offsetOf(packed, start);
+    int to = offsetOf(packed, stop - start, from);
+    return Arrays.copyOfRange(packed, from, to);
+  }
+
+  /**
+   * Visits the elements in [start, stop], both inclusive and within bounds.
+   */
+  static void forEach(byte[] packed, int start, int stop, QuickList.ElementVisitor visitor) throws IOException {
+    int offset = offsetOf(packed, start);
+    for (int i = start; i <= stop; i++) {
+      int length = readLength(packed, offset);
+      int data = offset + entrySize(length) - length;
+      visitor.visit(packed, data, length);
+      offset = data + length;
+    }
+  }
+
+  /**
+   * @return Where element index starts; the array length for index == size.
+   */
+  private static int offsetOf(byte[] packed, int index) {
+    return offsetOf(packed, index, 0);
+  }
+
+  private static int offsetOf(byte[] packed, int index, int offset) {
+    for (int i = 0; i < index; i++) {
+      offset += entrySize(readLength(packed, offset));
+    }
+    return offset;
+  }
+
+  private static int readLength(byte[] packed, int offset) {
+    int length = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = packed[offset++];
+      length |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return length;
+      }
+    }
+  }
+
+  private static void writeEntry(byte[] packed, int offset, byte[] element) {
+    int length = element.length;
+    while (length >= 0x80) {
+      packed[offset++] = (byte) (length | 0x80);
+      length >>>= 7;
+    }
+    packed[offset++] = (byte) length;
+    System.arraycopy(element, 0, packed, offset, element.length);
+  }
+}
@@ -0,0 +1,393 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Persistence: RDB snapshots (SAVE, BGSAVE), the append-only file, and
+ * loading whichever of them applies at startup.
+ *
+ * A save writes a point-in-time {@link Snapshot} of the keyspace to a
+ * temporary file and renames it over the old one, so a crash mid-save never
+ * leaves a truncated dump behind. Only one snapshot job (a save or an AOF
+ * rewrite) runs at a time.
+ */
+class Persistence {
+  private static final int REPLAY_BUFFER_SIZE = 1024 * 1024;
+
+  private final Keyspace keyspace;
+  private final ServerConfig config;
+
+  // Set once the AOF has been replayed and opened; null while AOF is off
+  private volatile AppendOnlyFile aof;
+
+  private final AtomicBoolean snapshotJobInProgress = new AtomicBoolean();
+  private volatile boolean rewriteInProgress;
+  private volatile boolean lastRewriteOk = true;
+  private volatile long lastSaveTime = System.currentTimeMillis() / 1000; // Unix seconds
+  private volatile boolean lastSaveOk = true;
+  private volatile long lastSaveMillis = -1;
+  private volatile long saves;
+  private volatile boolean loading = true; // Until load() is done
+  private volatile long lastLoadKeys;
+
+  public Persistence(Keyspace keyspace, ServerConfig config) {
+    this.keyspace = keyspace;
+    this.config = config;
+  }
+
+  /**
+   * @return The path of the RDB file, from --dir and --dbfilename.
+   */
+  public Path rdbPath() {
+    return Paths.get(config.dir, config.dbFilename);
+  }
+
+  /**
+   * Loads the data at startup: the AOF when it is enabled (it is the more
+   * complete record), the RDB file otherwise. Clients may already be
+   * connected; they get -LOADING until this returns.
+   * @param commandProcessor Replays the AOF's commands.
+   */
+  public void load(CommandProcessor commandProcessor) throws IOException {
+    try {
+      loadData(commandProcessor);
+    } finally {
+      lastLoadKeys = keyspace.size();
+      loading = false;
+    }
+  }
+
+  /**
+   * @return true while data is being loaded: at startup, and on a replica
+   * while it loads the master's snapshot.
+   */
+  public boolean isLoading() {
+    return loading;
+  }
+
+  public void setLoading(boolean loading) {
+    this.loading = loading;
+  }
+
+  private void loadData(CommandProcessor commandProcessor) throws IOException {
+    long start = System.currentTimeMillis();
+    Path rdb = rdbPath();
+
+    if (config.appendOnly) {
+      Path aofPath = Paths.get(config.dir, config.appendFilename);
+      AppendOnlyFile appendOnlyFile = new AppendOnlyFile(aofPath, config.appendFsync);
+      boolean needsBase = false;
+      if (Files.exists(aofPath)) {
+        long commands = replay(aofPath, commandProcessor);
+        System.out.println("Replayed " + commands + " commands from " + aofPath + " in "
+            + (System.currentTimeMillis() - start) + " ms");
+      } else if (Files.exists(rdb)) {
+        // AOF just turned on: start from the snapshot and give the new log a base
+        RdbLoader.load(rdb, keyspace);
+        System.out.println("Seeding " + aofPath + " from " + rdb);
+        needsBase = true;
+      }
+      appendOnlyFile.open();
+      aof = appendOnlyFile;
+      startCron();
+      if (needsBase) {
+        rewriteAppendOnlyFile();
+      }
+      return;
+    }
+
+    if (!Files.exists(rdb)) {
+      System.out.println("No RDB file at " + rdb + ", starting empty");
+      return;
+    }
+    RdbLoader.load(rdb, keyspace);
+  }
+
+  /**
+   * Logs a write command to the AOF, if it is on.
+   * Call after the command has been applied, while it still runs.
+   */
+  public void propagate(Client client, CommandArgs args) {
+    AppendOnlyFile log = aof;
+    if (log != null) {
+      client.aofOffset = log.append(args);
+    }
+  }
+
+  /**
+   * Logs the effect of a command in a different form than it was received,
+   * e.g. a relative expiry made absolute.
+   */
+  public void propagate(Client client, byte[]... argv) {
+    AppendOnlyFile log = aof;
+    if (log != null) {
+      client.aofOffset = log.append(argv);
+    }
+  }
+
+  /**
+   * @return false if the client's replies must wait for {@link #awaitDurable}.
+   */
+  public boolean isDurable(Client client) {
+    AppendOnlyFile log = aof;
+    return log == null || log.isDurable(client.aofOffset);
+  }
+
+  /**
+   * Called before a client's replies are sent. With appendfsync always this
+   * waits until the client's writes are on disk.
+   */
+  public void awaitDurable(Client client) throws IOException {
+    AppendOnlyFile log = aof;
+    if (log != null && client.aofOffset != 0) {
+      log.awaitDurable(client.aofOffset);
+    }
+  }
+
+  /**
+   * Saves in the calling thread (SAVE).
+   * @return false if another save is already running.
+   */
+  public boolean save() throws IOException {
+    if (!snapshotJobInProgress.compareAndSet(false, true)) {
+      return false;
+    }
+    try {
+      writeSnapshot();
+    } finally {
+      snapshotJobInProgress.set(false);
+    }
+    return true;
+  }
+
+  /**
+   * Starts a save on a background thread (BGSAVE).
+   * @return false if another save is already running.
+   */
+  public boolean backgroundSave() {
+    if (!snapshotJobInProgress.compareAndSet(false, true)) {
+      return false;
+    }
+    Thread thread = new Thread(() -> {
+      try {
+        writeSnapshot();
+        System.out.println("Background saving terminated with success");
+      } catch (IOException e) {
+        System.out.println("Background saving error: " + e.getMessage());
+      } finally {
+        snapshotJobInProgress.set(false);
+      }
+    }, "rdb-bgsave");
+    thread.setDaemon(true);
+    thread.start();
+    return true;
+  }
+
+  /**
+   * Starts compacting the AOF on a background thread (BGREWRITEAOF).
+   * @return false if AOF is off or another snapshot job is already running.
+   */
+  public boolean rewriteAppendOnlyFile() {
+    AppendOnlyFile log = aof;
+    if (log == null || !snapshotJobInProgress.compareAndSet(false, true)) {
+      return false;
+    }
+    rewriteInProgress = true;
+    // Commands from this point on go to the rewrite buffer as well as the old file
+    Snapshot snapshot = keyspace.beginSnapshot(log::startRewrite);
+    Thread thread = new Thread(() -> {
+      Path temp = log.path().resolveSibling("temp-rewriteaof-" + ProcessHandle.current().pid() + ".aof");
+      try {
+        try (RdbWriter writer = new RdbWriter(temp)) {
+          writer.writeHeader(keyspace.size(), 0);
+          snapshot.forEach(writer::writeEntry);
+          writer.finish();
+        } finally {
+          keyspace.endSnapshot(snapshot);
+        }
+        log.finishRewrite(temp);
+        lastRewriteOk = true;
+        System.out.println("Background AOF rewrite finished successfully");
+      } catch (IOException e) {
+        lastRewriteOk = false;
+        log.abortRewrite();
+        System.out.println("Background AOF rewrite error: " + e.getMessage());
+        try {
+          Files.deleteIfExists(temp);
+        } catch (IOException ignored) {
+          // Left for the next rewrite to overwrite
+        }
+      } finally {
+        rewriteInProgress = false;
+        snapshotJobInProgress.set(false);
+      }
+    }, "aof-rewrite");
+    thread.setDaemon(true);
+    thread.start();
+    return true;
+  }
+
+  /**
+   * Saves a snapshot for a replica's full resync, in the calling thread.
+   * @param atCut Runs at the snapshot point, while no write command is in
+   *              flight (to note the replication offset the snapshot matches).
+   * @return false if another snapshot job is running; try again later.
+   */
+  public boolean saveForReplication(Path path, Runnable atCut) throws IOException {
+    if (!snapshotJobInProgress.compareAndSet(false, true)) {
+      return false;
+    }
+    try {
+      Snapshot snapshot = keyspace.beginSnapshot(atCut);
+      try (RdbWriter writer = new RdbWriter(path)) {
+        writer.writeHeader(keyspace.size(), 0);
+        snapshot.forEach(writer::writeEntry);
+        writer.finish();
+      } finally {
+        keyspace.endSnapshot(snapshot);
+      }
+    } finally {
+      snapshotJobInProgress.set(false);
+    }
+    return true;
+  }
+
+  public boolean isAppendOnly() {
+    return aof != null;
+  }
+
+  /**
+   * @return The Unix time of the last successful save (LASTSAVE).
+   */
+  public long lastSaveTime() {
+    return lastSaveTime;
+  }
+
+  private void writeSnapshot() throws IOException {
+    long start = System.currentTimeMillis();
+    Path path = rdbPath();
+    Path temp = path.resolveSibling("temp-" + ProcessHandle.current().pid() + ".rdb");
+
+    Snapshot snapshot = keyspace.beginSnapshot(null);
+    try (RdbWriter writer = new RdbWriter(temp)) {
+      writer.writeHeader(keyspace.size(), 0);
+      snapshot.forEach(writer::writeEntry);
+      writer.finish();
+    } catch (IOException e) {
+      lastSaveOk = false;
+      Files.deleteIfExists(temp);
+      throw e;
+    } finally {
+      keyspace.endSnapshot(snapshot);
+    }
+
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    lastSaveOk = true;
+    lastSaveTime = System.currentTimeMillis() / 1000;
+    lastSaveMillis = System.currentTimeMillis() - start;
+    saves++;
+  }
+
+  /**
+   * Replays an AOF: an optional RDB preamble, then RESP commands.
+   * A command cut off at the end (a crash mid-write) is dropped from the file.
+   * @return The number of commands replayed.
+   */
+  private long replay(Path path, CommandProcessor commandProcessor) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer magic = ByteBuffer.allocate(5);
+      channel.read(magic, 0);
+      if (new String(magic.array(), 0, magic.position()).equals("REDIS")) {
+        channel.position(RdbLoader.loadPreamble(channel, keyspace));
+      }
+
+      Client replayClient = new Client() {
+        @Override
+        void unblock(byte[] reply) {
+          // Blocking commands are logged as the pops they turned into
+        }
+      };
+      RespDecoder decoder = new RespDecoder();
+      ByteBuffer buffer = ByteBuffer.allocate(REPLAY_BUFFER_SIZE);
+      long bufferOffset = channel.position(); // File offset of buffer[0]
+      long commands = 0;
+
+      while (true) {
+        int read = channel.read(buffer);
+        buffer.flip();
+        CommandArgs args;
+        while ((args = decoder.decode(buffer)) != null) {
+          if (args.count() > 0) {
+            commandProcessor.replay(replayClient, args);
+            commands++;
+          }
+        }
+        if (read < 0) {
+          break;
+        }
+        bufferOffset += buffer.position();
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+          // One command is larger than the buffer
+          ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+          buffer.flip();
+          grown.put(buffer);
+          buffer = grown;
+        }
+      }
+
+      if (buffer.hasRemaining()) {
+        long validEnd = bufferOffset + buffer.position();
+        System.out.println("AOF ends with an incomplete command; truncating " + path + " to " + validEnd + " bytes");
+        channel.truncate(validEnd);
+      }
+      return commands;
+    }
+  }
+
+  private void startCron() {
+    ScheduledExecutorService cron = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "persistence-cron");
+      thread.setDaemon(true);
+      return thread;
+    });
+    cron.scheduleWithFixedDelay(() -> {
+      AppendOnlyFile log = aof;
+      if (log != null && !snapshotJobInProgress.get() && log.needsRewrite()) {
+        System.out.println("Starting automatic rewriting of AOF on growth");
+        rewriteAppendOnlyFile();
+      }
+    }, 1, 1, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Appends the persistence section in INFO format.
+   */
+  public void appendInfo(StringBuilder info) {
+    info.append("loading:").append(loading ? 1 : 0).append("\r\n");
+    info.append("rdb_last_load_keys_loaded:").append(lastLoadKeys).append("\r\n");
+    info.append("rdb_bgsave_in_progress:").append(snapshotJobInProgress.get() && !rewriteInProgress ? 1 : 0)
+        .append("\r\n");
+    info.append("rdb_last_save_time:").append(lastSaveTime).append("\r\n");
+    info.append("rdb_last_bgsave_status:").append(lastSaveOk ? "ok" : "err").append("\r\n");
+    info.append("rdb_last_bgsave_time_sec:")
+        .append(lastSaveMillis < 0 ? -1 : lastSaveMillis / 1000).append("\r\n");
+    info.append("rdb_saves:").append(saves).append("\r\n");
+    AppendOnlyFile log = aof;
+    info.append("aof_enabled:").append(log != null ? 1 : 0).append("\r\n");
+    info.append("aof_rewrite_in_progress:").append(rewriteInProgress ? 1 : 0).append("\r\n");
+    info.append("aof_last_bgrewrite_status:").append(lastRewriteOk ? "ok" : "err").append("\r\n");
+    if (log != null) {
+      log.appendInfo(info);
+    }
+  }
+}
@@ -0,0 +1,248 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Channel and pattern subscriptions, and the delivery of published messages.
+ *
+ * PUBLISH encodes the message frame once and hands every subscriber the
+ * same read-only frame through {@link Client#push}, which queues it on the
+ * subscriber's own thread: the output buffers share it instead of holding a
+ * copy each (see {@link ReplyStream#writeShared}), and the publisher never
+ * waits for a socket. A subscriber that does not keep up is disconnected by
+ * the pubsub client output buffer limits. A RESP3 client (see HELLO) gets
+ * the message as a push (>) rather than an array, encoded once as well.
+ *
+ * Channel subscribers are kept in concurrent sets, which PUBLISH walks
+ * without locking. Patterns are compiled into one {@link GlobTrie}, so a
+ * channel is matched against all of them in a single pass; the trie is
+ * guarded by a read-write lock, shared by publishers.
+ */
+class PubSub {
+  private static final byte[] MESSAGE = "message".getBytes();
+  private static final byte[] PMESSAGE = "pmessage".getBytes();
+
+  private final ConcurrentHashMap<ByteKey, Set<Client>> channels = new ConcurrentHashMap<>();
+  private final GlobTrie<Set<Client>> patterns = new GlobTrie<>();
+  private final ReentrantReadWriteLock patternLock = new ReentrantReadWriteLock();
+
+  /**
+   * @return false if the client was subscribed to the channel already.
+   */
+  boolean subscribe(Client client, ByteKey channel) {
+    if (client.channels == null) {
+      client.channels = new LinkedHashSet<>();
+    }
+    if (!client.channels.add(channel)) {
+      return false;
+    }
+    channels.compute(channel, (key, subscribers) -> {
+      if (subscribers == null) {
+        subscribers = ConcurrentHashMap.newKeySet();
+      }
+      subscribers.add(client);
+      return subscribers;
+    });
+    return true;
+  }
+
+  /**
+   * @return false if the client was not subscribed to the channel.
+   */
+  boolean unsubscribe(Client client, ByteKey channel) {
+    if (client.channels == null || !client.channels.remove(channel)) {
+      return false;
+    }
+    channels.computeIfPresent(channel, (key, subscribers) -> {
+      subscribers.remove(client);
+      return subscribers.isEmpty() ? null : subscribers;
+    });
+    return true;
+  }
+
+  /**
+   * @return false if the client was subscribed to the pattern already.
+   */
+  boolean psubscribe(Client client, ByteKey pattern) {
+    if (client.patterns == null) {
+      client.patterns = new LinkedHashSet<>();
+    }
+    if (!client.patterns.add(pattern)) {
+      return false;
+    }
+    patternLock.writeLock().lock();
+    try {
+      Set<Client> subscribers = patterns.get(pattern.bytes);
+      if (subscribers == null) {
+        subscribers = new HashSet<>();
+        patterns.put(pattern.bytes, subscribers);
+      }
+      subscribers.add(client);
+    } finally {
+      patternLock.writeLock().unlock();
+    }
+    return true;
+  }
+
+  /**
+   * @return false if the client was not subscribed to the pattern.
+   */
+  boolean punsubscribe(Client client, ByteKey pattern) {
+    if (client.patterns == null || !client.patterns.remove(pattern)) {
+      return false;
+    }
+    patternLock.writeLock().lock();
+    try {
+      Set<Client> subscribers = patterns.get(pattern.bytes);
+      subscribers.remove(client);
+      if (subscribers.isEmpty()) {
+        patterns.remove(pattern.bytes);
+      }
+    } finally {
+      patternLock.writeLock().unlock();
+    }
+    return true;
+  }
+
+  /**
+   * Drops all of a client's subscriptions, when it disconnects.
+   */
+  void unsubscribeAll(Client client) {
+    if (client.channels != null) {
+      for (ByteKey channel : new ArrayList<>(client.channels)) {
+        unsubscribe(client, channel);
+      }
+    }
+    if (client.patterns != null) {
+      for (ByteKey pattern : new ArrayList<>(client.patterns)) {
+        punsubscribe(client, pattern);
+      }
+    }
+  }
+
+  /**
+   * Sends a message to the channel's subscribers and to those of every
+   * pattern matching it, each frame encoded once.
+   * @return The number of clients that got it, counting a client once per
+   * subscription that matched.
+   */
+  int publish(ByteKey channel, byte[] message) {
+    int receivers = 0;
+    Set<Client> subscribers = channels.get(channel);
+    if (subscribers != null) {
+      byte[][] parts = {MESSAGE, channel.bytes, message};
+      ByteBuffer[] frames = new ByteBuffer[2];
+      for (Client client : subscribers) {
+        client.push(frame(frames, client, parts));
+        receivers++;
+      }
+    }
+    int[] matched = {0}; // Out-param of the lambda below
+    patternLock.readLock().lock();
+    try {
+      if (patterns.size() > 0) {
+        patterns.match(channel.bytes, (pattern, patternSubscribers) -> {
+          byte[][] parts = {PMESSAGE, pattern, channel.bytes, message};
+          ByteBuffer[] frames = new ByteBuffer[2];
+          for (Client client : patternSubscribers) {
+            client.push(frame(frames, client, parts));
+          }
+          matched[0] += patternSubscribers.size();
+        });
+      }
+    } finally {
+      patternLock.readLock().unlock();
+    }
+    return receivers + matched[0];
+  }
+
+  /**
+   * @param pattern Only channels matching it, or null for all.
+   * @return The channels with at least one subscriber.
+   */
+  List<byte[]> channels(byte[] pattern) {
+    List<byte[]> names = new ArrayList<>();
+    for (ByteKey channel : channels.keySet()) {
+      if (pattern == null || Glob.matches(pattern, channel.bytes)) {
+        names.add(channel.bytes);
+      }
+    }
+    return names;
+  }
+
+  /**
+   * @return The number of channels with at least one subscriber.
+   */
+  int channelCount() {
+    return channels.size();
+  }
+
+  /**
+   * Safe from any thread, unlike the client's own subscription sets.
+   */
+  boolean isSubscribed(Client client, ByteKey channel) {
+    Set<Client> subscribers = channels.get(channel);
+    return subscribers != null && subscribers.contains(client);
+  }
+
+  /**
+   * @return The number of clients subscribed to the channel.
+   */
+  int subscriberCount(ByteKey channel) {
+    Set<Client> subscribers = channels.get(channel);
+    return subscribers == null ? 0 : subscribers.size();
+  }
+
+  /**
+   * @return The number of patterns with at least one subscriber.
+   */
+  int patternCount() {
+    patternLock.readLock().lock();
+    try {
+      return patterns.size();
+    } finally {
+      patternLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param frames The message's frames so far: RESP2 and RESP3, each
+   * encoded when the first subscriber speaking it needs it.
+   * @return The frame in the client's protocol.
+   */
+  private static ByteBuffer frame(ByteBuffer[] frames, Client client, byte[][] parts) {
+    int resp3 = client.protocol == 3 ? 1 : 0;
+    if (frames[resp3] == null) {
+      frames[resp3] = frame(resp3 == 1, parts);
+    }
+    return frames[resp3];
+  }
+
+  /**
+   * Encodes a message (an array of bulk strings) as a shared frame.
+   * @param push Whether it is a RESP3 push (>) rather than a RESP2 array.
+   */
+  static ByteBuffer frame(boolean push, byte[]... parts) {
+    int size = 16;
+    for (byte[] part : parts) {
+      size += part.length + 16;
+    }
+    ByteArrayOutputStream frame = new ByteArrayOutputStream(size);
+    try {
+      CommandProcessor.writeAggregateHeader(frame, push, parts.length);
+      for (byte[] part : parts) {
+        CommandProcessor.writeBulk(frame, part);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // Not thrown by ByteArrayOutputStream
+    }
+    return ByteBuffer.wrap(frame.toByteArray()).asReadOnlyBuffer();
+  }
+}
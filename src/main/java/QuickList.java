@@ -0,0 +1,343 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A deque of byte strings stored as a ring of packed chunks (a "quicklist").
+ *
+ * Each chunk packs up to {@link #CHUNK_ELEMENTS} elements back to back in one
+ * byte array, with an int end offset per element. Compared to a LinkedList of
+ * byte arrays this drops the node object and array header per element (about
+ * 40 bytes) down to 4 bytes. Pushes and pops at either end touch only the end
+ * chunk, and indexing walks chunks rather than elements, from whichever end is
+ * closer. Elements can be handed to a visitor straight from the chunk arrays,
+ * so replies are written without copying them out first.
+ */
+class QuickList {
+  static final int CHUNK_ELEMENTS = 128;
+  static final int CHUNK_BYTES = 8 * 1024;
+
+  /**
+   * Receives elements in place; the array must not be kept or modified.
+   */
+  interface ElementVisitor {
+    void visit(byte[] data, int offset, int length) throws IOException;
+  }
+
+  private Chunk[] ring = new Chunk[4]; // Power of two, used as a circular buffer
+  private int first;                   // Ring index of the head chunk
+  private int chunkCount;
+  private int size;
+  private long memoryBytes;            // Running estimate of the chunk arrays
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return The approximate heap used by the chunks, in bytes.
+   */
+  long memoryUsage() {
+    return 32 + 16 + 4L * ring.length + memoryBytes;
+  }
+
+  /**
+   * @return An independent copy of the list.
+   */
+  QuickList copy() {
+    QuickList copy = new QuickList();
+    copy.ring = new Chunk[ring.length];
+    for (int i = 0; i < chunkCount; i++) {
+      copy.ring[i] = chunk(i).copy();
+    }
+    copy.chunkCount = chunkCount;
+    copy.size = size;
+    copy.memoryBytes = memoryBytes;
+    return copy;
+  }
+
+  void addLast(byte[] element) {
+    Chunk tail = chunkCount == 0 ? null : chunk(chunkCount - 1);
+    if (tail == null || !tail.hasRoomFor(element.length)) {
+      tail = new Chunk();
+      insertChunk(chunkCount, tail);
+    }
+    memoryBytes -= tail.memoryUsage();
+    tail.append(element);
+    memoryBytes += tail.memoryUsage();
+    size++;
+  }
+
+  void addFirst(byte[] element) {
+    Chunk head = chunkCount == 0 ? null : chunk(0);
+    if (head == null || !head.hasRoomFor(element.length)) {
+      head = new Chunk();
+      insertChunk(0, head);
+    }
+    memoryBytes -= head.memoryUsage();
+    head.prepend(element);
+    memoryBytes += head.memoryUsage();
+    size++;
+  }
+
+  /**
+   * @return The removed head element, or null if the list is empty.
+   */
+  byte[] removeFirst() {
+    if (size == 0) {
+      return null;
+    }
+    Chunk head = chunk(0);
+    byte[] element = head.copy(0);
+    memoryBytes -= head.memoryUsage();
+    head.removeFirst();
+    memoryBytes += head.memoryUsage();
+    size--;
+    if (head.count == 0) {
+      removeChunk(0);
+    }
+    return element;
+  }
+
+  /**
+   * @return The removed tail element, or null if the list is empty.
+   */
+  byte[] removeLast() {
+    if (size == 0) {
+      return null;
+    }
+    Chunk tail = chunk(chunkCount - 1);
+    byte[] element = tail.copy(tail.count - 1);
+    memoryBytes -= tail.memoryUsage();
+    tail.removeLast();
+    memoryBytes += tail.memoryUsage();
+    size--;
+    if (tail.count == 0) {
+      removeChunk(chunkCount - 1);
+    }
+    return element;
+  }
+
+  /**
+   * @param index 0-based index, must be within [0, size).
+   * @return A copy of the element.
+   */
+  byte[] get(int index) {
+    long location = locate(index);
+    return chunk((int) (location >>> 32)).copy((int) location);
+  }
+
+  /**
+   * Visits the elements in [start, stop], both inclusive and within bounds.
+   */
+  void forEach(int start, int stop, ElementVisitor visitor) throws IOException {
+    if (start > stop) {
+      return;
+    }
+    long location = locate(start);
+    int chunkIndex = (int) (location >>> 32);
+    int element = (int) location;
+    int remaining = stop - start + 1;
+
+    while (remaining > 0) {
+      Chunk chunk = chunk(chunkIndex);
+      for (; element < chunk.count && remaining > 0; element++, remaining--) {
+        int from = chunk.startOf(element);
+        visitor.visit(chunk.data, from, chunk.ends[element] - from);
+      }
+      chunkIndex++;
+      element = 0;
+    }
+  }
+
+  /**
+   * Keeps only the elements in [start, stop], both inclusive and within bounds.
+   * An empty range (start > stop) removes everything.
+   */
+  void trim(int start, int stop) {
+    int dropHead = start;
+    int dropTail = start > stop ? 0 : size - 1 - stop;
+    if (start > stop) {
+      dropHead = size;
+    }
+    // Whole chunks go at once; only the boundary chunks are trimmed element-wise
+    while (dropHead > 0 && chunkCount > 0 && chunk(0).count <= dropHead) {
+      Chunk head = chunk(0);
+      dropHead -= head.count;
+      size -= head.count;
+      removeChunk(0);
+    }
+    for (; dropHead > 0; dropHead--) {
+      removeFirst();
+    }
+    while (dropTail > 0 && chunkCount > 0 && chunk(chunkCount - 1).count <= dropTail) {
+      Chunk tail = chunk(chunkCount - 1);
+      dropTail -= tail.count;
+      size -= tail.count;
+      removeChunk(chunkCount - 1);
+    }
+    for (; dropTail > 0; dropTail--) {
+      removeLast();
+    }
+  }
+
+  /**
+   * Finds the chunk and position of an element, walking from the nearer end.
+   * @return The chunk index in the high 32 bits and the element offset in the low 32 bits.
+   */
+  private long locate(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index " + index + " out of range for size " + size);
+    }
+    if (index < size / 2) {
+      int chunkIndex = 0;
+      int remaining = index;
+      while (remaining >= chunk(chunkIndex).count) {
+        remaining -= chunk(chunkIndex).count;
+        chunkIndex++;
+      }
+      return ((long) chunkIndex << 32) | remaining;
+    }
+    int chunkIndex = chunkCount - 1;
+    int fromEnd = size - 1 - index;
+    while (fromEnd >= chunk(chunkIndex).count) {
+      fromEnd -= chunk(chunkIndex).count;
+      chunkIndex--;
+    }
+    return ((long) chunkIndex << 32) | (chunk(chunkIndex).count - 1 - fromEnd);
+  }
+
+  private Chunk chunk(int index) {
+    return ring[(first + index) & (ring.length - 1)];
+  }
+
+  /**
+   * Inserts a chunk at the head or the tail of the ring.
+   */
+  private void insertChunk(int index, Chunk chunk) {
+    if (chunkCount == ring.length) {
+      Chunk[] grown = new Chunk[ring.length * 2];
+      for (int i = 0; i < chunkCount; i++) {
+        grown[i] = chunk(i);
+      }
+      ring = grown;
+      first = 0;
+    }
+    if (index == 0) {
+      first = (first - 1) & (ring.length - 1);
+    }
+    ring[(first + index) & (ring.length - 1)] = chunk;
+    chunkCount++;
+    memoryBytes += chunk.memoryUsage();
+  }
+
+  /**
+   * Removes the head or the tail chunk of the ring.
+   */
+  private void removeChunk(int index) {
+    memoryBytes -= chunk(index).memoryUsage();
+    ring[(first + index) & (ring.length - 1)] = null;
+    if (index == 0) {
+      first = (first + 1) & (ring.length - 1);
+    }
+    chunkCount--;
+  }
+
+  /**
+   * Up to CHUNK_ELEMENTS elements packed into one array. The used bytes sit
+   * in data[start, end()); free space can be on either side. The arrays start
+   * small and grow up to CHUNK_BYTES, so short lists stay small too. An element
+   * larger than CHUNK_BYTES gets a chunk of its own, sized to fit.
+   */
+  private static final class Chunk {
+    byte[] data = new byte[64];
+    int[] ends = new int[8];
+    int start;
+    int count;
+
+    int startOf(int element) {
+      return element == 0 ? start : ends[element - 1];
+    }
+
+    int end() {
+      return count == 0 ? start : ends[count - 1];
+    }
+
+    boolean hasRoomFor(int length) {
+      return count < CHUNK_ELEMENTS && end() - start + length <= CHUNK_BYTES;
+    }
+
+    void append(byte[] element) {
+      if (data.length - end() < element.length) {
+        makeRoom(element.length, false);
+      }
+      if (count == ends.length) {
+        ends = Arrays.copyOf(ends, count * 2);
+      }
+      int end = end();
+      System.arraycopy(element, 0, data, end, element.length);
+      ends[count++] = end + element.length;
+    }
+
+    void prepend(byte[] element) {
+      if (start < element.length) {
+        makeRoom(element.length, true);
+      }
+      if (count == ends.length) {
+        ends = Arrays.copyOf(ends, count * 2);
+      }
+      start -= element.length;
+      System.arraycopy(element, 0, data, start, element.length);
+      System.arraycopy(ends, 0, ends, 1, count);
+      ends[0] = start + element.length;
+      count++;
+    }
+
+    void removeFirst() {
+      start = ends[0];
+      System.arraycopy(ends, 1, ends, 0, count - 1);
+      count--;
+    }
+
+    void removeLast() {
+      count--;
+    }
+
+    Chunk copy() {
+      Chunk copy = new Chunk();
+      copy.data = data.clone();
+      copy.ends = ends.clone();
+      copy.start = start;
+      copy.count = count;
+      return copy;
+    }
+
+    byte[] copy(int element) {
+      return Arrays.copyOfRange(data, startOf(element), ends[element]);
+    }
+
+    /**
+     * Moves the used bytes to the far side (growing the array if needed)
+     * so there is room for another element at the front or at the back.
+     */
+    private void makeRoom(int length, boolean atFront) {
+      int used = end() - start;
+      byte[] target = data;
+      if (used + length > data.length) {
+        int capacity = Math.max(used + length, Math.min(data.length * 2, CHUNK_BYTES));
+        target = new byte[capacity];
+      }
+      int newStart = atFront ? target.length - used : 0;
+      System.arraycopy(data, start, target, newStart, used);
+      int distance = newStart - start;
+      for (int i = 0; i < count; i++) {
+        ends[i] += distance;
+      }
+      start = newStart;
+      data = target;
+    }
+
+    long memoryUsage() {
+      return 24 + RedisData.arraySize(data.length) + 16 + 4L * ends.length;
+    }
+  }
+}
@@ -0,0 +1,738 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loads an RDB file into the keyspace.
+ *
+ * The file is memory-mapped, so nothing is copied through read buffers and
+ * any thread can decode any part of it. Walking the format has to be
+ * sequential, because every length depends on the bytes before it, but it
+ * is cheap when the walk only skips: one thread reads the length prefixes,
+ * never copies a string, and cuts the file into sections of a few thousand
+ * records. A pool of workers decodes the sections in parallel, doing the
+ * expensive part (copying strings, LZF decompression, decoding listpacks,
+ * building the values and inserting them into the dataStore). A bounded
+ * queue keeps the walker from running far ahead of the workers. The CRC-64
+ * trailer is verified by another thread at the same time.
+ *
+ * Reads strings, lists, sets, hashes and sorted sets, both as this server
+ * writes them and in the compact encodings Redis 7 writes for small ones
+ * (intsets and listpacks), which covers the keys of those types in files
+ * written by Redis 7.
+ */
+class RdbLoader {
+  private static final int REGION_SHIFT = 30; // Mapped in 1 GB regions (a mapping is int-indexed)
+  private static final long REGION_SIZE = 1L << REGION_SHIFT;
+  private static final int SECTION_RECORDS = 4096;
+  private static final long SECTION_BYTES = 4 * 1024 * 1024;
+
+  // String encodings flagged by the top two bits of a length byte
+  private static final int ENCODING_INT8 = 0;
+  private static final int ENCODING_INT16 = 1;
+  private static final int ENCODING_INT32 = 2;
+  private static final int ENCODING_LZF = 3;
+
+  private final ByteBuffer[] regions;
+  private final long size;
+  private final Keyspace keyspace;
+
+  private final ThreadPoolExecutor workers;
+  private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+  private final LongAdder loadedKeys = new LongAdder();
+  private final LongAdder skippedKeys = new LongAdder();
+
+  /**
+   * A run of consecutive records, given by the file offsets of their type bytes.
+   */
+  private static final class Section {
+    final long[] offsets = new long[SECTION_RECORDS];
+    final long[] expiryTimes = new long[SECTION_RECORDS];
+    int count;
+    long start; // Offset of the first record
+
+    boolean isFull(long position) {
+      return count == SECTION_RECORDS || position - start >= SECTION_BYTES;
+    }
+  }
+
+  /**
+   * Maps the file from the given offset to its end.
+   */
+  private RdbLoader(FileChannel channel, long offset, Keyspace keyspace) throws IOException {
+    this.size = channel.size() - offset;
+    this.keyspace = keyspace;
+    this.regions = new ByteBuffer[(int) ((size + REGION_SIZE - 1) >>> REGION_SHIFT)];
+    for (int i = 0; i < regions.length; i++) {
+      long regionStart = (long) i << REGION_SHIFT;
+      regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + regionStart,
+          Math.min(REGION_SIZE, size - regionStart));
+    }
+
+    int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    // A full queue makes the walker decode the section itself, which throttles it
+    this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /**
+   * Reads an in-memory image (a DUMP payload) on the calling thread.
+   */
+  private RdbLoader(ByteBuffer image) {
+    this.size = image.capacity();
+    this.keyspace = null;
+    this.regions = new ByteBuffer[] {image};
+    this.workers = null;
+  }
+
+  /**
+   * Loads the file into the keyspace. Expired keys are skipped.
+   * @return The number of keys loaded.
+   */
+  static long load(Path path, Keyspace keyspace) throws IOException {
+    long start = System.currentTimeMillis();
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      RdbLoader loader = new RdbLoader(channel, 0, keyspace);
+      // The checksum covers everything but its own 8 bytes at the end of the file
+      FutureTask<Long> checksum = new FutureTask<>(() -> loader.checksum(loader.size - 8));
+      Thread checksumThread = new Thread(checksum, "rdb-checksum");
+      checksumThread.setDaemon(true);
+      checksumThread.start();
+
+      loader.run(checksum);
+      loader.logStats(path.toString(), start);
+      return loader.loadedKeys.sum();
+    }
+  }
+
+  /**
+   * Loads an RDB image that starts at the channel's position and is followed
+   * by other data, such as the RDB preamble of an append-only file.
+   * @return The file offset just past the image.
+   */
+  static long loadPreamble(FileChannel channel, Keyspace keyspace) throws IOException {
+    long start = System.currentTimeMillis();
+    long offset = channel.position();
+    RdbLoader loader = new RdbLoader(channel, offset, keyspace);
+    long end = loader.run(null);
+    loader.logStats("the AOF preamble", start);
+    return offset + end;
+  }
+
+  /**
+   * Walks the image and waits for the workers.
+   * @param checksum The checksum of the whole file, being computed, or null
+   *                 to compute it here once the end of the image is known.
+   * @return The offset just past the image.
+   */
+  private long run(FutureTask<Long> checksum) throws IOException {
+    long end;
+    try {
+      end = walk(checksum);
+    } finally {
+      workers.shutdown();
+      try {
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while loading", e);
+      }
+    }
+    if (failure.get() != null) {
+      throw new IOException("Bad RDB file: " + failure.get().getMessage(), failure.get());
+    }
+    return end;
+  }
+
+  private long walk(FutureTask<Long> checksum) throws IOException {
+    Cursor cursor = new Cursor(0);
+    byte[] magic = cursor.readBytes(9);
+    String header = new String(magic, StandardCharsets.US_ASCII);
+    if (!header.startsWith("REDIS")) {
+      throw new IOException("Not an RDB file");
+    }
+    int version = Integer.parseInt(header.substring(5));
+    if (version > 12) {
+      throw new IOException("Unsupported RDB version " + version);
+    }
+
+    Section section = new Section();
+    long expiryTime = -1;
+    while (true) {
+      long recordStart = cursor.position;
+      int opcode = cursor.readByte();
+      switch (opcode) {
+        case RdbWriter.OPCODE_EOF:
+          submit(section);
+          return verifyChecksum(cursor, version, checksum);
+        case RdbWriter.OPCODE_SELECTDB:
+          cursor.readLength(); // A single keyspace; every database is loaded into it
+          break;
+        case RdbWriter.OPCODE_RESIZEDB:
+          keyspace.presize(cursor.readLength());
+          cursor.readLength();
+          break;
+        case RdbWriter.OPCODE_AUX:
+          cursor.skipStringObject();
+          cursor.skipStringObject();
+          break;
+        case RdbWriter.OPCODE_EXPIRETIME_MS:
+          expiryTime = cursor.readLittleEndian(8);
+          break;
+        case RdbWriter.OPCODE_EXPIRETIME:
+          expiryTime = cursor.readLittleEndian(4) * 1000;
+          break;
+        case RdbWriter.OPCODE_IDLE:
+          cursor.readLength();
+          break;
+        case RdbWriter.OPCODE_FREQ:
+          cursor.readByte();
+          break;
+        default:
+          cursor.skipRecord(opcode);
+          if (section.count == 0) {
+            section.start = recordStart;
+          }
+          section.offsets[section.count] = recordStart;
+          section.expiryTimes[section.count] = expiryTime;
+          section.count++;
+          expiryTime = -1;
+          if (section.isFull(cursor.position)) {
+            submit(section);
+            section = new Section();
+          }
+      }
+    }
+  }
+
+  private void submit(Section section) throws IOException {
+    if (failure.get() != null) {
+      throw new IOException("Bad RDB file: " + failure.get().getMessage(), failure.get());
+    }
+    if (section.count > 0) {
+      workers.execute(() -> build(section));
+    }
+  }
+
+  /**
+   * Worker side: decodes a section and stores its keys.
+   */
+  private void build(Section section) {
+    try {
+      Cursor cursor = new Cursor(0);
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < section.count; i++) {
+        long expiryTime = section.expiryTimes[i];
+        if (expiryTime != -1 && expiryTime < now) {
+          skippedKeys.increment();
+          continue;
+        }
+        cursor.position = section.offsets[i];
+        int type = cursor.readByte();
+        ByteKey key = new ByteKey(cursor.readStringObject());
+        RedisData data = readValue(cursor, type);
+        data.expiryTime = expiryTime;
+        keyspace.put(key, data);
+        loadedKeys.increment();
+      }
+    } catch (IOException e) {
+      failure.compareAndSet(null, new UncheckedIOException(e));
+    } catch (RuntimeException e) {
+      failure.compareAndSet(null, e);
+    }
+  }
+
+  /**
+   * Decodes a value of a type the walker has accepted.
+   */
+  private static RedisData readValue(Cursor cursor, int type) throws IOException {
+    switch (type) {
+      case RdbWriter.TYPE_STRING:
+        return RedisString.of(cursor.readStringObject());
+      case RdbWriter.TYPE_LIST:
+      case RdbWriter.TYPE_LIST_QUICKLIST_2: {
+        RedisList list = new RedisList();
+        long length = cursor.readLength();
+        for (long j = 0; j < length; j++) {
+          if (type == RdbWriter.TYPE_LIST) {
+            list.rpush(cursor.readStringObject());
+          } else if (cursor.readLength() == 1) {
+            list.rpush(cursor.readStringObject()); // A single plain element
+          } else {
+            Listpack.forEach(cursor.readStringObject(), list::rpush);
+          }
+        }
+        return list;
+      }
+      case RdbWriter.TYPE_SET: {
+        RedisSet set = new RedisSet();
+        long length = cursor.readLength();
+        for (long j = 0; j < length; j++) {
+          set.add(cursor.readStringObject());
+        }
+        return set;
+      }
+      case RdbWriter.TYPE_SET_INTSET:
+        return readIntset(cursor.readStringObject());
+      case RdbWriter.TYPE_SET_LISTPACK: {
+        RedisSet set = new RedisSet();
+        Listpack.forEach(cursor.readStringObject(), set::add);
+        return set;
+      }
+      case RdbWriter.TYPE_HASH: {
+        RedisHash hash = new RedisHash();
+        long length = cursor.readLength();
+        for (long j = 0; j < length; j++) {
+          hash.put(cursor.readStringObject(), cursor.readStringObject());
+        }
+        return hash;
+      }
+      case RdbWriter.TYPE_HASH_LISTPACK: {
+        // Fields and values alternate
+        RedisHash hash = new RedisHash();
+        byte[][] field = new byte[1][];
+        Listpack.forEach(cursor.readStringObject(), element -> {
+          if (field[0] == null) {
+            field[0] = element;
+          } else {
+            hash.put(field[0], element);
+            field[0] = null;
+          }
+        });
+        return hash;
+      }
+      case RdbWriter.TYPE_ZSET_2: {
+        RedisZSet zset = new RedisZSet();
+        long length = cursor.readLength();
+        for (long j = 0; j < length; j++) {
+          byte[] member = cursor.readStringObject();
+          zset.put(member, Double.longBitsToDouble(cursor.readLittleEndian(8)));
+        }
+        return zset;
+      }
+      case RdbWriter.TYPE_ZSET_LISTPACK: {
+        // Members and scores alternate, the scores as decimal strings or integers
+        RedisZSet zset = new RedisZSet();
+        byte[][] member = new byte[1][];
+        Listpack.forEach(cursor.readStringObject(), element -> {
+          if (member[0] == null) {
+            member[0] = element;
+          } else {
+            zset.put(member[0], RedisZSet.parseScore(new String(element, StandardCharsets.US_ASCII)));
+            member[0] = null;
+          }
+        });
+        return zset;
+      }
+      default:
+        throw new IOException("Unsupported value type " + type);
+    }
+  }
+
+  /**
+   * Decodes an intset: the integer width in bytes and the count (32 bits
+   * each), then the integers in ascending order, all little endian.
+   */
+  private static RedisSet readIntset(byte[] blob) throws IOException {
+    if (blob.length < 8) {
+      throw new IOException("Bad intset encoding");
+    }
+    ByteBuffer in = ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN);
+    int width = in.getInt();
+    int length = in.getInt();
+    if ((width != 2 && width != 4 && width != 8) || (long) width * length != in.remaining()) {
+      throw new IOException("Bad intset encoding");
+    }
+    RedisSet set = new RedisSet();
+    for (int i = 0; i < length; i++) {
+      long value = width == 2 ? in.getShort() : width == 4 ? in.getInt() : in.getLong();
+      set.add(Long.toString(value).getBytes());
+    }
+    return set;
+  }
+
+  /**
+   * Decodes a DUMP payload (see {@link RdbWriter#dump}) for RESTORE.
+   * @throws IOException If the version or checksum is wrong or the value is malformed.
+   */
+  static RedisData restore(byte[] payload) throws IOException {
+    int end = payload.length - 10; // Version and checksum trailer
+    if (end < 1) {
+      throw new IOException("DUMP payload too short");
+    }
+    ByteBuffer trailer = ByteBuffer.wrap(payload, end, 10).order(ByteOrder.LITTLE_ENDIAN);
+    int version = trailer.getShort() & 0xffff;
+    long expected = trailer.getLong();
+    if (version > RdbWriter.RDB_VERSION || (expected != 0 && expected != Crc64.update(0, payload, 0, end + 2))) {
+      throw new IOException("DUMP payload version or checksum are wrong");
+    }
+    RdbLoader loader = new RdbLoader(ByteBuffer.wrap(payload, 0, end).slice());
+    Cursor cursor = loader.new Cursor(0);
+    int type = cursor.readByte();
+    RedisData data = readValue(cursor, type);
+    if (cursor.position != end) {
+      throw new IOException("Trailing data in DUMP payload");
+    }
+    return data;
+  }
+
+  private long verifyChecksum(Cursor cursor, int version, FutureTask<Long> checksum) throws IOException {
+    if (version < 5) {
+      return cursor.position; // No checksum before RDB 5
+    }
+    long dataEnd = cursor.position;
+    long expected = cursor.readLittleEndian(8);
+    if (expected != 0) {
+      long actual;
+      if (checksum != null && dataEnd == size - 8) {
+        try {
+          actual = checksum.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while loading", e);
+        } catch (ExecutionException e) {
+          throw new IOException("Checksum failed", e.getCause());
+        }
+      } else {
+        actual = checksum(dataEnd);
+      }
+      if (actual != expected) {
+        throw new IOException("RDB checksum mismatch");
+      }
+    }
+    return cursor.position;
+  }
+
+  /**
+   * @return The CRC-64 of the image up to the given offset.
+   */
+  private long checksum(long end) {
+    long crc = 0;
+    for (int i = 0; i < regions.length && ((long) i << REGION_SHIFT) < end; i++) {
+      ByteBuffer region = regions[i].duplicate();
+      region.limit((int) Math.min(region.capacity(), end - ((long) i << REGION_SHIFT)));
+      crc = Crc64.update(crc, region);
+    }
+    return crc;
+  }
+
+  private void logStats(String source, long start) {
+    long millis = Math.max(1, System.currentTimeMillis() - start);
+    long keys = loadedKeys.sum();
+    System.out.println("Loaded " + keys + " keys from " + source + " in " + millis + " ms ("
+        + keys * 1000 / millis + " keys/s, " + skippedKeys.sum() + " expired keys skipped)");
+  }
+
+  /**
+   * A read position in the mapped image. Reads use absolute gets, so any
+   * number of cursors can walk the same mapping from different threads.
+   */
+  private final class Cursor {
+    long position;
+
+    Cursor(long position) {
+      this.position = position;
+    }
+
+    int readByte() throws IOException {
+      if (position >= size) {
+        throw new IOException("Unexpected end of RDB file");
+      }
+      int value = regions[(int) (position >>> REGION_SHIFT)].get((int) (position & (REGION_SIZE - 1))) & 0xff;
+      position++;
+      return value;
+    }
+
+    byte[] readBytes(int length) throws IOException {
+      if (position + length > size) {
+        throw new IOException("Unexpected end of RDB file");
+      }
+      byte[] bytes = new byte[length];
+      int copied = 0;
+      while (copied < length) {
+        ByteBuffer region = regions[(int) (position >>> REGION_SHIFT)];
+        int index = (int) (position & (REGION_SIZE - 1));
+        int chunk = Math.min(length - copied, region.capacity() - index);
+        region.get(index, bytes, copied, chunk);
+        copied += chunk;
+        position += chunk;
+      }
+      return bytes;
+    }
+
+    void skip(long length) throws IOException {
+      if (position + length > size) {
+        throw new IOException("Unexpected end of RDB file");
+      }
+      position += length;
+    }
+
+    /**
+     * Skips one key and value, leaving the cursor on the next opcode.
+     */
+    void skipRecord(int type) throws IOException {
+      skipStringObject(); // Key
+      switch (type) {
+        case RdbWriter.TYPE_STRING:
+          skipStringObject();
+          break;
+        case RdbWriter.TYPE_LIST: {
+          long length = readLength();
+          for (long i = 0; i < length; i++) {
+            skipStringObject();
+          }
+          break;
+        }
+        case RdbWriter.TYPE_LIST_QUICKLIST_2: {
+          long nodes = readLength();
+          for (long i = 0; i < nodes; i++) {
+            readLength(); // 1 = a single plain element, 2 = a listpack
+            skipStringObject();
+          }
+          break;
+        }
+        case RdbWriter.TYPE_SET:
+        case RdbWriter.TYPE_HASH: {
+          long strings = readLength() * (type == RdbWriter.TYPE_HASH ? 2 : 1);
+          for (long i = 0; i < strings; i++) {
+            skipStringObject();
+          }
+          break;
+        }
+        case RdbWriter.TYPE_ZSET_2: {
+          long length = readLength();
+          for (long i = 0; i < length; i++) {
+            skipStringObject();
+            skip(8); // Binary score
+          }
+          break;
+        }
+        case RdbWriter.TYPE_SET_INTSET:
+        case RdbWriter.TYPE_SET_LISTPACK:
+        case RdbWriter.TYPE_HASH_LISTPACK:
+        case RdbWriter.TYPE_ZSET_LISTPACK:
+          skipStringObject(); // The whole encoded value
+          break;
+        default:
+          throw new IOException("Unsupported RDB value type " + type);
+      }
+    }
+
+    /**
+     * Reads a string, which may be stored as an integer or LZF compressed.
+     */
+    byte[] readStringObject() throws IOException {
+      int first = readByte();
+      if (first >>> 6 == 3) {
+        switch (first & 0x3f) {
+          case ENCODING_INT8:
+            return Long.toString((byte) readByte()).getBytes();
+          case ENCODING_INT16:
+            return Long.toString((short) readLittleEndian(2)).getBytes();
+          case ENCODING_INT32:
+            return Long.toString((int) readLittleEndian(4)).getBytes();
+          case ENCODING_LZF: {
+            int compressedLength = checkedLength(readLength());
+            int length = checkedLength(readLength());
+            return decompress(readBytes(compressedLength), length);
+          }
+          default:
+            throw new IOException("Unknown string encoding " + (first & 0x3f));
+        }
+      }
+      return readBytes(checkedLength(lengthAfter(first)));
+    }
+
+    void skipStringObject() throws IOException {
+      int first = readByte();
+      if (first >>> 6 == 3) {
+        switch (first & 0x3f) {
+          case ENCODING_INT8:
+            skip(1);
+            return;
+          case ENCODING_INT16:
+            skip(2);
+            return;
+          case ENCODING_INT32:
+            skip(4);
+            return;
+          case ENCODING_LZF: {
+            long compressedLength = readLength();
+            readLength();
+            skip(compressedLength);
+            return;
+          }
+          default:
+            throw new IOException("Unknown string encoding " + (first & 0x3f));
+        }
+      }
+      skip(lengthAfter(first));
+    }
+
+    long readLength() throws IOException {
+      int first = readByte();
+      if (first >>> 6 == 3) {
+        throw new IOException("Unexpected encoded value where a length was expected");
+      }
+      return lengthAfter(first);
+    }
+
+    private long lengthAfter(int first) throws IOException {
+      switch (first >>> 6) {
+        case 0:
+          return first & 0x3f;
+        case 1:
+          return ((first & 0x3f) << 8) | readByte();
+        default:
+          if (first == 0x80) {
+            return readBigEndian(4);
+          }
+          if (first == 0x81) {
+            return readBigEndian(8);
+          }
+          throw new IOException("Unknown length encoding " + first);
+      }
+    }
+
+    long readLittleEndian(int bytes) throws IOException {
+      long value = 0;
+      for (int i = 0; i < bytes; i++) {
+        value |= (long) readByte() << (8 * i);
+      }
+      return value;
+    }
+
+    private long readBigEndian(int bytes) throws IOException {
+      long value = 0;
+      for (int i = 0; i < bytes; i++) {
+        value = (value << 8) | readByte();
+      }
+      return value;
+    }
+  }
+
+  private static int checkedLength(long length) throws IOException {
+    if (length > Integer.MAX_VALUE - 16) {
+      throw new IOException("String too long: " + length);
+    }
+    return (int) length;
+  }
+
+  /**
+   * LZF decompression (the format Redis compresses strings with).
+   */
+  static byte[] decompress(byte[] in, int length) {
+    byte[] out = new byte[length];
+    int ip = 0;
+    int op = 0;
+    try {
+      while (ip < in.length) {
+        int control = in[ip++] & 0xff;
+        if (control < 32) {
+          // Literal run of control + 1 bytes
+          int run = control + 1;
+          System.arraycopy(in, ip, out, op, run);
+          ip += run;
+          op += run;
+        } else {
+          // Back reference
+          int run = control >>> 5;
+          if (run == 7) {
+            run += in[ip++] & 0xff;
+          }
+          int ref = op - ((control & 0x1f) << 8) - 1 - (in[ip++] & 0xff);
+          if (ref < 0) {
+            throw new UncheckedIOException(new IOException("Invalid LZF back reference"));
+          }
+          run += 2;
+          for (int i = 0; i < run; i++) {
+            out[op++] = out[ref++];
+          }
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new UncheckedIOException(new IOException("Corrupt LZF data"));
+    }
+    if (op != length) {
+      throw new UncheckedIOException(new IOException("LZF length mismatch"));
+    }
+    return out;
+  }
+
+  /**
+   * Decoder for listpacks, the packed element format of Redis 7 quicklist nodes.
+   */
+  static final class Listpack {
+    interface ElementConsumer {
+      void accept(byte[] element);
+    }
+
+    static void forEach(byte[] listpack, ElementConsumer consumer) {
+      ByteBuffer in = ByteBuffer.wrap(listpack).order(ByteOrder.LITTLE_ENDIAN);
+      in.position(6); // Total bytes (4) and element count (2)
+      while (true) {
+        int start = in.position();
+        int b = in.get() & 0xff;
+        if (b == 0xff) {
+          return;
+        }
+        byte[] element;
+        if ((b & 0x80) == 0) {
+          element = Long.toString(b & 0x7f).getBytes();
+        } else if ((b & 0xc0) == 0x80) {
+          element = new byte[b & 0x3f];
+          in.get(element);
+        } else if ((b & 0xe0) == 0xc0) {
+          int value = ((b & 0x1f) << 8) | (in.get() & 0xff);
+          element = Long.toString(value >= (1 << 12) ? value - (1 << 13) : value).getBytes();
+        } else if ((b & 0xf0) == 0xe0) {
+          element = new byte[((b & 0x0f) << 8) | (in.get() & 0xff)];
+          in.get(element);
+        } else {
+          switch (b) {
+            case 0xf0:
+              element = new byte[in.getInt()];
+              in.get(element);
+              break;
+            case 0xf1:
+              element = Long.toString(in.getShort()).getBytes();
+              break;
+            case 0xf2: {
+              int value = (in.get() & 0xff) | (in.get() & 0xff) << 8 | in.get() << 16;
+              element = Long.toString(value).getBytes();
+              break;
+            }
+            case 0xf3:
+              element = Long.toString(in.getInt()).getBytes();
+              break;
+            case 0xf4:
+              element = Long.toString(in.getLong()).getBytes();
+              break;
+            default:
+              throw new UncheckedIOException(new IOException("Unknown listpack encoding " + b));
+          }
+        }
+        consumer.accept(element);
+        skipBacklen(in, in.position() - start);
+      }
+    }
+
+    private static void skipBacklen(ByteBuffer in, int entryLength) {
+      int backlen = entryLength < 128 ? 1 : entryLength < 16384 ? 2 : entryLength < 2097152 ? 3
+          : entryLength < 268435456 ? 4 : 5;
+      in.position(in.position() + backlen);
+    }
+  }
+}
@@ -0,0 +1,245 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes an RDB file (format version 9, readable by Redis 5 and later).
+ *
+ * Output is staged in one large buffer and handed to the FileChannel a
+ * megabyte at a time, and the CRC-64 trailer is computed over each block as it
+ * is flushed, so the file is written in a single sequential pass.
+ */
+class RdbWriter implements Closeable {
+  // Opcodes and value types, as defined by the RDB format
+  static final int OPCODE_AUX = 0xFA;
+  static final int OPCODE_RESIZEDB = 0xFB;
+  static final int OPCODE_EXPIRETIME_MS = 0xFC;
+  static final int OPCODE_EXPIRETIME = 0xFD;
+  static final int OPCODE_SELECTDB = 0xFE;
+  static final int OPCODE_EOF = 0xFF;
+  static final int OPCODE_IDLE = 0xF8;
+  static final int OPCODE_FREQ = 0xF9;
+  static final int TYPE_STRING = 0;
+  static final int TYPE_LIST = 1;
+  static final int TYPE_SET = 2;
+  static final int TYPE_HASH = 4;
+  static final int TYPE_ZSET_2 = 5;
+  static final int TYPE_SET_INTSET = 11;
+  static final int TYPE_HASH_LISTPACK = 16;
+  static final int TYPE_ZSET_LISTPACK = 17;
+  static final int TYPE_LIST_QUICKLIST_2 = 18;
+  static final int TYPE_SET_LISTPACK = 20;
+
+  static final int RDB_VERSION = 9;
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  private final WritableByteChannel channel;
+  private final ByteBuffer buffer;
+  private long crc;
+
+  RdbWriter(Path path) throws IOException {
+    this(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING), BUFFER_SIZE);
+  }
+
+  private RdbWriter(WritableByteChannel channel, int bufferSize) {
+    this.channel = channel;
+    this.buffer = ByteBuffer.allocate(bufferSize);
+  }
+
+  /**
+   * Serializes one value the way DUMP does: the value as in an RDB file,
+   * then the RDB version (2 bytes) and a CRC-64 of everything before it
+   * (8 bytes), both little endian. RESTORE and MIGRATE move values with it.
+   */
+  static byte[] dump(RedisData data) throws IOException {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    try (RdbWriter writer = new RdbWriter(Channels.newChannel(payload), 64 * 1024)) {
+      writer.writeValue(data);
+      writer.writeByte(RDB_VERSION & 0xff);
+      writer.writeByte(RDB_VERSION >>> 8);
+      writer.flush();
+      writer.writeLongLittleEndian(writer.crc);
+      writer.flush();
+    }
+    return payload.toByteArray();
+  }
+
+  /**
+   * Writes the magic string, version and the usual auxiliary fields.
+   */
+  void writeHeader(long keyCount, long expiresCount) throws IOException {
+    writeRaw(String.format("REDIS%04d", RDB_VERSION).getBytes());
+    writeAux("redis-ver", "7.0.0");
+    writeAux("redis-bits", "64");
+    writeAux("ctime", Long.toString(System.currentTimeMillis() / 1000));
+    writeByte(OPCODE_SELECTDB);
+    writeLength(0);
+    writeByte(OPCODE_RESIZEDB);
+    writeLength(keyCount);
+    writeLength(expiresCount);
+  }
+
+  /**
+   * Writes one key with its value and expiry. Already expired keys are skipped.
+   */
+  void writeEntry(ByteKey key, RedisData data) throws IOException {
+    if (data.isExpired()) {
+      return;
+    }
+    if (data.expiryTime != -1) {
+      writeByte(OPCODE_EXPIRETIME_MS);
+      writeLongLittleEndian(data.expiryTime);
+    }
+    writeByte(typeOf(data));
+    writeString(key.bytes, 0, key.bytes.length);
+    writeValueBody(data);
+  }
+
+  /**
+   * Writes a value's type byte and encoding, without key or expiry.
+   */
+  private void writeValue(RedisData data) throws IOException {
+    writeByte(typeOf(data));
+    writeValueBody(data);
+  }
+
+  private static int typeOf(RedisData data) throws IOException {
+    if (data instanceof RedisString) {
+      return TYPE_STRING;
+    } else if (data instanceof RedisList) {
+      return TYPE_LIST;
+    } else if (data instanceof RedisSet) {
+      return TYPE_SET;
+    } else if (data instanceof RedisHash) {
+      return TYPE_HASH;
+    } else if (data instanceof RedisZSet) {
+      return TYPE_ZSET_2;
+    }
+    throw new IOException("Cannot save value of type " + data.getClass().getSimpleName());
+  }
+
+  private void writeValueBody(RedisData data) throws IOException {
+    if (data instanceof RedisString) {
+      byte[] value = ((RedisString) data).bytes();
+      writeString(value, 0, value.length);
+    } else if (data instanceof RedisList) {
+      RedisList list = (RedisList) data;
+      writeLength(list.size());
+      list.lrange(0, -1, this::writeString);
+    } else if (data instanceof RedisSet) {
+      RedisSet set = (RedisSet) data;
+      writeLength(set.size());
+      set.forEach(this::writeString);
+    } else if (data instanceof RedisHash) {
+      RedisHash hash = (RedisHash) data;
+      writeLength(hash.size());
+      hash.forEach(this::writeString); // Field, value, field, ...
+    } else {
+      // Each member followed by its score as a binary double
+      RedisZSet zset = (RedisZSet) data;
+      writeLength(zset.size());
+      zset.forEach(0, zset.size() - 1, false, (member, offset, length, score) -> {
+        writeString(member, offset, length);
+        writeLongLittleEndian(Double.doubleToLongBits(score));
+      });
+    }
+  }
+
+  /**
+   * Writes the EOF marker and checksum and forces everything to disk.
+   */
+  void finish() throws IOException {
+    writeByte(OPCODE_EOF);
+    flush();
+    ByteBuffer checksum = ByteBuffer.allocate(8);
+    checksum.putLong(Long.reverseBytes(crc)); // Little endian on disk
+    checksum.flip();
+    writeFully(checksum);
+    ((FileChannel) channel).force(true);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private void writeAux(String name, String value) throws IOException {
+    writeByte(OPCODE_AUX);
+    byte[] nameBytes = name.getBytes();
+    writeString(nameBytes, 0, nameBytes.length);
+    byte[] valueBytes = value.getBytes();
+    writeString(valueBytes, 0, valueBytes.length);
+  }
+
+  /**
+   * Length encoding: 6 bits, 14 bits, 32 bits or 64 bits, marked by the top bits of the first byte.
+   */
+  private void writeLength(long length) throws IOException {
+    if (length < (1 << 6)) {
+      writeByte((int) length);
+    } else if (length < (1 << 14)) {
+      writeByte(0x40 | (int) (length >>> 8));
+      writeByte((int) length & 0xff);
+    } else if (length <= 0xffffffffL) {
+      ensureRoom(5);
+      buffer.put((byte) 0x80);
+      buffer.putInt((int) length);
+    } else {
+      ensureRoom(9);
+      buffer.put((byte) 0x81);
+      buffer.putLong(length);
+    }
+  }
+
+  private void writeString(byte[] data, int offset, int length) throws IOException {
+    writeLength(length);
+    while (length > 0) {
+      ensureRoom(1);
+      int chunk = Math.min(length, buffer.remaining());
+      buffer.put(data, offset, chunk);
+      offset += chunk;
+      length -= chunk;
+    }
+  }
+
+  private void writeLongLittleEndian(long value) throws IOException {
+    ensureRoom(8);
+    buffer.putLong(Long.reverseBytes(value));
+  }
+
+  private void writeRaw(byte[] data) throws IOException {
+    ensureRoom(data.length);
+    buffer.put(data);
+  }
+
+  private void writeByte(int value) throws IOException {
+    ensureRoom(1);
+    buffer.put((byte) value);
+  }
+
+  private void ensureRoom(int bytes) throws IOException {
+    if (buffer.remaining() < bytes) {
+      flush();
+    }
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    crc = Crc64.update(crc, buffer.array(), 0, buffer.limit());
+    writeFully(buffer);
+    buffer.clear();
+  }
+
+  private void writeFully(ByteBuffer source) throws IOException {
+    while (source.hasRemaining()) {
+      channel.write(source);
+    }
+  }
+}
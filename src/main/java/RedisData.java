@@ -0,0 +1,73 @@
+/**
+ * Base class for all data types stored in Redis.
+ * Handles expiry.
+ */
+abstract class RedisData {
+  long expiryTime; // Absolute time in milliseconds when this expires
+  int lru; // Access stamp used by eviction: LRU clock or LFU counter
+
+  public RedisData(long expiryTime) {
+    this.expiryTime = expiryTime;
+  }
+  
+  public RedisData() {
+    this.expiryTime = -1; // Default: no expiry
+  }
+
+  /**
+   * Checks if this entry is expired.
+   * @return true if the entry has an expiry time and the current time is past it,
+   * false otherwise.
+   */
+  public boolean isExpired() {
+    if (expiryTime == -1) {
+      return false; // No expiry set
+    }
+    return System.currentTimeMillis() > expiryTime;
+  }
+
+  /**
+   * Estimates the heap used by this value, for maxmemory accounting.
+   * @return The approximate size in bytes.
+   */
+  public abstract long memoryUsage();
+
+  /**
+   * The memory usage charged to used_memory for this value. Values that are
+   * never changed in place are charged what they use now, so they carry no
+   * bookkeeping field and one object can be stored under many keys (see
+   * {@link RedisString#share}); values changed in place remember it.
+   */
+  long chargedUsage() {
+    return memoryUsage();
+  }
+
+  /**
+   * Records what was charged, for values changed in place.
+   */
+  void setChargedUsage(long usage) {
+  }
+
+  /**
+   * Returns a copy that later in-place changes to this value do not affect,
+   * for snapshots. Immutable values may return themselves.
+   */
+  public abstract RedisData copy();
+
+  /**
+   * @return The internal representation, as OBJECT ENCODING reports it.
+   */
+  public abstract String encoding();
+
+  /**
+   * @return The type name, as TYPE reports it.
+   */
+  public abstract String type();
+
+  /**
+   * Size of a byte array holding the given number of bytes, header included.
+   */
+  static long arraySize(int length) {
+    return (16 + length + 7) & ~7L;
+  }
+}
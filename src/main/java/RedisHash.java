@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Represents a Hash value in Redis.
+ *
+ * Small hashes keep their fields and values in one packed array (the
+ * listpack encoding, see {@link PackedList}), field, value, field, ... in
+ * insertion order, searched from the head. One that grows past
+ * {@link #MAX_PACKED_ENTRIES} fields or gets a field or value longer than
+ * {@link #MAX_PACKED_VALUE} bytes moves to a hash table for good, as in Redis.
+ */
+class RedisHash extends RedisData {
+  static final int MAX_PACKED_ENTRIES = 128;
+  static final int MAX_PACKED_VALUE = 64;
+
+  private byte[] packed = PackedList.EMPTY; // Null once the hash is a hash table
+  private int packedSize; // Fields, half the packed elements
+  private Dict map;
+  private long chargedUsage;
+
+  public RedisHash() {
+    super(-1); // No expiry
+  }
+
+  @Override
+  public long memoryUsage() {
+    return 48 + (packed != null ? arraySize(packed.length) : map.memoryUsage());
+  }
+
+  @Override
+  long chargedUsage() {
+    return chargedUsage;
+  }
+
+  @Override
+  void setChargedUsage(long usage) {
+    chargedUsage = usage;
+  }
+
+  @Override
+  public RedisData copy() {
+    RedisHash copy = new RedisHash();
+    copy.expiryTime = expiryTime;
+    copy.packed = packed; // Never changed in place
+    copy.packedSize = packedSize;
+    copy.map = map == null ? null : map.copy(); // Values are replaced, not changed
+    return copy;
+  }
+
+  @Override
+  public String encoding() {
+    return packed != null ? "listpack" : "hashtable";
+  }
+
+  @Override
+  public String type() {
+    return "hash";
+  }
+
+  public int size() {
+    return packed != null ? packedSize : map.size();
+  }
+
+  /**
+   * @return The field's value (HGET), or null if the field is not set.
+   */
+  public byte[] get(byte[] field) {
+    if (packed != null) {
+      int index = PackedList.find(packed, 2 * packedSize, field, 2);
+      return index < 0 ? null : PackedList.get(packed, index + 1);
+    }
+    return map.get(field);
+  }
+
+  /**
+   * Sets a field (HSET).
+   * @return true if the field is new, false if its value was replaced.
+   */
+  public boolean put(byte[] field, byte[] value) {
+    if (packed != null) {
+      int index = PackedList.find(packed, 2 * packedSize, field, 2);
+      if (value.length <= MAX_PACKED_VALUE) {
+        if (index >= 0) {
+          packed = PackedList.replace(packed, index + 1, value);
+          return false;
+        }
+        if (packedSize < MAX_PACKED_ENTRIES && field.length <= MAX_PACKED_VALUE) {
+          packed = PackedList.append(PackedList.append(packed, field), value);
+          packedSize++;
+          return true;
+        }
+      }
+      toMap();
+    }
+    return map.put(field, value) == null;
+  }
+
+  /**
+   * Deletes a field (HDEL).
+   * @return true if it was set.
+   */
+  public boolean remove(byte[] field) {
+    if (packed != null) {
+      int index = PackedList.find(packed, 2 * packedSize, field, 2);
+      if (index < 0) {
+        return false;
+      }
+      packed = PackedList.remove(packed, index, 2);
+      packedSize--;
+      return true;
+    }
+    return map.remove(field) != null;
+  }
+
+  /**
+   * Streams every field and value, field first, without copying them (HGETALL).
+   */
+  public void forEach(QuickList.ElementVisitor visitor) throws IOException {
+    if (packed != null) {
+      PackedList.forEach(packed, 0, 2 * packedSize - 1, visitor);
+      return;
+    }
+    map.forEach(visitor);
+  }
+
+  /**
+   * Streams about count fields and their values, as {@link #forEach} does,
+   * resuming from a cursor (HSCAN). A listpack hash is streamed whole.
+   * @return The cursor to resume from, 0 once every field was visited.
+   */
+  public long scan(long cursor, int count, QuickList.ElementVisitor visitor) throws IOException {
+    if (packed != null) {
+      forEach(visitor);
+      return 0;
+    }
+    return map.scan(cursor, count, visitor);
+  }
+
+  private void toMap() {
+    map = new Dict();
+    byte[][] field = new byte[1][];
+    try {
+      PackedList.forEach(packed, 0, 2 * packedSize - 1, (data, offset, length) -> {
+        byte[] element = Arrays.copyOfRange(data, offset, offset + length);
+        if (field[0] == null) {
+          field[0] = element;
+        } else {
+          map.put(field[0], element);
+          field[0] = null;
+        }
+      });
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // Not thrown by this visitor
+    }
+    packed = null;
+    packedSize = 0;
+  }
+}
@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Represents a List value in Redis.
+ *
+ * Small lists are packed into a single array (the listpack encoding, see
+ * {@link PackedList}); one that grows past its limits moves to a QuickList
+ * for good, as in Redis.
+ */
+class RedisList extends RedisData {
+  private byte[] packed = PackedList.EMPTY; // Null once the list is a QuickList
+  private int packedSize;
+  // Packed chunks: cheap pushes/pops at both ends and little overhead per element
+  private QuickList list;
+  private long chargedUsage;
+
+  public RedisList() {
+    super(-1); // No expiry
+  }
+
+  @Override
+  public long memoryUsage() {
+    return 48 + (packed != null ? arraySize(packed.length) : list.memoryUsage());
+  }
+
+  @Override
+  long chargedUsage() {
+    return chargedUsage;
+  }
+
+  @Override
+  void setChargedUsage(long usage) {
+    chargedUsage = usage;
+  }
+
+  @Override
+  public RedisData copy() {
+    RedisList copy = new RedisList();
+    copy.expiryTime = expiryTime;
+    copy.packed = packed; // Never changed in place
+    copy.packedSize = packedSize;
+    copy.list = list == null ? null : list.copy();
+    return copy;
+  }
+
+  @Override
+  public String encoding() {
+    return packed != null ? "listpack" : "quicklist";
+  }
+
+  @Override
+  public String type() {
+    return "list";
+  }
+
+  public int size() {
+    return packed != null ? packedSize : list.size();
+  }
+  
+  /**
+   * Appends an element to the end of the list (RPUSH).
+   * @param element The element's bytes.
+   * @return The new size of the list.
+   */
+  public int rpush(byte[] element) {
+    if (fitsPacked(element)) {
+      packed = PackedList.append(packed, element);
+      return ++packedSize;
+    }
+    list.addLast(element);
+    return list.size();
+  }
+
+  /**
+   * Prepends an element to the start of the list (LPUSH).
+   * @param element The element's bytes.
+   * @return The new size of the list.
+   */
+  public int lpush(byte[] element) {
+    if (fitsPacked(element)) {
+      packed = PackedList.prepend(packed, element);
+      return ++packedSize;
+    }
+    list.addFirst(element);
+    return list.size();
+  }
+
+  /**
+   * Removes and returns the first element (LPOP).
+   * @return The element, or null if the list is empty.
+   */
+  public byte[] lpop() {
+    if (packed == null) {
+      return list.removeFirst();
+    }
+    if (packedSize == 0) {
+      return null;
+    }
+    byte[] element = PackedList.get(packed, 0);
+    packed = PackedList.slice(packed, 1, packedSize--);
+    return element;
+  }
+
+  /**
+   * Removes and returns the last element (RPOP).
+   * @return The element, or null if the list is empty.
+   */
+  public byte[] rpop() {
+    if (packed == null) {
+      return list.removeLast();
+    }
+    if (packedSize == 0) {
+      return null;
+    }
+    byte[] element = PackedList.get(packed, packedSize - 1);
+    packed = PackedList.slice(packed, 0, --packedSize);
+    return element;
+  }
+
+  /**
+   * Checks whether the list can take one more element in the listpack
+   * encoding, converting it to a QuickList if not.
+   * @return true if the element goes into the packed array.
+   */
+  private boolean fitsPacked(byte[] element) {
+    if (packed == null) {
+      return false;
+    }
+    if (packedSize < PackedList.MAX_ELEMENTS
+        && packed.length + PackedList.entrySize(element.length) <= PackedList.MAX_BYTES) {
+      return true;
+    }
+    list = new QuickList();
+    try {
+      PackedList.forEach(packed, 0, packedSize - 1, (data, offset, length) ->
+          list.addLast(Arrays.copyOfRange(data, offset, offset + length)));
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // Not thrown by this visitor
+    }
+    packed = null;
+    packedSize = 0;
+    return false;
+  }
+
+  /**
+   * Returns the element at an index (LINDEX). Negative indices count from the end.
+   * @return The element, or null if the index is out of range.
+   */
+  public byte[] index(long index) {
+    long resolved = index < 0 ? size() + index : index;
+    if (resolved < 0 || resolved >= size()) {
+      return null;
+    }
+    return packed != null ? PackedList.get(packed, (int) resolved) : list.get((int) resolved);
+  }
+
+  /**
+   * Streams a range of elements from the list (LRANGE) without copying them.
+   * @param start The 0-based start index (inclusive); negative counts from the end.
+   * @param stop The 0-based stop index (inclusive); negative counts from the end.
+   * @param visitor Receives each element of the range in order; use
+   * {@link #lrangeLength} first to learn how many there will be.
+   */
+  public void lrange(long start, long stop, QuickList.ElementVisitor visitor) throws IOException {
+    long range = normalizeRange(start, stop);
+    if (range == -1) {
+      return;
+    }
+    if (packed != null) {
+      PackedList.forEach(packed, (int) (range >>> 32), (int) range, visitor);
+    } else {
+      list.forEach((int) (range >>> 32), (int) range, visitor);
+    }
+  }
+
+  /**
+   * Number of elements LRANGE returns for the given indices.
+   * @return The range length, or 0 if the range is empty.
+   */
+  public int lrangeLength(long start, long stop) {
+    long range = normalizeRange(start, stop);
+    return range == -1 ? 0 : (int) range - (int) (range >>> 32) + 1;
+  }
+
+  /**
+   * Keeps only the given range (LTRIM). An empty range empties the list.
+   */
+  public void ltrim(long start, long stop) {
+    long range = normalizeRange(start, stop);
+    if (packed != null) {
+      packed = range == -1 ? PackedList.EMPTY : PackedList.slice(packed, (int) (range >>> 32), (int) range + 1);
+      packedSize = range == -1 ? 0 : (int) range - (int) (range >>> 32) + 1;
+    } else if (range == -1) {
+      list.trim(1, 0);
+    } else {
+      list.trim((int) (range >>> 32), (int) range);
+    }
+  }
+
+  /**
+   * Applies the Redis range rules to start/stop indices:
+   * 1. Negative indices count from the end of the list (-1 is the last element).
+   * 2. A start before the head is clamped to 0, a stop past the tail to the last element.
+   * 3. The range is empty if start is past the tail or after stop.
+   * @return The resolved start in the high 32 bits and stop in the low 32 bits,
+   * or -1 if the range is empty.
+   */
+  private long normalizeRange(long start, long stop) {
+    int size = size();
+    if (start < 0) {
+      start = Math.max(0, size + start);
+    }
+    if (stop < 0) {
+      stop = size + stop;
+    }
+    if (start >= size || start > stop) {
+      return -1;
+    }
+    if (stop >= size) {
+      stop = size - 1;
+    }
+    return (start << 32) | stop;
+  }
+}
@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Represents a Set value in Redis, in one of three encodings, upgraded as
+ * the set grows and never back, as in Redis:
+ * 1. intset: while every member is an integer in canonical form, a sorted
+ *    array of longs searched by bisection, up to {@link #MAX_INTSET_ENTRIES}.
+ * 2. listpack: small sets of other members, packed into one array (see
+ *    {@link PackedList}), up to {@link #MAX_PACKED_ENTRIES} members of at
+ *    most {@link #MAX_PACKED_VALUE} bytes.
+ * 3. hashtable: anything larger.
+ */
+class RedisSet extends RedisData {
+  static final int MAX_INTSET_ENTRIES = 512;
+  static final int MAX_PACKED_ENTRIES = 128;
+  static final int MAX_PACKED_VALUE = 64;
+  private static final long[] NO_INTEGERS = new long[0];
+
+  // Exactly one of the three is set; the arrays are never changed in place
+  private long[] integers = NO_INTEGERS;
+  private byte[] packed;
+  private int packedSize;
+  private Dict set; // Members mapped to Dict.PRESENT
+  private long chargedUsage;
+
+  public RedisSet() {
+    super(-1); // No expiry
+  }
+
+  @Override
+  public long memoryUsage() {
+    if (integers != null) {
+      return 48 + arraySize(8 * integers.length);
+    }
+    return 48 + (packed != null ? arraySize(packed.length) : set.memoryUsage());
+  }
+
+  @Override
+  long chargedUsage() {
+    return chargedUsage;
+  }
+
+  @Override
+  void setChargedUsage(long usage) {
+    chargedUsage = usage;
+  }
+
+  @Override
+  public RedisData copy() {
+    RedisSet copy = new RedisSet();
+    copy.expiryTime = expiryTime;
+    copy.integers = integers;
+    copy.packed = packed;
+    copy.packedSize = packedSize;
+    copy.set = set == null ? null : set.copy();
+    return copy;
+  }
+
+  @Override
+  public String encoding() {
+    return integers != null ? "intset" : packed != null ? "listpack" : "hashtable";
+  }
+
+  @Override
+  public String type() {
+    return "set";
+  }
+
+  public int size() {
+    return integers != null ? integers.length : packed != null ? packedSize : set.size();
+  }
+
+  /**
+   * Adds a member (SADD).
+   * @return true if it was not in the set.
+   */
+  public boolean add(byte[] member) {
+    if (integers != null) {
+      RedisString number = RedisString.parseInteger(member, -1);
+      if (number != null) {
+        long value = ((RedisString.IntString) number).value;
+        int index = Arrays.binarySearch(integers, value);
+        if (index >= 0) {
+          return false;
+        }
+        if (integers.length < MAX_INTSET_ENTRIES) {
+          int at = -index - 1;
+          long[] grown = new long[integers.length + 1];
+          System.arraycopy(integers, 0, grown, 0, at);
+          grown[at] = value;
+          System.arraycopy(integers, at, grown, at + 1, integers.length - at);
+          integers = grown;
+          return true;
+        }
+      }
+      convertIntegers(number == null && integers.length < MAX_PACKED_ENTRIES
+          && member.length <= MAX_PACKED_VALUE);
+    }
+    if (packed != null) {
+      if (PackedList.find(packed, packedSize, member, 1) >= 0) {
+        return false;
+      }
+      if (packedSize < MAX_PACKED_ENTRIES && member.length <= MAX_PACKED_VALUE) {
+        packed = PackedList.append(packed, member);
+        packedSize++;
+        return true;
+      }
+      toSet();
+    }
+    return set.put(member, Dict.PRESENT) == null;
+  }
+
+  /**
+   * @return true if the member is in the set (SISMEMBER).
+   */
+  public boolean contains(byte[] member) {
+    if (integers != null) {
+      RedisString number = RedisString.parseInteger(member, -1);
+      return number != null && Arrays.binarySearch(integers, ((RedisString.IntString) number).value) >= 0;
+    }
+    if (packed != null) {
+      return PackedList.find(packed, packedSize, member, 1) >= 0;
+    }
+    return set.get(member) != null;
+  }
+
+  /**
+   * Removes a member (SREM).
+   * @return true if it was in the set.
+   */
+  public boolean remove(byte[] member) {
+    if (integers != null) {
+      RedisString number = RedisString.parseInteger(member, -1);
+      int index = number == null ? -1 : Arrays.binarySearch(integers, ((RedisString.IntString) number).value);
+      if (index < 0) {
+        return false;
+      }
+      long[] shrunk = new long[integers.length - 1];
+      System.arraycopy(integers, 0, shrunk, 0, index);
+      System.arraycopy(integers, index + 1, shrunk, index, shrunk.length - index);
+      integers = shrunk;
+      return true;
+    }
+    if (packed != null) {
+      int index = PackedList.find(packed, packedSize, member, 1);
+      if (index < 0) {
+        return false;
+      }
+      packed = PackedList.remove(packed, index, 1);
+      packedSize--;
+      return true;
+    }
+    return set.remove(member) != null;
+  }
+
+  /**
+   * Streams every member (SMEMBERS); packed and hash table members are not copied.
+   */
+  public void forEach(QuickList.ElementVisitor visitor) throws IOException {
+    if (integers != null) {
+      for (long value : integers) {
+        byte[] member = Long.toString(value).getBytes();
+        visitor.visit(member, 0, member.length);
+      }
+    } else if (packed != null) {
+      PackedList.forEach(packed, 0, packedSize - 1, visitor);
+    } else {
+      set.forEach(visitor);
+    }
+  }
+
+  /**
+   * Streams about count members, as {@link #forEach} does, resuming from a
+   * cursor (SSCAN). An intset or listpack set is streamed whole.
+   * @return The cursor to resume from, 0 once every member was visited.
+   */
+  public long scan(long cursor, int count, QuickList.ElementVisitor visitor) throws IOException {
+    if (set == null) {
+      forEach(visitor);
+      return 0;
+    }
+    return set.scan(cursor, count, visitor);
+  }
+
+  /**
+   * Leaves the intset encoding for the listpack one, or the hash table.
+   */
+  private void convertIntegers(boolean toPacked) {
+    long[] values = integers;
+    integers = null;
+    if (toPacked) {
+      packed = PackedList.EMPTY;
+      for (long value : values) {
+        packed = PackedList.append(packed, Long.toString(value).getBytes());
+      }
+      packedSize = values.length;
+      return;
+    }
+    set = new Dict();
+    for (long value : values) {
+      set.put(Long.toString(value).getBytes(), Dict.PRESENT);
+    }
+  }
+
+  private void toSet() {
+    set = new Dict();
+    try {
+      PackedList.forEach(packed, 0, packedSize - 1, (data, offset, length) -> {
+        set.put(Arrays.copyOfRange(data, offset, offset + length), Dict.PRESENT);
+      });
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // Not thrown by this visitor
+    }
+    packed = null;
+    packedSize = 0;
+  }
+}
@@ -0,0 +1,273 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Represents a String value in Redis, in the most compact of three
+ * encodings, chosen by {@link #of} as the value is stored:
+ * 1. int: a decimal integer in canonical form, kept as a long. Values
+ *    0 to {@link #SHARED_INTEGERS} - 1 without expiry can be one shared
+ *    object, as in Redis (see {@link #share}).
+ * 2. embstr: up to {@link #EMBSTR_SIZE_LIMIT} bytes, kept inline in two
+ *    long fields instead of a separate array.
+ * 3. raw: the bytes as received.
+ * Strings are never changed in place, only replaced.
+ */
+abstract class RedisString extends RedisData {
+  @Override
+  public String type() {
+    return "string";
+  }
+
+  static final int SHARED_INTEGERS = 10000;
+  static final int EMBSTR_SIZE_LIMIT = 15;
+
+  private static final IntString[] shared = new IntString[SHARED_INTEGERS];
+
+  static {
+    for (int i = 0; i < SHARED_INTEGERS; i++) {
+      shared[i] = new IntString(i, -1);
+    }
+  }
+
+  RedisString(long expiryTime) {
+    super(expiryTime);
+  }
+
+  /**
+   * Wraps a value in its most compact encoding.
+   * @param value The bytes; kept as they are by the raw encoding.
+   */
+  static RedisString of(byte[] value, long expiryTime) {
+    RedisString number = parseInteger(value, expiryTime);
+    if (number != null) {
+      return number;
+    }
+    if (value.length <= EMBSTR_SIZE_LIMIT) {
+      return new EmbeddedString(value, expiryTime);
+    }
+    return new RawString(value, expiryTime);
+  }
+
+  static RedisString of(byte[] value) {
+    return of(value, -1);
+  }
+
+  /**
+   * @return The shared object for the same value if there is one (a small
+   * integer without expiry), otherwise the value itself.
+   */
+  static RedisData share(RedisData data) {
+    if (data instanceof IntString number && number.expiryTime == -1
+        && number.value >= 0 && number.value < SHARED_INTEGERS) {
+      return shared[(int) number.value];
+    }
+    return data;
+  }
+
+  /**
+   * @return The value's bytes: the stored array for raw strings, a new one otherwise.
+   */
+  abstract byte[] bytes();
+
+  /**
+   * @return The length of the value in bytes.
+   */
+  abstract int length();
+
+  /**
+   * Writes the value as a bulk string reply, without building its bytes first.
+   */
+  abstract void writeBulk(OutputStream outputStream) throws IOException;
+
+  /**
+   * Parses a decimal integer in canonical form, the only form the int
+   * encoding gives back byte for byte: no '+', no leading zeros, no "-0".
+   * @return The int-encoded value, or null if it is not one.
+   */
+  static RedisString parseInteger(byte[] value, long expiryTime) {
+    int length = value.length;
+    if (length == 0 || length > 20) {
+      return null;
+    }
+    boolean negative = value[0] == '-';
+    int i = negative ? 1 : 0;
+    if (i == length || (value[i] == '0' && length > 1)) {
+      return null;
+    }
+    long number = 0; // Accumulated negatively, like Long.parseLong, to reach Long.MIN_VALUE
+    for (; i < length; i++) {
+      int digit = value[i] - '0';
+      if (digit < 0 || digit > 9 || number < (Long.MIN_VALUE + digit) / 10) {
+        return null;
+      }
+      number = number * 10 - digit;
+    }
+    if (!negative && number == Long.MIN_VALUE) {
+      return null;
+    }
+    return new IntString(negative ? number : -number, expiryTime);
+  }
+
+  /**
+   * The int encoding.
+   */
+  static final class IntString extends RedisString {
+    final long value;
+
+    IntString(long value, long expiryTime) {
+      super(expiryTime);
+      this.value = value;
+    }
+
+    @Override
+    byte[] bytes() {
+      return Long.toString(value).getBytes();
+    }
+
+    @Override
+    int length() {
+      return Long.toString(value).length();
+    }
+
+    @Override
+    void writeBulk(OutputStream outputStream) throws IOException {
+      CommandProcessor.writeBulk(outputStream, value);
+    }
+
+    @Override
+    public long memoryUsage() {
+      return isShared() ? 0 : 32; // Shared ones belong to no key
+    }
+
+    @Override
+    public RedisData copy() {
+      return isShared() ? this : new IntString(value, expiryTime);
+    }
+
+    @Override
+    public String encoding() {
+      return "int";
+    }
+
+    private boolean isShared() {
+      return value >= 0 && value < SHARED_INTEGERS && shared[(int) value] == this;
+    }
+  }
+
+  /**
+   * The embstr encoding: byte i of the value is byte i % 8 of the first or
+   * second long, little endian, and the length is the top byte of the second.
+   */
+  static final class EmbeddedString extends RedisString {
+    private final long low;
+    private final long high;
+
+    EmbeddedString(byte[] value, long expiryTime) {
+      super(expiryTime);
+      long low = 0;
+      long high = (long) value.length << 56;
+      for (int i = 0; i < value.length; i++) {
+        if (i < 8) {
+          low |= (value[i] & 0xffL) << (8 * i);
+        } else {
+          high |= (value[i] & 0xffL) << (8 * (i - 8));
+        }
+      }
+      this.low = low;
+      this.high = high;
+    }
+
+    private EmbeddedString(long low, long high, long expiryTime) {
+      super(expiryTime);
+      this.low = low;
+      this.high = high;
+    }
+
+    private int byteAt(int i) {
+      return (int) ((i < 8 ? low >>> (8 * i) : high >>> (8 * (i - 8))) & 0xff);
+    }
+
+    @Override
+    byte[] bytes() {
+      byte[] value = new byte[length()];
+      for (int i = 0; i < value.length; i++) {
+        value[i] = (byte) byteAt(i);
+      }
+      return value;
+    }
+
+    @Override
+    int length() {
+      return (int) (high >>> 56);
+    }
+
+    @Override
+    void writeBulk(OutputStream outputStream) throws IOException {
+      int length = length();
+      CommandProcessor.writeBulkHeader(outputStream, length);
+      for (int i = 0; i < length; i++) {
+        outputStream.write(byteAt(i));
+      }
+      outputStream.write(Replies.CRLF);
+    }
+
+    @Override
+    public long memoryUsage() {
+      return 40;
+    }
+
+    @Override
+    public RedisData copy() {
+      return new EmbeddedString(low, high, expiryTime);
+    }
+
+    @Override
+    public String encoding() {
+      return "embstr";
+    }
+  }
+
+  /**
+   * The raw encoding.
+   */
+  static final class RawString extends RedisString {
+    // Raw bytes as received, written back to clients without transcoding
+    final byte[] value;
+
+    RawString(byte[] value, long expiryTime) {
+      super(expiryTime);
+      this.value = value;
+    }
+
+    @Override
+    byte[] bytes() {
+      return value;
+    }
+
+    @Override
+    int length() {
+      return value.length;
+    }
+
+    @Override
+    void writeBulk(OutputStream outputStream) throws IOException {
+      CommandProcessor.writeBulk(outputStream, value, 0, value.length);
+    }
+
+    @Override
+    public long memoryUsage() {
+      return 32 + arraySize(value.length);
+    }
+
+    @Override
+    public RedisData copy() {
+      // The bytes are never modified in place, only replaced, so they can be shared
+      return new RawString(value, expiryTime);
+    }
+
+    @Override
+    public String encoding() {
+      return "raw";
+    }
+  }
+}
@@ -0,0 +1,306 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Represents a Sorted Set value in Redis: members ordered by score, then by
+ * their bytes.
+ *
+ * Small sorted sets keep their members packed into one array (see
+ * {@link PackedList}) in order, with the scores in a parallel array that is
+ * searched by bisection. One that grows past {@link #MAX_PACKED_ENTRIES}
+ * members or gets one longer than {@link #MAX_PACKED_VALUE} bytes moves for
+ * good to a {@link SkipList}, for O(log n) ranks and ranges, plus a hash
+ * index from member to skiplist node for O(1) score lookups, as in Redis.
+ * Ranks are 0-based.
+ */
+class RedisZSet extends RedisData {
+  static final int MAX_PACKED_ENTRIES = 128;
+  static final int MAX_PACKED_VALUE = 64;
+  // Map node, member key and table slot of each entry of the index
+  private static final long ENTRY_OVERHEAD = 32 + 24 + 8;
+  private static final double[] NO_SCORES = new double[0];
+
+  /**
+   * Receives members in place; the array must not be kept or modified.
+   */
+  interface EntryVisitor {
+    void visit(byte[] data, int offset, int length, double score) throws IOException;
+  }
+
+  // Never changed in place; both null once the set is a skiplist
+  private byte[] packed = PackedList.EMPTY;
+  private double[] scores = NO_SCORES;
+  private SkipList list;
+  private HashMap<ByteKey, SkipList.Node> index;
+  private long listBytes; // Running estimate of the skiplist and its index
+  private long chargedUsage;
+
+  public RedisZSet() {
+    super(-1); // No expiry
+  }
+
+  @Override
+  public long memoryUsage() {
+    if (packed != null) {
+      return 48 + arraySize(packed.length) + arraySize(8 * scores.length);
+    }
+    return 48 + 48 + 16 + SkipList.MAX_LEVEL * 8 + listBytes;
+  }
+
+  @Override
+  long chargedUsage() {
+    return chargedUsage;
+  }
+
+  @Override
+  void setChargedUsage(long usage) {
+    chargedUsage = usage;
+  }
+
+  @Override
+  public RedisData copy() {
+    RedisZSet copy = new RedisZSet();
+    copy.expiryTime = expiryTime;
+    copy.packed = packed;
+    copy.scores = scores;
+    if (list != null) {
+      copy.list = new SkipList();
+      copy.index = new HashMap<>(index.size() * 2);
+      for (SkipList.Node node = list.first(); node != null; node = node.next()) {
+        copy.index.put(node.member, copy.list.insert(node.score, node.member));
+      }
+    }
+    copy.listBytes = listBytes;
+    return copy;
+  }
+
+  @Override
+  public String encoding() {
+    return packed != null ? "listpack" : "skiplist";
+  }
+
+  @Override
+  public String type() {
+    return "zset";
+  }
+
+  public int size() {
+    return packed != null ? scores.length : list.size();
+  }
+
+  /**
+   * @return The member's score (ZSCORE), or null if it is not in the set.
+   */
+  public Double score(byte[] member) {
+    if (packed != null) {
+      int at = PackedList.find(packed, scores.length, member, 1);
+      return at < 0 ? null : scores[at];
+    }
+    SkipList.Node node = index.get(new ByteKey(member));
+    return node == null ? null : node.score;
+  }
+
+  /**
+   * Adds a member or changes its score.
+   * @param score Not NaN.
+   * @return true if the member is new.
+   */
+  public boolean put(byte[] member, double score) {
+    if (packed != null) {
+      int at = PackedList.find(packed, scores.length, member, 1);
+      if (at >= 0 && scores[at] == score) {
+        return false;
+      }
+      if (at >= 0 || (scores.length < MAX_PACKED_ENTRIES && member.length <= MAX_PACKED_VALUE)) {
+        if (at >= 0) {
+          removePacked(at);
+        }
+        int position = packedPosition(score, member);
+        packed = PackedList.insert(packed, position, member);
+        double[] grown = new double[scores.length + 1];
+        System.arraycopy(scores, 0, grown, 0, position);
+        grown[position] = score;
+        System.arraycopy(scores, position, grown, position + 1, scores.length - position);
+        scores = grown;
+        return at < 0;
+      }
+      toSkipList();
+    }
+    ByteKey key = new ByteKey(member);
+    SkipList.Node node = index.get(key);
+    if (node != null) {
+      if (node.score == score) {
+        return false;
+      }
+      list.delete(node.score, node.member);
+      SkipList.Node moved = list.insert(score, node.member);
+      index.put(node.member, moved);
+      listBytes += moved.memoryUsage() - node.memoryUsage();
+      return false;
+    }
+    add(key, score);
+    return true;
+  }
+
+  /**
+   * Removes a member (ZREM).
+   * @return true if it was in the set.
+   */
+  public boolean remove(byte[] member) {
+    if (packed != null) {
+      int at = PackedList.find(packed, scores.length, member, 1);
+      if (at < 0) {
+        return false;
+      }
+      removePacked(at);
+      return true;
+    }
+    SkipList.Node node = index.remove(new ByteKey(member));
+    if (node == null) {
+      return false;
+    }
+    list.delete(node.score, node.member);
+    listBytes -= ENTRY_OVERHEAD + arraySize(member.length) + node.memoryUsage();
+    return true;
+  }
+
+  /**
+   * @return The member's 0-based rank by ascending score (ZRANK), or -1 if
+   * it is not in the set.
+   */
+  public long rank(byte[] member) {
+    if (packed != null) {
+      return PackedList.find(packed, scores.length, member, 1);
+    }
+    SkipList.Node node = index.get(new ByteKey(member));
+    return node == null ? -1 : list.rank(node.score, node.member) - 1;
+  }
+
+  /**
+   * @param inclusive Whether members scored exactly score are counted too.
+   * @return The number of members scored below score, which is the rank of
+   * the first member at or above it.
+   */
+  public long countBelow(double score, boolean inclusive) {
+    if (packed == null) {
+      return list.countBelow(score, inclusive);
+    }
+    int low = 0;
+    int high = scores.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (scores[middle] < score || (inclusive && scores[middle] == score)) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Streams the members ranked start to stop, both inclusive and within
+   * bounds, with their scores.
+   * @param reverse Visit from stop down to start instead.
+   */
+  public void forEach(long start, long stop, boolean reverse, EntryVisitor visitor) throws IOException {
+    if (packed != null) {
+      if (!reverse) {
+        int[] rank = {(int) start};
+        PackedList.forEach(packed, (int) start, (int) stop, (data, offset, length) ->
+            visitor.visit(data, offset, length, scores[rank[0]++]));
+        return;
+      }
+      for (long rank = stop; rank >= start; rank--) {
+        byte[] member = PackedList.get(packed, (int) rank);
+        visitor.visit(member, 0, member.length, scores[(int) rank]);
+      }
+      return;
+    }
+    SkipList.Node node = list.byRank((reverse ? stop : start) + 1);
+    for (long i = start; i <= stop; i++) {
+      visitor.visit(node.member.bytes, 0, node.member.bytes.length, node.score);
+      node = reverse ? node.previous() : node.next();
+    }
+  }
+
+  /**
+   * Parses a score the way Redis does: a decimal or "inf", "+inf", "-inf",
+   * in any case.
+   * @throws NumberFormatException If it is not a number, or is NaN.
+   */
+  static double parseScore(String text) {
+    double score;
+    if (text.equalsIgnoreCase("inf") || text.equalsIgnoreCase("+inf")) {
+      score = Double.POSITIVE_INFINITY;
+    } else if (text.equalsIgnoreCase("-inf")) {
+      score = Double.NEGATIVE_INFINITY;
+    } else if (text.isEmpty() || Character.isWhitespace(text.charAt(0))
+        || !Character.isDigit(text.charAt(text.length() - 1)) && text.charAt(text.length() - 1) != '.') {
+      throw new NumberFormatException(text); // Java would take "1 ", "1d" or "Infinity"
+    } else {
+      score = Double.parseDouble(text);
+    }
+    if (Double.isNaN(score)) {
+      throw new NumberFormatException(text);
+    }
+    return score;
+  }
+
+  /**
+   * Formats a score as Redis replies with it: integers without a fraction,
+   * other values in the shortest form that reads back the same.
+   */
+  static byte[] formatScore(double score) {
+    if (Double.isInfinite(score)) {
+      return (score > 0 ? "inf" : "-inf").getBytes();
+    }
+    if (score == Math.rint(score) && Math.abs(score) < 1e17) {
+      return Long.toString((long) score).getBytes();
+    }
+    return new BigDecimal(Double.toString(score)).stripTrailingZeros().toString()
+        .replace("E", "e").getBytes();
+  }
+
+  /**
+   * @return Where a new member goes among the packed ones.
+   */
+  private int packedPosition(double score, byte[] member) {
+    int position = (int) countBelow(score, false);
+    while (position < scores.length && scores[position] == score
+        && Arrays.compareUnsigned(PackedList.get(packed, position), member) < 0) {
+      position++;
+    }
+    return position;
+  }
+
+  private void removePacked(int at) {
+    packed = PackedList.remove(packed, at, 1);
+    double[] shrunk = new double[scores.length - 1];
+    System.arraycopy(scores, 0, shrunk, 0, at);
+    System.arraycopy(scores, at + 1, shrunk, at, shrunk.length - at);
+    scores = shrunk;
+  }
+
+  private void add(ByteKey member, double score) {
+    SkipList.Node node = list.insert(score, member);
+    index.put(member, node);
+    listBytes += ENTRY_OVERHEAD + arraySize(member.bytes.length) + node.memoryUsage();
+  }
+
+  private void toSkipList() {
+    list = new SkipList();
+    index = new HashMap<>();
+    int[] rank = {0};
+    try {
+      PackedList.forEach(packed, 0, scores.length - 1, (data, offset, length) ->
+          add(new ByteKey(Arrays.copyOfRange(data, offset, offset + length)), scores[rank[0]++]));
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // Not thrown by this visitor
+    }
+    packed = null;
+    scores = null;
+  }
+}
@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The master's end of one replica connection, from PSYNC on.
+ *
+ * The connection leaves the server's normal client handling and gets two
+ * threads of its own. The sender does the resync (a snapshot, or nothing if
+ * the replica can continue from the backlog) and then streams the backlog,
+ * writing everything that accumulated since its last write in one go. The
+ * receiver reads the replica's REPLCONF ACK offsets, which WAIT counts.
+ */
+class ReplicaLink {
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final long IDLE_WAIT_MILLIS = 1000;
+
+  private final Socket socket;
+  private final Client client;
+  private final Replication replication;
+  private final Persistence persistence;
+  private final String requestedReplid;
+  private final long requestedOffset; // First offset the replica is missing, or -1
+
+  private volatile boolean online;     // Resync done, streaming
+  private volatile long ackOffset = -1;
+  private volatile long lastAckMillis = System.currentTimeMillis();
+  private volatile boolean closed;
+
+  ReplicaLink(Socket socket, Client client, Replication replication, Persistence persistence,
+      String requestedReplid, long requestedOffset) {
+    this.socket = socket;
+    this.client = client;
+    this.replication = replication;
+    this.persistence = persistence;
+    this.requestedReplid = requestedReplid;
+    this.requestedOffset = requestedOffset;
+  }
+
+  void start() {
+    Thread sender = new Thread(this::send, "replica-" + client.id + "-sender");
+    sender.setDaemon(true);
+    sender.start();
+    Thread receiver = new Thread(this::receive, "replica-" + client.id + "-receiver");
+    receiver.setDaemon(true);
+    receiver.start();
+  }
+
+  boolean isOnline() {
+    return online;
+  }
+
+  long ackOffset() {
+    return ackOffset;
+  }
+
+  private void send() {
+    try {
+      replication.attached(this);
+      OutputStream out = socket.getOutputStream();
+      long position = resync(out);
+      online = true;
+      System.out.println("Replica " + address() + " online at offset " + position);
+
+      byte[] chunk = new byte[CHUNK_SIZE];
+      while (!closed) {
+        replication.awaitData(position, IDLE_WAIT_MILLIS);
+        int length;
+        while ((length = replication.read(position, chunk)) > 0) {
+          out.write(chunk, 0, length);
+          position += length;
+        }
+        if (length < 0) {
+          throw new IOException("replica fell behind the backlog");
+        }
+        out.flush();
+      }
+    } catch (IOException e) {
+      if (!closed) {
+        System.out.println("Lost replica " + address() + ": " + e.getMessage());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * Brings the replica up to a point in the stream.
+   * @return The offset streaming continues from.
+   */
+  private long resync(OutputStream out) throws IOException, InterruptedException {
+    if (replication.canContinue(requestedReplid, requestedOffset)) {
+      out.write(("+CONTINUE " + replication.replid + "\r\n").getBytes());
+      out.flush();
+      return requestedOffset;
+    }
+
+    // Full resync: a snapshot cut at an exact stream offset, then the stream from there
+    Path snapshot = persistence.rdbPath().resolveSibling(
+        "temp-repl-" + ProcessHandle.current().pid() + "-" + client.id + ".rdb");
+    long[] start = new long[1];
+    try {
+      while (!persistence.saveForReplication(snapshot, () -> start[0] = replication.offset())) {
+        Thread.sleep(100); // Another save or rewrite holds the snapshot
+      }
+      out.write(("+FULLRESYNC " + replication.replid + " " + start[0] + "\r\n").getBytes());
+      out.write(("$" + Files.size(snapshot) + "\r\n").getBytes()); // No CRLF after the payload
+      Files.copy(snapshot, out);
+      out.flush();
+    } finally {
+      Files.deleteIfExists(snapshot);
+    }
+    return start[0];
+  }
+
+  private void receive() {
+    RespDecoder decoder = new RespDecoder();
+    ByteBuffer buffer = ByteBuffer.allocate(4096);
+    try {
+      InputStream in = socket.getInputStream();
+      while (!closed) {
+        int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+        if (read < 0) {
+          System.out.println("Replica " + address() + " closed the connection");
+          break;
+        }
+        buffer.position(buffer.position() + read);
+        buffer.flip();
+        CommandArgs args;
+        while ((args = decoder.decode(buffer)) != null) {
+          if (args.count() == 3 && args.is(0, "REPLCONF") && args.is(1, "ACK")) {
+            ackOffset = args.parseLong(2);
+            lastAckMillis = System.currentTimeMillis();
+            replication.acknowledged();
+          }
+        }
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+          throw new IOException("oversized command from replica");
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      if (!closed) {
+        System.out.println("Error reading from replica " + address() + ": " + e.getMessage());
+      }
+    } finally {
+      close();
+    }
+  }
+
+  private synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    online = false;
+    replication.detached(this);
+    try {
+      socket.close();
+    } catch (IOException e) {
+      System.out.println("IOException closing replica socket: " + e.getMessage());
+    }
+  }
+
+  private String address() {
+    return socket.getInetAddress().getHostAddress() + ":" + client.listeningPort;
+  }
+
+  /**
+   * Appends this replica's slaveN line of the replication section in INFO format.
+   */
+  void appendInfo(StringBuilder info, int index) {
+    info.append("slave").append(index)
+        .append(":ip=").append(socket.getInetAddress().getHostAddress())
+        .append(",port=").append(client.listeningPort)
+        .append(",state=").append(online ? "online" : "wait_bgsave")
+        .append(",offset=").append(Math.max(0, ackOffset))
+        .append(",lag=").append((System.currentTimeMillis() - lastAckMillis) / 1000)
+        .append("\r\n");
+  }
+}
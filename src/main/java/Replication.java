@@ -0,0 +1,346 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Master-replica replication.
+ *
+ * As a master, every write command is appended, as RESP, to a circular
+ * backlog; master_repl_offset counts the bytes ever appended. Appending is a
+ * copy under a short lock and never touches a socket: each replica has its own
+ * {@link ReplicaLink} thread that sends whatever has accumulated since its
+ * last write in one batch, so a slow replica never slows down the commands.
+ * A replica that reconnects with PSYNC resumes from the backlog if its offset
+ * is still in it (partial resync), otherwise it gets a snapshot (full resync).
+ *
+ * As a replica (--replicaof), a {@link MasterLink} thread receives the stream
+ * and applies it; clients can read but not write.
+ */
+class Replication {
+  private static final byte[] REPLCONF = "REPLCONF".getBytes();
+  private static final byte[] GETACK = "GETACK".getBytes();
+  private static final byte[] STAR = "*".getBytes();
+
+  private final ServerConfig config;
+  final String replid = randomReplid();
+
+  // Guarded by this
+  private final Scratch record = new Scratch(); // One encoded command, read in place
+  private volatile byte[] backlog; // Created when the first replica attaches
+  private long offset;             // master_repl_offset
+  private long backlogStart;       // Offset of the oldest byte still in the backlog
+  private int waitingLinks;        // Links sleeping in awaitData
+  private final List<AckWaiter> ackWaiters = new ArrayList<>();
+
+  private final List<ReplicaLink> replicas = new CopyOnWriteArrayList<>();
+  private final ScheduledThreadPoolExecutor timer;
+  private volatile MasterLink masterLink; // Set on a replica
+
+  /**
+   * A client blocked in WAIT.
+   */
+  private static final class AckWaiter {
+    final Client client;
+    final long target;      // Replication offset the replicas must acknowledge
+    final int numReplicas;
+    ScheduledFuture<?> timeout;
+
+    AckWaiter(Client client, long target, int numReplicas) {
+      this.client = client;
+      this.target = target;
+      this.numReplicas = numReplicas;
+    }
+  }
+
+  Replication(ServerConfig config) {
+    this.config = config;
+    timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "replication-timer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    timer.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Starts following the master given by --replicaof, if any.
+   * Called once the local data has been loaded.
+   */
+  void start(Keyspace keyspace, Persistence persistence, CommandProcessor commandProcessor) {
+    if (config.masterHost != null) {
+      masterLink = new MasterLink(config, this, keyspace, persistence, commandProcessor);
+      Thread thread = new Thread(masterLink, "master-link");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  boolean isReplica() {
+    return config.masterHost != null;
+  }
+
+  /**
+   * Sends a write command to the replicas. Call after the command has been
+   * applied, while it still runs.
+   */
+  void propagate(Client client, CommandArgs args) {
+    if (backlog == null) {
+      return; // No replica has ever attached
+    }
+    synchronized (this) {
+      record.reset();
+      CommandEncoder.encode(record, args);
+      client.replOffset = append(record);
+    }
+  }
+
+  /**
+   * Sends a command in a different form than it was received (e.g. BLPOP as LPOP).
+   */
+  void propagate(Client client, byte[]... argv) {
+    if (backlog == null) {
+      return;
+    }
+    synchronized (this) {
+      record.reset();
+      CommandEncoder.encode(record, argv);
+      client.replOffset = append(record);
+    }
+  }
+
+  /**
+   * @return master_repl_offset.
+   */
+  synchronized long offset() {
+    return offset;
+  }
+
+  /**
+   * Creates the backlog, if this is the first replica.
+   */
+  synchronized void ensureBacklog() {
+    if (backlog == null) {
+      backlog = new byte[(int) Math.max(16 * 1024, Math.min(config.replBacklogSize, Integer.MAX_VALUE - 16))];
+      backlogStart = offset;
+    }
+  }
+
+  /**
+   * @return true if a replica asking to continue from the offset can be served
+   * from the backlog (partial resync).
+   */
+  synchronized boolean canContinue(String requestedReplid, long requestedOffset) {
+    return backlog != null && replid.equals(requestedReplid)
+        && requestedOffset >= backlogStart && requestedOffset <= offset;
+  }
+
+  /**
+   * Copies stream bytes starting at the given offset.
+   * @return The number of bytes copied, or -1 if the offset has already been
+   * overwritten (the replica fell too far behind).
+   */
+  synchronized int read(long from, byte[] destination) {
+    if (from < backlogStart) {
+      return -1;
+    }
+    int length = (int) Math.min(destination.length, offset - from);
+    int index = (int) (from % backlog.length);
+    int first = Math.min(length, backlog.length - index);
+    System.arraycopy(backlog, index, destination, 0, first);
+    System.arraycopy(backlog, 0, destination, first, length - first);
+    return length;
+  }
+
+  /**
+   * Waits until the stream has bytes past the given offset, or the timeout.
+   */
+  synchronized void awaitData(long from, long timeoutMillis) throws InterruptedException {
+    if (offset > from) {
+      return;
+    }
+    waitingLinks++;
+    try {
+      wait(timeoutMillis);
+    } finally {
+      waitingLinks--;
+    }
+  }
+
+  void attached(ReplicaLink link) {
+    replicas.add(link);
+  }
+
+  void detached(ReplicaLink link) {
+    replicas.remove(link);
+  }
+
+  /**
+   * Hands a connection that sent PSYNC over to a new replica link.
+   */
+  void attachReplica(Socket socket, Client client, String requestedReplid, long requestedOffset,
+      Persistence persistence) {
+    ensureBacklog();
+    ReplicaLink link = new ReplicaLink(socket, client, this, persistence, requestedReplid, requestedOffset);
+    link.start();
+  }
+
+  /**
+   * WAIT numreplicas timeout: replies at once if enough replicas have
+   * acknowledged the client's last write, otherwise blocks the client.
+   */
+  void waitForReplicas(Client client, int numReplicas, long timeoutMillis, OutputStream outputStream)
+      throws IOException {
+    synchronized (this) {
+      long target = client.replOffset;
+      int acked = countAcked(target);
+      if (acked >= numReplicas || replicas.isEmpty()) {
+        CommandProcessor.writeInteger(outputStream, acked);
+        return;
+      }
+
+      AckWaiter waiter = new AckWaiter(client, target, numReplicas);
+      ackWaiters.add(waiter);
+      client.waiter = new BlockingRegistry.Waiter(client, new ByteKey[0], false);
+      if (timeoutMillis > 0) {
+        waiter.timeout = timer.schedule(() -> timedOut(waiter), timeoutMillis, TimeUnit.MILLISECONDS);
+      }
+      // Ask for acknowledgements now rather than waiting for the next periodic one
+      record.reset();
+      CommandEncoder.encode(record, REPLCONF, GETACK, STAR);
+      append(record);
+    }
+  }
+
+  /**
+   * Called when a replica acknowledges an offset.
+   */
+  synchronized void acknowledged() {
+    Iterator<AckWaiter> iterator = ackWaiters.iterator();
+    while (iterator.hasNext()) {
+      AckWaiter waiter = iterator.next();
+      int acked = countAcked(waiter.target);
+      if (acked >= waiter.numReplicas) {
+        iterator.remove();
+        finish(waiter, acked);
+      }
+    }
+  }
+
+  /**
+   * Drops a client's WAIT, e.g. because it disconnected.
+   */
+  synchronized void cancel(Client client) {
+    ackWaiters.removeIf(waiter -> {
+      if (waiter.client != client) {
+        return false;
+      }
+      if (waiter.timeout != null) {
+        waiter.timeout.cancel(false);
+      }
+      return true;
+    });
+  }
+
+  private synchronized void timedOut(AckWaiter waiter) {
+    if (ackWaiters.remove(waiter)) {
+      finish(waiter, countAcked(waiter.target));
+    }
+  }
+
+  private void finish(AckWaiter waiter, int acked) {
+    if (waiter.timeout != null) {
+      waiter.timeout.cancel(false);
+    }
+    waiter.client.unblock((":" + acked + "\r\n").getBytes());
+  }
+
+  private int countAcked(long target) {
+    int acked = 0;
+    for (ReplicaLink link : replicas) {
+      if (link.isOnline() && link.ackOffset() >= target) {
+        acked++;
+      }
+    }
+    return acked;
+  }
+
+  /**
+   * Appends an encoded command to the backlog. Call holding this monitor.
+   * @return The offset just past the command.
+   */
+  private long append(Scratch encoded) {
+    byte[] data = encoded.buffer();
+    int length = encoded.size();
+    int skip = Math.max(0, length - backlog.length); // Only the tail of a huge command fits
+    int index = (int) ((offset + skip) % backlog.length);
+    int first = Math.min(length - skip, backlog.length - index);
+    System.arraycopy(data, skip, backlog, index, first);
+    System.arraycopy(data, skip + first, backlog, 0, length - skip - first);
+    offset += length;
+    backlogStart = Math.max(backlogStart, offset - backlog.length);
+    if (waitingLinks > 0) {
+      notifyAll();
+    }
+    return offset;
+  }
+
+  /**
+   * Appends the replication section in INFO format.
+   */
+  void appendInfo(StringBuilder info) {
+    MasterLink link = masterLink;
+    if (isReplica()) {
+      info.append("role:slave\r\n");
+      info.append("master_host:").append(config.masterHost).append("\r\n");
+      info.append("master_port:").append(config.masterPort).append("\r\n");
+      if (link != null) {
+        link.appendInfo(info);
+      }
+    } else {
+      info.append("role:master\r\n");
+    }
+    int online = 0;
+    StringBuilder lines = new StringBuilder();
+    for (ReplicaLink replica : replicas) {
+      replica.appendInfo(lines, online);
+      online++;
+    }
+    info.append("connected_slaves:").append(online).append("\r\n").append(lines);
+    synchronized (this) {
+      info.append("master_replid:").append(link != null ? link.masterReplid() : replid).append("\r\n");
+      info.append("master_repl_offset:").append(link != null ? link.offset() : offset).append("\r\n");
+      info.append("repl_backlog_active:").append(backlog != null ? 1 : 0).append("\r\n");
+      info.append("repl_backlog_size:").append(config.replBacklogSize).append("\r\n");
+      info.append("repl_backlog_first_byte_offset:").append(backlog != null ? backlogStart + 1 : 0).append("\r\n");
+      info.append("repl_backlog_histlen:").append(backlog != null ? offset - backlogStart : 0).append("\r\n");
+    }
+  }
+
+  private static String randomReplid() {
+    byte[] bytes = new byte[20];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder hex = new StringBuilder(40);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * A byte array stream whose array the backlog copies from directly.
+   */
+  private static final class Scratch extends ByteArrayOutputStream {
+    byte[] buffer() {
+      return buf;
+    }
+  }
+}
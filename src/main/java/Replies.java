@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Replies encoded once at startup and shared by every connection, so the
+ * common ones cost a copy into the output buffer and no allocation. The
+ * arrays are never modified.
+ *
+ * Integer replies and the length headers of bulk strings and arrays are
+ * cached for 0 to {@link #CACHED_HEADERS} - 1, like Redis's shared integers
+ * and bulk headers; larger numbers are formatted by the writer.
+ */
+final class Replies {
+  static final byte[] OK = "+OK\r\n".getBytes();
+  static final byte[] PONG = "+PONG\r\n".getBytes();
+  static final byte[] NULL_BULK = "$-1\r\n".getBytes();
+  static final byte[] NULL_ARRAY = "*-1\r\n".getBytes();
+  static final byte[] EMPTY_ARRAY = "*0\r\n".getBytes();
+  static final byte[] CRLF = "\r\n".getBytes();
+
+  static final byte[] WRONGTYPE_ERROR =
+      "-WRONGTYPE Operation against a key holding the wrong kind of value\r\n".getBytes();
+  static final byte[] SYNTAX_ERROR = "-ERR syntax error\r\n".getBytes();
+  static final byte[] NOT_INTEGER_ERROR = "-ERR value is not an integer or out of range\r\n".getBytes();
+
+  static final int CACHED_HEADERS = 10000;
+
+  // Each is every header of one type back to back, e.g. ":0\r\n:1\r\n...",
+  // with where header n starts in OFFSETS[n] (the same for all three types)
+  private static final byte[] INTEGERS = encodeHeaders(':');
+  private static final byte[] BULK_HEADERS = encodeHeaders('$');
+  private static final byte[] ARRAY_HEADERS = encodeHeaders('*');
+  private static final int[] OFFSETS = new int[CACHED_HEADERS + 1];
+
+  static {
+    for (int n = 0; n < CACHED_HEADERS; n++) {
+      OFFSETS[n + 1] = OFFSETS[n] + Integer.toString(n).length() + 3;
+    }
+  }
+
+  private Replies() {
+  }
+
+  /**
+   * Writes ":n\r\n", "$n\r\n" or "*n\r\n" from the cache.
+   * @param type ':', '$' or '*'.
+   * @return false, having written nothing, if n is not cached.
+   */
+  static boolean writeHeader(OutputStream outputStream, char type, long n) throws IOException {
+    if (n < 0 || n >= CACHED_HEADERS) {
+      return false;
+    }
+    byte[] headers = type == ':' ? INTEGERS : type == '$' ? BULK_HEADERS : ARRAY_HEADERS;
+    int start = OFFSETS[(int) n];
+    outputStream.write(headers, start, OFFSETS[(int) n + 1] - start);
+    return true;
+  }
+
+  private static byte[] encodeHeaders(char type) {
+    StringBuilder headers = new StringBuilder();
+    for (int n = 0; n < CACHED_HEADERS; n++) {
+      headers.append(type).append(n).append("\r\n");
+    }
+    return headers.toString().getBytes();
+  }
+}
@@ -0,0 +1,351 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A connection's outgoing replies, RESP-encoded straight into pooled direct
+ * buffers (see {@link BufferPool}) and sent from them as the socket takes
+ * them. A large reply is never built as one array or copied again when the
+ * socket is slow: it is a chain of chunks, and the owner can send finished
+ * chunks while the command is still writing (see {@link #onBacklog}).
+ *
+ * Handlers see an OutputStream; the RESP helpers in {@link CommandProcessor}
+ * use the typed writers here when they get one. Unsent output is held to
+ * the client output buffer limits as it grows. A client over them, like one
+ * whose socket failed, has its output discarded and is closed by its owner
+ * once the current command returns, as Redis does.
+ */
+class ReplyStream extends OutputStream {
+  // Send early once this many reply bytes are waiting, even mid-batch
+  static final int FLUSH_THRESHOLD = 64 * 1024;
+  private static final int MAX_GATHER = 16; // Chunks per socket write
+
+  // Clients closed for going over a limit, for INFO
+  static final LongAdder limitDisconnections = new LongAdder();
+
+  private final ServerConfig config;
+  private long hardLimit;       // Bytes; 0 for none
+  private long softLimit;
+  private long softLimitMillis; // How long the soft limit may be exceeded
+
+  private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>(); // Full chunks, in read mode
+  private ByteBuffer tail; // The chunk being filled, in write mode, or null
+  private long size;       // Bytes written and not sent yet
+  private long softLimitSince = -1;
+  private String discardReason; // Set once the output is being dropped
+  private Runnable backlogHandler;
+  private final byte[] digits = new byte[20];
+  private ByteBuffer[] gather;
+
+  ReplyStream(ServerConfig config) {
+    this.config = config;
+    usePubSubLimits(false);
+  }
+
+  /**
+   * Switches between the limits of normal clients and the looser ones of
+   * clients subscribed to Pub/Sub channels, as Redis classes a client by
+   * whether it has subscriptions.
+   */
+  void usePubSubLimits(boolean pubSub) {
+    hardLimit = pubSub ? config.clientOutputBufferPubSubHardLimit : config.clientOutputBufferHardLimit;
+    softLimit = pubSub ? config.clientOutputBufferPubSubSoftLimit : config.clientOutputBufferSoftLimit;
+    softLimitMillis = (pubSub ? config.clientOutputBufferPubSubSoftSeconds
+        : config.clientOutputBufferSoftSeconds) * 1000;
+  }
+
+  /**
+   * @param handler Called whenever a chunk fills up while at least
+   * {@link #FLUSH_THRESHOLD} bytes are waiting; it may call {@link #drainTo}.
+   */
+  void onBacklog(Runnable handler) {
+    this.backlogHandler = handler;
+  }
+
+  /**
+   * @return The number of bytes waiting to be sent.
+   */
+  long size() {
+    return size;
+  }
+
+  boolean isDiscarded() {
+    return discardReason != null;
+  }
+
+  String discardReason() {
+    return discardReason;
+  }
+
+  @Override
+  public void write(int b) {
+    if (ensureTail()) {
+      tail.put((byte) b);
+      size++;
+    }
+  }
+
+  @Override
+  public void write(byte[] data, int offset, int length) {
+    while (length > 0 && ensureTail()) {
+      int n = Math.min(length, tail.remaining());
+      tail.put(data, offset, n);
+      offset += n;
+      length -= n;
+      size += n;
+    }
+  }
+
+  /**
+   * Copies bytes from a buffer, e.g. an argument still in the receive buffer,
+   * without moving its position.
+   */
+  void write(ByteBuffer data, int start, int length) {
+    while (length > 0 && ensureTail()) {
+      int n = Math.min(length, tail.remaining());
+      tail.put(tail.position(), data, start, n);
+      tail.position(tail.position() + n);
+      start += n;
+      length -= n;
+      size += n;
+    }
+  }
+
+  /**
+   * Queues a frame that other streams send too, such as a published message
+   * going to every subscriber: the stream keeps a read-only view of it
+   * instead of copying it into a chunk, so a message costs each subscriber
+   * one small object whatever its size, and an idle subscriber needs no
+   * chunk of its own to receive it. The frame must never change.
+   * @param frame Read-only, in read mode; its position is left alone.
+   */
+  void writeShared(ByteBuffer frame) {
+    if (discardReason != null) {
+      return;
+    }
+    if (tail != null) {
+      // Whatever was written so far goes first
+      if (tail.position() > 0) {
+        tail.flip();
+        chunks.addLast(tail);
+      } else {
+        BufferPool.release(tail);
+      }
+      tail = null;
+    }
+    chunks.addLast(frame.duplicate());
+    size += frame.remaining();
+    if (overLimit()) {
+      limitDisconnections.increment();
+      discard("output buffer limit reached with " + size + " bytes unsent");
+    }
+  }
+
+  void writeBulk(byte[] value, int offset, int length) {
+    writeHeader('$', length);
+    write(value, offset, length);
+    write(Replies.CRLF, 0, 2);
+  }
+
+  /**
+   * Writes a number as a bulk string (an int-encoded string value).
+   */
+  void writeBulk(long value) {
+    int start = formatDigits(value);
+    writeHeader('$', digits.length - start);
+    write(digits, start, digits.length - start);
+    write(Replies.CRLF, 0, 2);
+  }
+
+  void writeNullBulk() {
+    write(Replies.NULL_BULK, 0, Replies.NULL_BULK.length);
+  }
+
+  void writeInteger(long value) {
+    writeHeader(':', value);
+  }
+
+  void writeArrayHeader(long count) {
+    writeHeader('*', count);
+  }
+
+  /**
+   * Writes a type byte, a number and CRLF: from the shared cache for small
+   * numbers, otherwise formatting the digits in place.
+   */
+  void writeHeader(char type, long value) {
+    try {
+      if (Replies.writeHeader(this, type, value)) {
+        return;
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // Not thrown by this stream
+    }
+    int start = formatDigits(value);
+    write(type);
+    write(digits, start, digits.length - start);
+    write(Replies.CRLF, 0, 2);
+  }
+
+  /**
+   * Formats a number, sign included, at the end of the scratch array.
+   * @return Where it starts.
+   */
+  private int formatDigits(long value) {
+    int start = digits.length;
+    long rest = value;
+    do {
+      digits[--start] = (byte) ('0' + Math.abs(rest % 10));
+      rest /= 10;
+    } while (rest != 0);
+    if (value < 0) {
+      digits[--start] = '-';
+    }
+    return start;
+  }
+
+  /**
+   * Makes sure the tail chunk has room, starting a new one if needed.
+   * @return false if the output is being discarded.
+   */
+  private boolean ensureTail() {
+    if (discardReason != null) {
+      return false;
+    }
+    if (tail != null && tail.hasRemaining()) {
+      return true;
+    }
+    if (tail != null) {
+      tail.flip();
+      chunks.addLast(tail);
+      tail = null;
+      if (backlogHandler != null && size >= FLUSH_THRESHOLD) {
+        backlogHandler.run();
+        if (discardReason != null) {
+          return false;
+        }
+      }
+      if (overLimit()) {
+        limitDisconnections.increment();
+        discard("output buffer limit reached with " + size + " bytes unsent");
+        return false;
+      }
+    }
+    tail = BufferPool.acquire();
+    return true;
+  }
+
+  private boolean overLimit() {
+    if (hardLimit > 0 && size >= hardLimit) {
+      return true;
+    }
+    if (softLimit > 0 && size >= softLimit) {
+      long now = System.currentTimeMillis();
+      if (softLimitSince < 0) {
+        softLimitSince = now;
+      }
+      return now - softLimitSince >= softLimitMillis;
+    }
+    softLimitSince = -1;
+    return false;
+  }
+
+  /**
+   * Sends as much as the channel takes: everything for a blocking channel.
+   * @return true if nothing is left to send.
+   */
+  boolean drainTo(WritableByteChannel channel) throws IOException {
+    if (discardReason != null) {
+      return true;
+    }
+    if (tail != null) {
+      tail.flip(); // Read mode while sending
+    }
+    try {
+      while (!chunks.isEmpty() || (tail != null && tail.hasRemaining())) {
+        long requested = 0;
+        long sent;
+        if (chunks.size() > 1 && channel instanceof GatheringByteChannel) {
+          if (gather == null) {
+            gather = new ByteBuffer[MAX_GATHER];
+          }
+          int count = 0;
+          for (ByteBuffer chunk : chunks) {
+            if (count == MAX_GATHER) {
+              break;
+            }
+            gather[count++] = chunk;
+            requested += chunk.remaining();
+          }
+          sent = ((GatheringByteChannel) channel).write(gather, 0, count);
+          Arrays.fill(gather, 0, count, null);
+        } else {
+          ByteBuffer next = chunks.isEmpty() ? tail : chunks.peekFirst();
+          requested = next.remaining();
+          sent = channel.write(next);
+        }
+        size -= sent;
+        while (!chunks.isEmpty() && !chunks.peekFirst().hasRemaining()) {
+          recycle(chunks.pollFirst());
+        }
+        if (sent < requested) {
+          return false; // The socket is full
+        }
+      }
+      return true;
+    } finally {
+      if (tail != null) {
+        if (tail.hasRemaining()) {
+          tail.compact();
+        } else {
+          BufferPool.release(tail); // Idle connections hold no buffers
+          tail = null;
+        }
+      }
+      if (size < softLimit) {
+        softLimitSince = -1;
+      }
+    }
+  }
+
+  /**
+   * Drops everything unsent and ignores further writes; the owner closes the
+   * connection when it sees {@link #isDiscarded}.
+   */
+  void discard(String reason) {
+    if (discardReason == null) {
+      discardReason = reason;
+    }
+    release();
+  }
+
+  /**
+   * Returns the buffers to the pool. Call when the connection closes.
+   */
+  void release() {
+    for (ByteBuffer chunk : chunks) {
+      recycle(chunk);
+    }
+    chunks.clear();
+    if (tail != null) {
+      BufferPool.release(tail);
+      tail = null;
+    }
+    size = 0;
+  }
+
+  /**
+   * Returns a sent chunk to the pool, unless it is a shared frame (see
+   * {@link #writeShared}), which is left to the GC once every stream is done with it.
+   */
+  private static void recycle(ByteBuffer chunk) {
+    if (!chunk.isReadOnly()) {
+      BufferPool.release(chunk);
+    }
+  }
+}
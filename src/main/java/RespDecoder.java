@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming RESP request decoder.
+ *
+ * Commands are framed the same way in RESP2 and RESP3 (an array of bulk
+ * strings, or an inline command line), so one decoder serves both. It works
+ * directly on the connection's receive buffer: arguments are exposed as
+ * offset/length slices through a reused {@link CommandArgs}, lengths are parsed
+ * in place, and nothing is allocated per command once the slice arrays have
+ * grown to fit. Progress through a partially received command is remembered,
+ * so each byte of a large frame is scanned only once.
+ *
+ * One decoder belongs to one connection. Between calls the unconsumed bytes
+ * must stay in the buffer starting at its position (compacting is fine).
+ */
+class RespDecoder {
+  private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+  private static final int MAX_MULTIBULK_LENGTH = 1024 * 1024;
+  private static final int MAX_INLINE_LENGTH = 64 * 1024;
+
+  private final CommandArgs args = new CommandArgs();
+
+  // State of a partially received multibulk, relative to the frame start
+  private int expected = -1; // Number of arguments announced, or -1 between frames
+  private int scanned;       // Bytes of the frame already decoded
+
+  /**
+   * Decodes the next command from the buffer.
+   * On success the buffer position moves past the command. If the command is
+   * not complete yet the position is left untouched.
+   * @param buffer Buffer in read mode holding the received bytes.
+   * @return The decoded arguments (count 0 for an empty frame), or null if
+   * more bytes are needed. The slices are valid until the buffer is modified.
+   * @throws IOException If the bytes are not valid RESP.
+   */
+  CommandArgs decode(ByteBuffer buffer) throws IOException {
+    int frameStart = buffer.position();
+    if (!buffer.hasRemaining()) {
+      return null;
+    }
+
+    if (expected < 0) {
+      if (buffer.get(frameStart) != '*') {
+        return decodeInline(buffer, frameStart);
+      }
+      int lineEnd = findCrlf(buffer, frameStart);
+      if (lineEnd < 0) {
+        checkUnterminated(buffer, frameStart);
+        return null;
+      }
+      int count = parseLength(buffer, frameStart + 1, lineEnd);
+      if (count > MAX_MULTIBULK_LENGTH) {
+        throw new IOException("Protocol error: invalid multibulk length");
+      }
+      expected = Math.max(count, 0);
+      scanned = lineEnd + 2 - frameStart;
+      args.reset(expected);
+    }
+
+    while (args.count < expected) {
+      int pos = frameStart + scanned;
+      int lineEnd = findCrlf(buffer, pos);
+      if (lineEnd < 0) {
+        checkUnterminated(buffer, pos);
+        return null;
+      }
+      if (buffer.get(pos) != '$') {
+        throw new IOException("Protocol error: expected '$', got '" + (char) buffer.get(pos) + "'");
+      }
+      int length = parseLength(buffer, pos + 1, lineEnd);
+      if (length < 0 || length > MAX_BULK_LENGTH) {
+        throw new IOException("Protocol error: invalid bulk length");
+      }
+      int dataStart = lineEnd + 2;
+      if (buffer.limit() - dataStart < length + 2) {
+        return null; // Header stays unconsumed; it is re-read once the data is in
+      }
+      args.add(dataStart - frameStart, length);
+      scanned = dataStart + length + 2 - frameStart; // Skip the data and its \r\n
+    }
+
+    buffer.position(frameStart + scanned);
+    args.base = frameStart;
+    args.buffer = buffer;
+    expected = -1;
+    return args;
+  }
+
+  /**
+   * Decodes an inline command: a single line of space separated arguments,
+   * as sent by telnet and some benchmarking tools.
+   */
+  private CommandArgs decodeInline(ByteBuffer buffer, int frameStart) throws IOException {
+    int lineEnd = -1;
+    for (int i = frameStart; i < buffer.limit(); i++) {
+      if (buffer.get(i) == '\n') {
+        lineEnd = i;
+        break;
+      }
+    }
+    if (lineEnd < 0) {
+      checkUnterminated(buffer, frameStart);
+      return null;
+    }
+
+    int end = lineEnd;
+    if (end > frameStart && buffer.get(end - 1) == '\r') {
+      end--;
+    }
+
+    args.reset(4);
+    int i = frameStart;
+    while (i < end) {
+      while (i < end && isSpace(buffer.get(i))) {
+        i++;
+      }
+      int tokenStart = i;
+      while (i < end && !isSpace(buffer.get(i))) {
+        i++;
+      }
+      if (i > tokenStart) {
+        args.add(tokenStart - frameStart, i - tokenStart);
+      }
+    }
+
+    buffer.position(lineEnd + 1);
+    args.base = frameStart;
+    args.buffer = buffer;
+    return args;
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t';
+  }
+
+  /**
+   * Rejects header lines that keep growing without a terminator, so a broken
+   * client cannot make us buffer without bound.
+   */
+  private static void checkUnterminated(ByteBuffer buffer, int from) throws IOException {
+    if (buffer.limit() - from > MAX_INLINE_LENGTH) {
+      throw new IOException("Protocol error: too big inline request");
+    }
+  }
+
+  /**
+   * Finds the next "\r\n" at or after the given index.
+   * @return The index of '\r', or -1 if there is no complete line yet.
+   */
+  private static int findCrlf(ByteBuffer buffer, int from) {
+    int limit = buffer.limit() - 1;
+    for (int i = from; i < limit; i++) {
+      if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Parses a decimal length in place, without creating a String.
+   */
+  private static int parseLength(ByteBuffer buffer, int from, int to) throws IOException {
+    if (from >= to) {
+      throw new IOException("Protocol error: empty length");
+    }
+    boolean negative = buffer.get(from) == '-';
+    int i = negative ? from + 1 : from;
+    if (i >= to) {
+      throw new IOException("Protocol error: invalid length");
+    }
+    long value = 0;
+    for (; i < to; i++) {
+      byte b = buffer.get(i);
+      if (b < '0' || b > '9' || value > Integer.MAX_VALUE) {
+        throw new IOException("Protocol error: invalid length");
+      }
+      value = value * 10 + (b - '0');
+    }
+    return (int) (negative ? -value : value);
+  }
+}
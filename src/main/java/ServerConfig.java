@@ -0,0 +1,264 @@
+/**
+ * Startup options parsed from the command line.
+ */
+class ServerConfig {
+
+  /**
+   * How client connections are served.
+   */
+  enum IoMode {
+    NIO,     // A few selector threads, each owning many connections
+    THREADS, // One platform thread per connection
+    VIRTUAL  // One virtual thread per connection
+  }
+
+  int port = 6379;
+  IoMode ioMode = IoMode.NIO;
+  int ioThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+  long maxMemory = 0; // Bytes; 0 means no limit
+  Eviction.Policy maxMemoryPolicy = Eviction.Policy.NOEVICTION;
+  int maxMemorySamples = 5;
+  // Unsent reply bytes a normal client may hold (client-output-buffer-limit);
+  // 0 disables a limit, as in Redis's default for normal clients
+  long clientOutputBufferHardLimit = 0;
+  long clientOutputBufferSoftLimit = 0;
+  long clientOutputBufferSoftSeconds = 0;
+  // The same for clients subscribed to Pub/Sub channels, with Redis's defaults:
+  // a subscriber that cannot keep up with the messages is disconnected
+  long clientOutputBufferPubSubHardLimit = 32 * 1024 * 1024;
+  long clientOutputBufferPubSubSoftLimit = 8 * 1024 * 1024;
+  long clientOutputBufferPubSubSoftSeconds = 60;
+  // Keys remembered for CLIENT TRACKING clients; past it, keys are forgotten
+  // and their clients told to drop them. 0 means no limit
+  long trackingTableMaxKeys = 1_000_000;
+  // Lock partitions of the keyspace, rounded up to a power of two
+  int keyspaceShards = Math.max(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 16));
+  String dir = ".";                // Where the RDB file lives
+  String dbFilename = "dump.rdb";
+  boolean appendOnly = false;
+  AppendOnlyFile.FsyncPolicy appendFsync = AppendOnlyFile.FsyncPolicy.EVERYSEC;
+  String appendFilename = "appendonly.aof"; // In dir, like the RDB file
+  String masterHost;                  // Set when this server is a replica
+  int masterPort;
+  long replBacklogSize = 1024 * 1024; // Bytes of stream kept for partial resyncs
+  boolean clusterEnabled = false;
+  String clusterConfigFile = "nodes.conf"; // In dir; written by the server
+  String clusterAnnounceIp = "127.0.0.1";  // The address other nodes and clients are sent to
+
+  /**
+   * Parses "--name value" style options.
+   * @param args The arguments passed to main.
+   * @return The resulting configuration, with defaults for anything not given.
+   */
+  static ServerConfig parse(String[] args) {
+    ServerConfig config = new ServerConfig();
+
+    for (int i = 0; i < args.length; i++) {
+      String option = args[i];
+      String value = i + 1 < args.length ? args[i + 1] : null;
+
+      switch (option) {
+        case "--port":
+          config.port = Integer.parseInt(requireValue(option, value));
+          i++;
+          break;
+
+        case "--io-mode":
+          config.ioMode = IoMode.valueOf(requireValue(option, value).toUpperCase());
+          i++;
+          break;
+
+        case "--io-threads":
+          config.ioThreads = Math.max(1, Integer.parseInt(requireValue(option, value)));
+          i++;
+          break;
+
+        case "--maxmemory":
+          config.maxMemory = parseMemory(requireValue(option, value));
+          i++;
+          break;
+
+        case "--maxmemory-policy":
+          config.maxMemoryPolicy = Eviction.Policy.parse(requireValue(option, value));
+          i++;
+          break;
+
+        case "--maxmemory-samples":
+          config.maxMemorySamples = Math.max(1, Integer.parseInt(requireValue(option, value)));
+          i++;
+          break;
+
+        case "--tracking-table-max-keys":
+          config.trackingTableMaxKeys = Math.max(0, Long.parseLong(requireValue(option, value)));
+          i++;
+          break;
+
+        case "--dir":
+          config.dir = requireValue(option, value);
+          i++;
+          break;
+
+        case "--dbfilename":
+          config.dbFilename = requireValue(option, value);
+          i++;
+          break;
+
+        case "--replicaof": {
+          // Either "host port" as one argument or as two
+          String[] master = requireValue(option, value).trim().split("\\s+");
+          if (master.length == 1) {
+            i++;
+            master = new String[] {master[0], requireValue(option, i + 1 < args.length ? args[i + 1] : null)};
+          }
+          config.masterHost = master[0];
+          config.masterPort = Integer.parseInt(master[1]);
+          i++;
+          break;
+        }
+
+        case "--repl-backlog-size":
+          config.replBacklogSize = parseMemory(requireValue(option, value));
+          i++;
+          break;
+
+        case "--keyspace-shards":
+          config.keyspaceShards = Math.max(1, Integer.parseInt(requireValue(option, value)));
+          i++;
+          break;
+
+        case "--client-output-buffer-limit": {
+          // "class hard soft seconds", possibly for several classes
+          String[] limits = requireValue(option, value).trim().split("\\s+");
+          if (limits.length % 4 != 0) {
+            throw new IllegalArgumentException("Expected class, hard limit, soft limit and seconds for "
+                + option);
+          }
+          for (int j = 0; j < limits.length; j += 4) {
+            if (limits[j].equalsIgnoreCase("normal")) {
+              config.clientOutputBufferHardLimit = parseMemory(limits[j + 1]);
+              config.clientOutputBufferSoftLimit = parseMemory(limits[j + 2]);
+              config.clientOutputBufferSoftSeconds = Long.parseLong(limits[j + 3]);
+            } else if (limits[j].equalsIgnoreCase("pubsub")) {
+              config.clientOutputBufferPubSubHardLimit = parseMemory(limits[j + 1]);
+              config.clientOutputBufferPubSubSoftLimit = parseMemory(limits[j + 2]);
+              config.clientOutputBufferPubSubSoftSeconds = Long.parseLong(limits[j + 3]);
+            } else {
+              System.out.println("Ignoring output buffer limits for client class " + limits[j]);
+            }
+          }
+          i++;
+          break;
+        }
+
+        case "--cluster-enabled":
+          config.clusterEnabled = requireValue(option, value).equalsIgnoreCase("yes");
+          i++;
+          break;
+
+        case "--cluster-config-file":
+          config.clusterConfigFile = requireValue(option, value);
+          i++;
+          break;
+
+        case "--cluster-announce-ip":
+          config.clusterAnnounceIp = requireValue(option, value);
+          i++;
+          break;
+
+        case "--appendonly":
+          config.appendOnly = requireValue(option, value).equalsIgnoreCase("yes");
+          i++;
+          break;
+
+        case "--appendfsync":
+          config.appendFsync = AppendOnlyFile.FsyncPolicy.parse(requireValue(option, value));
+          i++;
+          break;
+
+        case "--appendfilename":
+          config.appendFilename = requireValue(option, value);
+          i++;
+          break;
+
+        default:
+          System.out.println("Ignoring unknown option: " + option);
+      }
+    }
+    return config;
+  }
+
+  /**
+   * Looks up a parameter by its redis.conf name (CONFIG GET).
+   * @return The value, or null if there is no such parameter.
+   */
+  String get(String name) {
+    switch (name.toLowerCase()) {
+      case "port":
+        return Integer.toString(port);
+      case "dir":
+        return dir;
+      case "dbfilename":
+        return dbFilename;
+      case "replicaof":
+        return masterHost == null ? "" : masterHost + " " + masterPort;
+      case "repl-backlog-size":
+        return Long.toString(replBacklogSize);
+      case "client-output-buffer-limit":
+        return "normal " + clientOutputBufferHardLimit + " " + clientOutputBufferSoftLimit + " "
+            + clientOutputBufferSoftSeconds + " pubsub " + clientOutputBufferPubSubHardLimit + " "
+            + clientOutputBufferPubSubSoftLimit + " " + clientOutputBufferPubSubSoftSeconds;
+      case "cluster-enabled":
+        return clusterEnabled ? "yes" : "no";
+      case "cluster-config-file":
+        return clusterConfigFile;
+      case "cluster-announce-ip":
+        return clusterAnnounceIp;
+      case "appendonly":
+        return appendOnly ? "yes" : "no";
+      case "appendfsync":
+        return appendFsync.name().toLowerCase();
+      case "appendfilename":
+        return appendFilename;
+      case "maxmemory":
+        return Long.toString(maxMemory);
+      case "maxmemory-policy":
+        return maxMemoryPolicy.configName();
+      case "maxmemory-samples":
+        return Integer.toString(maxMemorySamples);
+      case "tracking-table-max-keys":
+        return Long.toString(trackingTableMaxKeys);
+      case "io-threads":
+        return Integer.toString(ioThreads);
+      case "keyspace-shards":
+        return Integer.toString(keyspaceShards);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Parses a memory size such as "1048576", "512kb", "100mb" or "2gb".
+   */
+  static long parseMemory(String value) {
+    String lower = value.toLowerCase();
+    long unit = 1;
+    if (lower.endsWith("kb")) {
+      unit = 1024;
+    } else if (lower.endsWith("mb")) {
+      unit = 1024 * 1024;
+    } else if (lower.endsWith("gb")) {
+      unit = 1024L * 1024 * 1024;
+    }
+    if (unit != 1) {
+      lower = lower.substring(0, lower.length() - 2);
+    }
+    return Long.parseLong(lower) * unit;
+  }
+
+  private static String requireValue(String option, String value) {
+    if (value == null) {
+      throw new IllegalArgumentException("Missing value for " + option);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,253 @@
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The ordered half of a large sorted set: members sorted by score, then by
+ * their bytes, in a skiplist whose links record how many nodes they skip
+ * (the span), as in Redis's zskiplist. Walking down from the top level adds
+ * up the spans passed, so the rank of a member, the node at a rank and the
+ * number of members below a score are all O(log n), as is an insert or a
+ * delete. The other half, finding a member's node by name, is a hash index
+ * kept by {@link RedisZSet}.
+ */
+class SkipList {
+  static final int MAX_LEVEL = 32;
+  private static final int LEVEL_ODDS = 4; // One node in 4 reaches the next level
+
+  static final class Node {
+    final ByteKey member;
+    final double score;
+    Node backward;
+    // The link at level 0, whose span is always 1, is a field, and only the
+    // quarter of the nodes that reach higher levels carry arrays for them
+    private Node next;
+    private final Node[] upper;     // Links at levels 1 and up; null for a level 1 node
+    private final int[] upperSpans; // Nodes passed by each, this one excluded
+
+    Node(ByteKey member, double score, int level) {
+      this.member = member;
+      this.score = score;
+      this.upper = level == 1 ? null : new Node[level - 1];
+      this.upperSpans = level == 1 ? null : new int[level - 1];
+    }
+
+    Node next() {
+      return next;
+    }
+
+    Node previous() {
+      return backward;
+    }
+
+    Node forward(int level) {
+      return level == 0 ? next : upper[level - 1];
+    }
+
+    void setForward(int level, Node node) {
+      if (level == 0) {
+        next = node;
+      } else {
+        upper[level - 1] = node;
+      }
+    }
+
+    int span(int level) {
+      return level == 0 ? 1 : upperSpans[level - 1];
+    }
+
+    void setSpan(int level, int span) {
+      if (level > 0) {
+        upperSpans[level - 1] = span;
+      }
+    }
+
+    /**
+     * @return The approximate heap used by the node and its arrays.
+     */
+    long memoryUsage() {
+      return upper == null ? 40 : 40 + 2 * RedisData.arraySize(4 * upper.length);
+    }
+  }
+
+  private final Node header = new Node(null, 0, MAX_LEVEL);
+  private Node tail;
+  private int length;
+  private int level = 1;
+
+  int size() {
+    return length;
+  }
+
+  /**
+   * @return The lowest node, or null if the list is empty.
+   */
+  Node first() {
+    return header.forward(0);
+  }
+
+  Node last() {
+    return tail;
+  }
+
+  /**
+   * Inserts a member that is not in the list yet.
+   * @return Its node.
+   */
+  Node insert(double score, ByteKey member) {
+    Node[] update = new Node[MAX_LEVEL];
+    int[] rank = new int[MAX_LEVEL];
+    Node x = header;
+    for (int i = level - 1; i >= 0; i--) {
+      rank[i] = i == level - 1 ? 0 : rank[i + 1];
+      while (x.forward(i) != null && precedes(x.forward(i), score, member)) {
+        rank[i] += x.span(i);
+        x = x.forward(i);
+      }
+      update[i] = x;
+    }
+    int nodeLevel = randomLevel();
+    if (nodeLevel > level) {
+      for (int i = level; i < nodeLevel; i++) {
+        rank[i] = 0;
+        update[i] = header;
+        update[i].setSpan(i, length);
+      }
+      level = nodeLevel;
+    }
+    Node node = new Node(member, score, nodeLevel);
+    for (int i = 0; i < nodeLevel; i++) {
+      node.setForward(i, update[i].forward(i));
+      update[i].setForward(i, node);
+      node.setSpan(i, update[i].span(i) - (rank[0] - rank[i]));
+      update[i].setSpan(i, rank[0] - rank[i] + 1);
+    }
+    for (int i = nodeLevel; i < level; i++) {
+      update[i].setSpan(i, update[i].span(i) + 1); // Untouched levels now skip one more node
+    }
+    node.backward = update[0] == header ? null : update[0];
+    if (node.forward(0) != null) {
+      node.forward(0).backward = node;
+    } else {
+      tail = node;
+    }
+    length++;
+    return node;
+  }
+
+  /**
+   * Removes a member given its current score.
+   * @return Its node, or null if it was not in the list.
+   */
+  Node delete(double score, ByteKey member) {
+    Node[] update = new Node[MAX_LEVEL];
+    Node x = header;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.forward(i) != null && precedes(x.forward(i), score, member)) {
+        x = x.forward(i);
+      }
+      update[i] = x;
+    }
+    x = x.forward(0);
+    if (x == null || x.score != score || !x.member.equals(member)) {
+      return null;
+    }
+    for (int i = 0; i < level; i++) {
+      if (update[i].forward(i) == x) {
+        update[i].setSpan(i, update[i].span(i) + x.span(i) - 1);
+        update[i].setForward(i, x.forward(i));
+      } else {
+        update[i].setSpan(i, update[i].span(i) - 1);
+      }
+    }
+    if (x.forward(0) != null) {
+      x.forward(0).backward = x.backward;
+    } else {
+      tail = x.backward;
+    }
+    while (level > 1 && header.forward(level - 1) == null) {
+      level--;
+    }
+    length--;
+    return x;
+  }
+
+  /**
+   * @return The 1-based rank of a member given its current score, or 0 if
+   * it is not in the list.
+   */
+  long rank(double score, ByteKey member) {
+    long rank = 0;
+    Node x = header;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.forward(i) != null && !follows(x.forward(i), score, member)) {
+        rank += x.span(i);
+        x = x.forward(i);
+      }
+      if (x != header && x.score == score && x.member.equals(member)) {
+        return rank;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @param rank 1-based.
+   * @return The node at that rank, or null if there is none.
+   */
+  Node byRank(long rank) {
+    long traversed = 0;
+    Node x = header;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.forward(i) != null && traversed + x.span(i) <= rank) {
+        traversed += x.span(i);
+        x = x.forward(i);
+      }
+      if (traversed == rank) {
+        return x == header ? null : x;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param inclusive Whether members scored exactly score are counted too.
+   * @return The number of members scored below score.
+   */
+  long countBelow(double score, boolean inclusive) {
+    long count = 0;
+    Node x = header;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.forward(i) != null
+          && (x.forward(i).score < score || (inclusive && x.forward(i).score == score))) {
+        count += x.span(i);
+        x = x.forward(i);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return true if the node sorts before the given score and member.
+   */
+  private static boolean precedes(Node node, double score, ByteKey member) {
+    return node.score < score
+        || (node.score == score && Arrays.compareUnsigned(node.member.bytes, member.bytes) < 0);
+  }
+
+  /**
+   * @return true if the node sorts after the given score and member.
+   */
+  private static boolean follows(Node node, double score, ByteKey member) {
+    return node.score > score
+        || (node.score == score && Arrays.compareUnsigned(node.member.bytes, member.bytes) > 0);
+  }
+
+  private static int randomLevel() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int level = 1;
+    while (level < MAX_LEVEL && random.nextInt(LEVEL_ODDS) == 0) {
+      level++;
+    }
+    return level;
+  }
+}
@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A point-in-time view of the dataStore that writers keep working under.
+ *
+ * Redis gets this view from fork() and the kernel's copy-on-write pages. Here
+ * the copying is per key: while a snapshot is open, the first write to a key
+ * that the saver has not reached yet preserves the key's old version, and the
+ * saver writes that version instead of the live one. Keys the saver has
+ * already written, and keys created after the snapshot began, cost nothing.
+ * The decision per key is made atomically (one ConcurrentHashMap compute), so
+ * the saver and a writer can never both believe they got there first.
+ */
+class Snapshot {
+  // Markers in the preserved map
+  private static final RedisData ABSENT = new Marker(); // Key did not exist when the snapshot began
+  private static final RedisData SAVED = new Marker();  // The saver has dealt with the key
+
+  /**
+   * Receives the entries of a snapshot.
+   */
+  interface EntryVisitor {
+    void visit(ByteKey key, RedisData data) throws IOException;
+  }
+
+  private final Keyspace keyspace;
+  private final ConcurrentHashMap<ByteKey, RedisData> preserved = new ConcurrentHashMap<>();
+
+  Snapshot(Keyspace keyspace) {
+    this.keyspace = keyspace;
+  }
+
+  /**
+   * Called before a key is changed, replaced or removed.
+   * Keeps the key's current version for the saver unless it already has one.
+   */
+  void beforeWrite(ByteKey key) {
+    if (preserved.get(key) != null) {
+      return; // Already saved or preserved; the common case once the saver is past it
+    }
+    preserved.computeIfAbsent(key, k -> {
+      RedisData current = keyspace.peek(k);
+      return current == null ? ABSENT : current.copy();
+    });
+  }
+
+  /**
+   * Called before a key's value object is removed or replaced by another.
+   * Once out of the keyspace the object is never changed again, so it is
+   * kept as it is instead of copied: deleting a large value while a save
+   * runs then costs no more than when none does.
+   * @param old The object about to leave the keyspace.
+   */
+  void beforeReplace(ByteKey key, RedisData old) {
+    if (preserved.get(key) != null) {
+      return;
+    }
+    preserved.computeIfAbsent(key, k -> {
+      RedisData current = keyspace.peek(k);
+      return current == null ? ABSENT : current == old ? current : current.copy();
+    });
+  }
+
+  /**
+   * Visits every key as it was when the snapshot began, including keys that
+   * were deleted since. Entries are visited once each, in no particular order.
+   */
+  void forEach(EntryVisitor visitor) throws IOException {
+    for (int shard = 0; shard < keyspace.shardCount(); shard++) {
+      for (ByteKey key : keyspace.shardMap(shard).keySet()) {
+        RedisData version = claim(key);
+        if (version != null) {
+          visitor.visit(key, version);
+        }
+      }
+    }
+    // Keys removed while we were iterating still belong in the snapshot
+    for (Map.Entry<ByteKey, RedisData> entry : preserved.entrySet()) {
+      RedisData version = entry.getValue();
+      if (version != SAVED && version != ABSENT && preserved.replace(entry.getKey(), version, SAVED)) {
+        visitor.visit(entry.getKey(), version);
+      }
+    }
+  }
+
+  /**
+   * Marks a key as saved.
+   * @return The version to save, or null if the key is not part of the snapshot.
+   */
+  private RedisData claim(ByteKey key) {
+    RedisData[] version = new RedisData[1];
+    preserved.compute(key, (k, old) -> {
+      if (old == null) {
+        // Untouched since the snapshot began: take a copy of the live value, which
+        // writers cannot change until this compute returns
+        RedisData current = keyspace.peek(k);
+        version[0] = current == null ? null : current.copy();
+      } else if (old != ABSENT && old != SAVED) {
+        version[0] = old;
+      }
+      return SAVED;
+    });
+    return version[0];
+  }
+
+  private static final class Marker extends RedisData {
+    Marker() {
+      super(-1);
+    }
+
+    @Override
+    public long memoryUsage() {
+      return 0;
+    }
+
+    @Override
+    public RedisData copy() {
+      return this;
+    }
+
+    @Override
+    public String encoding() {
+      return "none";
+    }
+
+    @Override
+    public String type() {
+      return "none";
+    }
+  }
+}
@@ -0,0 +1,382 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongFunction;
+
+/**
+ * Client-side caching invalidation (CLIENT TRACKING): clients that keep
+ * values in a local cache are told when a key they may hold is written,
+ * expires or is evicted, and drop it.
+ *
+ * In the default mode the server remembers which clients read each key: the
+ * table maps a key to their ids. A write removes the key's entry and sends
+ * each of them one invalidation; they are told again only after reading it
+ * again. The table is bounded by tracking-table-max-keys: past it, keys are
+ * forgotten and their clients told to drop them as if they were written.
+ *
+ * In broadcast mode nothing is remembered: a client names key prefixes, and
+ * every write to a key under one of them is sent to it. The prefixes of all
+ * clients are compiled into one {@link GlobTrie} (each prefix escaped,
+ * followed by *), so a write is matched against all of them in one pass.
+ *
+ * The invalidation is encoded once per write and protocol: a RESP3 push
+ * ("invalidate" and the key) for RESP3 clients, or, for a RESP2 client
+ * redirecting to another connection, a message on the __redis__:invalidate
+ * channel that connection is subscribed to. It is delivered through
+ * {@link Client#push} like a published message, so the writer never waits.
+ */
+class Tracking {
+  static final ByteKey INVALIDATE_CHANNEL = new ByteKey("__redis__:invalidate".getBytes());
+  private static final byte[] INVALIDATE = "invalidate".getBytes();
+  private static final byte[] MESSAGE = "message".getBytes();
+  private static final byte[] REDIRECT_BROKEN = "tracking-redir-broken".getBytes();
+
+  /**
+   * A client's tracking settings. Replaced rather than changed, since
+   * writers read them from their own threads.
+   */
+  static final class Tracker {
+    final boolean broadcast;
+    final long redirect; // The id of the client that gets the invalidations, or 0
+    final List<ByteKey> prefixes; // Broadcast mode; an empty prefix covers every key
+    final AtomicBoolean redirectBroken = new AtomicBoolean(); // Reported once
+
+    Tracker(boolean broadcast, long redirect, List<ByteKey> prefixes) {
+      this.broadcast = broadcast;
+      this.redirect = redirect;
+      this.prefixes = prefixes;
+    }
+  }
+
+  /**
+   * The invalidation of one key, encoded for each protocol when first needed.
+   */
+  private static final class Invalidation {
+    final byte[] key;
+    ByteBuffer push;    // RESP3
+    ByteBuffer message; // RESP2, on the invalidation channel
+
+    Invalidation(byte[] key) {
+      this.key = key;
+    }
+
+    ByteBuffer frame(boolean resp3) {
+      if (resp3) {
+        if (push == null) {
+          push = encode(true, key);
+        }
+        return push;
+      }
+      if (message == null) {
+        message = encode(false, key);
+      }
+      return message;
+    }
+  }
+
+  private final LongFunction<Client> clients; // Connected clients by id
+  private final PubSub pubSub;
+  private final long maxKeys; // 0 for no limit
+
+  // Default mode: the ids of the clients that read each key since it was last written
+  private final ConcurrentHashMap<ByteKey, long[]> table = new ConcurrentHashMap<>();
+  private final AtomicBoolean trimming = new AtomicBoolean();
+
+  // Broadcast mode: escaped prefix + "*" -> the clients tracking that prefix
+  private final GlobTrie<Set<Client>> prefixes = new GlobTrie<>();
+  private final ReentrantReadWriteLock prefixLock = new ReentrantReadWriteLock();
+  private volatile int prefixCount;
+
+  // Clients with tracking on; writes skip everything else while there are none
+  private final AtomicInteger trackingClients = new AtomicInteger();
+  private final LongAdder forgottenKeys = new LongAdder();
+
+  Tracking(LongFunction<Client> clients, PubSub pubSub, long maxKeys) {
+    this.clients = clients;
+    this.pubSub = pubSub;
+    this.maxKeys = maxKeys;
+  }
+
+  /**
+   * Turns tracking on for a client, or changes the redirect and adds
+   * prefixes if it is on already in the same mode.
+   * @param added Broadcast prefixes not yet tracked by the client.
+   */
+  void enable(Client client, boolean broadcast, long redirect, List<ByteKey> added) {
+    Tracker previous = client.tracker;
+    List<ByteKey> all = new ArrayList<>(previous == null ? List.of() : previous.prefixes);
+    if (broadcast) {
+      if (added.isEmpty() && all.isEmpty()) {
+        added = List.of(new ByteKey(new byte[0]));
+      }
+      all.addAll(added);
+      prefixLock.writeLock().lock();
+      try {
+        for (ByteKey prefix : added) {
+          byte[] pattern = patternOf(prefix.bytes);
+          Set<Client> trackers = prefixes.get(pattern);
+          if (trackers == null) {
+            trackers = new HashSet<>();
+            prefixes.put(pattern, trackers);
+          }
+          trackers.add(client);
+        }
+        prefixCount = prefixes.size();
+      } finally {
+        prefixLock.writeLock().unlock();
+      }
+    }
+    client.tracker = new Tracker(broadcast, redirect, List.copyOf(all));
+    if (previous == null) {
+      trackingClients.incrementAndGet();
+    }
+  }
+
+  /**
+   * Turns tracking off. The client's ids left in the table are skipped, and
+   * go when their keys are next written.
+   */
+  void disable(Client client) {
+    Tracker tracker = client.tracker;
+    if (tracker == null) {
+      return;
+    }
+    client.tracker = null;
+    trackingClients.decrementAndGet();
+    if (!tracker.prefixes.isEmpty()) {
+      prefixLock.writeLock().lock();
+      try {
+        for (ByteKey prefix : tracker.prefixes) {
+          byte[] pattern = patternOf(prefix.bytes);
+          Set<Client> trackers = prefixes.get(pattern);
+          trackers.remove(client);
+          if (trackers.isEmpty()) {
+            prefixes.remove(pattern);
+          }
+        }
+        prefixCount = prefixes.size();
+      } finally {
+        prefixLock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Records that a default-mode client read a key. Called with the key's
+   * shard locked, before the read, so a write cannot slip in between the
+   * read and the record; cheap when the client is recorded already.
+   */
+  void remember(Client client, ByteKey key) {
+    long id = client.id;
+    long[] ids = table.get(key);
+    if (ids != null && indexOf(ids, id) >= 0) {
+      return;
+    }
+    table.compute(key, (k, current) -> {
+      if (current == null) {
+        return new long[] {id};
+      }
+      return indexOf(current, id) >= 0 ? current : add(current, id);
+    });
+  }
+
+  /**
+   * Forgets keys while the table is over tracking-table-max-keys, telling
+   * their clients to drop them. Called after a command's reply is written, so
+   * that an invalidation of a key it read follows the reply.
+   */
+  void trim() {
+    if (maxKeys == 0 || table.size() <= maxKeys || !trimming.compareAndSet(false, true)) {
+      return; // Within the limit, or another client is trimming it
+    }
+    try {
+      // Iteration order follows the hashes, so the keys forgotten are random
+      Iterator<ByteKey> keys = table.keySet().iterator();
+      while (table.size() > maxKeys && keys.hasNext()) {
+        ByteKey key = keys.next();
+        long[] ids = table.remove(key);
+        if (ids != null) {
+          forgottenKeys.increment();
+          sendToReaders(ids, new Invalidation(key.bytes));
+        }
+      }
+    } finally {
+      trimming.set(false);
+    }
+  }
+
+  /**
+   * Tells the clients that may cache a key that it changed. Called by the
+   * keyspace on every write, expiry and eviction of the key (see
+   * {@link Keyspace#setWriteListener}).
+   */
+  void invalidate(ByteKey key) {
+    if (trackingClients.get() == 0) {
+      return;
+    }
+    long[] ids = table.remove(key);
+    if (ids == null && prefixCount == 0) {
+      return;
+    }
+    Invalidation invalidation = new Invalidation(key.bytes);
+    if (ids != null) {
+      sendToReaders(ids, invalidation);
+    }
+    if (prefixCount > 0) {
+      prefixLock.readLock().lock();
+      try {
+        prefixes.match(key.bytes, (pattern, trackers) -> {
+          for (Client client : trackers) {
+            send(client, invalidation);
+          }
+        });
+      } finally {
+        prefixLock.readLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * @return The number of clients with tracking on.
+   */
+  int clientCount() {
+    return trackingClients.get();
+  }
+
+  /**
+   * @return The number of keys remembered for default-mode clients.
+   */
+  int keyCount() {
+    return table.size();
+  }
+
+  /**
+   * @return The number of distinct broadcast prefixes.
+   */
+  int prefixCount() {
+    return prefixCount;
+  }
+
+  /**
+   * @return The number of keys forgotten to keep the table within its limit.
+   */
+  long forgottenKeys() {
+    return forgottenKeys.sum();
+  }
+
+  private void sendToReaders(long[] ids, Invalidation invalidation) {
+    for (long id : ids) {
+      Client client = clients.apply(id);
+      if (client != null) {
+        Tracker tracker = client.tracker;
+        if (tracker != null && !tracker.broadcast) {
+          send(client, invalidation);
+        }
+      }
+    }
+  }
+
+  /**
+   * Delivers an invalidation to a tracking client, or to the client it
+   * redirects to. A RESP2 connection can only take it as a message on the
+   * invalidation channel; without a subscription to it, it is dropped.
+   */
+  private void send(Client client, Invalidation invalidation) {
+    Tracker tracker = client.tracker;
+    if (tracker == null) {
+      return; // Turned off meanwhile
+    }
+    Client target = client;
+    if (tracker.redirect != 0) {
+      target = clients.apply(tracker.redirect);
+      if (target == null) {
+        // The cache can no longer be kept consistent; tell the client, once
+        if (client.protocol == 3 && tracker.redirectBroken.compareAndSet(false, true)) {
+          client.push(PubSub.frame(true, REDIRECT_BROKEN, Long.toString(tracker.redirect).getBytes()));
+        }
+        return;
+      }
+    }
+    if (target.protocol == 3) {
+      target.push(invalidation.frame(true));
+    } else if (pubSub.isSubscribed(target, INVALIDATE_CHANNEL)) {
+      target.push(invalidation.frame(false));
+    }
+  }
+
+  /**
+   * Encodes an invalidation of one key: ["invalidate", [key]] as a push, or
+   * ["message", "__redis__:invalidate", [key]] as a RESP2 message.
+   */
+  private static ByteBuffer encode(boolean push, byte[] key) {
+    ByteArrayOutputStream frame = new ByteArrayOutputStream(64 + key.length);
+    try {
+      if (push) {
+        CommandProcessor.writeAggregateHeader(frame, true, 2);
+        CommandProcessor.writeBulk(frame, INVALIDATE);
+      } else {
+        CommandProcessor.writeArrayHeader(frame, 3);
+        CommandProcessor.writeBulk(frame, MESSAGE);
+        CommandProcessor.writeBulk(frame, INVALIDATE_CHANNEL.bytes);
+      }
+      CommandProcessor.writeArrayHeader(frame, 1);
+      CommandProcessor.writeBulk(frame, key);
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // Not thrown by ByteArrayOutputStream
+    }
+    return ByteBuffer.wrap(frame.toByteArray()).asReadOnlyBuffer();
+  }
+
+  /**
+   * @return A glob pattern matching the keys that start with the prefix.
+   */
+  private static byte[] patternOf(byte[] prefix) {
+    ByteArrayOutputStream pattern = new ByteArrayOutputStream(prefix.length + 8);
+    for (byte b : prefix) {
+      if (b == '*' || b == '?' || b == '[' || b == ']' || b == '\\') {
+        pattern.write('\\');
+      }
+      pattern.write(b);
+    }
+    pattern.write('*');
+    return pattern.toByteArray();
+  }
+
+  private static int indexOf(long[] ids, long id) {
+    for (int i = 0; i < ids.length; i++) {
+      if (ids[i] == id) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Adds an id to a key's readers, dropping those that no longer track in
+   * the default mode so the arrays do not grow with past connections.
+   */
+  private long[] add(long[] ids, long id) {
+    long[] grown = new long[ids.length + 1];
+    int count = 0;
+    for (long existing : ids) {
+      Client client = clients.apply(existing);
+      Tracker tracker = client == null ? null : client.tracker;
+      if (tracker != null && !tracker.broadcast) {
+        grown[count++] = existing;
+      }
+    }
+    grown[count++] = id;
+    return count == grown.length ? grown : Arrays.copyOf(grown, count);
+  }
+}
@@ -0,0 +1,19 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A client's MULTI state: the commands queued until EXEC runs them as one
+ * unit (see {@link CommandProcessor}).
+ */
+final class Transaction {
+  final List<CommandArgs> queued = new ArrayList<>(); // Copies, owning their bytes
+  // Started by a replayed MULTI (the AOF or the master's stream): EXEC runs
+  // the commands as replayed ones, which cluster mode never redirects
+  final boolean replayed;
+  // Set when a command could not be queued; EXEC then discards the transaction
+  boolean failed;
+
+  Transaction(boolean replayed) {
+    this.replayed = replayed;
+  }
+}